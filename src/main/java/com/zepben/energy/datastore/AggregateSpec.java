@@ -0,0 +1,86 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+
+import javax.annotation.Nullable;
+import java.util.Objects;
+
+/**
+ * What {@link EnergyProfileReader#aggregate} calculates for each group: which readings of the profiles, and how the
+ * values at each interval are combined.
+ */
+@EverythingIsNonnullByDefault
+public final class AggregateSpec {
+
+    @EverythingIsNonnullByDefault
+    public enum Value {
+        KW_IN,
+        KW_OUT,
+        /**
+         * kW in minus kW out.
+         */
+        KW_NET
+    }
+
+    @EverythingIsNonnullByDefault
+    public enum Operation {
+        SUM,
+        /**
+         * The mean over the profiles that have a value at the interval.
+         */
+        MEAN,
+        MIN,
+        MAX
+    }
+
+    private final Value value;
+    private final Operation operation;
+
+    private AggregateSpec(Value value, Operation operation) {
+        this.value = value;
+        this.operation = operation;
+    }
+
+    public static AggregateSpec of(Value value, Operation operation) {
+        return new AggregateSpec(value, operation);
+    }
+
+    public static AggregateSpec sum(Value value) {
+        return of(value, Operation.SUM);
+    }
+
+    public Value value() {
+        return value;
+    }
+
+    public Operation operation() {
+        return operation;
+    }
+
+    @Override
+    public boolean equals(@Nullable Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        AggregateSpec that = (AggregateSpec) o;
+        return value == that.value && operation == that.operation;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(value, operation);
+    }
+
+    @Override
+    public String toString() {
+        return "AggregateSpec{" + operation + " of " + value + '}';
+    }
+
+}
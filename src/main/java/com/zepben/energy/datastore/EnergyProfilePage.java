@@ -0,0 +1,53 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.model.EnergyProfile;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of the profiles on a date, read by {@link EnergyProfileReader#forAllPage}.
+ * <p>The continuation token is opaque. It should only be passed back to {@link EnergyProfileReader#forAllPage} for
+ * the same date to read the next page, which can be done from another reader over the same store, e.g. after a restart.
+ */
+@EverythingIsNonnullByDefault
+public final class EnergyProfilePage {
+
+    private final List<EnergyProfile> profiles;
+    @Nullable private final String continuationToken;
+
+    public EnergyProfilePage(List<EnergyProfile> profiles, @Nullable String continuationToken) {
+        this.profiles = Collections.unmodifiableList(profiles);
+        this.continuationToken = continuationToken;
+    }
+
+    /**
+     * @return the profiles on the page, ordered by id. Only the last page can have fewer profiles than were asked for.
+     */
+    public List<EnergyProfile> profiles() {
+        return profiles;
+    }
+
+    /**
+     * @return the token to read the next page with, or null if this is the last page.
+     */
+    @Nullable
+    public String continuationToken() {
+        return continuationToken;
+    }
+
+    public boolean hasMore() {
+        return continuationToken != null;
+    }
+
+}
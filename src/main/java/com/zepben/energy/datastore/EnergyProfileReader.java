@@ -16,8 +16,15 @@ import com.zepben.energy.model.Readings;
 
 import javax.annotation.Nullable;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
 
 @EverythingIsNonnullByDefault
 public interface EnergyProfileReader {
@@ -29,6 +36,15 @@ public interface EnergyProfileReader {
 
     void forAllGetDateRange(Consumer<IdDateRange> handler);
 
+    /**
+     * @return true if there may be a profile for the id on the date. The default checks the indexed date range of the id,
+     * which is only exact if it knows its days. Readers with more exact indexes should override it.
+     */
+    default boolean exists(String id, LocalDate date) {
+        IdDateRange range = getDateRange(id);
+        return range != null && range.hasDate(date);
+    }
+
     @Nullable
     EnergyProfile get(String id,
                       LocalDate date,
@@ -43,6 +59,195 @@ public interface EnergyProfileReader {
                 ItemHandler<EnergyProfile> onRead,
                 ErrorHandler onError);
 
+    /**
+     * Gets a profile, recording the execution statistics of the call into the stats.
+     * <p>The default records the read stage and a scanned row if the profile exists, along with anything recorded by
+     * shared components while the stats are current. Readers that can see more of the call should override it.
+     */
+    @Nullable
+    default EnergyProfile get(String id,
+                              LocalDate date,
+                              QueryStats stats,
+                              ErrorHandler onError) {
+        try (QueryStats.Scope ignored = stats.enter()) {
+            long wall = System.nanoTime();
+            long cpu = stats.cpuTime();
+            EnergyProfile profile = get(id, date, onError);
+            stats.record(QueryStats.Stage.READ, wall, cpu);
+            if (profile != null)
+                stats.addRowsScanned(1);
+            return profile;
+        }
+    }
+
+    /**
+     * Reads the profiles for the ids, recording the execution statistics of the call into the stats.
+     * <p>The default records the read and callback stages and the rows scanned, along with anything recorded by shared
+     * components while the stats are current. Readers that can see more of the call should override it.
+     */
+    default void forEach(Collection<String> ids,
+                         LocalDate date,
+                         QueryStats stats,
+                         ItemHandler<EnergyProfile> onRead,
+                         ErrorHandler onError) {
+        try (QueryStats.Scope ignored = stats.enter()) {
+            long wall = System.nanoTime();
+            long cpu = stats.cpuTime();
+            forEach(ids, date, stats.callbackHandler(onRead), onError);
+            stats.record(QueryStats.Stage.READ, wall, cpu);
+        }
+    }
+
+    /**
+     * Reads all profiles for the date, recording the execution statistics of the call into the stats.
+     * <p>The default records the read and callback stages and the rows scanned, along with anything recorded by shared
+     * components while the stats are current. Readers that can see more of the call should override it.
+     */
+    default void forAll(LocalDate date,
+                        QueryStats stats,
+                        ItemHandler<EnergyProfile> onRead,
+                        ErrorHandler onError) {
+        try (QueryStats.Scope ignored = stats.enter()) {
+            long wall = System.nanoTime();
+            long cpu = stats.cpuTime();
+            forAll(date, stats.callbackHandler(onRead), onError);
+            stats.record(QueryStats.Stage.READ, wall, cpu);
+        }
+    }
+
+    /**
+     * Reads the profiles for the ids whose maximums pass the given filter.
+     * <p>Profiles without any readings have no maximums and are never passed to the handler.
+     */
+    default void forEach(Collection<String> ids,
+                         LocalDate date,
+                         Predicate<EnergyProfileStat> maximumsFilter,
+                         ItemHandler<EnergyProfile> onRead,
+                         ErrorHandler onError) {
+        forEach(ids, date, filterByMaximums(maximumsFilter, onRead), onError);
+    }
+
+    /**
+     * Reads all profiles for the date whose maximums pass the given filter.
+     * <p>Profiles without any readings have no maximums and are never passed to the handler.
+     */
+    default void forAll(LocalDate date,
+                        Predicate<EnergyProfileStat> maximumsFilter,
+                        ItemHandler<EnergyProfile> onRead,
+                        ErrorHandler onError) {
+        forAll(date, filterByMaximums(maximumsFilter, onRead), onError);
+    }
+
+    /**
+     * Gets the profiles for an id over a range of dates.
+     *
+     * @return the profiles that exist for the id between from and to (inclusive), ordered by date.
+     */
+    default List<EnergyProfile> getSeries(String id,
+                                          LocalDate from,
+                                          LocalDate to,
+                                          ErrorHandler onError) {
+        List<EnergyProfile> series = new ArrayList<>();
+        for (LocalDate date = from; !date.isAfter(to); date = date.plusDays(1)) {
+            EnergyProfile profile = get(id, date, onError);
+            if (profile != null)
+                series.add(profile);
+        }
+        return series;
+    }
+
+    /**
+     * Reads the profiles for the ids over a range of dates. Profiles are passed to the handler in date order.
+     */
+    default void forEachSeries(Collection<String> ids,
+                               LocalDate from,
+                               LocalDate to,
+                               ItemHandler<EnergyProfile> onRead,
+                               ErrorHandler onError) {
+        for (LocalDate date = from; !date.isAfter(to); date = date.plusDays(1))
+            forEach(ids, date, onRead, onError);
+    }
+
+    /**
+     * Reads a page of the profiles on a date, in id order. Unlike {@link #forAll}, a scan of a date can be stopped
+     * after any page and continued later from its continuation token, and only a page of profiles is held at a time.
+     * <p>The default finds the ids on the date from their indexed date ranges and reads them with {@link #forEach}.
+     * Profiles written to the date while it is being paged are included if their id sorts after the page being read.
+     *
+     * @param continuationToken null to read the first page, or the token of the previous page to read the next one.
+     * @param pageSize          the maximum number of profiles to read.
+     */
+    default EnergyProfilePage forAllPage(LocalDate date,
+                                         @Nullable String continuationToken,
+                                         int pageSize,
+                                         ErrorHandler onError) {
+        List<String> ids = new ArrayList<>();
+        forAllGetDateRange(range -> {
+            if (range.hasDate(date))
+                ids.add(range.id());
+        });
+
+        return readPage(this, ids, date, continuationToken, pageSize, onError);
+    }
+
+    /**
+     * Reads the kW in and kW out values of every profile on a date at a single interval, e.g. for a load flow at one
+     * point in time.
+     * <p>The default reads the whole profiles with {@link #forAll}. Readers that can decode a single interval of the
+     * stored readings should override it.
+     *
+     * @param interval the index of the interval to read, from 0.
+     */
+    default IntervalColumn forAllAtInterval(LocalDate date,
+                                            int interval,
+                                            ErrorHandler onError) {
+        IntervalColumn column = new IntervalColumn(date, interval);
+        forAll(date, (id, dt, profile) -> {
+            column.setKwIn(id, IntervalColumn.valueAt(profile.kwIn(), interval));
+            column.setKwOut(id, IntervalColumn.valueAt(profile.kwOut(), interval));
+        }, onError);
+        return column;
+    }
+
+    /**
+     * Ranks the profiles between from and to (inclusive) by a value of their maximums, keeping the k highest ranked.
+     * Only k profiles are held at a time, however many are read.
+     * <p>The default reads the maximums of each date in turn with {@link #maximumsReader()}.
+     *
+     * @param value the value of the maximums to rank by, e.g. {@code EnergyProfileStat::kwIn}.
+     */
+    default ProfileRanking topK(LocalDate from,
+                                LocalDate to,
+                                int k,
+                                ToDoubleFunction<EnergyProfileStat> value,
+                                ErrorHandler onError) {
+        TopKHeap heap = new TopKHeap(k);
+        for (LocalDate date = from; !date.isAfter(to); date = date.plusDays(1))
+            maximumsReader().forAll(date, (id, dt, stat) -> heap.offer(id, dt, value.applyAsDouble(stat)), onError);
+        return heap.toRanking();
+    }
+
+    /**
+     * Aggregates the readings of the profiles in each group between from and to (inclusive). A single channel of
+     * readings for each group on each date is passed to the handler, with the group as the id, in date order.
+     * <p>The default aggregates each date in turn with {@link #aggregateDate}.
+     *
+     * @param groupMapping the group of each id. Ids that are not in the mapping are not read.
+     */
+    default void aggregate(Map<String, String> groupMapping,
+                           LocalDate from,
+                           LocalDate to,
+                           AggregateSpec spec,
+                           ItemHandler<Readings> onAggregate,
+                           ErrorHandler onError) {
+        for (LocalDate date = from; !date.isAfter(to); date = date.plusDays(1)) {
+            LocalDate aggregateDate = date;
+            aggregateDate(this, groupMapping, date, spec, onError)
+                .toReadings()
+                .forEach((group, readings) -> onAggregate.handle(group, aggregateDate, readings));
+        }
+    }
+
     default void forAllCacheable(LocalDate date,
                                  ItemHandler<EnergyProfile> onRead,
                                  ErrorHandler onError) {
@@ -58,8 +263,100 @@ public interface EnergyProfileReader {
 
     PartialProfileReader<Readings> kwOutReader();
 
+    /**
+     * @return a reader of the kW in readings holding only the intervals from fromInterval (inclusive) to toInterval
+     * (exclusive). The default reads the whole readings and copies the range out of them.
+     */
+    default PartialProfileReader<Readings> kwInReader(int fromInterval, int toInterval) {
+        return new IntervalRangeReader(kwInReader(), fromInterval, toInterval);
+    }
+
+    /**
+     * @return a reader of the kW out readings holding only the intervals from fromInterval (inclusive) to toInterval
+     * (exclusive). The default reads the whole readings and copies the range out of them.
+     */
+    default PartialProfileReader<Readings> kwOutReader(int fromInterval, int toInterval) {
+        return new IntervalRangeReader(kwOutReader(), fromInterval, toInterval);
+    }
+
     PartialProfileReader<Boolean> isCacheableReader();
 
     PartialProfileReader<EnergyProfileStat> maximumsReader();
 
+    static ItemHandler<EnergyProfile> filterByMaximums(Predicate<EnergyProfileStat> maximumsFilter,
+                                                       ItemHandler<EnergyProfile> onRead) {
+        return (id, date, profile) -> {
+            if (profile.kwIn().length() > 0 && maximumsFilter.test(EnergyProfileStat.ofMax(profile)))
+                onRead.handle(id, date, profile);
+        };
+    }
+
+    /**
+     * Aggregates the readings of the profiles in each group on a date, for implementing {@link #aggregate}. Only the
+     * readings the spec needs are read, through the partial profile readers, unless it needs both the kW in and kW out.
+     */
+    static GroupAccumulator aggregateDate(EnergyProfileReader reader,
+                                          Map<String, String> groupMapping,
+                                          LocalDate date,
+                                          AggregateSpec spec,
+                                          ErrorHandler onError) {
+        GroupAccumulator accumulator = new GroupAccumulator(spec.operation());
+        Collection<String> ids = groupMapping.keySet();
+        switch (spec.value()) {
+            case KW_IN:
+                reader.kwInReader().forEach(ids, date, (id, dt, readings) -> accumulator.add(groupMapping.get(id), readings), onError);
+                break;
+            case KW_OUT:
+                reader.kwOutReader().forEach(ids, date, (id, dt, readings) -> accumulator.add(groupMapping.get(id), readings), onError);
+                break;
+            case KW_NET:
+                reader.forEach(ids, date, (id, dt, profile) -> accumulator.addNet(groupMapping.get(id), profile.kwIn(), profile.kwOut()), onError);
+                break;
+            default:
+                throw new AssertionError("Internal error: Missing aggregate case for value " + spec.value());
+        }
+        return accumulator;
+    }
+
+    /**
+     * Reads the next page of profiles from the ids on a date, for implementing {@link #forAllPage}. The continuation
+     * token is the last id that was checked, so ids that have no profile are not checked again on the next page.
+     *
+     * @param ids the ids that may have a profile on the date, in any order. This list is sorted in place.
+     */
+    static EnergyProfilePage readPage(EnergyProfileReader reader,
+                                      List<String> ids,
+                                      LocalDate date,
+                                      @Nullable String continuationToken,
+                                      int pageSize,
+                                      ErrorHandler onError) {
+        if (pageSize < 1)
+            throw new IllegalArgumentException("pageSize must be at least 1");
+
+        Collections.sort(ids);
+        int start = 0;
+        if (continuationToken != null) {
+            int index = Collections.binarySearch(ids, continuationToken);
+            start = index >= 0 ? index + 1 : -index - 1;
+        }
+
+        // Ids without a profile leave the page short, so more are read until it is full or the ids run out.
+        List<EnergyProfile> profiles = new ArrayList<>(Math.min(pageSize, ids.size() - start));
+        String lastId = null;
+        while (profiles.size() < pageSize && start < ids.size()) {
+            int end = Math.min(ids.size(), start + pageSize - profiles.size());
+            List<String> chunk = ids.subList(start, end);
+
+            List<EnergyProfile> read = new ArrayList<>(chunk.size());
+            reader.forEach(chunk, date, (id, dt, profile) -> read.add(profile), onError);
+            read.sort(Comparator.comparing(EnergyProfile::id));
+            profiles.addAll(read);
+
+            lastId = chunk.get(chunk.size() - 1);
+            start = end;
+        }
+
+        return new EnergyProfilePage(profiles, start < ids.size() ? lastId : null);
+    }
+
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.model.Channel;
+import com.zepben.energy.model.DoubleArrayView;
+import com.zepben.energy.model.Readings;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Combines the values of profiles into a primitive accumulator per group, by one of the {@link AggregateSpec}
+ * operations. Values of different lengths are combined up to the length of the longest of them.
+ * <p>This class is not thread safe. Values read on multiple threads should be added to an accumulator per thread, which
+ * are then merged.
+ */
+@EverythingIsNonnullByDefault
+public final class GroupAccumulator {
+
+    private final AggregateSpec.Operation operation;
+    private final Map<String, Accumulator> groups = new LinkedHashMap<>();
+
+    public GroupAccumulator(AggregateSpec.Operation operation) {
+        this.operation = operation;
+    }
+
+    public AggregateSpec.Operation operation() {
+        return operation;
+    }
+
+    public int numGroups() {
+        return groups.size();
+    }
+
+    public void add(String group, DoubleArrayView values) {
+        int length = values.length();
+        Accumulator accumulator = accumulatorFor(group, length);
+        for (int i = 0; i < length; ++i)
+            accumulator.values[i] = combine(accumulator.values[i], values.get(i));
+    }
+
+    /**
+     * Adds kW in minus kW out. If one of the readings is shorter than the other, its missing values are 0.
+     */
+    public void addNet(String group, DoubleArrayView kwIn, DoubleArrayView kwOut) {
+        int kwInLength = kwIn.length();
+        int kwOutLength = kwOut.length();
+        int length = Math.max(kwInLength, kwOutLength);
+        Accumulator accumulator = accumulatorFor(group, length);
+        for (int i = 0; i < length; ++i) {
+            double value = (i < kwInLength ? kwIn.get(i) : 0) - (i < kwOutLength ? kwOut.get(i) : 0);
+            accumulator.values[i] = combine(accumulator.values[i], value);
+        }
+    }
+
+    /**
+     * Adds the values accumulated by another accumulator with the same operation to this one.
+     */
+    public void merge(GroupAccumulator other) {
+        if (other.operation != operation)
+            throw new IllegalArgumentException("can't merge " + other.operation + " into " + operation);
+
+        other.groups.forEach((group, otherAccumulator) -> {
+            Accumulator accumulator = groups.computeIfAbsent(group, g -> new Accumulator());
+            accumulator.ensureLength(otherAccumulator.length);
+            for (int i = 0; i < otherAccumulator.length; ++i) {
+                if (otherAccumulator.counts[i] == 0)
+                    continue;
+
+                // Means are held as sums until they are read, so they merge the same as new values.
+                accumulator.values[i] = combine(accumulator.values[i], otherAccumulator.values[i]);
+                accumulator.counts[i] += otherAccumulator.counts[i];
+            }
+        });
+    }
+
+    /**
+     * @return a single channel of readings for each group, in the order the groups were first added.
+     */
+    public Map<String, Readings> toReadings() {
+        Map<String, Readings> readings = new LinkedHashMap<>();
+        groups.forEach((group, accumulator) -> {
+            double[] values = Arrays.copyOf(accumulator.values, accumulator.length);
+            if (operation == AggregateSpec.Operation.MEAN) {
+                for (int i = 0; i < values.length; ++i)
+                    values[i] = values[i] / accumulator.counts[i];
+            }
+
+            readings.put(group, values.length == 0 ? Readings.EMPTY_READINGS : Readings.of(Channel.of(values)));
+        });
+        return readings;
+    }
+
+    private Accumulator accumulatorFor(String group, int length) {
+        Accumulator accumulator = groups.computeIfAbsent(group, g -> new Accumulator());
+        accumulator.ensureLength(length);
+        for (int i = 0; i < length; ++i)
+            ++accumulator.counts[i];
+        return accumulator;
+    }
+
+    private double combine(double accumulated, double value) {
+        switch (operation) {
+            case MIN:
+                return Math.min(accumulated, value);
+            case MAX:
+                return Math.max(accumulated, value);
+            default:
+                return accumulated + value;
+        }
+    }
+
+    private double initialValue() {
+        switch (operation) {
+            case MIN:
+                return Double.POSITIVE_INFINITY;
+            case MAX:
+                return Double.NEGATIVE_INFINITY;
+            default:
+                return 0;
+        }
+    }
+
+    @EverythingIsNonnullByDefault
+    private class Accumulator {
+
+        private double[] values = new double[0];
+        private int[] counts = new int[0];
+        private int length = 0;
+
+        void ensureLength(int newLength) {
+            if (newLength <= length)
+                return;
+
+            if (newLength > values.length) {
+                values = Arrays.copyOf(values, newLength);
+                counts = Arrays.copyOf(counts, newLength);
+            }
+
+            Arrays.fill(values, length, newLength, initialValue());
+            length = newLength;
+        }
+
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.model.Readings;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The kW in and kW out values of every profile on a date at a single interval, read by
+ * {@link EnergyProfileReader#forAllAtInterval}. Values are held in primitive arrays indexed by the position of the id.
+ * <p>A value is the sum over the channels of the readings, as returned by {@link Readings#get(int)}. Readings that
+ * are missing from a profile have a value of 0, the same as the zeroed readings a profile is given for them, and
+ * readings that do not reach the interval have a value of NaN.
+ * <p>This class is not thread safe.
+ */
+@EverythingIsNonnullByDefault
+public final class IntervalColumn {
+
+    private final LocalDate date;
+    private final int interval;
+    private final Map<String, Integer> positions = new HashMap<>();
+    private String[] ids = new String[16];
+    private double[] kwIn = new double[16];
+    private double[] kwOut = new double[16];
+    private int size = 0;
+
+    public IntervalColumn(LocalDate date, int interval) {
+        if (interval < 0)
+            throw new IllegalArgumentException("interval must not be negative");
+
+        this.date = date;
+        this.interval = interval;
+    }
+
+    /**
+     * @return the value of the readings at the interval, or NaN if the readings do not reach it.
+     */
+    public static double valueAt(Readings readings, int interval) {
+        return interval < readings.length() ? readings.get(interval) : Double.NaN;
+    }
+
+    public LocalDate date() {
+        return date;
+    }
+
+    public int interval() {
+        return interval;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String id(int position) {
+        checkPosition(position);
+        return ids[position];
+    }
+
+    public double kwIn(int position) {
+        checkPosition(position);
+        return kwIn[position];
+    }
+
+    public double kwOut(int position) {
+        checkPosition(position);
+        return kwOut[position];
+    }
+
+    /**
+     * @return the position of the id, or -1 if it is not in the column.
+     */
+    public int indexOf(String id) {
+        Integer position = positions.get(id);
+        return position == null ? -1 : position;
+    }
+
+    public void forEach(ValueHandler handler) {
+        for (int i = 0; i < size; ++i)
+            handler.handle(ids[i], kwIn[i], kwOut[i]);
+    }
+
+    /**
+     * Sets the kW in value of the id, adding it to the column with a kW out value of 0 if it is not already in it.
+     */
+    public void setKwIn(String id, double value) {
+        kwIn[positionOf(id)] = value;
+    }
+
+    /**
+     * Sets the kW out value of the id, adding it to the column with a kW in value of 0 if it is not already in it.
+     */
+    public void setKwOut(String id, double value) {
+        kwOut[positionOf(id)] = value;
+    }
+
+    private int positionOf(String id) {
+        Integer position = positions.get(id);
+        if (position != null)
+            return position;
+
+        if (size == ids.length) {
+            int capacity = size * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            kwIn = Arrays.copyOf(kwIn, capacity);
+            kwOut = Arrays.copyOf(kwOut, capacity);
+        }
+
+        ids[size] = id;
+        positions.put(id, size);
+        return size++;
+    }
+
+    private void checkPosition(int position) {
+        if (position < 0 || position >= size)
+            throw new IndexOutOfBoundsException("position " + position + " is not in a column of size " + size);
+    }
+
+    @EverythingIsNonnullByDefault
+    @FunctionalInterface
+    public interface ValueHandler {
+
+        void handle(String id, double kwIn, double kwOut);
+
+    }
+
+}
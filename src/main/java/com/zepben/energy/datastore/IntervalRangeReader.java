@@ -0,0 +1,92 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.model.Channel;
+import com.zepben.energy.model.Readings;
+
+import javax.annotation.Nullable;
+import java.time.LocalDate;
+import java.util.Collection;
+
+/**
+ * Reads a range of intervals of readings by reading the whole readings from another reader and copying the range out
+ * of them. Used by the default {@link EnergyProfileReader#kwInReader(int, int)} and
+ * {@link EnergyProfileReader#kwOutReader(int, int)}.
+ */
+@EverythingIsNonnullByDefault
+public class IntervalRangeReader implements PartialProfileReader<Readings> {
+
+    private final PartialProfileReader<Readings> reader;
+    private final int fromInterval;
+    private final int toInterval;
+
+    /**
+     * @param fromInterval the index of the first interval to read, from 0.
+     * @param toInterval   the index after the last interval to read.
+     */
+    public IntervalRangeReader(PartialProfileReader<Readings> reader, int fromInterval, int toInterval) {
+        checkRange(fromInterval, toInterval);
+
+        this.reader = reader;
+        this.fromInterval = fromInterval;
+        this.toInterval = toInterval;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the range is not a valid range of intervals.
+     */
+    public static void checkRange(int fromInterval, int toInterval) {
+        if (fromInterval < 0 || toInterval < fromInterval)
+            throw new IllegalArgumentException("invalid interval range [" + fromInterval + ", " + toInterval + ")");
+    }
+
+    /**
+     * @return readings holding the intervals in the range, cut short if the readings end before the range does.
+     */
+    public static Readings range(Readings readings, int fromInterval, int toInterval) {
+        int length = Math.max(0, Math.min(toInterval, readings.length()) - fromInterval);
+        if (length == 0)
+            return Readings.EMPTY_READINGS;
+
+        Channel[] channels = new Channel[readings.numChannels()];
+        for (int channelNum = 1; channelNum <= channels.length; ++channelNum) {
+            Channel channel = readings.channel(channelNum);
+            double[] values = new double[length];
+            for (int i = 0; i < length; ++i)
+                values[i] = channel.get(fromInterval + i);
+            channels[channelNum - 1] = Channel.of(values);
+        }
+
+        return channels.length == 1 ? Readings.of(channels[0]) : Readings.of(channels);
+    }
+
+    @Nullable
+    @Override
+    public Readings get(String id, LocalDate date, ErrorHandler onError) {
+        Readings readings = reader.get(id, date, onError);
+        return readings == null ? null : range(readings, fromInterval, toInterval);
+    }
+
+    @Override
+    public void forEach(Collection<String> ids, LocalDate date, ItemHandler<Readings> onRead, ErrorHandler onError) {
+        reader.forEach(ids, date, rangeHandler(onRead), onError);
+    }
+
+    @Override
+    public void forAll(LocalDate date, ItemHandler<Readings> onRead, ErrorHandler onError) {
+        reader.forAll(date, rangeHandler(onRead), onError);
+    }
+
+    private ItemHandler<Readings> rangeHandler(ItemHandler<Readings> onRead) {
+        return (id, date, readings) -> onRead.handle(id, date, range(readings, fromInterval, toInterval));
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+
+import java.time.LocalDate;
+
+/**
+ * The highest ranked profiles read by {@link EnergyProfileReader#topK}, highest first. Each entry is the id and date of
+ * a profile and the value it was ranked by, held in primitive arrays indexed by rank.
+ */
+@EverythingIsNonnullByDefault
+public final class ProfileRanking {
+
+    private final String[] ids;
+    private final LocalDate[] dates;
+    private final double[] values;
+
+    ProfileRanking(String[] ids, LocalDate[] dates, double[] values) {
+        this.ids = ids;
+        this.dates = dates;
+        this.values = values;
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public String id(int rank) {
+        return ids[rank];
+    }
+
+    public LocalDate date(int rank) {
+        return dates[rank];
+    }
+
+    public double value(int rank) {
+        return values[rank];
+    }
+
+}
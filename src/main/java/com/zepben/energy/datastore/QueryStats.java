@@ -0,0 +1,287 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+
+import javax.annotation.Nullable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Execution statistics of reader calls, passed to the overloads of {@link EnergyProfileReader} that take one. The same
+ * stats can be passed to many calls to sum them, and it is safe to record into them from multiple threads.
+ * <p>While a call is recording into the stats they are {@link #current()} on its thread, so shared components such as
+ * the index and store caches can record into them without being passed them. The current stats are thread local, so
+ * readers that read on other threads need to carry them over with {@link #inCurrent(Function)}.
+ * <p>Stage times are recorded separately for each stage, so the time of a stage includes the time of any stages that
+ * run inside it, e.g. {@link Stage#READ} includes the decoding and callbacks of the rows read.
+ * <p>CPU time is only measured by stats created to measure it, and only if the JVM supports and has enabled measuring
+ * the CPU time of threads. Enabling it is left to the application. It is measured once per stage of a call rather than
+ * per row, so the {@link Stage#DECODE} and {@link Stage#CALLBACK} stages, which are timed per row, only have wall times.
+ */
+@EverythingIsNonnullByDefault
+public final class QueryStats {
+
+    @EverythingIsNonnullByDefault
+    public enum Stage {
+        /**
+         * Filtering the ids with the date indexes.
+         */
+        INDEX,
+        /**
+         * Reading the rows from the stores.
+         */
+        READ,
+        /**
+         * Deserialising the stored bytes of the rows.
+         */
+        DECODE,
+        /**
+         * Running the handlers of the caller.
+         */
+        CALLBACK
+    }
+
+    private static final ThreadLocal<QueryStats> CURRENT = new ThreadLocal<>();
+
+    private final LongAdder rowsScanned = new LongAdder();
+    private final LongAdder rowsFilteredByIndex = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesDecoded = new LongAdder();
+    private final LongAdder storesOpened = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder[] wallNanos = newAdders();
+    private final LongAdder[] cpuNanos = newAdders();
+    @Nullable private final ThreadMXBean threadBean;
+
+    /**
+     * Creates stats that only measure wall times.
+     */
+    public QueryStats() {
+        this(false);
+    }
+
+    /**
+     * @param measureCpuTime true to also measure the CPU time of the index and read stages. This needs the JVM to have
+     *                       thread CPU time measurement enabled, which it does not do for you.
+     */
+    public QueryStats(boolean measureCpuTime) {
+        threadBean = measureCpuTime ? threadBean() : null;
+    }
+
+    /**
+     * @return the stats being recorded into on this thread, or null if there are none.
+     */
+    @Nullable
+    public static QueryStats current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Wraps a function so it runs with the stats that are {@link #current()} on the calling thread now also current on
+     * the thread it is run on, e.g. for a read that is run on an executor.
+     */
+    public static <T, R> Function<T, R> inCurrent(Function<T, R> function) {
+        QueryStats stats = current();
+        if (stats == null)
+            return function;
+
+        return value -> {
+            try (Scope ignored = stats.enter()) {
+                return function.apply(value);
+            }
+        };
+    }
+
+    /**
+     * @return the CPU time of this thread in nanoseconds, or 0 if these stats don't measure it.
+     */
+    public long cpuTime() {
+        return threadBean == null ? 0 : threadBean.getCurrentThreadCpuTime();
+    }
+
+    /**
+     * Makes these the {@link #current()} stats of this thread until the returned scope is closed, when the previous
+     * stats of the thread are restored.
+     */
+    public Scope enter() {
+        QueryStats previous = CURRENT.get();
+        CURRENT.set(this);
+        return () -> {
+            if (previous == null)
+                CURRENT.remove();
+            else
+                CURRENT.set(previous);
+        };
+    }
+
+    public void addRowsScanned(long rows) {
+        rowsScanned.add(rows);
+    }
+
+    public void addRowsFilteredByIndex(long rows) {
+        rowsFilteredByIndex.add(rows);
+    }
+
+    public void addBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    public void addBytesDecoded(long bytes) {
+        bytesDecoded.add(bytes);
+    }
+
+    public void storeOpened() {
+        storesOpened.increment();
+    }
+
+    public void cacheHit() {
+        cacheHits.increment();
+    }
+
+    public void addCacheHits(long hits) {
+        cacheHits.add(hits);
+    }
+
+    public void cacheMiss() {
+        cacheMisses.increment();
+    }
+
+    public void addCacheMisses(long misses) {
+        cacheMisses.add(misses);
+    }
+
+    /**
+     * Records the time of a stage that started at the given times.
+     *
+     * @param startWallNanos the {@link System#nanoTime()} the stage started at.
+     * @param startCpuNanos  the {@link #cpuTime()} the stage started at, on the same thread.
+     */
+    public void record(Stage stage, long startWallNanos, long startCpuNanos) {
+        wallNanos[stage.ordinal()].add(System.nanoTime() - startWallNanos);
+        if (threadBean != null)
+            cpuNanos[stage.ordinal()].add(cpuTime() - startCpuNanos);
+    }
+
+    /**
+     * Records the wall time of a stage that started at the given time, for stages that are timed per row.
+     *
+     * @param startWallNanos the {@link System#nanoTime()} the stage started at.
+     */
+    public void recordWall(Stage stage, long startWallNanos) {
+        wallNanos[stage.ordinal()].add(System.nanoTime() - startWallNanos);
+    }
+
+    /**
+     * @return a handler that counts each row as scanned and records the wall time of the handler as the callback stage.
+     */
+    public <T> ItemHandler<T> callbackHandler(ItemHandler<T> onRead) {
+        return (id, date, item) -> {
+            rowsScanned.increment();
+            long wall = System.nanoTime();
+            onRead.handle(id, date, item);
+            recordWall(Stage.CALLBACK, wall);
+        };
+    }
+
+    public long rowsScanned() {
+        return rowsScanned.sum();
+    }
+
+    /**
+     * @return the number of ids or rows that were dropped because the date indexes showed they had no profile.
+     */
+    public long rowsFilteredByIndex() {
+        return rowsFilteredByIndex.sum();
+    }
+
+    public long bytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long bytesDecoded() {
+        return bytesDecoded.sum();
+    }
+
+    public long storesOpened() {
+        return storesOpened.sum();
+    }
+
+    public long cacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long cacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    public long wallNanos(Stage stage) {
+        return wallNanos[stage.ordinal()].sum();
+    }
+
+    public long cpuNanos(Stage stage) {
+        return cpuNanos[stage.ordinal()].sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("QueryStats{")
+            .append("rowsScanned=").append(rowsScanned())
+            .append(", rowsFilteredByIndex=").append(rowsFilteredByIndex())
+            .append(", bytesRead=").append(bytesRead())
+            .append(", bytesDecoded=").append(bytesDecoded())
+            .append(", storesOpened=").append(storesOpened())
+            .append(", cacheHits=").append(cacheHits())
+            .append(", cacheMisses=").append(cacheMisses());
+        for (Stage stage : Stage.values()) {
+            sb.append(", ").append(stage.name().toLowerCase(Locale.ROOT))
+                .append("=").append(wallNanos(stage)).append("ns/")
+                .append(cpuNanos(stage)).append("ns cpu");
+        }
+        return sb.append('}').toString();
+    }
+
+    private static LongAdder[] newAdders() {
+        LongAdder[] adders = new LongAdder[Stage.values().length];
+        for (int i = 0; i < adders.length; ++i)
+            adders[i] = new LongAdder();
+        return adders;
+    }
+
+    @Nullable
+    private static ThreadMXBean threadBean() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (!bean.isCurrentThreadCpuTimeSupported() || !bean.isThreadCpuTimeEnabled())
+                return null;
+
+            return bean;
+        } catch (UnsupportedOperationException | SecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A scope that the stats are {@link #current()} in, to be used with try-with-resources.
+     */
+    @EverythingIsNonnullByDefault
+    @FunctionalInterface
+    public interface Scope extends AutoCloseable {
+
+        @Override
+        void close();
+
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * Keeps the k highest ranked values offered to it, in a binary min heap over primitive arrays, so ranking any number of
+ * values only holds k of them. Values rank by size, then ties rank by id and then date, so the result does not depend
+ * on the order the values were offered in. NaN values are ignored.
+ * <p>This class is not thread safe. Values read on multiple threads should be offered to a heap per thread, which are
+ * then merged.
+ */
+@EverythingIsNonnullByDefault
+public final class TopKHeap {
+
+    private final int k;
+    private String[] ids;
+    private LocalDate[] dates;
+    private double[] values;
+    private int size = 0;
+
+    public TopKHeap(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be at least 1");
+
+        // Large values of k are grown into rather than allocated up front, as there may be far fewer values offered.
+        this.k = k;
+        int capacity = Math.min(k, 1024);
+        ids = new String[capacity];
+        dates = new LocalDate[capacity];
+        values = new double[capacity];
+    }
+
+    private TopKHeap(TopKHeap other) {
+        k = other.k;
+        ids = Arrays.copyOf(other.ids, other.size);
+        dates = Arrays.copyOf(other.dates, other.size);
+        values = Arrays.copyOf(other.values, other.size);
+        size = other.size;
+    }
+
+    public int k() {
+        return k;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void offer(String id, LocalDate date, double value) {
+        if (Double.isNaN(value))
+            return;
+
+        if (size < k) {
+            ensureCapacity(size + 1);
+            set(size, id, date, value);
+            siftUp(size++);
+        } else if (ranksBelow(0, id, date, value)) {
+            set(0, id, date, value);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Offers all the values held by another heap to this one.
+     */
+    public void merge(TopKHeap other) {
+        for (int i = 0; i < other.size; ++i)
+            offer(other.ids[i], other.dates[i], other.values[i]);
+    }
+
+    /**
+     * @return the values held by the heap, highest ranked first.
+     */
+    public ProfileRanking toRanking() {
+        String[] rankedIds = new String[size];
+        LocalDate[] rankedDates = new LocalDate[size];
+        double[] rankedValues = new double[size];
+
+        // The root of the heap is the lowest ranked value, so the ranking is filled from the end.
+        TopKHeap heap = new TopKHeap(this);
+        for (int i = size - 1; i >= 0; --i) {
+            rankedIds[i] = heap.ids[0];
+            rankedDates[i] = heap.dates[0];
+            rankedValues[i] = heap.values[0];
+            heap.removeRoot();
+        }
+
+        return new ProfileRanking(rankedIds, rankedDates, rankedValues);
+    }
+
+    // True if the value at the index ranks below the given value.
+    private boolean ranksBelow(int index, String id, LocalDate date, double value) {
+        int compare = Double.compare(values[index], value);
+        if (compare != 0)
+            return compare < 0;
+
+        compare = ids[index].compareTo(id);
+        if (compare != 0)
+            return compare > 0;
+
+        return dates[index].isAfter(date);
+    }
+
+    private void removeRoot() {
+        --size;
+        if (size > 0) {
+            set(0, ids[size], dates[size], values[size]);
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!ranksBelow(index, ids[parent], dates[parent], values[parent]))
+                return;
+
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int lowest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && ranksBelow(left, ids[lowest], dates[lowest], values[lowest]))
+                lowest = left;
+            if (right < size && ranksBelow(right, ids[lowest], dates[lowest], values[lowest]))
+                lowest = right;
+            if (lowest == index)
+                return;
+
+            swap(index, lowest);
+            index = lowest;
+        }
+    }
+
+    private void set(int index, String id, LocalDate date, double value) {
+        ids[index] = id;
+        dates[index] = date;
+        values[index] = value;
+    }
+
+    private void swap(int i, int j) {
+        String id = ids[i];
+        LocalDate date = dates[i];
+        double value = values[i];
+        set(i, ids[j], dates[j], values[j]);
+        set(j, id, date, value);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= values.length)
+            return;
+
+        int newCapacity = (int) Math.min(k, Math.max(capacity, 2L * values.length));
+        ids = Arrays.copyOf(ids, newCapacity);
+        dates = Arrays.copyOf(dates, newCapacity);
+        values = Arrays.copyOf(values, newCapacity);
+    }
+
+}
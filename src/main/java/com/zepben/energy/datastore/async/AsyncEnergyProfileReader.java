@@ -0,0 +1,68 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.async;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.datastore.EnergyProfileReader;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.ItemHandler;
+import com.zepben.energy.model.EnergyProfile;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the calls of an {@link EnergyProfileReader} on an executor, returning futures rather than blocking the caller.
+ * <p>The number of reads that are running at once is limited, with any extra reads being queued until a running one
+ * completes. Up to the max pending reads can be queued. Once that many are queued, or if the executor rejects a read, the
+ * future of the read fails with a {@link java.util.concurrent.RejectedExecutionException}.
+ * <p>Item and error handlers are called from the executor threads.
+ */
+@EverythingIsNonnullByDefault
+public class AsyncEnergyProfileReader {
+
+    private final EnergyProfileReader reader;
+    private final BoundedExecutor executor;
+
+    public AsyncEnergyProfileReader(EnergyProfileReader reader, Executor executor, int maxInFlight) {
+        this(reader, executor, maxInFlight, AsyncEnergyProfileStore.DEFAULT_MAX_PENDING);
+    }
+
+    public AsyncEnergyProfileReader(EnergyProfileReader reader, Executor executor, int maxInFlight, int maxPending) {
+        this.reader = reader;
+        this.executor = new BoundedExecutor(executor, maxInFlight, maxPending);
+    }
+
+    public EnergyProfileReader reader() {
+        return reader;
+    }
+
+    /**
+     * @return a future holding the profile, or holding null if there is no profile for the id on the date.
+     */
+    public CompletableFuture<EnergyProfile> get(String id, LocalDate date, ErrorHandler onError) {
+        return executor.supply(() -> reader.get(id, date, onError));
+    }
+
+    public CompletableFuture<Void> forEach(Collection<String> ids,
+                                           LocalDate date,
+                                           ItemHandler<EnergyProfile> onRead,
+                                           ErrorHandler onError) {
+        return executor.run(() -> reader.forEach(ids, date, onRead, onError));
+    }
+
+    public CompletableFuture<Void> forAll(LocalDate date,
+                                          ItemHandler<EnergyProfile> onRead,
+                                          ErrorHandler onError) {
+        return executor.run(() -> reader.forAll(date, onRead, onError));
+    }
+
+}
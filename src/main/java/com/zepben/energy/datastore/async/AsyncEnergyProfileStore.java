@@ -0,0 +1,102 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.async;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.datastore.EnergyProfileStore;
+import com.zepben.energy.datastore.EnergyProfileStoreException;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Provides asynchronous access to an {@link EnergyProfileStore}.
+ * <p>When no executor is supplied, one is created that uses virtual threads if the running JVM supports them, otherwise
+ * a cached pool of daemon threads. The executor created here is shut down when this store is closed, but a supplied
+ * executor is left for the caller to manage.
+ */
+@EverythingIsNonnullByDefault
+public class AsyncEnergyProfileStore implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    public static final int DEFAULT_MAX_PENDING = 10_000;
+
+    private final EnergyProfileStore store;
+    @Nullable private final ExecutorService ownedExecutor;
+    private final AsyncEnergyProfileReader reader;
+    private final AsyncEnergyProfileWriter writer;
+
+    public AsyncEnergyProfileStore(EnergyProfileStore store) {
+        this(store, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public AsyncEnergyProfileStore(EnergyProfileStore store, int maxInFlight) {
+        this(store, createDefaultExecutor(), maxInFlight, DEFAULT_MAX_PENDING, true);
+    }
+
+    public AsyncEnergyProfileStore(EnergyProfileStore store, Executor executor, int maxInFlight) {
+        this(store, executor, maxInFlight, DEFAULT_MAX_PENDING, false);
+    }
+
+    /**
+     * @param maxPending the max number of reads, and separately of writer calls, that can be queued waiting to run.
+     */
+    public AsyncEnergyProfileStore(EnergyProfileStore store, Executor executor, int maxInFlight, int maxPending) {
+        this(store, executor, maxInFlight, maxPending, false);
+    }
+
+    private AsyncEnergyProfileStore(EnergyProfileStore store,
+                                    Executor executor,
+                                    int maxInFlight,
+                                    int maxPending,
+                                    boolean ownsExecutor) {
+        this.store = store;
+        this.ownedExecutor = ownsExecutor ? (ExecutorService) executor : null;
+        reader = new AsyncEnergyProfileReader(store.reader(), executor, maxInFlight, maxPending);
+        writer = new AsyncEnergyProfileWriter(store.writer(), executor, maxPending);
+    }
+
+    public AsyncEnergyProfileReader reader() {
+        return reader;
+    }
+
+    public AsyncEnergyProfileWriter writer() {
+        return writer;
+    }
+
+    /**
+     * Closes the underlying store. Anything still queued or running should be waited on before calling this.
+     */
+    @Override
+    public void close() throws EnergyProfileStoreException {
+        if (ownedExecutor != null)
+            ownedExecutor.shutdown();
+
+        store.close();
+    }
+
+    /**
+     * @return an executor that runs each task on a new virtual thread, or a cached thread pool if virtual threads are
+     * not available in the running JVM.
+     */
+    public static ExecutorService createDefaultExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "energy-profile-store-async");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.async;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.datastore.EnergyProfileWriter;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.model.EnergyProfile;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the calls of an {@link EnergyProfileWriter} on an executor, returning futures rather than blocking the caller.
+ * <p>Writers are not safe to use from multiple threads, so calls are run one at a time in the order they were made.
+ * This means a commit will always include the writes that were requested before it.
+ * <p>Up to the max pending calls can be waiting to run. Once that many are waiting, or if the executor rejects a call,
+ * the future of the call fails with a {@link java.util.concurrent.RejectedExecutionException}.
+ */
+@EverythingIsNonnullByDefault
+public class AsyncEnergyProfileWriter {
+
+    private final EnergyProfileWriter writer;
+    private final BoundedExecutor executor;
+
+    public AsyncEnergyProfileWriter(EnergyProfileWriter writer, Executor executor) {
+        this(writer, executor, AsyncEnergyProfileStore.DEFAULT_MAX_PENDING);
+    }
+
+    public AsyncEnergyProfileWriter(EnergyProfileWriter writer, Executor executor, int maxPending) {
+        this.writer = writer;
+        this.executor = new BoundedExecutor(executor, 1, maxPending);
+    }
+
+    public EnergyProfileWriter writer() {
+        return writer;
+    }
+
+    public CompletableFuture<Boolean> write(EnergyProfile profile, ErrorHandler onError) {
+        return write(profile, false, onError);
+    }
+
+    public CompletableFuture<Boolean> write(EnergyProfile profile, boolean writeStats, ErrorHandler onError) {
+        return executor.supply(() -> writer.write(profile, writeStats, onError));
+    }
+
+    public CompletableFuture<Boolean> commit(ErrorHandler onError) {
+        return executor.supply(() -> writer.commit(onError));
+    }
+
+    public CompletableFuture<Boolean> rollback(ErrorHandler onError) {
+        return executor.supply(() -> writer.rollback(onError));
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.async;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.datastore.EnergyProfileReader;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.model.EnergyProfile;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Combines concurrent single profile reads into batched {@link EnergyProfileReader#forEach} calls on another reader.
+ * <p>Gets for the same date are collected until the batch is full or the oldest get in it has waited for the max delay,
+ * then all of them are read with a single call. Gets for an id and date that are already waiting on a batch share its
+ * result rather than reading it again.
+ * <p>The number of batches being read at once is limited, with any extra batches being queued until a running one
+ * completes. The gets of a batch that can't be queued because {@link AsyncEnergyProfileStore#DEFAULT_MAX_PENDING}
+ * batches are already waiting, or that the executor rejects, fail with a
+ * {@link java.util.concurrent.RejectedExecutionException}. Error handlers are called from the executor threads, and an
+ * error for an id is passed to the handlers of every get that is sharing it.
+ */
+@EverythingIsNonnullByDefault
+public class BatchingEnergyProfileReader {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+    public static final Duration DEFAULT_MAX_DELAY = Duration.ofMillis(2);
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+    private final EnergyProfileReader reader;
+    private final BoundedExecutor executor;
+    private final ScheduledExecutorService scheduler;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+
+    private final Map<LocalDate, Batch> openBatches = new HashMap<>();
+    private final Map<Key, Pending> pending = new HashMap<>();
+
+    public BatchingEnergyProfileReader(EnergyProfileReader reader, Executor executor, ScheduledExecutorService scheduler) {
+        this(reader, executor, scheduler, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param executor  the executor the batches are read on.
+     * @param scheduler the scheduler used to read batches that have not filled up once they reach the max delay. Only
+     *                  the timer runs on it, the reads are still done on the executor.
+     */
+    public BatchingEnergyProfileReader(EnergyProfileReader reader,
+                                       Executor executor,
+                                       ScheduledExecutorService scheduler,
+                                       int maxBatchSize,
+                                       Duration maxDelay,
+                                       int maxInFlight) {
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+
+        this.reader = reader;
+        this.executor = new BoundedExecutor(executor, maxInFlight, AsyncEnergyProfileStore.DEFAULT_MAX_PENDING);
+        this.scheduler = scheduler;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = maxDelay.toNanos();
+    }
+
+    public EnergyProfileReader reader() {
+        return reader;
+    }
+
+    /**
+     * @return a future holding the profile, or holding null if there is no profile for the id on the date.
+     */
+    public CompletableFuture<EnergyProfile> get(String id, LocalDate date, ErrorHandler onError) {
+        Batch fullBatch = null;
+        Pending idPending;
+        synchronized (this) {
+            Key key = new Key(id, date);
+            idPending = pending.get(key);
+            if (idPending != null) {
+                idPending.onErrors.add(onError);
+                return idPending.future;
+            }
+
+            Batch batch = openBatches.get(date);
+            if (batch == null) {
+                batch = new Batch(date);
+                openBatches.put(date, batch);
+                if (maxBatchSize > 1)
+                    schedule(batch);
+            }
+
+            idPending = new Pending(onError);
+            pending.put(key, idPending);
+            batch.ids.put(id, idPending);
+
+            if (batch.ids.size() >= maxBatchSize) {
+                openBatches.remove(date);
+                fullBatch = batch;
+            }
+        }
+
+        if (fullBatch != null)
+            dispatch(fullBatch);
+
+        return idPending.future;
+    }
+
+    /**
+     * @return the number of gets that are waiting on a batch to be read.
+     */
+    public synchronized int pending() {
+        return pending.size();
+    }
+
+    private void schedule(Batch batch) {
+        try {
+            scheduler.schedule(() -> flush(batch), maxDelayNanos, NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Without a timer the batch would wait until it filled, so it is read straight away instead.
+            executor.execute(() -> flush(batch), rejected -> {
+                if (removeOpen(batch))
+                    complete(batch, rejected);
+            });
+        }
+    }
+
+    private void flush(Batch batch) {
+        // The batch will have already been dispatched if it filled up before the delay.
+        if (removeOpen(batch))
+            dispatch(batch);
+    }
+
+    private synchronized boolean removeOpen(Batch batch) {
+        return openBatches.remove(batch.date, batch);
+    }
+
+    private void dispatch(Batch batch) {
+        executor.execute(() -> read(batch), rejected -> complete(batch, rejected));
+    }
+
+    private void read(Batch batch) {
+        try {
+            reader.forEach(
+                new ArrayList<>(batch.ids.keySet()),
+                batch.date,
+                (id, date, profile) -> {
+                    Pending idPending = batch.ids.get(id);
+                    if (idPending != null)
+                        idPending.future.complete(profile);
+                },
+                (id, date, msg, t) -> {
+                    Pending idPending = batch.ids.get(id);
+                    if (idPending != null)
+                        idPending.onErrors.forEach(onError -> onError.handle(id, date, msg, t));
+                    else
+                        batch.ids.forEach((batchId, p) -> p.onErrors.forEach(onError -> onError.handle(id, date, msg, t)));
+                });
+            complete(batch, null);
+        } catch (RuntimeException e) {
+            complete(batch, e);
+        }
+    }
+
+    // Anything that was not read has no profile, unless the whole batch failed.
+    private void complete(Batch batch, @Nullable Throwable error) {
+        synchronized (this) {
+            batch.ids.forEach((id, idPending) -> pending.remove(new Key(id, batch.date), idPending));
+        }
+
+        batch.ids.values().forEach(idPending -> {
+            if (error == null)
+                idPending.future.complete(null);
+            else
+                idPending.future.completeExceptionally(error);
+        });
+    }
+
+    @EverythingIsNonnullByDefault
+    private static class Batch {
+
+        private final LocalDate date;
+        private final Map<String, Pending> ids = new LinkedHashMap<>();
+
+        Batch(LocalDate date) {
+            this.date = date;
+        }
+
+    }
+
+    @EverythingIsNonnullByDefault
+    private static class Pending {
+
+        private final CompletableFuture<EnergyProfile> future = new CompletableFuture<>();
+        private final List<ErrorHandler> onErrors = new CopyOnWriteArrayList<>();
+
+        Pending(ErrorHandler onError) {
+            onErrors.add(onError);
+        }
+
+    }
+
+    @EverythingIsNonnullByDefault
+    private static class Key {
+
+        private final String id;
+        private final LocalDate date;
+
+        Key(String id, LocalDate date) {
+            this.id = id;
+            this.date = date;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return id.equals(key.id) && date.equals(key.date);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, date);
+        }
+
+    }
+
+}
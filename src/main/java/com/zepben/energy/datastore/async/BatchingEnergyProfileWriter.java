@@ -0,0 +1,406 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.async;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.datastore.EnergyProfileWriter;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.cache.EnergyProfileCache;
+import com.zepben.energy.model.EnergyProfile;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Group commits profiles written to another {@link EnergyProfileWriter}, so callers don't need to decide when to commit.
+ * <p>Writes are buffered until the batch holds the max number of profiles, reaches the max estimated size in bytes, or
+ * the oldest write in it has waited for the max delay. The batch is then written and committed on the executor, one
+ * batch at a time in the order they were filled, so the writer is only ever used from one thread at a time.
+ * <p>The number of writes waiting to be committed, buffered or in batches waiting for the executor, is limited to the
+ * max pending, so producers can't get further ahead of the writer than that. A write made while it has been reached
+ * either blocks until earlier batches have been committed or fails straight away, depending on the
+ * {@link Backpressure} the writer was created with. Blocking writes should not be made from the executor, e.g. from a
+ * callback of a write future, as the batches they wait on are committed there.
+ * <p>The future of each write completes with true once its profile has been committed, or false if it failed to write
+ * or its batch failed to commit. A profile that fails to write is reported to its own error handler and the rest of the
+ * batch is still committed. A batch that fails to commit is rolled back, and the commit errors are passed to the error
+ * handlers of every profile in it. If the writer throws, or the batch can't be run on the executor, the futures of the
+ * batch fail with the exception instead, and anything written from the batch is rolled back.
+ * <p>{@link #close} stops taking writes, then commits the buffered writes and waits for every batch sent to be
+ * committed, so each write made before it has completed its future once it returns.
+ */
+@EverythingIsNonnullByDefault
+public class BatchingEnergyProfileWriter implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 10_000;
+    public static final long DEFAULT_MAX_BATCH_BYTES = 64L * 1024 * 1024;
+    public static final Duration DEFAULT_MAX_DELAY = Duration.ofSeconds(1);
+    public static final int DEFAULT_MAX_PENDING = 10 * DEFAULT_MAX_BATCH_SIZE;
+
+    /**
+     * What a write does when the max pending writes are waiting to be committed.
+     */
+    public enum Backpressure {
+        /**
+         * Wait for earlier batches to be committed.
+         */
+        BLOCK,
+        /**
+         * Return a future that has failed with a {@link RejectedExecutionException}.
+         */
+        FAIL
+    }
+
+    private final EnergyProfileWriter writer;
+    private final BoundedExecutor executor;
+    private final ScheduledExecutorService scheduler;
+    private final int maxBatchSize;
+    private final long maxBatchBytes;
+    private final long maxDelayNanos;
+    private final int maxPending;
+    private final Backpressure backpressure;
+
+    @Nullable private Batch openBatch = null;
+    private int numPending = 0;
+    // The batches sent to the executor whose commits have not finished, so close can wait for them.
+    private final Set<Batch> inFlight = new HashSet<>();
+    private boolean closed = false;
+
+    public BatchingEnergyProfileWriter(EnergyProfileWriter writer, Executor executor, ScheduledExecutorService scheduler) {
+        this(writer, executor, scheduler, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_BATCH_BYTES, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * @param executor      the executor the batches are written and committed on.
+     * @param scheduler     the scheduler used to commit batches that have not filled up once they reach the max delay.
+     *                      Only the timer runs on it, the commits are still done on the executor.
+     * @param maxBatchBytes the max size of a batch, from the {@link EnergyProfileCache#estimateSize} of its profiles.
+     */
+    public BatchingEnergyProfileWriter(EnergyProfileWriter writer,
+                                       Executor executor,
+                                       ScheduledExecutorService scheduler,
+                                       int maxBatchSize,
+                                       long maxBatchBytes,
+                                       Duration maxDelay) {
+        this(writer, executor, scheduler, maxBatchSize, maxBatchBytes, maxDelay, DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * @param executor      the executor the batches are written and committed on.
+     * @param scheduler     the scheduler used to commit batches that have not filled up once they reach the max delay.
+     *                      Only the timer runs on it, the commits are still done on the executor.
+     * @param maxBatchBytes the max size of a batch, from the {@link EnergyProfileCache#estimateSize} of its profiles.
+     * @param maxPending    the max number of writes that can be waiting to be committed before writes block.
+     */
+    public BatchingEnergyProfileWriter(EnergyProfileWriter writer,
+                                       Executor executor,
+                                       ScheduledExecutorService scheduler,
+                                       int maxBatchSize,
+                                       long maxBatchBytes,
+                                       Duration maxDelay,
+                                       int maxPending) {
+        this(writer, executor, scheduler, maxBatchSize, maxBatchBytes, maxDelay, maxPending, Backpressure.BLOCK);
+    }
+
+    /**
+     * @param executor      the executor the batches are written and committed on.
+     * @param scheduler     the scheduler used to commit batches that have not filled up once they reach the max delay.
+     *                      Only the timer runs on it, the commits are still done on the executor.
+     * @param maxBatchBytes the max size of a batch, from the {@link EnergyProfileCache#estimateSize} of its profiles.
+     * @param maxPending    the max number of writes that can be waiting to be committed.
+     * @param backpressure  what writes do once the max pending writes are waiting to be committed.
+     */
+    public BatchingEnergyProfileWriter(EnergyProfileWriter writer,
+                                       Executor executor,
+                                       ScheduledExecutorService scheduler,
+                                       int maxBatchSize,
+                                       long maxBatchBytes,
+                                       Duration maxDelay,
+                                       int maxPending,
+                                       Backpressure backpressure) {
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        if (maxBatchBytes < 1)
+            throw new IllegalArgumentException("maxBatchBytes must be at least 1");
+        if (maxPending < 1)
+            throw new IllegalArgumentException("maxPending must be at least 1");
+
+        this.writer = writer;
+        // Every batch waiting for the executor holds at least one pending write, so only flushes can be rejected for
+        // being over the limit.
+        this.executor = new BoundedExecutor(executor, 1, maxPending + AsyncEnergyProfileStore.DEFAULT_MAX_PENDING);
+        this.scheduler = scheduler;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.maxPending = maxPending;
+        this.backpressure = backpressure;
+    }
+
+    public EnergyProfileWriter writer() {
+        return writer;
+    }
+
+    public CompletableFuture<Boolean> write(EnergyProfile profile, ErrorHandler onError) {
+        return write(profile, false, onError);
+    }
+
+    /**
+     * Blocks while the max pending writes are waiting to be committed, unless the writer was created to fail writes
+     * instead.
+     *
+     * @return a future holding true once the profile has been committed, or false if it could not be. The future fails
+     * with a {@link RejectedExecutionException} if the writer has been closed, or the max pending writes are waiting and
+     * the writer fails writes, or with an {@link InterruptedException} if the thread was interrupted while it was
+     * blocked.
+     */
+    public CompletableFuture<Boolean> write(EnergyProfile profile, boolean writeStats, ErrorHandler onError) {
+        Pending pending = new Pending(profile, writeStats, onError);
+        long size = EnergyProfileCache.estimateSize(profile);
+
+        Batch newBatch = null;
+        Batch fullBatch = null;
+        try {
+            while (true) {
+                Batch waitingBatch;
+                synchronized (this) {
+                    if (closed)
+                        return rejected(pending, "Writer is closed");
+
+                    // The slot is taken under the same lock as the check, so concurrent writes can't overshoot the max.
+                    if (numPending < maxPending) {
+                        ++numPending;
+                        if (openBatch == null) {
+                            openBatch = new Batch();
+                            newBatch = openBatch;
+                        }
+
+                        openBatch.items.add(pending);
+                        openBatch.bytes += size;
+
+                        if (openBatch.items.size() >= maxBatchSize || openBatch.bytes >= maxBatchBytes) {
+                            fullBatch = openBatch;
+                            openBatch = null;
+                        }
+                        break;
+                    }
+
+                    // The open batch is committed straight away rather than waiting on its timer, as nothing else can
+                    // be added to it until there is space.
+                    waitingBatch = openBatch;
+                    openBatch = null;
+                    if (waitingBatch == null) {
+                        if (backpressure == Backpressure.FAIL)
+                            return rejected(pending, "Too many writes are waiting to be committed");
+
+                        wait();
+                        continue;
+                    }
+                }
+
+                dispatch(waitingBatch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.future.completeExceptionally(e);
+            return pending.future;
+        }
+
+        if (fullBatch != null)
+            dispatch(fullBatch);
+        else if (newBatch != null)
+            schedule(newBatch);
+
+        return pending.future;
+    }
+
+    /**
+     * Commits the buffered writes without waiting for the batch to fill.
+     *
+     * @return a future holding true once the batch and every batch before it have been committed, or false if the
+     * batch failed to commit.
+     */
+    public CompletableFuture<Boolean> flush() {
+        Batch batch;
+        synchronized (this) {
+            batch = openBatch;
+            openBatch = null;
+        }
+
+        // Nothing is buffered, but the caller still expects the batches before the flush to have been committed.
+        if (batch == null)
+            return executor.supply(() -> true);
+
+        dispatch(batch);
+        return batch.committed;
+    }
+
+    /**
+     * @return the number of writes that are buffered waiting for their batch to fill.
+     */
+    public synchronized int pending() {
+        return openBatch == null ? 0 : openBatch.items.size();
+    }
+
+    /**
+     * @return the number of writes that have not been committed yet, including those that are buffered.
+     */
+    public synchronized int uncommitted() {
+        return numPending;
+    }
+
+    /**
+     * Stops taking new writes, commits the buffered writes, and waits for every batch that has been sent to be committed
+     * to finish. Writes made after this is called, including those blocked waiting for space, fail with a
+     * {@link RejectedExecutionException}.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        Batch batch;
+        synchronized (this) {
+            closed = true;
+            batch = openBatch;
+            openBatch = null;
+            notifyAll();
+        }
+
+        if (batch != null)
+            dispatch(batch);
+
+        CompletableFuture<?>[] committing;
+        synchronized (this) {
+            committing = inFlight.stream().map(inFlightBatch -> inFlightBatch.committed).toArray(CompletableFuture[]::new);
+        }
+
+        try {
+            CompletableFuture.allOf(committing).get();
+        } catch (ExecutionException e) {
+            // The futures of the writes in a batch that failed have already been failed with the error.
+        }
+    }
+
+    private static CompletableFuture<Boolean> rejected(Pending pending, String message) {
+        pending.future.completeExceptionally(new RejectedExecutionException(message));
+        return pending.future;
+    }
+
+    // Called before the futures of the batch are completed, so callbacks of the futures can make more writes.
+    private synchronized void release(Batch batch) {
+        numPending -= batch.items.size();
+        notifyAll();
+    }
+
+    private void schedule(Batch batch) {
+        try {
+            scheduler.schedule(() -> flush(batch), maxDelayNanos, NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Without a timer the batch would wait until it filled, so it is committed straight away instead.
+            executor.execute(() -> flush(batch), rejected -> {
+                if (removeOpen(batch))
+                    fail(batch, rejected);
+            });
+        }
+    }
+
+    private void flush(Batch batch) {
+        // The batch will have already been dispatched if it filled up or was flushed before the delay.
+        if (removeOpen(batch))
+            dispatch(batch);
+    }
+
+    private synchronized boolean removeOpen(Batch batch) {
+        if (openBatch != batch)
+            return false;
+
+        openBatch = null;
+        return true;
+    }
+
+    private void dispatch(Batch batch) {
+        synchronized (this) {
+            inFlight.add(batch);
+        }
+        batch.committed.whenComplete((committed, t) -> removeInFlight(batch));
+
+        executor.execute(() -> commit(batch), rejected -> fail(batch, rejected));
+    }
+
+    private synchronized void removeInFlight(Batch batch) {
+        inFlight.remove(batch);
+    }
+
+    private void commit(Batch batch) {
+        try {
+            List<Pending> written = new ArrayList<>(batch.items.size());
+            for (Pending pending : batch.items) {
+                if (writer.write(pending.profile, pending.writeStats, pending.onError))
+                    written.add(pending);
+                else
+                    pending.future.complete(false);
+            }
+
+            ErrorHandler onBatchError = (id, date, msg, t) -> written.forEach(pending -> pending.onError.handle(id, date, msg, t));
+            boolean committed = writer.commit(onBatchError);
+            if (!committed)
+                writer.rollback(onBatchError);
+
+            release(batch);
+            written.forEach(pending -> pending.future.complete(committed));
+            batch.committed.complete(committed);
+        } catch (RuntimeException e) {
+            fail(batch, e);
+
+            // Anything written before the failure is dropped rather than being committed with the next batch.
+            writer.rollback((id, date, msg, t) -> batch.items.forEach(pending -> pending.onError.handle(id, date, msg, t)));
+        }
+    }
+
+    private void fail(Batch batch, Throwable error) {
+        release(batch);
+        batch.items.forEach(pending -> pending.future.completeExceptionally(error));
+        batch.committed.completeExceptionally(error);
+    }
+
+    @EverythingIsNonnullByDefault
+    private static class Batch {
+
+        private final List<Pending> items = new ArrayList<>();
+        private final CompletableFuture<Boolean> committed = new CompletableFuture<>();
+        private long bytes = 0;
+
+    }
+
+    @EverythingIsNonnullByDefault
+    private static class Pending {
+
+        private final EnergyProfile profile;
+        private final boolean writeStats;
+        private final ErrorHandler onError;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        Pending(EnergyProfile profile, boolean writeStats, ErrorHandler onError) {
+            this.profile = profile;
+            this.writeStats = writeStats;
+            this.onError = onError;
+        }
+
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.async;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Limits how many tasks can be running on a backing executor at once. Tasks submitted while the limit has been reached
+ * are queued (without blocking the caller) and handed to the backing executor in submission order as running tasks
+ * complete.
+ * <p>The number of queued tasks is also limited. A task that can't be queued, or that the backing executor rejects when
+ * it is handed over, is passed to its rejection handler rather than being dropped. Tasks are handed over from the thread
+ * of the task that completed before them, so this is not an {@link Executor}: there is no caller left to throw to.
+ * <p>A limit of 1 task in flight makes this a serial executor, which is used to keep writer operations in order.
+ */
+@EverythingIsNonnullByDefault
+class BoundedExecutor {
+
+    private final Executor executor;
+    private final int maxInFlight;
+    private final int maxPending;
+    private final Queue<Task> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger numPending = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    BoundedExecutor(Executor executor, int maxInFlight, int maxPending) {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        if (maxPending < 1)
+            throw new IllegalArgumentException("maxPending must be at least 1");
+
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.maxPending = maxPending;
+    }
+
+    int maxInFlight() {
+        return maxInFlight;
+    }
+
+    int maxPending() {
+        return maxPending;
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    int pending() {
+        return numPending.get();
+    }
+
+    /**
+     * @return a future holding the result of the supplier, which fails with a {@link RejectedExecutionException} if it
+     * could not be run.
+     */
+    <T> CompletableFuture<T> supply(Supplier<T> supplier) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                future.complete(supplier.get());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }, future::completeExceptionally);
+
+        return future;
+    }
+
+    /**
+     * @return a future that completes once the task has run, which fails with a {@link RejectedExecutionException} if it
+     * could not be run.
+     */
+    CompletableFuture<Void> run(Runnable task) {
+        return supply(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * @param onRejected called instead of the task if there is no room to queue it or the backing executor rejects it.
+     *                   It may be called from the thread of another task.
+     */
+    void execute(Runnable task, Consumer<? super RejectedExecutionException> onRejected) {
+        if (numPending.incrementAndGet() > maxPending) {
+            numPending.decrementAndGet();
+            onRejected.accept(new RejectedExecutionException("Too many tasks are pending: " + maxPending));
+            return;
+        }
+
+        pending.add(new Task(task, onRejected));
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (!pending.isEmpty()) {
+            int current = inFlight.get();
+            if (current >= maxInFlight)
+                return;
+
+            if (!inFlight.compareAndSet(current, current + 1))
+                continue;
+
+            Task task = pending.poll();
+            if (task == null) {
+                // Someone else dispatched it first, give the slot back and check again.
+                inFlight.decrementAndGet();
+                continue;
+            }
+
+            numPending.decrementAndGet();
+            try {
+                executor.execute(() -> run(task));
+            } catch (RejectedExecutionException e) {
+                inFlight.decrementAndGet();
+                task.onRejected.accept(e);
+            }
+        }
+    }
+
+    private void run(Task task) {
+        try {
+            task.runnable.run();
+        } finally {
+            inFlight.decrementAndGet();
+            dispatch();
+        }
+    }
+
+    @EverythingIsNonnullByDefault
+    private static class Task {
+
+        private final Runnable runnable;
+        private final Consumer<? super RejectedExecutionException> onRejected;
+
+        Task(Runnable runnable, Consumer<? super RejectedExecutionException> onRejected) {
+            this.runnable = runnable;
+            this.onRejected = onRejected;
+        }
+
+    }
+
+}
@@ -11,11 +11,22 @@ package com.zepben.energy.datastore.blobstore;
 import com.zepben.annotations.EverythingIsNonnullByDefault;
 import com.zepben.blobstore.WhereBlob;
 import com.zepben.blobstore.itemwrappers.*;
+import com.zepben.energy.datastore.AggregateSpec;
+import com.zepben.energy.datastore.EnergyProfilePage;
 import com.zepben.energy.datastore.EnergyProfileReader;
 import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.IntervalColumn;
+import com.zepben.energy.datastore.IntervalRangeReader;
 import com.zepben.energy.datastore.ItemHandler;
+import com.zepben.energy.datastore.PartialProfileReader;
+import com.zepben.energy.datastore.ProfileRanking;
+import com.zepben.energy.datastore.QueryStats;
+import com.zepben.energy.datastore.TopKHeap;
+import com.zepben.energy.datastore.blobstore.indexing.BloomFilterIndex;
 import com.zepben.energy.datastore.blobstore.indexing.DateRangeIndex;
 import com.zepben.energy.datastore.blobstore.indexing.DateRangeTest;
+import com.zepben.energy.datastore.blobstore.indexing.IdPresenceIndex;
+import com.zepben.energy.datastore.blobstore.indexing.StatCoverageIndex;
 import com.zepben.energy.model.EnergyProfile;
 import com.zepben.energy.model.EnergyProfileStat;
 import com.zepben.energy.model.IdDateRange;
@@ -23,11 +34,15 @@ import com.zepben.energy.model.Readings;
 
 import javax.annotation.Nullable;
 import java.time.LocalDate;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
 
 import static com.zepben.energy.datastore.blobstore.EnergyProfileAttribute.*;
 import static java.util.stream.Collectors.toMap;
@@ -37,18 +52,25 @@ public class ByDateBlobEnergyProfileReader implements EnergyProfileReader {
 
     private final DateRangeIndex dateRangeIndex;
     private final DateRangeTest dateRangeTest;
+    private final StatCoverageIndex statCoverageIndex;
+    private final IdPresenceIndex presenceIndex;
     private final ByDateItemReader<EnergyProfile> itemReader;
+    @Nullable private final ByDateItemReader<Map<String, byte[]>> rawItemReader;
     private final ByDatePartialProfileReader<Readings> kwInReader;
     private final ByDatePartialProfileReader<Readings> kwOutReader;
     private final ByDatePartialProfileReader<Boolean> isCacheableReader;
     private final EnergyProfileStatReader maximumsReader;
+    private final Executor dateExecutor;
+    private final int maxDatesInFlight;
 
     private final EnergyProfileFactory profileFactory;
     private final Deserialisers dsx;
 
-    private final ByDateItemDeserialiser<EnergyProfile> itemDeserialiser = this::deserialiseItem;
+    private final ByDateItemDeserialiser<EnergyProfile> itemDeserialiser = this::deserialiseStoredItem;
     private final Map<String, ByDateTagDeserialiser<?>> tagDeserialisers = Arrays.stream(EnergyProfileAttribute.values())
         .collect(toMap(EnergyProfileAttribute::storeString, this::tagDeserialiser));
+    private final Map<String, ByDateTagDeserialiser<?>> rawTagDeserialisers = Arrays.stream(EnergyProfileAttribute.values())
+        .collect(toMap(EnergyProfileAttribute::storeString, attr -> (id, date, tag, blob) -> blob));
 
     // NOTE: Hard coding this byte here breaks the generic serialisation / deserialisation offered by the Deserialisers class.
     //       Need to think about how to deal with the issue later.
@@ -58,20 +80,86 @@ public class ByDateBlobEnergyProfileReader implements EnergyProfileReader {
                                          ByDateItemReader<EnergyProfile> itemReader,
                                          EnergyProfileFactory profileFactory,
                                          Deserialisers deserialisers) {
+        this(dateRangeIndex, StatCoverageIndex.untracked(), IdPresenceIndex.untracked(), itemReader, profileFactory, deserialisers);
+    }
+
+    public ByDateBlobEnergyProfileReader(DateRangeIndex dateRangeIndex,
+                                         StatCoverageIndex statCoverageIndex,
+                                         IdPresenceIndex presenceIndex,
+                                         ByDateItemReader<EnergyProfile> itemReader,
+                                         EnergyProfileFactory profileFactory,
+                                         Deserialisers deserialisers) {
+        this(dateRangeIndex, statCoverageIndex, presenceIndex, BloomFilterIndex.untracked(), itemReader, profileFactory, deserialisers);
+    }
+
+    public ByDateBlobEnergyProfileReader(DateRangeIndex dateRangeIndex,
+                                         StatCoverageIndex statCoverageIndex,
+                                         IdPresenceIndex presenceIndex,
+                                         BloomFilterIndex bloomFilterIndex,
+                                         ByDateItemReader<EnergyProfile> itemReader,
+                                         EnergyProfileFactory profileFactory,
+                                         Deserialisers deserialisers) {
+        this(dateRangeIndex, statCoverageIndex, presenceIndex, bloomFilterIndex, itemReader, null, profileFactory, deserialisers);
+    }
+
+    /**
+     * @param rawItemReader a reader over the same stores as the item reader that is used to read the stored bytes of
+     *                      the readings, so {@link #forAllAtInterval} and the interval range readers can decode only
+     *                      the intervals they need when the readings deserialisers are {@link IntervalDeserialiser}s.
+     *                      If null the whole readings are decoded.
+     */
+    public ByDateBlobEnergyProfileReader(DateRangeIndex dateRangeIndex,
+                                         StatCoverageIndex statCoverageIndex,
+                                         IdPresenceIndex presenceIndex,
+                                         BloomFilterIndex bloomFilterIndex,
+                                         ByDateItemReader<EnergyProfile> itemReader,
+                                         @Nullable ByDateItemReader<Map<String, byte[]>> rawItemReader,
+                                         EnergyProfileFactory profileFactory,
+                                         Deserialisers deserialisers) {
+        this(dateRangeIndex, statCoverageIndex, presenceIndex, bloomFilterIndex, itemReader, rawItemReader, profileFactory, deserialisers, Runnable::run, 1);
+    }
+
+    /**
+     * @param dateExecutor     the executor the dates of series reads, aggregates and rankings are read on.
+     * @param maxDatesInFlight the max number of dates that are read, or waiting to be passed on in date order, at once.
+     */
+    public ByDateBlobEnergyProfileReader(DateRangeIndex dateRangeIndex,
+                                         StatCoverageIndex statCoverageIndex,
+                                         IdPresenceIndex presenceIndex,
+                                         BloomFilterIndex bloomFilterIndex,
+                                         ByDateItemReader<EnergyProfile> itemReader,
+                                         @Nullable ByDateItemReader<Map<String, byte[]>> rawItemReader,
+                                         EnergyProfileFactory profileFactory,
+                                         Deserialisers deserialisers,
+                                         Executor dateExecutor,
+                                         int maxDatesInFlight) {
+        if (maxDatesInFlight < 1)
+            throw new IllegalArgumentException("maxDatesInFlight must be at least 1");
+
         this.dateRangeIndex = dateRangeIndex;
-        this.dateRangeTest = new DateRangeTest(dateRangeIndex);
+        this.dateRangeTest = new DateRangeTest(dateRangeIndex, presenceIndex, bloomFilterIndex);
+        this.statCoverageIndex = statCoverageIndex;
+        this.presenceIndex = presenceIndex;
         this.profileFactory = profileFactory;
         this.dsx = deserialisers;
 
         this.itemReader = itemReader;
         this.itemReader.setDeserialisers(itemDeserialiser, tagDeserialisers);
 
+        this.rawItemReader = rawItemReader;
+        if (rawItemReader != null)
+            rawItemReader.setDeserialisers((id, date, blobs) -> blobs, rawTagDeserialisers);
+
         kwInReader = new ByDatePartialProfileReader<>(KW_IN, itemReader, dateRangeTest);
         kwOutReader = new ByDatePartialProfileReader<>(KW_OUT, itemReader, dateRangeTest);
         isCacheableReader = new ByDatePartialProfileReader<>(CACHEABLE, itemReader, dateRangeTest);
         maximumsReader = new EnergyProfileStatReader(
             new ByDatePartialProfileReader<>(MAXIMUMS, itemReader, dateRangeTest),
-            EnergyProfileStat::ofMax);
+            EnergyProfileStat::ofMax,
+            statCoverageIndex);
+
+        this.dateExecutor = dateExecutor;
+        this.maxDatesInFlight = maxDatesInFlight;
     }
 
     // Package private for easier testing. A bit clunky, but I just don't have time right now... GMC
@@ -118,24 +206,303 @@ public class ByDateBlobEnergyProfileReader implements EnergyProfileReader {
         itemReader.forEach(validIds, date, onRead::handle, onError::handle);
     }
 
+    /**
+     * @return true if the id has a profile on the date. This is exact for dates tracked by the presence index, otherwise
+     * it only checks the date is within the indexed date range of the id.
+     */
+    @Override
+    public boolean exists(String id, LocalDate date) {
+        return dateRangeTest.idHasDate(id, date);
+    }
+
     @Override
     public void forAll(LocalDate date, ItemHandler<EnergyProfile> onRead, ErrorHandler onError) {
-        ByDateItemHandler<EnergyProfile> handler = (id, dt, profile) -> {
-            if (dateRangeTest.idHasDate(id, dt))
-                onRead.handle(id, date, profile);
-        };
+        itemReader.forAll(date, indexedRowHandler(date, onRead), onError::handle);
+    }
+
+    /**
+     * Records the date index checks as the index stage. The profile is read the same way as {@link #get(String,
+     * LocalDate, ErrorHandler)}, with the bytes read and decoded and the decode stage recorded as it is deserialised.
+     */
+    @Nullable
+    @Override
+    public EnergyProfile get(String id, LocalDate date, QueryStats stats, ErrorHandler onError) {
+        try (QueryStats.Scope ignored = stats.enter()) {
+            long wall = System.nanoTime();
+            long cpu = stats.cpuTime();
+            boolean hasDate = dateRangeTest.idHasDate(id, date);
+            stats.record(QueryStats.Stage.INDEX, wall, cpu);
+            if (!hasDate) {
+                stats.addRowsFilteredByIndex(1);
+                return null;
+            }
+
+            wall = System.nanoTime();
+            cpu = stats.cpuTime();
+            EnergyProfile profile = itemReader.get(id, date, onError::handle);
+            stats.record(QueryStats.Stage.READ, wall, cpu);
+            if (profile != null)
+                stats.addRowsScanned(1);
+            return profile;
+        }
+    }
 
-        itemReader.forAll(date, handler, onError::handle);
+    /**
+     * Records the date index filtering as the index stage. The profiles are read the same way as {@link
+     * #forEach(Collection, LocalDate, ItemHandler, ErrorHandler)}, with the bytes read and decoded and the decode stage
+     * recorded as they are deserialised.
+     */
+    @Override
+    public void forEach(Collection<String> ids,
+                        LocalDate date,
+                        QueryStats stats,
+                        ItemHandler<EnergyProfile> onRead,
+                        ErrorHandler onError) {
+        try (QueryStats.Scope ignored = stats.enter()) {
+            long wall = System.nanoTime();
+            long cpu = stats.cpuTime();
+            Collection<String> validIds = dateRangeTest.filterIdsWithDate(ids, date);
+            stats.record(QueryStats.Stage.INDEX, wall, cpu);
+            stats.addRowsFilteredByIndex(ids.size() - validIds.size());
+            if (validIds.isEmpty())
+                return;
+
+            wall = System.nanoTime();
+            cpu = stats.cpuTime();
+            itemReader.forEach(validIds, date, stats.callbackHandler(onRead)::handle, onError::handle);
+            stats.record(QueryStats.Stage.READ, wall, cpu);
+        }
     }
 
+    /**
+     * Reads the profiles the same way as {@link #forAll(LocalDate, ItemHandler, ErrorHandler)}, with the bytes read and
+     * decoded and the decode stage recorded as they are deserialised. Rows dropped by the date indexes are counted as
+     * scanned and filtered.
+     */
     @Override
-    public void forAllCacheable(LocalDate date, ItemHandler<EnergyProfile> onRead, ErrorHandler onError) {
-        ByDateItemHandler<EnergyProfile> handler = (id, dt, profile) -> {
-            if (dateRangeTest.idHasDate(id, dt))
-                onRead.handle(id, date, profile);
-        };
+    public void forAll(LocalDate date, QueryStats stats, ItemHandler<EnergyProfile> onRead, ErrorHandler onError) {
+        try (QueryStats.Scope ignored = stats.enter()) {
+            long wall = System.nanoTime();
+            long cpu = stats.cpuTime();
+            itemReader.forAll(date, indexedRowHandler(date, stats.callbackHandler(onRead), stats), onError::handle);
+            stats.record(QueryStats.Stage.READ, wall, cpu);
+        }
+    }
 
-        itemReader.forAll(date, Collections.singletonList(cacheableWhere), handler, onError::handle);
+    /**
+     * Reads the interval from a scan of the stored kW in readings followed by a scan of the stored kW out readings.
+     * When there is a raw item reader and the readings deserialisers are {@link IntervalDeserialiser}s only the value
+     * at the interval is decoded, otherwise each of the readings is decoded in full.
+     */
+    @Override
+    public IntervalColumn forAllAtInterval(LocalDate date, int interval, ErrorHandler onError) {
+        IntervalColumn column = new IntervalColumn(date, interval);
+        readInterval(KW_IN, dsx.kwInDsx(), column, column::setKwIn, onError);
+        readInterval(KW_OUT, dsx.kwOutDsx(), column, column::setKwOut, onError);
+        return column;
+    }
+
+    /**
+     * Reads the profiles for the ids whose maximums pass the filter. Stored maximums are read and tested first, so only
+     * the profiles that pass are decoded. Profiles without stored maximums are decoded and have them calculated.
+     */
+    @Override
+    public void forEach(Collection<String> ids,
+                        LocalDate date,
+                        Predicate<EnergyProfileStat> maximumsFilter,
+                        ItemHandler<EnergyProfile> onRead,
+                        ErrorHandler onError) {
+        Collection<String> validIds = dateRangeTest.filterIdsWithDate(ids, date);
+        if (validIds.isEmpty())
+            return;
+
+        Set<String> unknownIds = new HashSet<>(validIds);
+        List<String> passedIds = new ArrayList<>();
+        itemReader.forEach(validIds, date, MAXIMUMS.storeString(), storedMaximumsHandler(maximumsFilter, unknownIds, passedIds), onError::handle);
+
+        readFiltered(passedIds, unknownIds, date, maximumsFilter, onRead, onError);
+    }
+
+    /**
+     * Reads all profiles for the date whose maximums pass the filter. Stored maximums are scanned and tested first, so
+     * only the profiles that pass are decoded. Profiles without stored maximums are decoded and have them calculated.
+     * <p>If the stat coverage of the date is known, only the profiles it lists as missing stats are decoded without
+     * passing the filter. Otherwise the rows are streamed with the raw item reader, testing the stored maximums of each
+     * row before decoding it, so nothing is held per id. Without a raw item reader every profile is decoded and has its
+     * maximums calculated.
+     */
+    @Override
+    public void forAll(LocalDate date,
+                       Predicate<EnergyProfileStat> maximumsFilter,
+                       ItemHandler<EnergyProfile> onRead,
+                       ErrorHandler onError) {
+        Set<String> missingIds = statCoverageIndex.getMissing(date);
+        if (missingIds != null) {
+            List<String> passedIds = new ArrayList<>();
+            ByDateItemHandler<EnergyProfileStat> handler = (id, dt, stat) -> {
+                if (!missingIds.contains(id) && maximumsFilter.test(stat) && dateRangeTest.idHasDate(id, dt))
+                    passedIds.add(id);
+            };
+            itemReader.forAll(date, MAXIMUMS.storeString(), handler, onError::handle);
+
+            missingIds.removeIf(id -> !dateRangeTest.idHasDate(id, date));
+            readFiltered(passedIds, missingIds, date, maximumsFilter, onRead, onError);
+            return;
+        }
+
+        ItemHandler<EnergyProfile> onPassed = EnergyProfileReader.filterByMaximums(maximumsFilter, onRead);
+        if (rawItemReader == null) {
+            itemReader.forAll(date, indexedRowHandler(date, onPassed), onError::handle);
+            return;
+        }
+
+        boolean isExact = dateRangeTest.isExact(date);
+        rawItemReader.forAll(date, (id, dt, blobs) -> {
+            if (isExact || dateRangeTest.idHasDate(id, dt))
+                readRowFiltered(id, dt, blobs, maximumsFilter, onRead, onPassed, onError);
+        }, onError::handle);
+    }
+
+    /**
+     * Gets the profiles for an id over a range of dates. The range is clipped to the indexed date range of the id
+     * once, each date in it is tested the same way as {@link #exists}, and the dates are then read on the date
+     * executor. The error handler may be called from multiple threads.
+     */
+    @Override
+    public List<EnergyProfile> getSeries(String id, LocalDate from, LocalDate to, ErrorHandler onError) {
+        IdDateRange range = dateRangeIndex.get(id);
+        if (range == null)
+            return Collections.emptyList();
+
+        List<LocalDate> dates = new ArrayList<>();
+        for (LocalDate date : datesBetween(range.from(), range.to(), from, to)) {
+            if (dateRangeTest.rangeHasDate(range, date))
+                dates.add(date);
+        }
+
+        List<EnergyProfile> series = new ArrayList<>(dates.size());
+        readDatesInOrder(dates, date -> itemReader.get(id, date, onError::handle), profile -> {
+            if (profile != null)
+                series.add(profile);
+        });
+        return series;
+    }
+
+    /**
+     * Reads the profiles for the ids over a range of dates. Each date only requests the ids that pass the same test as
+     * {@link #exists}, using the date ranges read for the ids, and the dates are read on the date executor. Profiles are still passed to the handler one at a time
+     * in date order, from the calling thread, but the error handler may be called from multiple threads.
+     */
+    @Override
+    public void forEachSeries(Collection<String> ids,
+                              LocalDate from,
+                              LocalDate to,
+                              ItemHandler<EnergyProfile> onRead,
+                              ErrorHandler onError) {
+        List<IdDateRange> ranges = new ArrayList<>();
+        dateRangeIndex.forEach(ids, ranges::add);
+        if (ranges.isEmpty())
+            return;
+
+        LocalDate indexedFrom = ranges.get(0).from();
+        LocalDate indexedTo = ranges.get(0).to();
+        for (IdDateRange range : ranges) {
+            if (range.from().isBefore(indexedFrom))
+                indexedFrom = range.from();
+            if (range.to().isAfter(indexedTo))
+                indexedTo = range.to();
+        }
+
+        readDatesInOrder(
+            datesBetween(indexedFrom, indexedTo, from, to),
+            date -> readSeriesDate(ranges, date, onError),
+            profiles -> profiles.forEach(profile -> onRead.handle(profile.id(), profile.date(), profile)));
+    }
+
+    /**
+     * Reads a page of the profiles on a date. The ids of dates tracked by the presence index are read from it a page at
+     * a time, starting after the continuation token, otherwise they are found by paging the date ranges in the index
+     * from the continuation token with {@link DateRangeIndex#forAllAfter}.
+     */
+    @Override
+    public EnergyProfilePage forAllPage(LocalDate date,
+                                        @Nullable String continuationToken,
+                                        int pageSize,
+                                        ErrorHandler onError) {
+        if (pageSize < 1)
+            throw new IllegalArgumentException("pageSize must be at least 1");
+
+        // One more id than is needed is asked for, to know if there are more after the page. Ids without a profile
+        // leave the page short, so more are read until it is full or the ids run out.
+        List<EnergyProfile> profiles = new ArrayList<>(pageSize);
+        String lastId = continuationToken;
+        boolean hasMore = true;
+        while (hasMore && profiles.size() < pageSize) {
+            int needed = pageSize - profiles.size();
+            List<String> ids = presenceIndex.idsAfter(date, lastId, needed + 1);
+            if (ids == null)
+                ids = rangeIdsAfter(date, lastId, needed + 1);
+
+            if (ids.isEmpty()) {
+                hasMore = false;
+                break;
+            }
+
+            hasMore = ids.size() > needed;
+            List<String> chunk = hasMore ? ids.subList(0, needed) : ids;
+
+            List<EnergyProfile> read = new ArrayList<>(chunk.size());
+            forEach(chunk, date, (id, dt, profile) -> read.add(profile), onError);
+            read.sort(Comparator.comparing(EnergyProfile::id));
+            profiles.addAll(read);
+
+            lastId = chunk.get(chunk.size() - 1);
+        }
+
+        return new EnergyProfilePage(profiles, hasMore ? lastId : null);
+    }
+
+    /**
+     * Aggregates the dates on the date executor. The groups are still passed to the handler one date at a time in date
+     * order, from the calling thread, but the error handler may be called from multiple threads.
+     */
+    @Override
+    public void aggregate(Map<String, String> groupMapping,
+                          LocalDate from,
+                          LocalDate to,
+                          AggregateSpec spec,
+                          ItemHandler<Readings> onAggregate,
+                          ErrorHandler onError) {
+        readDatesInOrder(
+            datesBetween(from, to, from, to),
+            date -> new AbstractMap.SimpleImmutableEntry<>(date, EnergyProfileReader.aggregateDate(this, groupMapping, date, spec, onError)),
+            entry -> entry.getValue()
+                .toReadings()
+                .forEach((group, readings) -> onAggregate.handle(group, entry.getKey(), readings)));
+    }
+
+    /**
+     * Ranks the maximums of the dates on the date executor, with a heap for each date that is merged into the ranking
+     * once it has been read. The error handler may be called from multiple threads.
+     */
+    @Override
+    public ProfileRanking topK(LocalDate from,
+                               LocalDate to,
+                               int k,
+                               ToDoubleFunction<EnergyProfileStat> value,
+                               ErrorHandler onError) {
+        TopKHeap heap = new TopKHeap(k);
+        readDatesInOrder(datesBetween(from, to, from, to), date -> {
+            TopKHeap dateHeap = new TopKHeap(k);
+            maximumsReader.forAll(date, (id, dt, stat) -> dateHeap.offer(id, dt, value.applyAsDouble(stat)), onError);
+            return dateHeap;
+        }, heap::merge);
+        return heap.toRanking();
+    }
+
+    @Override
+    public void forAllCacheable(LocalDate date, ItemHandler<EnergyProfile> onRead, ErrorHandler onError) {
+        itemReader.forAll(date, Collections.singletonList(cacheableWhere), indexedRowHandler(date, onRead), onError::handle);
     }
 
     @Override
@@ -148,6 +515,24 @@ public class ByDateBlobEnergyProfileReader implements EnergyProfileReader {
         return kwOutReader;
     }
 
+    /**
+     * Decodes only the blocks of the stored readings the range touches when there is a raw item reader and the kW in
+     * deserialiser is an {@link IntervalDeserialiser}, otherwise the whole readings are decoded.
+     */
+    @Override
+    public PartialProfileReader<Readings> kwInReader(int fromInterval, int toInterval) {
+        return intervalRangeReader(KW_IN, dsx.kwInDsx(), kwInReader, fromInterval, toInterval);
+    }
+
+    /**
+     * Decodes only the blocks of the stored readings the range touches when there is a raw item reader and the kW out
+     * deserialiser is an {@link IntervalDeserialiser}, otherwise the whole readings are decoded.
+     */
+    @Override
+    public PartialProfileReader<Readings> kwOutReader(int fromInterval, int toInterval) {
+        return intervalRangeReader(KW_OUT, dsx.kwOutDsx(), kwOutReader, fromInterval, toInterval);
+    }
+
     @Override
     public ByDatePartialProfileReader<Boolean> isCacheableReader() {
         return isCacheableReader;
@@ -158,6 +543,184 @@ public class ByDateBlobEnergyProfileReader implements EnergyProfileReader {
         return maximumsReader;
     }
 
+    /**
+     * @return up to the limit of the ids after an id whose date range has the date, in id order.
+     */
+    private List<String> rangeIdsAfter(LocalDate date, @Nullable String after, int limit) {
+        List<String> ids = new ArrayList<>(limit);
+        List<IdDateRange> ranges = new ArrayList<>(limit);
+        String last = after;
+        while (ids.size() < limit) {
+            ranges.clear();
+            dateRangeIndex.forAllAfter(last, limit, ranges::add);
+            for (IdDateRange range : ranges) {
+                if (ids.size() < limit && range.hasDate(date))
+                    ids.add(range.id());
+            }
+
+            if (ranges.size() < limit)
+                break;
+            last = ranges.get(ranges.size() - 1).id();
+        }
+        return ids;
+    }
+
+    private ByDateItemHandler<EnergyProfileStat> storedMaximumsHandler(Predicate<EnergyProfileStat> maximumsFilter,
+                                                                       Set<String> unknownIds,
+                                                                       List<String> passedIds) {
+        return (id, dt, stat) -> {
+            if (unknownIds.remove(id) && maximumsFilter.test(stat))
+                passedIds.add(id);
+        };
+    }
+
+    private void readRowFiltered(String id,
+                                 LocalDate date,
+                                 Map<String, byte[]> blobs,
+                                 Predicate<EnergyProfileStat> maximumsFilter,
+                                 ItemHandler<EnergyProfile> onRead,
+                                 ItemHandler<EnergyProfile> onCalculated,
+                                 ErrorHandler onError) {
+        byte[] maximums = blobs.get(MAXIMUMS.storeString());
+        EnergyProfileStat stat = maximums == null ? null : dsx.statDsx().dsx(maximums);
+        if (stat != null && !maximumsFilter.test(stat))
+            return;
+
+        EnergyProfile profile;
+        try {
+            profile = deserialiseItem(id, date, blobs);
+        } catch (DeserialiseException e) {
+            onError.handle(id, date, e.getMessage(), e);
+            return;
+        }
+
+        if (stat != null)
+            onRead.handle(id, date, profile);
+        else
+            onCalculated.handle(id, date, profile);
+    }
+
+    private void readFiltered(List<String> passedIds,
+                              Set<String> unknownIds,
+                              LocalDate date,
+                              Predicate<EnergyProfileStat> maximumsFilter,
+                              ItemHandler<EnergyProfile> onRead,
+                              ErrorHandler onError) {
+        if (!passedIds.isEmpty())
+            itemReader.forEach(passedIds, date, onRead::handle, onError::handle);
+
+        if (!unknownIds.isEmpty())
+            itemReader.forEach(unknownIds, date, EnergyProfileReader.filterByMaximums(maximumsFilter, onRead)::handle, onError::handle);
+    }
+
+    // Rows on dates tracked by the presence index were all written through the index, so they don't need to be tested.
+    private ByDateItemHandler<EnergyProfile> indexedRowHandler(LocalDate date, ItemHandler<EnergyProfile> onRead) {
+        return indexedRowHandler(date, onRead, null);
+    }
+
+    // Rows that are scanned but dropped by the date indexes are still counted as scanned.
+    private ByDateItemHandler<EnergyProfile> indexedRowHandler(LocalDate date,
+                                                               ItemHandler<EnergyProfile> onRead,
+                                                               @Nullable QueryStats stats) {
+        if (dateRangeTest.isExact(date))
+            return onRead::handle;
+
+        return (id, dt, profile) -> {
+            if (dateRangeTest.idHasDate(id, dt))
+                onRead.handle(id, date, profile);
+            else if (stats != null) {
+                stats.addRowsScanned(1);
+                stats.addRowsFilteredByIndex(1);
+            }
+        };
+    }
+
+    private PartialProfileReader<Readings> intervalRangeReader(EnergyProfileAttribute tag,
+                                                               Deserialiser<Readings> readingsDsx,
+                                                               PartialProfileReader<Readings> readingsReader,
+                                                               int fromInterval,
+                                                               int toInterval) {
+        if (rawItemReader != null && readingsDsx instanceof IntervalDeserialiser)
+            return new ByDateIntervalRangeReader(tag, rawItemReader, dateRangeTest, (IntervalDeserialiser) readingsDsx, fromInterval, toInterval);
+
+        return new IntervalRangeReader(readingsReader, fromInterval, toInterval);
+    }
+
+    private void readInterval(EnergyProfileAttribute tag,
+                              Deserialiser<Readings> readingsDsx,
+                              IntervalColumn column,
+                              ObjDoubleConsumer<String> onValue,
+                              ErrorHandler onError) {
+        LocalDate date = column.date();
+        int interval = column.interval();
+        boolean isExact = dateRangeTest.isExact(date);
+
+        if (rawItemReader != null && readingsDsx instanceof IntervalDeserialiser) {
+            IntervalDeserialiser intervalDsx = (IntervalDeserialiser) readingsDsx;
+            ByDateItemHandler<byte[]> handler = (id, dt, bytes) -> {
+                if (isExact || dateRangeTest.idHasDate(id, dt))
+                    onValue.accept(id, intervalDsx.dsxInterval(bytes, interval));
+            };
+            rawItemReader.forAll(date, tag.storeString(), handler, onError::handle);
+        } else {
+            ByDateItemHandler<Readings> handler = (id, dt, readings) -> {
+                if (isExact || dateRangeTest.idHasDate(id, dt))
+                    onValue.accept(id, IntervalColumn.valueAt(readings, interval));
+            };
+            itemReader.forAll(date, tag.storeString(), handler, onError::handle);
+        }
+    }
+
+    private List<EnergyProfile> readSeriesDate(List<IdDateRange> ranges, LocalDate date, ErrorHandler onError) {
+        List<String> validIds = dateRangeTest.filterRangesWithDate(ranges, date);
+        if (validIds.isEmpty())
+            return Collections.emptyList();
+
+        List<EnergyProfile> profiles = new ArrayList<>(validIds.size());
+        itemReader.forEach(validIds, date, (id, dt, profile) -> profiles.add(profile), onError::handle);
+        return profiles;
+    }
+
+    /**
+     * Reads the dates on the date executor, with up to the max dates in flight, and passes the result of each to the
+     * handler from the calling thread in date order. Once the max dates are in flight the next date is not started until
+     * the oldest one has been read and handled, so the results waiting to be handled are bounded. Any stats current on
+     * the calling thread are also current while each date is read, so the stores opened for it are recorded.
+     */
+    private <T> void readDatesInOrder(List<LocalDate> dates, Function<LocalDate, T> read, Consumer<T> onDate) {
+        Function<LocalDate, T> readInCurrent = QueryStats.inCurrent(read);
+        Deque<CompletableFuture<T>> inFlight = new ArrayDeque<>(Math.min(dates.size(), maxDatesInFlight));
+        try {
+            for (LocalDate date : dates) {
+                if (inFlight.size() >= maxDatesInFlight)
+                    onDate.accept(inFlight.removeFirst().join());
+
+                inFlight.addLast(CompletableFuture.supplyAsync(() -> readInCurrent.apply(date), dateExecutor));
+            }
+
+            while (!inFlight.isEmpty())
+                onDate.accept(inFlight.removeFirst().join());
+        } catch (CompletionException e) {
+            // Dates that were already started are left to finish, but nothing more is read or handled.
+            inFlight.forEach(future -> future.cancel(false));
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    private static List<LocalDate> datesBetween(LocalDate indexedFrom, LocalDate indexedTo, LocalDate from, LocalDate to) {
+        LocalDate start = from.isBefore(indexedFrom) ? indexedFrom : from;
+        LocalDate end = to.isAfter(indexedTo) ? indexedTo : to;
+
+        List<LocalDate> dates = new ArrayList<>();
+        for (LocalDate date = start; !date.isAfter(end); date = date.plusDays(1))
+            dates.add(date);
+        return dates;
+    }
+
     private ByDateTagDeserialiser<?> tagDeserialiser(EnergyProfileAttribute attr) {
         switch (attr) {
             case KW_IN:
@@ -168,11 +731,44 @@ public class ByDateBlobEnergyProfileReader implements EnergyProfileReader {
                 return (id, date, tag, blob) -> dsx.cacheableDsx().dsx(blob);
             case MAXIMUMS:
                 return (id, date, tag, blob) -> dsx.statDsx().dsx(blob);
+            case HASH:
+                return (id, date, tag, blob) -> blob;
             default:
                 throw new AssertionError("Internal error: Missing deserialise case for tag " + attr);
         }
     }
 
+    // Records the bytes and decode time of the rows read by the item reader into the current stats, if there are any.
+    private EnergyProfile deserialiseStoredItem(String id,
+                                                LocalDate date,
+                                                Map<String, byte[]> blobs) throws DeserialiseException {
+        QueryStats stats = QueryStats.current();
+        if (stats == null)
+            return deserialiseItem(id, date, blobs);
+
+        long bytesRead = 0;
+        for (byte[] blob : blobs.values())
+            bytesRead += blob.length;
+        stats.addBytesRead(bytesRead);
+
+        // The maximums and hash are read with the rest of the row, but are not needed to create the profile.
+        long bytesDecoded = bytesRead;
+        byte[] maximums = blobs.get(MAXIMUMS.storeString());
+        if (maximums != null)
+            bytesDecoded -= maximums.length;
+        byte[] hash = blobs.get(HASH.storeString());
+        if (hash != null)
+            bytesDecoded -= hash.length;
+        stats.addBytesDecoded(bytesDecoded);
+
+        long wall = System.nanoTime();
+        try {
+            return deserialiseItem(id, date, blobs);
+        } finally {
+            stats.recordWall(QueryStats.Stage.DECODE, wall);
+        }
+    }
+
     private EnergyProfile deserialiseItem(String id,
                                           LocalDate date,
                                           Map<String, byte[]> blobs) throws DeserialiseException {
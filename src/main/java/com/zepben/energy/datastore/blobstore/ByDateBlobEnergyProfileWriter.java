@@ -9,19 +9,30 @@
 package com.zepben.energy.datastore.blobstore;
 
 import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.blobstore.itemwrappers.ByDateItemError;
+import com.zepben.blobstore.itemwrappers.ByDateItemReader;
 import com.zepben.blobstore.itemwrappers.ByDateItemWriter;
 import com.zepben.blobstore.itemwrappers.ItemBlobWriter;
+import com.zepben.energy.datastore.EnergyProfileReader;
 import com.zepben.energy.datastore.EnergyProfileWriter;
 import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.PartialProfileReader;
+import com.zepben.energy.datastore.blobstore.indexing.BloomFilterIndex;
 import com.zepben.energy.datastore.blobstore.indexing.DateRangeIndex;
+import com.zepben.energy.datastore.blobstore.indexing.IdPresenceIndex;
+import com.zepben.energy.datastore.blobstore.indexing.IndexTransaction;
+import com.zepben.energy.datastore.blobstore.indexing.StatCoverageIndex;
 import com.zepben.energy.model.EnergyProfile;
-import com.zepben.energy.model.EnergyProfileStat;
+import com.zepben.energy.model.MaximumsAccumulator;
 import com.zepben.energy.model.MissingReadings;
 import com.zepben.energy.model.Readings;
 import kotlin.Unit;
 import kotlin.jvm.functions.Function2;
 
+import javax.annotation.Nullable;
 import java.time.LocalDate;
+import java.util.Collections;
+import java.util.Objects;
 
 import static com.zepben.energy.datastore.blobstore.EnergyProfileAttribute.*;
 
@@ -30,20 +41,136 @@ public class ByDateBlobEnergyProfileWriter implements EnergyProfileWriter {
 
     private final Serialisers serialisers;
     private final DateRangeIndex dateRangeIndex;
+    private final StatCoverageIndex statCoverageIndex;
+    private final IdPresenceIndex presenceIndex;
+    private final BloomFilterIndex bloomFilterIndex;
+    private final IndexTransaction indexTransaction;
     private final ByDateItemWriter itemWriter;
+    @Nullable private final ByDateItemReader<byte[]> hashReader;
+    @Nullable private final EnergyProfileReader storedReader;
+    private final PendingProfiles pending = new PendingProfiles();
 
+    // Reused for every write, so writing a profile doesn't allocate handlers, stats or hash bytes for it.
+    private final ProfileWriteHandler profileWriteHandler = new ProfileWriteHandler();
+    private final PartialReadingsWriteHandler partialReadingsWriteHandler = new PartialReadingsWriteHandler();
+    private final MaximumsAccumulator partialMaximums = new MaximumsAccumulator();
+    private final Function2<ItemBlobWriter, Boolean, Unit> partialCacheableHandler = this::writePartialCacheable;
+    private final ItemErrorForwarder itemErrors = new ItemErrorForwarder();
+    // A hash that can't be read is treated as changed, so the profile is written.
+    private final ByDateItemError ignoreHashReadErrors = (id, date, msg, t) -> {
+    };
+
+    public ByDateBlobEnergyProfileWriter(DateRangeIndex dateRangeIndex,
+                                         ByDateItemWriter itemWriter,
+                                         Serialisers serialisers) {
+        this(dateRangeIndex, StatCoverageIndex.untracked(), IdPresenceIndex.untracked(), itemWriter, serialisers);
+    }
+
+    public ByDateBlobEnergyProfileWriter(DateRangeIndex dateRangeIndex,
+                                         StatCoverageIndex statCoverageIndex,
+                                         IdPresenceIndex presenceIndex,
+                                         ByDateItemWriter itemWriter,
+                                         Serialisers serialisers) {
+        this(dateRangeIndex, statCoverageIndex, presenceIndex, BloomFilterIndex.untracked(), itemWriter, serialisers);
+    }
+
+    public ByDateBlobEnergyProfileWriter(DateRangeIndex dateRangeIndex,
+                                         StatCoverageIndex statCoverageIndex,
+                                         IdPresenceIndex presenceIndex,
+                                         BloomFilterIndex bloomFilterIndex,
+                                         ByDateItemWriter itemWriter,
+                                         Serialisers serialisers) {
+        this(dateRangeIndex, statCoverageIndex, presenceIndex, bloomFilterIndex, itemWriter, null, serialisers);
+    }
+
+    /**
+     * @param hashReader reads the {@link ContentHash} stored with each profile, so writes of profiles identical to the
+     *                   stored ones are skipped. If null, every profile is written. Hashes are always stored.
+     */
     public ByDateBlobEnergyProfileWriter(DateRangeIndex dateRangeIndex,
+                                         StatCoverageIndex statCoverageIndex,
+                                         IdPresenceIndex presenceIndex,
+                                         BloomFilterIndex bloomFilterIndex,
                                          ByDateItemWriter itemWriter,
+                                         @Nullable ByDateItemReader<byte[]> hashReader,
+                                         Serialisers serialisers) {
+        this(dateRangeIndex, statCoverageIndex, presenceIndex, bloomFilterIndex, itemWriter, hashReader, null, serialisers);
+    }
+
+    /**
+     * @param storedReader reads the stored side of a profile when only the other side is written with
+     *                     {@link #writeKwIn} or {@link #writeKwOut}, so the stats can be recalculated and written with
+     *                     the new readings rather than removed. If null, partial writes remove the stats.
+     */
+    public ByDateBlobEnergyProfileWriter(DateRangeIndex dateRangeIndex,
+                                         StatCoverageIndex statCoverageIndex,
+                                         IdPresenceIndex presenceIndex,
+                                         BloomFilterIndex bloomFilterIndex,
+                                         ByDateItemWriter itemWriter,
+                                         @Nullable ByDateItemReader<byte[]> hashReader,
+                                         @Nullable EnergyProfileReader storedReader,
+                                         Serialisers serialisers) {
+        this(dateRangeIndex, statCoverageIndex, presenceIndex, bloomFilterIndex, IndexTransaction.none(), itemWriter, hashReader, storedReader, serialisers);
+    }
+
+    /**
+     * @param indexTransaction commits the store shared by the date range, stat coverage and presence indexes once they
+     *                         have all been flushed, so committing one index never commits the unfinished changes of
+     *                         another. Indexes that share a blob store, such as the {@code Blob} indexes, only save
+     *                         their changes to the store when flushed and need the transaction of that store, otherwise
+     *                         their changes are never committed.
+     */
+    public ByDateBlobEnergyProfileWriter(DateRangeIndex dateRangeIndex,
+                                         StatCoverageIndex statCoverageIndex,
+                                         IdPresenceIndex presenceIndex,
+                                         BloomFilterIndex bloomFilterIndex,
+                                         IndexTransaction indexTransaction,
+                                         ByDateItemWriter itemWriter,
+                                         @Nullable ByDateItemReader<byte[]> hashReader,
+                                         @Nullable EnergyProfileReader storedReader,
                                          Serialisers serialisers) {
         this.dateRangeIndex = dateRangeIndex;
+        this.statCoverageIndex = statCoverageIndex;
+        this.presenceIndex = presenceIndex;
+        this.bloomFilterIndex = bloomFilterIndex;
+        this.indexTransaction = indexTransaction;
         this.itemWriter = itemWriter;
+        this.hashReader = hashReader;
+        this.storedReader = storedReader;
         this.serialisers = serialisers;
+
+        if (hashReader != null)
+            hashReader.setDeserialisers(
+                (id, date, blobs) -> blobs.get(HASH.storeString()),
+                Collections.singletonMap(HASH.storeString(), (id, date, tag, blob) -> blob));
     }
 
     @Override
     public boolean write(EnergyProfile profile, boolean writeStats, ErrorHandler onError) {
-        if (!itemWriter.write(profile.id(), profile.date(), profile, getProfileWriteHandler(writeStats), onError::handle))
+        long hash = ContentHash.of(profile);
+
+        // An identical profile is left as it is, including any stats it was stored with.
+        if (isUnchanged(profile.id(), profile.date(), hash, writeStats)) {
+            setPendingReadings(profile.id(), profile.date(), null);
+            updateIndex(profile.id(), profile.date(), onError);
+            return true;
+        }
+
+        // The stats are only written if everything else was, so a failed write may have left the profile without them.
+        if (!writeItem(profile.id(), profile.date(), profile, profileWriteHandler.of(writeStats, hash), onError)) {
+            statCoverageIndex.markMissing(profile.id(), profile.date());
+            clearPendingHash(profile.id(), profile.date());
+            setPendingReadings(profile.id(), profile.date(), null);
             return false;
+        }
+
+        setPendingHash(profile.id(), profile.date(), hash, writeStats);
+        setPendingReadings(profile.id(), profile.date(), null);
+
+        if (writeStats)
+            statCoverageIndex.markCovered(profile.id(), profile.date());
+        else
+            statCoverageIndex.markMissing(profile.id(), profile.date());
 
         updateIndex(profile.id(), profile.date(), onError);
         return true;
@@ -51,20 +178,50 @@ public class ByDateBlobEnergyProfileWriter implements EnergyProfileWriter {
 
     @Override
     public boolean commit(ErrorHandler onError) {
+        // The bloom filters go into the stores for their dates, so they need to be written before those are committed.
+        // Committing the profiles without their filters would hide them from readers, so everything is rolled back.
+        // Profiles that lost their stats are listed as missing them before they are committed, so a failed commit can
+        // only leave stats that are listed as missing, never missing stats that are listed as covered.
+        // Readers of tracked dates only look for ids in the presence index, so its additions are committed first too. A
+        // failed commit can then only leave ids that are looked for and not found, never profiles that can't be found.
+        // The indexes share a store, so they are all flushed before it is committed once.
+        if (!bloomFilterIndex.write(onError) || !statCoverageIndex.flushMissing() || !presenceIndex.flush() || !indexTransaction.commit()) {
+            rollback(onError);
+            return false;
+        }
+        presenceIndex.committed();
+
         if (!itemWriter.commit(onError::handle))
             return false;
 
-        dateRangeIndex.commit();
+        pending.clear();
+        bloomFilterIndex.commit();
+        if (statCoverageIndex.flush() && dateRangeIndex.flush() && indexTransaction.commit()) {
+            statCoverageIndex.committed();
+            dateRangeIndex.committed();
+        } else {
+            indexTransaction.rollback();
+            statCoverageIndex.discard();
+            dateRangeIndex.discard();
+        }
         return true;
     }
 
+    /**
+     * The pending hashes, readings and index updates are discarded even if the stores fail to roll back, as what they
+     * were written with is no longer known.
+     */
     @Override
     public boolean rollback(ErrorHandler onError) {
-        if (!itemWriter.rollback(onError::handle))
-            return false;
+        boolean rolledBack = itemWriter.rollback(onError::handle);
 
-        dateRangeIndex.rollback();
-        return true;
+        pending.clear();
+        bloomFilterIndex.rollback();
+        indexTransaction.rollback();
+        statCoverageIndex.discard();
+        presenceIndex.discard();
+        dateRangeIndex.discard();
+        return rolledBack;
     }
 
     @Override
@@ -72,11 +229,7 @@ public class ByDateBlobEnergyProfileWriter implements EnergyProfileWriter {
                              LocalDate date,
                              Readings readings,
                              ErrorHandler onError) {
-        if (!itemWriter.write(id, date, readings, getReadingsWriteHandler(KW_IN, serialisers.kwInSx()), onError::handle))
-            return false;
-
-        updateIndex(id, date, onError);
-        return true;
+        return writePartialReadings(id, date, KW_IN, readings, serialisers.kwInSx(), onError);
     }
 
     @Override
@@ -84,11 +237,7 @@ public class ByDateBlobEnergyProfileWriter implements EnergyProfileWriter {
                               LocalDate date,
                               Readings readings,
                               ErrorHandler onError) {
-        if (!itemWriter.write(id, date, readings, getReadingsWriteHandler(KW_OUT, serialisers.kwOutSx()), onError::handle))
-            return false;
-
-        updateIndex(id, date, onError);
-        return true;
+        return writePartialReadings(id, date, KW_OUT, readings, serialisers.kwOutSx(), onError);
     }
 
     @Override
@@ -96,34 +245,52 @@ public class ByDateBlobEnergyProfileWriter implements EnergyProfileWriter {
                                   LocalDate date,
                                   boolean cacheable,
                                   ErrorHandler onError) {
-        if (!itemWriter.write(id, date, cacheable, this::writeCacheable, onError::handle))
+        if (!writeItem(id, date, cacheable, partialCacheableHandler, onError))
             return false;
 
+        // This may be the first blob for the id, leaving it with no stats.
+        statCoverageIndex.markMissing(id, date);
+        clearPendingHash(id, date);
         updateIndex(id, date, onError);
         return true;
     }
 
-    private Function2<ItemBlobWriter, EnergyProfile, Unit> getProfileWriteHandler(boolean writeStats) {
-        return (writer, profile) -> {
-            writeReadings(writer, KW_IN, profile.kwIn(), serialisers.kwInSx(), false);
-            writeReadings(writer, KW_OUT, profile.kwOut(), serialisers.kwOutSx(), false);
-            writeCacheable(writer, profile.cacheable());
+    private boolean writePartialReadings(String id,
+                                         LocalDate date,
+                                         EnergyProfileAttribute tag,
+                                         Readings readings,
+                                         Serialiser<Readings> sx,
+                                         ErrorHandler onError) {
+        EnergyProfile updated = withStoredSide(id, date, tag, readings);
+        MaximumsAccumulator maximums = updated != null ? partialMaximums.of(updated) : null;
 
-            if (writeStats && !writer.anyFailed()) {
-                writeStats(writer, profile);
-            } else {
-                deleteStats(writer);
-            }
-            return Unit.INSTANCE;
-        };
+        if (!writeItem(id, date, readings, partialReadingsWriteHandler.of(tag, sx, maximums), onError)) {
+            setPendingReadings(id, date, null);
+            return false;
+        }
+
+        if (maximums != null)
+            statCoverageIndex.markCovered(id, date);
+        else
+            statCoverageIndex.markMissing(id, date);
+
+        setPendingReadings(id, date, updated);
+        clearPendingHash(id, date);
+        updateIndex(id, date, onError);
+        return true;
     }
 
-    private Function2<ItemBlobWriter, Readings, Unit> getReadingsWriteHandler(EnergyProfileAttribute tag,
-                                                                              Serialiser<Readings> sx) {
-        return (writer, readings) -> {
-            writeReadings(writer, tag, readings, sx, true);
-            return Unit.INSTANCE;
-        };
+    private <T> boolean writeItem(String id,
+                                  LocalDate date,
+                                  T item,
+                                  Function2<ItemBlobWriter, T, Unit> handler,
+                                  ErrorHandler onError) {
+        itemErrors.onError = onError;
+        try {
+            return itemWriter.write(id, date, item, handler, itemErrors);
+        } finally {
+            itemErrors.onError = null;
+        }
     }
 
     private void writeReadings(ItemBlobWriter writer,
@@ -151,18 +318,174 @@ public class ByDateBlobEnergyProfileWriter implements EnergyProfileWriter {
         return Unit.INSTANCE;
     }
 
-    private void writeStats(ItemBlobWriter writer, EnergyProfile profile) {
-        Serialiser<EnergyProfileStat> sx = serialisers.statSx();
-        writer.write(MAXIMUMS.storeString(), sx.sx(EnergyProfileStat.ofMax(profile)), sx.sxOffset(), sx.sxLength());
+    // Partial writes change the content the stored hash was of, so it is removed rather than recalculated.
+    private Unit writePartialCacheable(ItemBlobWriter writer, boolean cacheable) {
+        writeCacheable(writer, cacheable);
+        deleteHash(writer);
+        return Unit.INSTANCE;
+    }
+
+    private void writeStat(ItemBlobWriter writer, MaximumsAccumulator maximums) {
+        StatSerialiser sx = serialisers.statSx();
+        writer.write(MAXIMUMS.storeString(), sx.sx(maximums.kwIn(), maximums.kwOut(), maximums.kwNet()), sx.sxOffset(), sx.sxLength());
     }
 
     private void deleteStats(ItemBlobWriter writer) {
         writer.delete(MAXIMUMS.storeString());
     }
 
+    private void deleteHash(ItemBlobWriter writer) {
+        writer.delete(HASH.storeString());
+    }
+
+    private boolean isUnchanged(String id, LocalDate date, long hash, boolean writeStats) {
+        if (hashReader == null)
+            return false;
+
+        // Profiles written in this transaction are checked against what was written rather than what was committed.
+        Boolean pendingMatch = pending.hashMatches(id, date, hash, writeStats);
+        if (pendingMatch != null)
+            return pendingMatch;
+
+        // New profiles have nothing to compare against, so the store is only queried for ids the indexes might have.
+        if (Boolean.FALSE.equals(presenceIndex.contains(id, date)) || Boolean.FALSE.equals(bloomFilterIndex.mightContain(id, date)))
+            return false;
+
+        byte[] stored = hashReader.get(id, date, HASH.storeString(), ignoreHashReadErrors);
+        return ContentHash.matches(stored, hash, writeStats);
+    }
+
+    private void setPendingHash(String id, LocalDate date, long hash, boolean hasStats) {
+        if (hashReader != null)
+            pending.setHash(id, date, hash, hasStats);
+    }
+
+    private void clearPendingHash(String id, LocalDate date) {
+        if (hashReader != null)
+            pending.clearHash(id, date);
+    }
+
+    /**
+     * @return the profile with the readings replacing its side, or null if the stats can't be recalculated from it
+     * because there is no stored reader, the other side could not be read, or the sides have different lengths.
+     */
+    @Nullable
+    private EnergyProfile withStoredSide(String id, LocalDate date, EnergyProfileAttribute tag, Readings readings) {
+        if (storedReader == null || readings.length() == 0)
+            return null;
+
+        // Profiles written in this transaction can't be read from the store, so the other side comes from what was written.
+        Readings other;
+        if (pending.hasReadings(id, date)) {
+            EnergyProfile written = pending.readings(id, date);
+            if (written == null)
+                return null;
+
+            other = tag == KW_IN ? written.kwOut() : written.kwIn();
+        } else {
+            boolean[] failed = {false};
+            ErrorHandler onReadError = (i, d, msg, t) -> failed[0] = true;
+            PartialProfileReader<Readings> otherReader = tag == KW_IN ? storedReader.kwOutReader() : storedReader.kwInReader();
+            other = otherReader.get(id, date, onReadError);
+            if (failed[0])
+                return null;
+        }
+
+        if (other != null && other.length() != readings.length())
+            return null;
+
+        return tag == KW_IN ? EnergyProfile.of(id, date, readings, other) : EnergyProfile.of(id, date, other, readings);
+    }
+
+    private void setPendingReadings(String id, LocalDate date, @Nullable EnergyProfile profile) {
+        if (storedReader != null)
+            pending.setReadings(id, date, profile);
+    }
+
     private void updateIndex(String id, LocalDate date, ErrorHandler onError) {
+        presenceIndex.add(id, date);
+        bloomFilterIndex.add(id, date);
         if (!dateRangeIndex.extendRange(id, date))
             onError.handle(id, date, "Unable to extend date range in index", null);
     }
 
+    @EverythingIsNonnullByDefault
+    private class ProfileWriteHandler implements Function2<ItemBlobWriter, EnergyProfile, Unit> {
+
+        private final MaximumsAccumulator maximums = new MaximumsAccumulator();
+        private final byte[] hashBytes = new byte[ContentHash.BYTES];
+        private boolean writeStats;
+        private long hash;
+
+        ProfileWriteHandler of(boolean writeStats, long hash) {
+            this.writeStats = writeStats;
+            this.hash = hash;
+            return this;
+        }
+
+        @Override
+        public Unit invoke(ItemBlobWriter writer, EnergyProfile profile) {
+            writeReadings(writer, KW_IN, profile.kwIn(), serialisers.kwInSx(), false);
+            writeReadings(writer, KW_OUT, profile.kwOut(), serialisers.kwOutSx(), false);
+            writeCacheable(writer, profile.cacheable());
+
+            if (writeStats && !writer.anyFailed()) {
+                writeStat(writer, maximums.of(profile));
+            } else {
+                deleteStats(writer);
+            }
+
+            ContentHash.serialise(hash, writeStats, hashBytes);
+            writer.write(HASH.storeString(), hashBytes, 0, hashBytes.length);
+            return Unit.INSTANCE;
+        }
+
+    }
+
+    @EverythingIsNonnullByDefault
+    private class PartialReadingsWriteHandler implements Function2<ItemBlobWriter, Readings, Unit> {
+
+        private EnergyProfileAttribute tag = KW_IN;
+        @Nullable private Serialiser<Readings> sx;
+        @Nullable private MaximumsAccumulator maximums;
+
+        PartialReadingsWriteHandler of(EnergyProfileAttribute tag, Serialiser<Readings> sx, @Nullable MaximumsAccumulator maximums) {
+            this.tag = tag;
+            this.sx = sx;
+            this.maximums = maximums;
+            return this;
+        }
+
+        @Override
+        public Unit invoke(ItemBlobWriter writer, Readings readings) {
+            writeReadings(writer, tag, readings, Objects.requireNonNull(sx), maximums == null);
+            if (maximums != null) {
+                if (writer.anyFailed())
+                    deleteStats(writer);
+                else
+                    writeStat(writer, maximums);
+            }
+
+            deleteHash(writer);
+            return Unit.INSTANCE;
+        }
+
+    }
+
+    /**
+     * Passes the errors of an item write to the handler of the write in progress.
+     */
+    @EverythingIsNonnullByDefault
+    private static class ItemErrorForwarder implements ByDateItemError {
+
+        @Nullable private ErrorHandler onError;
+
+        @Override
+        public void handle(String id, LocalDate date, String msg, @Nullable Throwable t) {
+            if (onError != null)
+                onError.handle(id, date, msg, t);
+        }
+
+    }
+
 }
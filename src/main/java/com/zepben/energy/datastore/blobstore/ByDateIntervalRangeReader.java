@@ -0,0 +1,109 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.blobstore.itemwrappers.ByDateItemHandler;
+import com.zepben.blobstore.itemwrappers.ByDateItemReader;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.IntervalRangeReader;
+import com.zepben.energy.datastore.ItemHandler;
+import com.zepben.energy.datastore.PartialProfileReader;
+import com.zepben.energy.datastore.blobstore.indexing.DateRangeTest;
+import com.zepben.energy.model.Readings;
+
+import javax.annotation.Nullable;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Reads a range of intervals of the readings in a tag by decoding only that range from the stored bytes.
+ */
+@EverythingIsNonnullByDefault
+public class ByDateIntervalRangeReader implements PartialProfileReader<Readings> {
+
+    private final EnergyProfileAttribute tag;
+    private final ByDateItemReader<Map<String, byte[]>> rawItemReader;
+    private final DateRangeTest dateRangeTest;
+    private final IntervalDeserialiser dsx;
+    private final int fromInterval;
+    private final int toInterval;
+
+    ByDateIntervalRangeReader(EnergyProfileAttribute tag,
+                              ByDateItemReader<Map<String, byte[]>> rawItemReader,
+                              DateRangeTest dateRangeTest,
+                              IntervalDeserialiser dsx,
+                              int fromInterval,
+                              int toInterval) {
+        IntervalRangeReader.checkRange(fromInterval, toInterval);
+
+        this.tag = tag;
+        this.rawItemReader = rawItemReader;
+        this.dateRangeTest = dateRangeTest;
+        this.dsx = dsx;
+        this.fromInterval = fromInterval;
+        this.toInterval = toInterval;
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public EnergyProfileAttribute tag() {
+        return tag;
+    }
+
+    @Override
+    @Nullable
+    public Readings get(String id, LocalDate date, ErrorHandler onError) {
+        if (!dateRangeTest.idHasDate(id, date))
+            return null;
+
+        byte[] bytes = rawItemReader.get(id, date, tag.storeString(), onError::handle);
+        if (bytes == null)
+            return null;
+
+        return dsxRange(id, date, bytes, onError);
+    }
+
+    @Override
+    public void forEach(Collection<String> ids,
+                        LocalDate date,
+                        ItemHandler<Readings> onRead,
+                        ErrorHandler onError) {
+        Collection<String> validIds = dateRangeTest.filterIdsWithDate(ids, date);
+        if (validIds.isEmpty())
+            return;
+
+        rawItemReader.forEach(validIds, date, tag.storeString(), rangeHandler(onRead, onError), onError::handle);
+    }
+
+    @Override
+    public void forAll(LocalDate date,
+                       ItemHandler<Readings> onRead,
+                       ErrorHandler onError) {
+        rawItemReader.forAll(date, tag.storeString(), rangeHandler(onRead, onError), onError::handle);
+    }
+
+    private ByDateItemHandler<byte[]> rangeHandler(ItemHandler<Readings> onRead, ErrorHandler onError) {
+        return (id, date, bytes) -> {
+            Readings readings = dsxRange(id, date, bytes, onError);
+            if (readings != null)
+                onRead.handle(id, date, readings);
+        };
+    }
+
+    @Nullable
+    private Readings dsxRange(String id, LocalDate date, byte[] bytes, ErrorHandler onError) {
+        Readings readings = dsx.dsxRange(bytes, fromInterval, toInterval);
+        if (readings == null)
+            onError.handle(id, date, "failed to deserialise readings: " + tag.storeString(), null);
+
+        return readings;
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.model.Channel;
+import com.zepben.energy.model.EnergyProfile;
+import com.zepben.energy.model.MissingReadings;
+import com.zepben.energy.model.Readings;
+
+import javax.annotation.Nullable;
+
+/**
+ * A 64 bit hash of the readings and cacheable flag of a profile, which {@link ByDateBlobEnergyProfileWriter} stores in
+ * the {@link EnergyProfileAttribute#HASH} of each profile it writes so rewrites of identical profiles can be skipped.
+ * <p>The hash is of the values of each channel rather than their serialised bytes, so it can be checked before
+ * anything is serialised. It is stored as 8 bytes followed by a byte of flags recording whether stats were written
+ * with the profile.
+ */
+@EverythingIsNonnullByDefault
+public final class ContentHash {
+
+    public static final int BYTES = 9;
+
+    private static final long PRIME1 = 0x9e3779b185ebca87L;
+    private static final long PRIME2 = 0xc2b2ae3d27d4eb4fL;
+    private static final long SEED = 0x27d4eb2f165667c5L;
+    private static final long MISSING = 0x165667b19e3779f9L;
+    private static final byte HAS_STATS = 1;
+
+    public static long of(EnergyProfile profile) {
+        long hash = SEED;
+        hash = mix(hash, profile.kwIn());
+        hash = mix(hash, profile.kwOut());
+        hash = mix(hash, profile.cacheable() ? 1 : 0);
+        return finish(hash);
+    }
+
+    public static byte[] serialise(long hash, boolean hasStats) {
+        byte[] bytes = new byte[BYTES];
+        serialise(hash, hasStats, bytes);
+        return bytes;
+    }
+
+    /**
+     * Serialises the hash into the first {@link #BYTES} bytes of an existing array, so it can be reused.
+     */
+    public static void serialise(long hash, boolean hasStats, byte[] bytes) {
+        for (int i = 0; i < Long.BYTES; ++i)
+            bytes[i] = (byte) (hash >>> (Long.SIZE - Byte.SIZE * (i + 1)));
+
+        bytes[Long.BYTES] = hasStats ? HAS_STATS : 0;
+    }
+
+    /**
+     * @param stored     the stored bytes of a hash, or null if there were none.
+     * @param needsStats true if the profile is being written with stats, so it only matches if they were stored too.
+     * @return true if the stored hash is of the same content.
+     */
+    public static boolean matches(@Nullable byte[] stored, long hash, boolean needsStats) {
+        if (stored == null || stored.length != BYTES)
+            return false;
+
+        long storedHash = 0;
+        for (int i = 0; i < Long.BYTES; ++i)
+            storedHash = (storedHash << Byte.SIZE) | (stored[i] & 0xff);
+
+        return storedHash == hash && (!needsStats || (stored[Long.BYTES] & HAS_STATS) != 0);
+    }
+
+    private static long mix(long hash, Readings readings) {
+        // Missing readings are written by deleting them, so they must not hash the same as stored zeros.
+        if (readings instanceof MissingReadings)
+            return mix(hash, MISSING);
+
+        hash = mix(hash, readings.numChannels());
+        for (int c = 1, n = readings.numChannels(); c <= n; ++c) {
+            Channel channel = readings.channel(c);
+            hash = mix(hash, channel.length());
+            for (int i = 0, len = channel.length(); i < len; ++i)
+                hash = mix(hash, Double.doubleToLongBits(channel.get(i)));
+        }
+        return hash;
+    }
+
+    // A round of xxHash64, which spreads every bit of the value before it is combined.
+    private static long mix(long hash, long value) {
+        return Long.rotateLeft(hash + value * PRIME2, 31) * PRIME1;
+    }
+
+    // The final mix of MurmurHash3, so every bit of the input affects every bit of the hash.
+    private static long finish(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private ContentHash() {
+    }
+
+}
@@ -16,7 +16,8 @@ public enum EnergyProfileAttribute {
     KW_IN("W_in"),
     KW_OUT("W_out"),
     MAXIMUMS("maximums"),
-    CACHEABLE("cacheable");
+    CACHEABLE("cacheable"),
+    HASH("hash");
 
     private static final Set<String> tagSet;
 
@@ -12,6 +12,7 @@ import com.zepben.annotations.EverythingIsNonnullByDefault;
 import com.zepben.energy.datastore.ErrorHandler;
 import com.zepben.energy.datastore.ItemHandler;
 import com.zepben.energy.datastore.PartialProfileReader;
+import com.zepben.energy.datastore.blobstore.indexing.StatCoverageIndex;
 import com.zepben.energy.model.EnergyProfile;
 import com.zepben.energy.model.EnergyProfileStat;
 
@@ -31,10 +32,18 @@ class EnergyProfileStatReader implements PartialProfileReader<EnergyProfileStat>
 
     private final ByDatePartialProfileReader<EnergyProfileStat> reader;
     private final Function<EnergyProfile, EnergyProfileStat> statFactory;
+    private final StatCoverageIndex statCoverageIndex;
 
     EnergyProfileStatReader(ByDatePartialProfileReader<EnergyProfileStat> reader, Function<EnergyProfile, EnergyProfileStat> statFactory) {
+        this(reader, statFactory, StatCoverageIndex.untracked());
+    }
+
+    EnergyProfileStatReader(ByDatePartialProfileReader<EnergyProfileStat> reader,
+                            Function<EnergyProfile, EnergyProfileStat> statFactory,
+                            StatCoverageIndex statCoverageIndex) {
         this.reader = reader;
         this.statFactory = statFactory;
+        this.statCoverageIndex = statCoverageIndex;
     }
 
     // Package private for testing... Can we do this better?
@@ -75,9 +84,21 @@ class EnergyProfileStatReader implements PartialProfileReader<EnergyProfileStat>
 
     @Override
     public void forAll(LocalDate date, ItemHandler<EnergyProfileStat> onRead, ErrorHandler onError) {
-        // Currently there is no exposed way to find out what's missing from the stat table but exists in a readings table.
-        // As this is the case we just do a forAll on every profile.
-        reader.itemReader().forAll(date, createStatHandler(onRead)::handle, onError::handle);
+        // There is no way to ask the store for the profiles that are missing from the stat table, so we need the coverage
+        // index to tell us. If it doesn't know the coverage of the date we have to calculate the stat for every profile.
+        Set<String> missingIds = statCoverageIndex.getMissing(date);
+        if (missingIds == null) {
+            reader.itemReader().forAll(date, createStatHandler(onRead)::handle, onError::handle);
+            return;
+        }
+
+        reader.forAll(date, (id, dt, stat) -> {
+            if (!missingIds.contains(id))
+                onRead.handle(id, dt, stat);
+        }, onError);
+
+        if (!missingIds.isEmpty())
+            reader.itemReader().forEach(missingIds, date, createStatHandler(onRead)::handle, onError::handle);
     }
 
     @Nullable
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.model.Readings;
+
+import javax.annotation.Nullable;
+
+/**
+ * Implemented by readings {@link Deserialiser}s that can decode a single interval, or a range of intervals, without
+ * deserialising the whole readings.
+ */
+@EverythingIsNonnullByDefault
+public interface IntervalDeserialiser {
+
+    /**
+     * @param bytes    a byte array that is the serialised readings.
+     * @param interval the index of the interval to decode, from 0.
+     * @return the value at the interval summed over the channels, the same as {@link Readings#get(int)} of the
+     * deserialised readings, or NaN if deserialisation failed or the readings do not reach the interval.
+     */
+    double dsxInterval(byte[] bytes, int interval);
+
+    /**
+     * @param bytes        a byte array that is the serialised readings.
+     * @param fromInterval the index of the first interval to decode, from 0.
+     * @param toInterval   the index after the last interval to decode.
+     * @return readings holding the intervals in the range, cut short if the readings end before the range does, or null
+     * if deserialisation failed.
+     */
+    @Nullable
+    Readings dsxRange(byte[] bytes, int fromInterval, int toInterval);
+
+}
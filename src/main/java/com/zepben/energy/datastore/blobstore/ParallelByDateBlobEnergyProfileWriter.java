@@ -0,0 +1,644 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.datastore.EnergyProfileWriter;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.blobstore.indexing.BloomFilterIndex;
+import com.zepben.energy.datastore.blobstore.indexing.DateRangeIndex;
+import com.zepben.energy.datastore.blobstore.indexing.IdPresenceIndex;
+import com.zepben.energy.datastore.blobstore.indexing.IndexTransaction;
+import com.zepben.energy.datastore.blobstore.indexing.StatCoverageIndex;
+import com.zepben.energy.model.EnergyProfile;
+import com.zepben.energy.model.IdDateRange;
+
+import javax.annotation.Nullable;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Writes profiles to the by date blob stores from a lane of writers, each with its own thread, so profiles for different
+ * dates are written in parallel. Each date is always written by the same lane, so each date store is only ever written
+ * from one thread, and each lane has its own writer with its own serialisers and transactions on the stores it writes.
+ * <p>Each lane reads the shared indexes through views that serialise their reads, and that hold the index updates of the
+ * lane until it commits, so a lane doesn't see its own updates until then. {@link #commit} merges the updates of the
+ * lanes that committed into the shared indexes, which are then flushed and their store committed once with the
+ * {@link IndexTransaction}. Bloom filters are the exception, as they are written into the stores of the lanes: ids are
+ * added to them straight away, and only add false positives if their lane rolls back.
+ * <p>Writes return futures that complete once the profile has been written on its lane, and the error handlers passed
+ * to them are called from the lane threads. Committing waits for the writes that were made before it.
+ */
+@EverythingIsNonnullByDefault
+public class ParallelByDateBlobEnergyProfileWriter implements AutoCloseable {
+
+    private final DateRangeIndex dateRangeIndex;
+    private final StatCoverageIndex statCoverageIndex;
+    private final IdPresenceIndex presenceIndex;
+    private final BloomFilterIndex bloomFilterIndex;
+    private final IndexTransaction indexTransaction;
+    private final Object indexLock = new Object();
+    private final List<Lane> lanes;
+
+    /**
+     * @param laneFactory creates the writer of each lane from the lane views of the indexes. The writers must not share
+     *                    serialisers or item writers.
+     */
+    public ParallelByDateBlobEnergyProfileWriter(DateRangeIndex dateRangeIndex,
+                                                 StatCoverageIndex statCoverageIndex,
+                                                 IdPresenceIndex presenceIndex,
+                                                 BloomFilterIndex bloomFilterIndex,
+                                                 LaneFactory laneFactory,
+                                                 int numLanes) {
+        this(dateRangeIndex, statCoverageIndex, presenceIndex, bloomFilterIndex, IndexTransaction.none(), laneFactory, numLanes);
+    }
+
+    /**
+     * @param indexTransaction commits the store shared by the date range, stat coverage and presence indexes once they
+     *                         have all been flushed. See {@link ByDateBlobEnergyProfileWriter}.
+     * @param laneFactory      creates the writer of each lane from the lane views of the indexes. The writers must not
+     *                         share serialisers or item writers.
+     */
+    public ParallelByDateBlobEnergyProfileWriter(DateRangeIndex dateRangeIndex,
+                                                 StatCoverageIndex statCoverageIndex,
+                                                 IdPresenceIndex presenceIndex,
+                                                 BloomFilterIndex bloomFilterIndex,
+                                                 IndexTransaction indexTransaction,
+                                                 LaneFactory laneFactory,
+                                                 int numLanes) {
+        if (numLanes < 1)
+            throw new IllegalArgumentException("numLanes must be at least 1");
+
+        this.dateRangeIndex = dateRangeIndex;
+        this.statCoverageIndex = statCoverageIndex;
+        this.presenceIndex = presenceIndex;
+        this.bloomFilterIndex = bloomFilterIndex;
+        this.indexTransaction = indexTransaction;
+
+        LaneBloomFilterIndex laneBloomFilterIndex = new LaneBloomFilterIndex(bloomFilterIndex, indexLock);
+
+        lanes = new ArrayList<>(numLanes);
+        for (int i = 0; i < numLanes; ++i) {
+            LaneUpdates updates = new LaneUpdates();
+            EnergyProfileWriter writer = laneFactory.create(
+                new LaneDateRangeIndex(dateRangeIndex, indexLock, updates),
+                new LaneStatCoverageIndex(statCoverageIndex, indexLock, updates),
+                new LanePresenceIndex(presenceIndex, indexLock, updates),
+                laneBloomFilterIndex);
+            lanes.add(new Lane(writer, updates, i));
+        }
+    }
+
+    public int numLanes() {
+        return lanes.size();
+    }
+
+    public CompletableFuture<Boolean> write(EnergyProfile profile, ErrorHandler onError) {
+        return write(profile, false, onError);
+    }
+
+    /**
+     * @return a future holding the result of writing the profile on the lane for its date.
+     */
+    public CompletableFuture<Boolean> write(EnergyProfile profile, boolean writeStats, ErrorHandler onError) {
+        Lane lane = laneFor(profile.date());
+        return CompletableFuture.supplyAsync(() -> lane.writer.write(profile, writeStats, onError), lane.executor);
+    }
+
+    /**
+     * Commits everything written before the call. The lanes are stopped while the bloom filters are written into the
+     * stores for their dates, the profiles that are missing stats on any lane are committed to the stat coverage index
+     * and the ids added on any lane are committed to the presence index, then commit their stores in parallel. Once the
+     * lanes have finished, the index updates of the lanes that committed are merged into the shared indexes, which are
+     * then committed. The updates of lanes that failed and rolled back are discarded, apart from the missing stats,
+     * which only cost a calculation when their stats are read, and the added ids, which are only looked for and not
+     * found.
+     *
+     * @return true if every lane committed and its index updates were merged and committed.
+     */
+    public boolean commit(ErrorHandler onError) {
+        CompletableFuture<Boolean> filtersWritten = new CompletableFuture<>();
+        List<CompletableFuture<Void>> stopped = new ArrayList<>(lanes.size());
+        List<CompletableFuture<List<IndexUpdate>>> commits = new ArrayList<>(lanes.size());
+        for (Lane lane : lanes) {
+            CompletableFuture<Void> laneStopped = new CompletableFuture<>();
+            stopped.add(laneStopped);
+            commits.add(CompletableFuture.supplyAsync(() -> {
+                laneStopped.complete(null);
+                boolean laneCommitted = filtersWritten.join() && lane.writer.commit(onError);
+                if (!laneCommitted)
+                    lane.writer.rollback(onError);
+
+                // Taken on the lane thread, so writes made after the commit go into the next set of updates.
+                List<IndexUpdate> updates = lane.updates.take();
+                return laneCommitted ? updates : null;
+            }, lane.executor));
+        }
+
+        boolean written = false;
+        try {
+            CompletableFuture.allOf(stopped.toArray(new CompletableFuture<?>[0])).join();
+
+            // The lanes are waiting on the filters, so their missing stats and added ids can be read from here.
+            synchronized (indexLock) {
+                lanes.forEach(lane -> {
+                    lane.updates.missing.forEach(update -> update.apply(onError));
+                    lane.updates.present.forEach(update -> update.apply(onError));
+                });
+            }
+            written = bloomFilterIndex.write(onError) &&
+                statCoverageIndex.flushMissing() &&
+                presenceIndex.flush() &&
+                indexTransaction.commit();
+            if (written)
+                presenceIndex.committed();
+        } finally {
+            filtersWritten.complete(written);
+        }
+
+        boolean committed = true;
+        List<List<IndexUpdate>> committedUpdates = new ArrayList<>(lanes.size());
+        for (CompletableFuture<List<IndexUpdate>> commit : commits) {
+            List<IndexUpdate> updates = commit.join();
+            if (updates != null)
+                committedUpdates.add(updates);
+            else
+                committed = false;
+        }
+
+        if (!written) {
+            rollbackIndexes();
+            return false;
+        }
+
+        synchronized (indexLock) {
+            for (List<IndexUpdate> updates : committedUpdates) {
+                for (IndexUpdate update : updates)
+                    committed &= update.apply(onError);
+            }
+        }
+
+        bloomFilterIndex.commit();
+        if (statCoverageIndex.flush() && presenceIndex.flush() && dateRangeIndex.flush() && indexTransaction.commit()) {
+            statCoverageIndex.committed();
+            presenceIndex.committed();
+            dateRangeIndex.committed();
+        } else {
+            indexTransaction.rollback();
+            discardIndexes();
+            committed = false;
+        }
+        return committed;
+    }
+
+    /**
+     * Rolls back everything written before the call on every lane, along with the shared indexes.
+     *
+     * @return true if every lane rolled back.
+     */
+    public boolean rollback(ErrorHandler onError) {
+        List<CompletableFuture<Boolean>> rollbacks = new ArrayList<>(lanes.size());
+        for (Lane lane : lanes) {
+            rollbacks.add(CompletableFuture.supplyAsync(() -> {
+                lane.updates.take();
+                return lane.writer.rollback(onError);
+            }, lane.executor));
+        }
+
+        boolean rolledBack = joinAll(rollbacks);
+        rollbackIndexes();
+        return rolledBack;
+    }
+
+    /**
+     * Stops the lane threads once the writes already made have run. Anything not committed is left uncommitted.
+     */
+    @Override
+    public void close() {
+        lanes.forEach(lane -> lane.executor.shutdown());
+    }
+
+    private Lane laneFor(LocalDate date) {
+        // Consecutive dates go to different lanes, so a range of dates is spread across all of them.
+        return lanes.get((int) Math.floorMod(date.toEpochDay(), (long) lanes.size()));
+    }
+
+    private void rollbackIndexes() {
+        bloomFilterIndex.rollback();
+        indexTransaction.rollback();
+        discardIndexes();
+    }
+
+    private void discardIndexes() {
+        statCoverageIndex.discard();
+        presenceIndex.discard();
+        dateRangeIndex.discard();
+    }
+
+    private static boolean joinAll(List<CompletableFuture<Boolean>> futures) {
+        boolean all = true;
+        for (CompletableFuture<Boolean> future : futures)
+            all &= future.join();
+        return all;
+    }
+
+    private static boolean reportFailure(boolean succeeded, String id, LocalDate date, String message, ErrorHandler onError) {
+        if (!succeeded)
+            onError.handle(id, date, message, null);
+        return succeeded;
+    }
+
+    /**
+     * Creates the writer of a lane, which should write its index updates to the given views of the indexes.
+     */
+    @EverythingIsNonnullByDefault
+    @FunctionalInterface
+    public interface LaneFactory {
+
+        EnergyProfileWriter create(DateRangeIndex dateRangeIndex,
+                                   StatCoverageIndex statCoverageIndex,
+                                   IdPresenceIndex presenceIndex,
+                                   BloomFilterIndex bloomFilterIndex);
+
+    }
+
+    @EverythingIsNonnullByDefault
+    private static class Lane {
+
+        private final EnergyProfileWriter writer;
+        private final LaneUpdates updates;
+        private final ExecutorService executor;
+
+        Lane(EnergyProfileWriter writer, LaneUpdates updates, int index) {
+            this.writer = writer;
+            this.updates = updates;
+            this.executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "energy-profile-writer-lane-" + index);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+    }
+
+    /**
+     * An update of the shared indexes held by a lane until it commits.
+     */
+    @EverythingIsNonnullByDefault
+    @FunctionalInterface
+    private interface IndexUpdate {
+
+        /**
+         * @return false if the update failed, after reporting it to the error handler.
+         */
+        boolean apply(ErrorHandler onError);
+
+    }
+
+    // Only used from the lane thread, apart from the missing stats and added ids which are read while the lane is stopped.
+    @EverythingIsNonnullByDefault
+    private static class LaneUpdates {
+
+        private List<IndexUpdate> updates = new ArrayList<>();
+        private List<IndexUpdate> missing = new ArrayList<>();
+        private List<IndexUpdate> present = new ArrayList<>();
+
+        void add(IndexUpdate update) {
+            updates.add(update);
+        }
+
+        // Missing stats are also applied in order with the rest, so a later mark of the same id as covered still wins.
+        void addMissing(IndexUpdate update) {
+            missing.add(update);
+            updates.add(update);
+        }
+
+        // Added ids are also applied in order with the rest, so they are added back if the presence of the date is saved.
+        void addPresent(IndexUpdate update) {
+            present.add(update);
+            updates.add(update);
+        }
+
+        List<IndexUpdate> take() {
+            List<IndexUpdate> taken = updates;
+            updates = new ArrayList<>();
+            missing = new ArrayList<>();
+            present = new ArrayList<>();
+            return taken;
+        }
+
+    }
+
+    // The views below hold the updates of their lane for the parallel writer to merge into the shared indexes, and leave
+    // committing and rolling back the shared indexes to it.
+
+    @EverythingIsNonnullByDefault
+    private static class LaneDateRangeIndex implements DateRangeIndex {
+
+        private final DateRangeIndex index;
+        private final Object lock;
+        private final LaneUpdates updates;
+
+        LaneDateRangeIndex(DateRangeIndex index, Object lock, LaneUpdates updates) {
+            this.index = index;
+            this.lock = lock;
+            this.updates = updates;
+        }
+
+        @Nullable
+        @Override
+        public IdDateRange get(String id) {
+            synchronized (lock) {
+                return index.get(id);
+            }
+        }
+
+        @Override
+        public void forEach(Collection<String> ids, Consumer<IdDateRange> handler) {
+            synchronized (lock) {
+                index.forEach(ids, handler);
+            }
+        }
+
+        @Override
+        public void forAll(Consumer<IdDateRange> handler) {
+            synchronized (lock) {
+                index.forAll(handler);
+            }
+        }
+
+        @Override
+        public boolean save(String id, LocalDate from, LocalDate to) {
+            updates.add(onError -> reportFailure(index.save(id, from, to), id, from, "Unable to save date range in index", onError));
+            return true;
+        }
+
+        @Override
+        public boolean save(IdDateRange range) {
+            updates.add(onError -> reportFailure(index.save(range), range.id(), range.from(), "Unable to save date range in index", onError));
+            return true;
+        }
+
+        @Override
+        public boolean saveAll(Collection<IdDateRange> ranges) {
+            List<IdDateRange> copy = new ArrayList<>(ranges);
+            updates.add(onError -> {
+                if (index.saveAll(copy))
+                    return true;
+
+                copy.forEach(range -> onError.handle(range.id(), range.from(), "Unable to save date range in index", null));
+                return false;
+            });
+            return true;
+        }
+
+        // Extensions are merged into the shared index under the one lock, so concurrent extensions of an id can't lose
+        // each other.
+        @Override
+        public boolean extendRange(String id, LocalDate date) {
+            updates.add(onError -> reportFailure(index.extendRange(id, date), id, date, "Unable to extend date range in index", onError));
+            return true;
+        }
+
+        @Override
+        public boolean commit() {
+            return true;
+        }
+
+        @Override
+        public boolean rollback() {
+            return true;
+        }
+
+    }
+
+    @EverythingIsNonnullByDefault
+    private static class LaneStatCoverageIndex implements StatCoverageIndex {
+
+        private final StatCoverageIndex index;
+        private final Object lock;
+        private final LaneUpdates updates;
+
+        LaneStatCoverageIndex(StatCoverageIndex index, Object lock, LaneUpdates updates) {
+            this.index = index;
+            this.lock = lock;
+            this.updates = updates;
+        }
+
+        @Nullable
+        @Override
+        public Set<String> getMissing(LocalDate date) {
+            synchronized (lock) {
+                return index.getMissing(date);
+            }
+        }
+
+        @Override
+        public void track(LocalDate date) {
+            updates.add(onError -> {
+                index.track(date);
+                return true;
+            });
+        }
+
+        @Override
+        public void save(LocalDate date, Collection<String> missingIds) {
+            List<String> copy = new ArrayList<>(missingIds);
+            updates.add(onError -> {
+                index.save(date, copy);
+                return true;
+            });
+        }
+
+        @Override
+        public void markCovered(String id, LocalDate date) {
+            updates.add(onError -> {
+                index.markCovered(id, date);
+                return true;
+            });
+        }
+
+        @Override
+        public void markMissing(String id, LocalDate date) {
+            updates.addMissing(onError -> {
+                index.markMissing(id, date);
+                return true;
+            });
+        }
+
+        @Override
+        public boolean commitMissing() {
+            return true;
+        }
+
+        @Override
+        public boolean commit() {
+            return true;
+        }
+
+        @Override
+        public boolean rollback() {
+            return true;
+        }
+
+    }
+
+    @EverythingIsNonnullByDefault
+    private static class LanePresenceIndex implements IdPresenceIndex {
+
+        private final IdPresenceIndex index;
+        private final Object lock;
+        private final LaneUpdates updates;
+
+        LanePresenceIndex(IdPresenceIndex index, Object lock, LaneUpdates updates) {
+            this.index = index;
+            this.lock = lock;
+            this.updates = updates;
+        }
+
+        @Override
+        public boolean isTracked(LocalDate date) {
+            synchronized (lock) {
+                return index.isTracked(date);
+            }
+        }
+
+        @Nullable
+        @Override
+        public Boolean contains(String id, LocalDate date) {
+            synchronized (lock) {
+                return index.contains(id, date);
+            }
+        }
+
+        @Nullable
+        @Override
+        public List<String> filter(Collection<String> ids, LocalDate date) {
+            synchronized (lock) {
+                return index.filter(ids, date);
+            }
+        }
+
+        @Nullable
+        @Override
+        public List<String> ids(LocalDate date) {
+            synchronized (lock) {
+                return index.ids(date);
+            }
+        }
+
+        @Nullable
+        @Override
+        public List<String> idsAfter(LocalDate date, @Nullable String after, int limit) {
+            synchronized (lock) {
+                return index.idsAfter(date, after, limit);
+            }
+        }
+
+        @Override
+        public void track(LocalDate date) {
+            updates.add(onError -> {
+                index.track(date);
+                return true;
+            });
+        }
+
+        @Override
+        public void save(LocalDate date, Collection<String> ids) {
+            List<String> copy = new ArrayList<>(ids);
+            updates.add(onError -> {
+                index.save(date, copy);
+                return true;
+            });
+        }
+
+        @Override
+        public void add(String id, LocalDate date) {
+            updates.addPresent(onError -> {
+                index.add(id, date);
+                return true;
+            });
+        }
+
+        @Override
+        public boolean commit() {
+            return true;
+        }
+
+        @Override
+        public boolean rollback() {
+            return true;
+        }
+
+    }
+
+    @EverythingIsNonnullByDefault
+    private static class LaneBloomFilterIndex implements BloomFilterIndex {
+
+        private final BloomFilterIndex index;
+        private final Object lock;
+
+        LaneBloomFilterIndex(BloomFilterIndex index, Object lock) {
+            this.index = index;
+            this.lock = lock;
+        }
+
+        @Nullable
+        @Override
+        public Boolean mightContain(String id, LocalDate date) {
+            synchronized (lock) {
+                return index.mightContain(id, date);
+            }
+        }
+
+        @Override
+        public void track(LocalDate date) {
+            synchronized (lock) {
+                index.track(date);
+            }
+        }
+
+        @Override
+        public void save(LocalDate date, Collection<String> ids) {
+            synchronized (lock) {
+                index.save(date, ids);
+            }
+        }
+
+        @Override
+        public void add(String id, LocalDate date) {
+            synchronized (lock) {
+                index.add(id, date);
+            }
+        }
+
+        // The filters of every lane are written while the lanes are stopped, as they go into the stores of all dates.
+        @Override
+        public boolean write(ErrorHandler onError) {
+            return true;
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void rollback() {
+        }
+
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.model.EnergyProfile;
+
+import javax.annotation.Nullable;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * What {@link ByDateBlobEnergyProfileWriter} has written for each profile in the current transaction: the
+ * {@link ContentHash} it was written with and the readings of partial writes.
+ * <p>Profiles are held in an open addressing table keyed by id and epoch day, with the hash and flags of each in
+ * primitive arrays. {@link #clear()} keeps the arrays, so once the table has grown to the size of a transaction the
+ * profiles of later transactions are tracked without allocating.
+ */
+@EverythingIsNonnullByDefault
+class PendingProfiles {
+
+    private static final int MIN_CAPACITY = 64;
+
+    private static final byte HAS_HASH = 1;
+    private static final byte HASH_CLEARED = 2;
+    private static final byte HASH_HAS_STATS = 4;
+    private static final byte HAS_READINGS = 8;
+
+    private String[] ids = new String[MIN_CAPACITY];
+    private long[] days = new long[MIN_CAPACITY];
+    private long[] hashes = new long[MIN_CAPACITY];
+    private byte[] flags = new byte[MIN_CAPACITY];
+    private EnergyProfile[] readings = new EnergyProfile[MIN_CAPACITY];
+    private int size = 0;
+
+    /**
+     * @return null if no hash has been set or cleared for the profile, otherwise whether the hash it was written with
+     * matches as {@link ContentHash#matches} would. Profiles with a cleared hash never match.
+     */
+    @Nullable
+    Boolean hashMatches(String id, LocalDate date, long hash, boolean needsStats) {
+        int slot = find(id, date.toEpochDay());
+        if (slot < 0 || (flags[slot] & (HAS_HASH | HASH_CLEARED)) == 0)
+            return null;
+
+        if ((flags[slot] & HASH_CLEARED) != 0)
+            return false;
+
+        return hashes[slot] == hash && (!needsStats || (flags[slot] & HASH_HAS_STATS) != 0);
+    }
+
+    void setHash(String id, LocalDate date, long hash, boolean hasStats) {
+        int slot = insert(id, date.toEpochDay());
+        hashes[slot] = hash;
+        flags[slot] = (byte) ((flags[slot] & HAS_READINGS) | HAS_HASH | (hasStats ? HASH_HAS_STATS : 0));
+    }
+
+    /**
+     * Records that the profile no longer has the hash it was stored with, so it is not checked against the store.
+     */
+    void clearHash(String id, LocalDate date) {
+        int slot = insert(id, date.toEpochDay());
+        flags[slot] = (byte) ((flags[slot] & HAS_READINGS) | HASH_CLEARED);
+    }
+
+    boolean hasReadings(String id, LocalDate date) {
+        int slot = find(id, date.toEpochDay());
+        return slot >= 0 && (flags[slot] & HAS_READINGS) != 0;
+    }
+
+    /**
+     * @return the readings set for the profile, or null if they are not known. See {@link #hasReadings}.
+     */
+    @Nullable
+    EnergyProfile readings(String id, LocalDate date) {
+        int slot = find(id, date.toEpochDay());
+        return slot < 0 ? null : readings[slot];
+    }
+
+    /**
+     * @param profile the readings written for the profile, or null if they are not known.
+     */
+    void setReadings(String id, LocalDate date, @Nullable EnergyProfile profile) {
+        int slot = insert(id, date.toEpochDay());
+        readings[slot] = profile;
+        flags[slot] |= HAS_READINGS;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes every profile, keeping the arrays for the next transaction.
+     */
+    void clear() {
+        if (size == 0)
+            return;
+
+        Arrays.fill(ids, null);
+        Arrays.fill(readings, null);
+        Arrays.fill(flags, (byte) 0);
+        size = 0;
+    }
+
+    private int find(String id, long day) {
+        int mask = ids.length - 1;
+        for (int slot = slotOf(id, day, mask); ids[slot] != null; slot = (slot + 1) & mask) {
+            if (days[slot] == day && id.equals(ids[slot]))
+                return slot;
+        }
+        return -1;
+    }
+
+    private int insert(String id, long day) {
+        // Kept at most half full, so probes stay short.
+        if (2 * (size + 1) > ids.length)
+            resize(ids.length * 2);
+
+        int mask = ids.length - 1;
+        int slot = slotOf(id, day, mask);
+        while (ids[slot] != null) {
+            if (days[slot] == day && id.equals(ids[slot]))
+                return slot;
+
+            slot = (slot + 1) & mask;
+        }
+
+        ids[slot] = id;
+        days[slot] = day;
+        ++size;
+        return slot;
+    }
+
+    private void resize(int capacity) {
+        String[] oldIds = ids;
+        long[] oldDays = days;
+        long[] oldHashes = hashes;
+        byte[] oldFlags = flags;
+        EnergyProfile[] oldReadings = readings;
+
+        ids = new String[capacity];
+        days = new long[capacity];
+        hashes = new long[capacity];
+        flags = new byte[capacity];
+        readings = new EnergyProfile[capacity];
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldIds.length; ++i) {
+            if (oldIds[i] == null)
+                continue;
+
+            int slot = slotOf(oldIds[i], oldDays[i], mask);
+            while (ids[slot] != null)
+                slot = (slot + 1) & mask;
+
+            ids[slot] = oldIds[i];
+            days[slot] = oldDays[i];
+            hashes[slot] = oldHashes[i];
+            flags[slot] = oldFlags[i];
+            readings[slot] = oldReadings[i];
+        }
+    }
+
+    private static int slotOf(String id, long day, int mask) {
+        int hash = id.hashCode() * 31 + Long.hashCode(day);
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+}
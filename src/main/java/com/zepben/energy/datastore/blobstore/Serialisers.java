@@ -18,7 +18,7 @@ public class Serialisers {
     private final Serialiser<Readings> kwInSx;
     private final Serialiser<Readings> kwOutSx;
     private final Serialiser<Boolean> cacheableSx;
-    private final Serialiser<EnergyProfileStat> statSx;
+    private final StatSerialiser statSx;
 
     public Serialisers(Serialiser<Readings> kwInSx,
                        Serialiser<Readings> kwOutSx,
@@ -27,7 +27,7 @@ public class Serialisers {
         this.kwInSx = kwInSx;
         this.kwOutSx = kwOutSx;
         this.cacheableSx = cacheableSx;
-        this.statSx = statSx;
+        this.statSx = StatSerialiser.of(statSx);
     }
 
     public Serialiser<Readings> kwInSx() {
@@ -43,7 +43,7 @@ public class Serialisers {
     }
 
     @SuppressWarnings("WeakerAccess")
-    public Serialiser<EnergyProfileStat> statSx() {
+    public StatSerialiser statSx() {
         return statSx;
     }
 
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.model.EnergyProfileStat;
+
+/**
+ * A serialiser of stats that can also serialise the values of a stat directly, so values calculated in place, such as
+ * by a {@link com.zepben.energy.model.MaximumsAccumulator}, don't need a stat allocated to be serialised.
+ */
+@EverythingIsNonnullByDefault
+public interface StatSerialiser extends Serialiser<EnergyProfileStat> {
+
+    /**
+     * Serialises the values of a stat, the same as {@link #sx(EnergyProfileStat)} would for a stat with them.
+     *
+     * @return a buffer containing the serialised values, see {@link #sxOffset()} and {@link #sxLength()}.
+     */
+    byte[] sx(double kwIn, double kwOut, double kwNet);
+
+    @Override
+    default byte[] sx(EnergyProfileStat stat) {
+        return sx(stat.kwIn(), stat.kwOut(), stat.kwNet());
+    }
+
+    /**
+     * @return the serialiser if it is a stat serialiser, otherwise a stat serialiser that creates a stat from the values
+     * for it to serialise.
+     */
+    static StatSerialiser of(Serialiser<EnergyProfileStat> sx) {
+        if (sx instanceof StatSerialiser)
+            return (StatSerialiser) sx;
+
+        return new StatSerialiser() {
+
+            @Override
+            public byte[] sx(double kwIn, double kwOut, double kwNet) {
+                return sx.sx(new EnergyProfileStat(kwIn, kwOut, kwNet));
+            }
+
+            @Override
+            public int sxOffset() {
+                return sx.sxOffset();
+            }
+
+            @Override
+            public int sxLength() {
+                return sx.sxLength();
+            }
+
+        };
+    }
+
+}
@@ -18,9 +18,23 @@ import kotlin.Unit;
 
 import javax.annotation.Nullable;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.function.Consumer;
 
+/**
+ * Stores the date range of each id as a blob in the index store.
+ * <p>The ids are read into a sorted set the first time they are paged with {@link #forAllAfter}, which is then kept up
+ * to date with the ids saved through this index, so each page seeks to its first id and only reads the ranges of the
+ * page. Ids saved to the store by other indexes are not paged until this index is rolled back.
+ */
 @EverythingIsNonnullByDefault
 public class BlobDateRangeIndex implements DateRangeIndex, AutoCloseable {
 
@@ -30,6 +44,7 @@ public class BlobDateRangeIndex implements DateRangeIndex, AutoCloseable {
     private final BlobReader reader;
     private final BlobWriter writer;
     private final IdDateRangeCodec codec = new IdDateRangeCodec();
+    @Nullable private volatile NavigableSet<String> sortedIds = null;
 
     public BlobDateRangeIndex(BlobStore blobStore) {
         this.blobStore = blobStore;
@@ -81,15 +96,90 @@ public class BlobDateRangeIndex implements DateRangeIndex, AutoCloseable {
         }
     }
 
+    @Override
+    public void forAllAfter(@Nullable String after, int limit, Consumer<IdDateRange> handler) {
+        NavigableSet<String> ids = sortedIds();
+        if (ids == null) {
+            DateRangeIndex.super.forAllAfter(after, limit, handler);
+            return;
+        }
+
+        // Ids without a readable range leave the batch short, so more are read until the limit or the ids run out.
+        int found = 0;
+        String last = after;
+        while (found < limit) {
+            List<String> batch = new ArrayList<>(limit - found);
+            for (String id : last == null ? ids : ids.tailSet(last, false)) {
+                batch.add(id);
+                if (batch.size() == limit - found)
+                    break;
+            }
+
+            if (batch.isEmpty())
+                return;
+
+            List<IdDateRange> ranges = new ArrayList<>(batch.size());
+            forEach(batch, ranges::add);
+            ranges.sort(Comparator.comparing(IdDateRange::id));
+            ranges.forEach(handler);
+
+            found += ranges.size();
+            last = batch.get(batch.size() - 1);
+        }
+    }
+
     @Override
     public boolean save(String id, LocalDate from, LocalDate to) {
-        byte[] bytes = codec.serialise(from, to);
+        return write(id, codec.serialise(from, to));
+    }
+
+    @Override
+    public boolean save(IdDateRange range) {
+        return write(range.id(), codec.serialise(range));
+    }
+
+    /**
+     * Finds which of the ids are already stored with one batched read, then saves each range with a single update or
+     * insert, rather than trying an update and falling back to an insert for every range. Ranges are saved in id order,
+     * so the writes walk the id index of the store in order.
+     */
+    @Override
+    public boolean saveAll(Collection<IdDateRange> ranges) {
+        List<IdDateRange> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparing(IdDateRange::id));
+
+        List<String> ids = new ArrayList<>(sorted.size());
+        sorted.forEach(range -> ids.add(range.id()));
+
+        Set<String> stored = new HashSet<>(sorted.size());
         try {
-            return writer.update(id, STORE_TAG, bytes, 0, bytes.length) || writer.write(id, STORE_TAG, bytes, 0, bytes.length);
+            reader.forEach(ids, STORE_TAG, (id, tag, blob) -> {
+                stored.add(id);
+                return Unit.INSTANCE;
+            });
         } catch (BlobStoreException e) {
-            // TODO: What to do with this exception?
-            return false;
+            // Without the stored ids each range tries an update before an insert.
+            boolean saved = true;
+            for (IdDateRange range : sorted)
+                saved &= write(range.id(), codec.serialise(range));
+            return saved;
         }
+
+        addSortedIds(ids);
+        boolean saved = true;
+        for (IdDateRange range : sorted) {
+            byte[] bytes = codec.serialise(range);
+            try {
+                if (stored.contains(range.id()))
+                    saved &= writer.update(range.id(), STORE_TAG, bytes, 0, bytes.length);
+                else
+                    saved &= writer.write(range.id(), STORE_TAG, bytes, 0, bytes.length);
+            } catch (BlobStoreException e) {
+                // TODO: What to do with this exception?
+                saved = false;
+            }
+        }
+        return saved;
     }
 
     @Override
@@ -103,8 +193,13 @@ public class BlobDateRangeIndex implements DateRangeIndex, AutoCloseable {
         }
     }
 
+    /**
+     * Rolls back the store. The sorted ids are read again the next time they are paged, as they may include ids that
+     * were rolled back.
+     */
     @Override
     public boolean rollback() {
+        sortedIds = null;
         try {
             writer.rollback();
             return true;
@@ -114,4 +209,57 @@ public class BlobDateRangeIndex implements DateRangeIndex, AutoCloseable {
         }
     }
 
+    /**
+     * Ranges are written to the store as they are saved, so there is nothing left to save before the store is committed.
+     */
+    @Override
+    public boolean flush() {
+        return true;
+    }
+
+    @Override
+    public void discard() {
+        sortedIds = null;
+    }
+
+    @Nullable
+    private NavigableSet<String> sortedIds() {
+        NavigableSet<String> ids = sortedIds;
+        if (ids != null)
+            return ids;
+
+        synchronized (this) {
+            if (sortedIds == null) {
+                NavigableSet<String> read = new ConcurrentSkipListSet<>();
+                try {
+                    reader.forAll(STORE_TAG, (id, tag, blob) -> {
+                        read.add(id);
+                        return Unit.INSTANCE;
+                    });
+                } catch (BlobStoreException e) {
+                    return null;
+                }
+                sortedIds = read;
+            }
+            return sortedIds;
+        }
+    }
+
+    // Locked so ids saved while the sorted ids are being read are added once they have been.
+    private synchronized void addSortedIds(Collection<String> ids) {
+        NavigableSet<String> sorted = sortedIds;
+        if (sorted != null)
+            sorted.addAll(ids);
+    }
+
+    private boolean write(String id, byte[] bytes) {
+        addSortedIds(Collections.singletonList(id));
+        try {
+            return writer.update(id, STORE_TAG, bytes, 0, bytes.length) || writer.write(id, STORE_TAG, bytes, 0, bytes.length);
+        } catch (BlobStoreException e) {
+            // TODO: What to do with this exception?
+            return false;
+        }
+    }
+
 }
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.blobstore.BlobReader;
+import com.zepben.blobstore.BlobStore;
+import com.zepben.blobstore.BlobStoreException;
+import com.zepben.blobstore.BlobWriter;
+import kotlin.Unit;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Stores a {@link CompressedBitmap} of the ids present on each tracked date in a blob store, keyed by the ISO date.
+ * The bitmaps hold dense ids from an {@link IdDictionary} that is stored alongside them.
+ * <p>Recently used bitmaps are held in memory, so checking ids against a date is a hash lookup and a bit test rather
+ * than a date range lookup that may need to go to the database.
+ * <p>Other indexes over the same store, in this process or another, may add ids to the dictionary and the bitmaps. The
+ * number of ids in the stored dictionary is kept in its metadata, and the dictionary is read again when it has grown
+ * since it was last read, either when committing ids added here or when a stored bitmap refers to ids that aren't
+ * known. Ids added here that were given an index another index has since saved are given a new index when committed.
+ * Bitmaps that have had ids added to them are merged with the stored bitmap when committed, while bitmaps replaced
+ * with {@link #save} replace the stored bitmap.
+ * <p>The blob store is not closed by this index as it is expected to be shared with the {@link BlobDateRangeIndex}.
+ */
+@EverythingIsNonnullByDefault
+public class BlobIdPresenceIndex implements IdPresenceIndex {
+
+    public static final String STORE_TAG = "idPresence";
+    public static final String DICTIONARY_TAG = "idDictionary";
+    public static final String DICTIONARY_SIZE_KEY = "idDictionarySize";
+    public static final int DEFAULT_MAX_CACHED_DATES = 64;
+
+    private final BlobReader reader;
+    private final BlobWriter writer;
+    private final IdDictionary dictionary = new IdDictionary();
+    private final Map<LocalDate, Presence> presence;
+    private boolean dictionaryLoaded = false;
+    private int savedDictionarySize = 0;
+
+    public BlobIdPresenceIndex(BlobStore blobStore) {
+        this(blobStore, DEFAULT_MAX_CACHED_DATES);
+    }
+
+    public BlobIdPresenceIndex(BlobStore blobStore, int maxCachedDates) {
+        reader = blobStore.getReader();
+        writer = blobStore.getWriter();
+        presence = new LinkedHashMap<LocalDate, Presence>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<LocalDate, Presence> eldest) {
+                return size() > maxCachedDates && !eldest.getValue().dirty;
+            }
+        };
+    }
+
+    @Override
+    public synchronized boolean isTracked(LocalDate date) {
+        return load(date).bitmap != null;
+    }
+
+    @Nullable
+    @Override
+    public synchronized Boolean contains(String id, LocalDate date) {
+        CompressedBitmap bitmap = load(date).bitmap;
+        if (bitmap == null)
+            return null;
+
+        return bitmap.contains(dictionary.indexOf(id));
+    }
+
+    @Nullable
+    @Override
+    public synchronized List<String> filter(Collection<String> ids, LocalDate date) {
+        CompressedBitmap bitmap = load(date).bitmap;
+        if (bitmap == null)
+            return null;
+
+        List<String> present = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            if (bitmap.contains(dictionary.indexOf(id)))
+                present.add(id);
+        }
+        return present;
+    }
+
+    @Nullable
+    @Override
+    public synchronized List<String> ids(LocalDate date) {
+        CompressedBitmap bitmap = load(date).bitmap;
+        if (bitmap == null)
+            return null;
+
+        List<String> ids = new ArrayList<>(bitmap.cardinality());
+        bitmap.forEach(index -> {
+            String id = dictionary.idAt(index);
+            if (id != null)
+                ids.add(id);
+        });
+        return ids;
+    }
+
+    /**
+     * Seeks to the id in the dictionary, which is kept sorted, and walks it from there, testing the index of each id
+     * against the bitmap of the date.
+     */
+    @Nullable
+    @Override
+    public synchronized List<String> idsAfter(LocalDate date, @Nullable String after, int limit) {
+        CompressedBitmap bitmap = load(date).bitmap;
+        if (bitmap == null)
+            return null;
+
+        List<String> ids = new ArrayList<>(Math.min(limit, bitmap.cardinality()));
+        for (Map.Entry<String, Integer> entry : dictionary.idsAfter(after).entrySet()) {
+            if (ids.size() >= limit)
+                break;
+
+            if (bitmap.contains(entry.getValue()))
+                ids.add(entry.getKey());
+        }
+        return ids;
+    }
+
+    @Override
+    public synchronized void track(LocalDate date) {
+        Presence datePresence = load(date);
+        if (datePresence.bitmap == null && tryLoadDictionary())
+            datePresence.set(new CompressedBitmap());
+    }
+
+    @Override
+    public synchronized void save(LocalDate date, Collection<String> ids) {
+        Presence datePresence = load(date);
+        if (!tryLoadDictionary())
+            return;
+
+        CompressedBitmap bitmap = new CompressedBitmap();
+        ids.forEach(id -> bitmap.add(dictionary.getOrAdd(id)));
+        datePresence.set(bitmap);
+        datePresence.replaced = true;
+    }
+
+    @Override
+    public synchronized void add(String id, LocalDate date) {
+        Presence datePresence = load(date);
+        if (datePresence.bitmap != null && datePresence.bitmap.add(dictionary.getOrAdd(id)))
+            datePresence.dirty = true;
+    }
+
+    @Override
+    public synchronized boolean commit() {
+        if (!flush())
+            return false;
+
+        try {
+            writer.commit();
+        } catch (BlobStoreException e) {
+            discardChanges();
+            return false;
+        }
+
+        committed();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean rollback() {
+        discardChanges();
+        try {
+            writer.rollback();
+            return true;
+        } catch (BlobStoreException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized boolean flush() {
+        try {
+            // New ids are only given their final index once the ids saved by other indexes are known.
+            if (dictionary.size() > savedDictionarySize && isDictionaryStale())
+                syncDictionary();
+
+            // The dictionary needs to be saved with the bitmaps, otherwise they would refer to ids that don't exist.
+            for (int i = savedDictionarySize; i < dictionary.size(); ++i) {
+                String id = dictionary.idAt(i);
+                if (id != null) {
+                    byte[] bytes = ByteBuffer.allocate(4).putInt(i).array();
+                    if (!writer.write(id, DICTIONARY_TAG, bytes, 0, bytes.length))
+                        throw new BlobStoreException("failed to save dictionary entry for " + id, null);
+                }
+            }
+
+            if (dictionary.size() > savedDictionarySize) {
+                String size = Integer.toString(dictionary.size());
+                if (!writer.updateMetadata(DICTIONARY_SIZE_KEY, size) && !writer.writeMetadata(DICTIONARY_SIZE_KEY, size))
+                    throw new BlobStoreException("failed to save the dictionary size", null);
+            }
+
+            for (Map.Entry<LocalDate, Presence> entry : presence.entrySet()) {
+                Presence datePresence = entry.getValue();
+                if (!datePresence.dirty || datePresence.bitmap == null)
+                    continue;
+
+                String key = entry.getKey().toString();
+                if (!datePresence.replaced)
+                    mergeStored(key, datePresence.bitmap);
+
+                byte[] bytes = datePresence.bitmap.serialise();
+                if (!writer.update(key, STORE_TAG, bytes, 0, bytes.length) && !writer.write(key, STORE_TAG, bytes, 0, bytes.length))
+                    throw new BlobStoreException("failed to save id presence for " + key, null);
+            }
+            return true;
+        } catch (BlobStoreException e) {
+            discardChanges();
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void committed() {
+        savedDictionarySize = dictionary.size();
+        presence.values().forEach(datePresence -> {
+            datePresence.dirty = false;
+            datePresence.replaced = false;
+        });
+    }
+
+    @Override
+    public synchronized void discard() {
+        discardChanges();
+    }
+
+    private void discardChanges() {
+        presence.clear();
+        dictionary.truncate(savedDictionarySize);
+    }
+
+    private Presence load(LocalDate date) {
+        Presence datePresence = presence.get(date);
+        if (datePresence == null) {
+            datePresence = new Presence(readBitmap(date));
+            presence.put(date, datePresence);
+        }
+        return datePresence;
+    }
+
+    @Nullable
+    private CompressedBitmap readBitmap(LocalDate date) {
+        try {
+            byte[] bytes = reader.get(date.toString(), STORE_TAG);
+            if (bytes == null)
+                return null;
+
+            loadDictionary();
+            CompressedBitmap bitmap = CompressedBitmap.deserialise(bytes);
+
+            // The bitmap holds ids another index has saved since the dictionary was read.
+            if (bitmap.last() >= savedDictionarySize && isDictionaryStale())
+                syncDictionary();
+
+            return bitmap;
+        } catch (BlobStoreException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Adds the ids of the stored bitmap to one that has had ids added to it, so the ids other indexes have added to the
+     * date since it was read aren't lost when it is saved.
+     */
+    private void mergeStored(String key, CompressedBitmap bitmap) throws BlobStoreException {
+        byte[] bytes = reader.get(key, STORE_TAG);
+        if (bytes == null)
+            return;
+
+        CompressedBitmap stored;
+        try {
+            stored = CompressedBitmap.deserialise(bytes);
+        } catch (IllegalArgumentException e) {
+            // Replaced by the bitmap being saved.
+            return;
+        }
+
+        // Ids saved since the dictionary was synced could have the indexes the ids added here are about to be saved with.
+        if (stored.last() >= savedDictionarySize) {
+            if (dictionary.size() > savedDictionarySize)
+                throw new BlobStoreException("the id dictionary was changed while id presence for " + key + " was being saved", null);
+
+            syncDictionary();
+        }
+
+        stored.forEach(bitmap::add);
+    }
+
+    // Dictionaries saved without their size may have grown, so they are always read again.
+    private boolean isDictionaryStale() throws BlobStoreException {
+        String size = reader.getMetadata(DICTIONARY_SIZE_KEY);
+        try {
+            return size == null || Integer.parseInt(size) > savedDictionarySize;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private boolean tryLoadDictionary() {
+        try {
+            loadDictionary();
+            return true;
+        } catch (BlobStoreException e) {
+            return false;
+        }
+    }
+
+    // New ids can't be given an index until the stored ones have been read, otherwise they could be given the same index.
+    private void loadDictionary() throws BlobStoreException {
+        if (dictionaryLoaded)
+            return;
+
+        reader.forAll(DICTIONARY_TAG, (id, tag, bytes) -> {
+            if (bytes.length == 4)
+                dictionary.put(id, ByteBuffer.wrap(bytes).getInt());
+            return Unit.INSTANCE;
+        });
+
+        dictionaryLoaded = true;
+        savedDictionarySize = dictionary.size();
+    }
+
+    /**
+     * Reads the dictionary again to pick up the ids other indexes have saved since it was last read. Ids added here
+     * since the last commit are given new indexes after the saved ones, unless they have been saved by another index,
+     * and are moved to their new indexes in the bitmaps they were added to.
+     */
+    private void syncDictionary() throws BlobStoreException {
+        int unsavedFrom = savedDictionarySize;
+        List<String> unsaved = new ArrayList<>(dictionary.size() - unsavedFrom);
+        for (int i = unsavedFrom; i < dictionary.size(); ++i)
+            unsaved.add(dictionary.idAt(i));
+
+        dictionary.truncate(unsavedFrom);
+        reader.forAll(DICTIONARY_TAG, (id, tag, bytes) -> {
+            if (bytes.length == 4)
+                dictionary.put(id, ByteBuffer.wrap(bytes).getInt());
+            return Unit.INSTANCE;
+        });
+        savedDictionarySize = dictionary.size();
+
+        if (unsaved.isEmpty())
+            return;
+
+        int[] moved = new int[unsaved.size()];
+        for (int i = 0; i < moved.length; ++i) {
+            String id = unsaved.get(i);
+            moved[i] = id == null ? -1 : dictionary.getOrAdd(id);
+        }
+
+        // Only the bitmaps with ids added to them can hold the unsaved indexes.
+        for (Presence datePresence : presence.values()) {
+            CompressedBitmap bitmap = datePresence.bitmap;
+            if (!datePresence.dirty || bitmap == null || bitmap.last() < unsavedFrom)
+                continue;
+
+            CompressedBitmap remapped = new CompressedBitmap();
+            bitmap.forEach(index -> {
+                if (index < unsavedFrom)
+                    remapped.add(index);
+                else if (index - unsavedFrom < moved.length && moved[index - unsavedFrom] >= 0)
+                    remapped.add(moved[index - unsavedFrom]);
+            });
+            datePresence.bitmap = remapped;
+        }
+    }
+
+    @EverythingIsNonnullByDefault
+    private static class Presence {
+
+        @Nullable private CompressedBitmap bitmap;
+        private boolean dirty = false;
+        // Set when the bitmap was saved over rather than added to, so it replaces the stored bitmap.
+        private boolean replaced = false;
+
+        Presence(@Nullable CompressedBitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+
+        void set(CompressedBitmap bitmap) {
+            this.bitmap = bitmap;
+            dirty = true;
+        }
+
+    }
+
+}
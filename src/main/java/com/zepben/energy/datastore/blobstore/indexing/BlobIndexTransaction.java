@@ -0,0 +1,44 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.blobstore.BlobStoreException;
+import com.zepben.blobstore.BlobWriter;
+
+@EverythingIsNonnullByDefault
+class BlobIndexTransaction implements IndexTransaction {
+
+    private final BlobWriter writer;
+
+    BlobIndexTransaction(BlobWriter writer) {
+        this.writer = writer;
+    }
+
+    @Override
+    public boolean commit() {
+        try {
+            writer.commit();
+            return true;
+        } catch (BlobStoreException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean rollback() {
+        try {
+            writer.rollback();
+            return true;
+        } catch (BlobStoreException e) {
+            return false;
+        }
+    }
+
+}
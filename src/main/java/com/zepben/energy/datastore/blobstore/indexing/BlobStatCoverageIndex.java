@@ -0,0 +1,289 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.blobstore.BlobReader;
+import com.zepben.blobstore.BlobStore;
+import com.zepben.blobstore.BlobStoreException;
+import com.zepben.blobstore.BlobWriter;
+
+import javax.annotation.Nullable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Stores the ids that are missing stats for each tracked date in a blob store, keyed by the ISO date.
+ * <p>Dates with more missing ids than the configured maximum go back to being untracked, which keeps the stored lists
+ * small. Such dates fall back to calculating stats from the profiles until their coverage is saved again.
+ * <p>Recently used dates are held in memory, up to the maximum number of cached dates. Dates with changes that haven't
+ * been committed are never evicted.
+ * <p>The blob store is not closed by this index as it is expected to be shared with the {@link BlobDateRangeIndex}.
+ * Writers of a shared store should {@link #flush} each index and commit the store once with an
+ * {@link IndexTransaction}, as {@link #commit} and {@link #rollback} commit and roll back the whole store.
+ */
+@EverythingIsNonnullByDefault
+public class BlobStatCoverageIndex implements StatCoverageIndex {
+
+    public static final String STORE_TAG = "statCoverage";
+    public static final int DEFAULT_MAX_TRACKED_MISSING = 100_000;
+    public static final int DEFAULT_MAX_CACHED_DATES = 64;
+
+    private final BlobReader reader;
+    private final BlobWriter writer;
+    private final int maxTrackedMissing;
+    private final Map<LocalDate, Coverage> coverage;
+
+    public BlobStatCoverageIndex(BlobStore blobStore) {
+        this(blobStore, DEFAULT_MAX_TRACKED_MISSING);
+    }
+
+    public BlobStatCoverageIndex(BlobStore blobStore, int maxTrackedMissing) {
+        this(blobStore, maxTrackedMissing, DEFAULT_MAX_CACHED_DATES);
+    }
+
+    public BlobStatCoverageIndex(BlobStore blobStore, int maxTrackedMissing, int maxCachedDates) {
+        reader = blobStore.getReader();
+        writer = blobStore.getWriter();
+        this.maxTrackedMissing = maxTrackedMissing;
+        coverage = new LinkedHashMap<LocalDate, Coverage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<LocalDate, Coverage> eldest) {
+                return size() > maxCachedDates && !eldest.getValue().dirty;
+            }
+        };
+    }
+
+    @Nullable
+    @Override
+    public synchronized Set<String> getMissing(LocalDate date) {
+        Coverage dateCoverage = load(date);
+        return dateCoverage.missing == null ? null : new HashSet<>(dateCoverage.missing);
+    }
+
+    @Override
+    public synchronized void track(LocalDate date) {
+        Coverage dateCoverage = load(date);
+        if (dateCoverage.missing == null)
+            dateCoverage.set(new HashSet<>());
+    }
+
+    @Override
+    public synchronized void save(LocalDate date, Collection<String> missingIds) {
+        Coverage dateCoverage = load(date);
+        dateCoverage.set(missingIds.size() > maxTrackedMissing ? null : new HashSet<>(missingIds));
+    }
+
+    @Override
+    public synchronized void markCovered(String id, LocalDate date) {
+        Coverage dateCoverage = load(date);
+        if (dateCoverage.missing != null && dateCoverage.missing.remove(id)) {
+            dateCoverage.covered.add(id);
+            dateCoverage.dirty = true;
+        }
+    }
+
+    @Override
+    public synchronized void markMissing(String id, LocalDate date) {
+        Coverage dateCoverage = load(date);
+        if (dateCoverage.missing == null || !dateCoverage.missing.add(id))
+            return;
+
+        dateCoverage.covered.remove(id);
+        dateCoverage.dirty = true;
+        if (dateCoverage.missing.size() > maxTrackedMissing)
+            dateCoverage.set(null);
+    }
+
+    /**
+     * Saves the missing ids of each changed date along with the ids marked covered since the last commit, which stay
+     * listed as missing until {@link #commit} saves them again.
+     */
+    @Override
+    public synchronized boolean commitMissing() {
+        return flushMissing() && commitWriter();
+    }
+
+    @Override
+    public synchronized boolean commit() {
+        if (!flush() || !commitWriter())
+            return false;
+
+        committed();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean rollback() {
+        discard();
+        try {
+            writer.rollback();
+            return true;
+        } catch (BlobStoreException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized boolean flushMissing() {
+        return save(true);
+    }
+
+    @Override
+    public synchronized boolean flush() {
+        return save(false);
+    }
+
+    /**
+     * Clears the changes saved by {@link #flush}. Changes saved by {@link #flushMissing} are kept, as the ids marked
+     * covered still need to be saved.
+     */
+    @Override
+    public synchronized void committed() {
+        coverage.values().forEach(dateCoverage -> {
+            dateCoverage.covered.clear();
+            dateCoverage.dirty = false;
+        });
+    }
+
+    @Override
+    public synchronized void discard() {
+        coverage.clear();
+    }
+
+    private boolean commitWriter() {
+        try {
+            writer.commit();
+            return true;
+        } catch (BlobStoreException e) {
+            // Drop what we have so it is reloaded from whatever made it to the store.
+            coverage.clear();
+            return false;
+        }
+    }
+
+    private boolean save(boolean keepCovered) {
+        try {
+            for (Map.Entry<LocalDate, Coverage> entry : coverage.entrySet()) {
+                Coverage dateCoverage = entry.getValue();
+                if (!dateCoverage.dirty)
+                    continue;
+
+                String key = entry.getKey().toString();
+                if (dateCoverage.missing == null) {
+                    writer.delete(key, STORE_TAG);
+                } else {
+                    Set<String> missing = dateCoverage.missing;
+                    if (keepCovered && !dateCoverage.covered.isEmpty()) {
+                        missing = new HashSet<>(missing);
+                        missing.addAll(dateCoverage.covered);
+                    }
+
+                    byte[] bytes = serialise(missing);
+                    if (!writer.update(key, STORE_TAG, bytes, 0, bytes.length) && !writer.write(key, STORE_TAG, bytes, 0, bytes.length))
+                        throw new BlobStoreException("failed to save stat coverage for " + key, null);
+                }
+            }
+            return true;
+        } catch (BlobStoreException e) {
+            // Drop what we have so it is reloaded from whatever made it to the store.
+            coverage.clear();
+            return false;
+        }
+    }
+
+    // Looked up before loading rather than with computeIfAbsent, so marking the ids of loaded dates doesn't allocate.
+    private Coverage load(LocalDate date) {
+        Coverage dateCoverage = coverage.get(date);
+        if (dateCoverage == null) {
+            dateCoverage = new Coverage(readMissing(date));
+            coverage.put(date, dateCoverage);
+        }
+        return dateCoverage;
+    }
+
+    @Nullable
+    private Set<String> readMissing(LocalDate date) {
+        try {
+            return deserialise(reader.get(date.toString(), STORE_TAG));
+        } catch (BlobStoreException e) {
+            return null;
+        }
+    }
+
+    static byte[] serialise(Set<String> ids) {
+        List<byte[]> encoded = new ArrayList<>(ids.size());
+        int size = 4;
+        for (String id : ids) {
+            byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            size += 4 + bytes.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(encoded.size());
+        for (byte[] bytes : encoded) {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+        return buffer.array();
+    }
+
+    @Nullable
+    static Set<String> deserialise(@Nullable byte[] bytes) {
+        if (bytes == null)
+            return null;
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int count = buffer.getInt();
+            Set<String> ids = new HashSet<>(Math.max(16, count * 2));
+            for (int i = 0; i < count; ++i) {
+                byte[] id = new byte[buffer.getInt()];
+                buffer.get(id);
+                ids.add(new String(id, StandardCharsets.UTF_8));
+            }
+            return ids;
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            return null;
+        }
+    }
+
+    @EverythingIsNonnullByDefault
+    private static class Coverage {
+
+        @Nullable private Set<String> missing;
+        // The ids removed from the missing ids since the last commit.
+        private final Set<String> covered = new HashSet<>();
+        private boolean dirty = false;
+
+        Coverage(@Nullable Set<String> missing) {
+            this.missing = missing;
+        }
+
+        void set(@Nullable Set<String> missing) {
+            if (this.missing != null) {
+                for (String id : this.missing) {
+                    if (missing == null || !missing.contains(id))
+                        covered.add(id);
+                }
+            }
+            if (missing != null)
+                covered.removeAll(missing);
+
+            this.missing = missing;
+            dirty = true;
+        }
+
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+
+import javax.annotation.Nullable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A Bloom filter of ids. {@link #mightContain(String)} never returns false for an id that has been added, and returns
+ * true for an id that has not been added with roughly the false positive rate the filter was created with, as long as
+ * no more than its capacity of ids have been added.
+ * <p>This class is not thread safe.
+ */
+@EverythingIsNonnullByDefault
+public final class BloomFilter {
+
+    private static final int MAX_HASHES = 16;
+
+    private final long[] words;
+    private final long numBits;
+    private final int numHashes;
+    private final int capacity;
+    private int count;
+
+    private BloomFilter(long[] words, int numHashes, int capacity, int count) {
+        this.words = words;
+        this.numBits = (long) words.length * Long.SIZE;
+        this.numHashes = numHashes;
+        this.capacity = capacity;
+        this.count = count;
+    }
+
+    /**
+     * @param capacity          the number of ids the filter is sized for.
+     * @param falsePositiveRate the rate of false positives once the filter holds its capacity of ids, e.g. 0.01 for 1%.
+     */
+    public static BloomFilter create(int capacity, double falsePositiveRate) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be at least 1");
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+
+        double ln2 = Math.log(2);
+        long bits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+        int numWords = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (bits + Long.SIZE - 1) / Long.SIZE));
+        int numHashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round((double) numWords * Long.SIZE / capacity * ln2)));
+        return new BloomFilter(new long[numWords], numHashes, capacity, 0);
+    }
+
+    public void add(String id) {
+        long hash = hash(id);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; ++i) {
+            long bit = bitIndex(h1, h2, i);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        ++count;
+    }
+
+    public boolean mightContain(String id) {
+        long hash = hash(id);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; ++i) {
+            long bit = bitIndex(h1, h2, i);
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of times {@link #add(String)} has been called. Adding the same id twice counts it twice.
+     */
+    public int count() {
+        return count;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return true if more ids have been added than the filter was sized for, so its false positive rate is higher
+     * than it was created with.
+     */
+    public boolean isOverCapacity() {
+        return count > capacity;
+    }
+
+    public byte[] serialise() {
+        ByteBuffer buffer = ByteBuffer.allocate(16 + 8 * words.length);
+        buffer.putInt(numHashes);
+        buffer.putInt(capacity);
+        buffer.putInt(count);
+        buffer.putInt(words.length);
+        for (long word : words)
+            buffer.putLong(word);
+        return buffer.array();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes are not a serialised filter.
+     */
+    public static BloomFilter deserialise(byte[] bytes) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int numHashes = buffer.getInt();
+            int capacity = buffer.getInt();
+            int count = buffer.getInt();
+            int numWords = buffer.getInt();
+            if (numHashes < 1 || numHashes > MAX_HASHES || capacity < 1 || count < 0 || numWords < 1 || numWords != buffer.remaining() / 8)
+                throw new IllegalArgumentException("invalid bloom filter header");
+
+            long[] words = new long[numWords];
+            for (int i = 0; i < numWords; ++i)
+                words[i] = buffer.getLong();
+            return new BloomFilter(words, numHashes, capacity, count);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("bloom filter bytes were truncated", e);
+        }
+    }
+
+    @Override
+    public boolean equals(@Nullable Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof BloomFilter))
+            return false;
+
+        BloomFilter other = (BloomFilter) o;
+        return numHashes == other.numHashes &&
+            capacity == other.capacity &&
+            count == other.count &&
+            Arrays.equals(words, other.words);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+
+    @Override
+    public String toString() {
+        return "BloomFilter{count=" + count + ", capacity=" + capacity + ", numHashes=" + numHashes + '}';
+    }
+
+    // Kirsch-Mitzenmacher double hashing, so only one hash of the id is needed for all the bits.
+    private long bitIndex(int h1, int h2, int i) {
+        long combined = h1 + (long) i * h2;
+        if (combined < 0)
+            combined = ~combined;
+        return combined % numBits;
+    }
+
+    // 64 bit FNV-1a over the chars of the id, finished with the murmur3 mixer so the high and low halves are independent.
+    private static long hash(String id) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); ++i) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+}
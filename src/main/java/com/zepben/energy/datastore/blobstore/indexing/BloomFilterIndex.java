@@ -0,0 +1,69 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.datastore.ErrorHandler;
+
+import javax.annotation.Nullable;
+import java.time.LocalDate;
+import java.util.Collection;
+
+/**
+ * Holds a {@link BloomFilter} of the ids on each date, so ids that are not on a date can usually be rejected without
+ * querying the store for the date.
+ * <p>Like the {@link IdPresenceIndex}, a date only has a filter if it has been tracked since the date had no profiles,
+ * or if it has been saved from a scan of the whole date.
+ * <p>A {@link DateRangeTest} only checks the filter of dates that are not tracked by its presence index, which answers
+ * exactly, so filters are for readers and writers that are set up without one.
+ */
+@EverythingIsNonnullByDefault
+public interface BloomFilterIndex {
+
+    /**
+     * @return false if the id is definitely not on the date, true if it might be, or null if the date has no filter.
+     */
+    @Nullable
+    Boolean mightContain(String id, LocalDate date);
+
+    /**
+     * Starts a filter for a date that does not have any profiles yet.
+     */
+    void track(LocalDate date);
+
+    /**
+     * Sets the ids on the date, replacing any filter previously held for the date.
+     */
+    void save(LocalDate date, Collection<String> ids);
+
+    void add(String id, LocalDate date);
+
+    /**
+     * Writes the filters that have changed into the stores for their dates. The filters are not committed, so they
+     * are committed or rolled back along with the profiles written to the same stores.
+     *
+     * @return false if a filter could not be written, in which case the stores should be rolled back.
+     */
+    boolean write(ErrorHandler onError);
+
+    /**
+     * Called once the stores the filters were written into have been committed.
+     */
+    void commit();
+
+    void rollback();
+
+    /**
+     * @return an index that never has a filter for any date.
+     */
+    static BloomFilterIndex untracked() {
+        return UntrackedBloomFilterIndex.INSTANCE;
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.blobstore.BlobReader;
+import com.zepben.blobstore.BlobStoreException;
+import com.zepben.blobstore.BlobWriter;
+import com.zepben.blobstore.itemwrappers.ByDateBlobReaderProvider;
+import com.zepben.blobstore.itemwrappers.ByDateBlobWriterProvider;
+import com.zepben.energy.datastore.ErrorHandler;
+
+import javax.annotation.Nullable;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+
+/**
+ * Keeps the {@link BloomFilter} of each date in the metadata of the store for the date, so it is always in step with
+ * the profiles it describes, and it goes wherever the store for the date goes.
+ * <p>Filters for new dates are sized when they are first written, to twice the ids written by then (and at least the
+ * minimum capacity). If more ids are added than a filter was sized for it is removed, and the date falls back to the
+ * date ranges until it is reindexed.
+ */
+@EverythingIsNonnullByDefault
+public class ByDateBloomFilterIndex implements BloomFilterIndex {
+
+    public static final String METADATA_KEY = "bloomFilter";
+    public static final int DEFAULT_MAX_CACHED_DATES = 64;
+    public static final int DEFAULT_MIN_CAPACITY = 10_000;
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    private final ZoneId timeZone;
+    private final ByDateBlobReaderProvider readerProvider;
+    private final ByDateBlobWriterProvider writerProvider;
+    private final int minCapacity;
+    private final double falsePositiveRate;
+    private final Map<LocalDate, Filter> filters;
+
+    public ByDateBloomFilterIndex(ZoneId timeZone,
+                                  ByDateBlobReaderProvider readerProvider,
+                                  ByDateBlobWriterProvider writerProvider) {
+        this(timeZone, readerProvider, writerProvider, DEFAULT_MAX_CACHED_DATES, DEFAULT_MIN_CAPACITY, DEFAULT_FALSE_POSITIVE_RATE);
+    }
+
+    public ByDateBloomFilterIndex(ZoneId timeZone,
+                                  ByDateBlobReaderProvider readerProvider,
+                                  ByDateBlobWriterProvider writerProvider,
+                                  int maxCachedDates,
+                                  int minCapacity,
+                                  double falsePositiveRate) {
+        this.timeZone = timeZone;
+        this.readerProvider = readerProvider;
+        this.writerProvider = writerProvider;
+        this.minCapacity = minCapacity;
+        this.falsePositiveRate = falsePositiveRate;
+        filters = new LinkedHashMap<LocalDate, Filter>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<LocalDate, Filter> eldest) {
+                return size() > maxCachedDates && !eldest.getValue().dirty;
+            }
+        };
+    }
+
+    @Nullable
+    @Override
+    public synchronized Boolean mightContain(String id, LocalDate date) {
+        BloomFilter filter = load(date).filter;
+        if (filter == null)
+            return null;
+
+        return filter.mightContain(id);
+    }
+
+    @Override
+    public synchronized void track(LocalDate date) {
+        Filter dateFilter = load(date);
+        if (dateFilter.filter == null && dateFilter.newIds == null) {
+            dateFilter.newIds = new ArrayList<>();
+            dateFilter.dirty = true;
+        }
+    }
+
+    @Override
+    public synchronized void save(LocalDate date, Collection<String> ids) {
+        Filter dateFilter = load(date);
+        dateFilter.newIds = null;
+        dateFilter.filter = BloomFilter.create(capacityFor(ids.size()), falsePositiveRate);
+        ids.forEach(dateFilter.filter::add);
+        dateFilter.dirty = true;
+    }
+
+    @Override
+    public synchronized void add(String id, LocalDate date) {
+        Filter dateFilter = load(date);
+        if (dateFilter.newIds != null) {
+            dateFilter.newIds.add(id);
+            dateFilter.dirty = true;
+        } else if (dateFilter.filter != null && !dateFilter.filter.mightContain(id)) {
+            dateFilter.filter.add(id);
+            if (dateFilter.filter.isOverCapacity())
+                dateFilter.filter = null;
+
+            dateFilter.dirty = true;
+        }
+    }
+
+    @Override
+    public synchronized boolean write(ErrorHandler onError) {
+        for (Map.Entry<LocalDate, Filter> entry : filters.entrySet()) {
+            LocalDate date = entry.getKey();
+            Filter dateFilter = entry.getValue();
+            if (!dateFilter.dirty)
+                continue;
+
+            if (dateFilter.newIds != null) {
+                dateFilter.filter = BloomFilter.create(capacityFor(dateFilter.newIds.size()), falsePositiveRate);
+                dateFilter.newIds.forEach(dateFilter.filter::add);
+                dateFilter.newIds = null;
+            }
+
+            // A removed filter is written as empty rather than left behind, as it would be missing ids.
+            String value = dateFilter.filter == null ? "" : Base64.getEncoder().encodeToString(dateFilter.filter.serialise());
+            try {
+                BlobWriter writer = writerProvider.getWriter(date, timeZone);
+                if (!writer.updateMetadata(METADATA_KEY, value) && !writer.writeMetadata(METADATA_KEY, value)) {
+                    onError.handle("", date, "Unable to save bloom filter", null);
+                    return false;
+                }
+            } catch (BlobStoreException e) {
+                onError.handle("", date, "Unable to save bloom filter", e);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized void commit() {
+        filters.values().forEach(dateFilter -> dateFilter.dirty = false);
+    }
+
+    @Override
+    public synchronized void rollback() {
+        filters.values().removeIf(dateFilter -> dateFilter.dirty);
+    }
+
+    private int capacityFor(int ids) {
+        return Math.max(minCapacity, ids > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : ids * 2);
+    }
+
+    private Filter load(LocalDate date) {
+        Filter dateFilter = filters.get(date);
+        if (dateFilter == null) {
+            dateFilter = new Filter(readFilter(date));
+            filters.put(date, dateFilter);
+        }
+        return dateFilter;
+    }
+
+    @Nullable
+    private BloomFilter readFilter(LocalDate date) {
+        try {
+            BlobReader reader = readerProvider.getReader(date, timeZone);
+            if (reader == null)
+                return null;
+
+            String value = reader.getMetadata(METADATA_KEY);
+            if (value == null || value.isEmpty())
+                return null;
+
+            return BloomFilter.deserialise(Base64.getDecoder().decode(value));
+        } catch (BlobStoreException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @EverythingIsNonnullByDefault
+    private static class Filter {
+
+        @Nullable private BloomFilter filter;
+        @Nullable private List<String> newIds = null;
+        private boolean dirty = false;
+
+        Filter(@Nullable BloomFilter filter) {
+            this.filter = filter;
+        }
+
+    }
+
+}
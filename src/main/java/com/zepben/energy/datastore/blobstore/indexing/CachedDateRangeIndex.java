@@ -9,6 +9,7 @@
 package com.zepben.energy.datastore.blobstore.indexing;
 
 import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.datastore.QueryStats;
 import com.zepben.energy.model.IdDateRange;
 
 import javax.annotation.Nullable;
@@ -21,6 +22,8 @@ import java.util.function.Consumer;
 public class CachedDateRangeIndex implements DateRangeIndex {
 
     private final DateRangeIndex index;
+    // Ranges only hold a BitSet of their days if they have gaps, so the ranges of meters that report every day are
+    // cached as just their dates.
     private final Map<String, IdDateRange> cache = new ConcurrentHashMap<>();
     private final Set<String> cachedEmptyIds = ConcurrentHashMap.newKeySet();
 
@@ -36,14 +39,21 @@ public class CachedDateRangeIndex implements DateRangeIndex {
         // Ignore on empty id
         if (id.isEmpty()) return null;
 
+        QueryStats stats = QueryStats.current();
+
         // If it's been fetched before but is not in the DB
-        if (cachedEmptyIds.contains(id)) return null;
+        if (cachedEmptyIds.contains(id)) {
+            if (stats != null) stats.cacheHit();
+            return null;
+        }
 
         IdDateRange range = cache.get(id);
         if (range != null) {
+            if (stats != null) stats.cacheHit();
             return range;
         }
 
+        if (stats != null) stats.cacheMiss();
         range = index.get(id);
 
         // if range is null, store it in cachedEmptyIDs, otherwise in proper cache
@@ -59,13 +69,21 @@ public class CachedDateRangeIndex implements DateRangeIndex {
     @Override
     public void forEach(Collection<String> ids, Consumer<IdDateRange> handler) {
         Set<String> lookupIds = new HashSet<>(ids);
-        ids.forEach(id -> {
+        int hits = 0;
+        for (String id : ids) {
             IdDateRange range = cache.get(id);
             if (range != null) {
                 lookupIds.remove(range.id());
                 handler.accept(range);
+                ++hits;
             }
-        });
+        }
+
+        QueryStats stats = QueryStats.current();
+        if (stats != null) {
+            stats.addCacheHits(hits);
+            stats.addCacheMisses(lookupIds.size());
+        }
 
         if (!lookupIds.isEmpty()) {
             index.forEach(lookupIds, dateRange -> {
@@ -83,18 +101,34 @@ public class CachedDateRangeIndex implements DateRangeIndex {
         });
     }
 
+    @Override
+    public void forAllAfter(@Nullable String after, int limit, Consumer<IdDateRange> handler) {
+        index.forAllAfter(after, limit, dateRange -> {
+            cache.put(dateRange.id(), dateRange);
+            handler.accept(dateRange);
+        });
+    }
+
     @Override
     public boolean save(String id, LocalDate from, LocalDate to) {
-        IdDateRange dateRange = cache.get(id);
         IdDateRange newDateRange = new IdDateRange(id, from, to);
-        if (Objects.equals(dateRange, newDateRange))
-            return true;
+        return !cacheIfChanged(newDateRange) || index.save(id, from, to);
+    }
 
-        cache.put(id, newDateRange);
-        // if we have a new range, and we previously cached empty,
-        // clear it from the list
-        cachedEmptyIds.remove(id);
-        return index.save(id, from, to);
+    @Override
+    public boolean save(IdDateRange range) {
+        return !cacheIfChanged(range) || index.save(range);
+    }
+
+    @Override
+    public boolean saveAll(Collection<IdDateRange> ranges) {
+        List<IdDateRange> changed = new ArrayList<>(ranges.size());
+        for (IdDateRange range : ranges) {
+            if (cacheIfChanged(range))
+                changed.add(range);
+        }
+
+        return changed.isEmpty() || index.saveAll(changed);
     }
 
     @Override
@@ -115,4 +149,39 @@ public class CachedDateRangeIndex implements DateRangeIndex {
         return index.rollback();
     }
 
+    @Override
+    public boolean flush() {
+        if (!index.flush()) {
+            // We don't track what's changed, so we need to clear the whole cache
+            cache.clear();
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public void committed() {
+        index.committed();
+    }
+
+    @Override
+    public void discard() {
+        // We don't track what's changed, so we need to clear the whole cache
+        cache.clear();
+        index.discard();
+    }
+
+    private boolean cacheIfChanged(IdDateRange newDateRange) {
+        IdDateRange dateRange = cache.get(newDateRange.id());
+        if (Objects.equals(dateRange, newDateRange))
+            return false;
+
+        cache.put(newDateRange.id(), newDateRange);
+        // if we have a new range, and we previously cached empty,
+        // clear it from the list
+        cachedEmptyIds.remove(newDateRange.id());
+        return true;
+    }
+
 }
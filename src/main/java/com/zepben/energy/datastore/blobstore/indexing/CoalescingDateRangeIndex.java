@@ -0,0 +1,273 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.model.IdDateRange;
+
+import javax.annotation.Nullable;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.function.Consumer;
+
+import static java.time.temporal.ChronoUnit.DAYS;
+
+/**
+ * Buffers the range extensions of a writer in memory, so the backing index is only read and saved once per id per
+ * commit rather than once per profile written.
+ * <p>The extensions of each id are merged into the min and max epoch days seen along with the days between them. On
+ * {@link #commit()} the current ranges of the extended ids are read in one batch, merged with the extensions and
+ * saved with {@link DateRangeIndex#saveAll} before the backing index is committed. On {@link #rollback()} the
+ * extensions are discarded. Writers sharing the store of the backing index with other indexes use {@link #flush()}
+ * and commit the store once with an {@link IndexTransaction} instead.
+ * <p>Reads include the buffered extensions, so the writer sees the same ranges it would have without the buffer.
+ */
+@EverythingIsNonnullByDefault
+public class CoalescingDateRangeIndex implements DateRangeIndex {
+
+    private final DateRangeIndex index;
+    private final Map<String, Extension> extensions = new HashMap<>();
+
+    public CoalescingDateRangeIndex(DateRangeIndex backingIndex) {
+        this.index = backingIndex;
+    }
+
+    /**
+     * @return the number of ids with extensions waiting to be committed.
+     */
+    public synchronized int pending() {
+        return extensions.size();
+    }
+
+    @Nullable
+    @Override
+    public synchronized IdDateRange get(String id) {
+        IdDateRange range = index.get(id);
+        Extension extension = extensions.get(id);
+        return extension == null ? range : extension.applyTo(id, range);
+    }
+
+    @Override
+    public synchronized void forEach(Collection<String> ids, Consumer<IdDateRange> handler) {
+        Set<String> unseen = new LinkedHashSet<>(ids);
+        index.forEach(ids, range -> {
+            unseen.remove(range.id());
+            handler.accept(withExtension(range));
+        });
+
+        for (String id : unseen) {
+            Extension extension = extensions.get(id);
+            if (extension != null)
+                handler.accept(extension.applyTo(id, null));
+        }
+    }
+
+    @Override
+    public synchronized void forAll(Consumer<IdDateRange> handler) {
+        Set<String> unseen = new HashSet<>(extensions.keySet());
+        index.forAll(range -> {
+            unseen.remove(range.id());
+            handler.accept(withExtension(range));
+        });
+
+        for (String id : unseen)
+            handler.accept(extensions.get(id).applyTo(id, null));
+    }
+
+    /**
+     * Pages the backing index, adding the buffered extensions. Ids that are only in the extensions are added where they
+     * sort into the page, which is all of them after the id if the backing index has no more.
+     */
+    @Override
+    public synchronized void forAllAfter(@Nullable String after, int limit, Consumer<IdDateRange> handler) {
+        if (limit < 1)
+            return;
+
+        TreeMap<String, IdDateRange> page = new TreeMap<>();
+        index.forAllAfter(after, limit, range -> page.put(range.id(), withExtension(range)));
+
+        // Any id before the end of a full page that isn't in it is not in the backing index.
+        String end = page.size() < limit ? null : page.lastKey();
+        extensions.forEach((id, extension) -> {
+            if ((after == null || id.compareTo(after) > 0) && (end == null || id.compareTo(end) < 0) && !page.containsKey(id))
+                page.put(id, extension.applyTo(id, null));
+        });
+
+        while (page.size() > limit)
+            page.pollLastEntry();
+        page.values().forEach(handler);
+    }
+
+    /**
+     * Saves the range straight to the backing index, replacing any buffered extensions of the id.
+     */
+    @Override
+    public synchronized boolean save(String id, LocalDate from, LocalDate to) {
+        extensions.remove(id);
+        return index.save(id, from, to);
+    }
+
+    /**
+     * Saves the range straight to the backing index, replacing any buffered extensions of the id.
+     */
+    @Override
+    public synchronized boolean save(IdDateRange range) {
+        extensions.remove(range.id());
+        return index.save(range);
+    }
+
+    @Override
+    public synchronized boolean saveAll(Collection<IdDateRange> ranges) {
+        ranges.forEach(range -> extensions.remove(range.id()));
+        return index.saveAll(ranges);
+    }
+
+    /**
+     * Buffers the extension until the next commit.
+     *
+     * @return true, as nothing is saved until the commit.
+     */
+    @Override
+    public synchronized boolean extendRange(String id, LocalDate date) {
+        long day = date.toEpochDay();
+        Extension extension = extensions.get(id);
+        if (extension == null)
+            extensions.put(id, new Extension(day));
+        else
+            extension.add(day);
+
+        return true;
+    }
+
+    /**
+     * Saves the buffered extensions to the backing index and commits it. The extensions are cleared even if they fail
+     * to save, in which case the backing index is rolled back rather than committing only some of them.
+     */
+    @Override
+    public synchronized boolean commit() {
+        if (!flush()) {
+            index.rollback();
+            return false;
+        }
+
+        return index.commit();
+    }
+
+    @Override
+    public synchronized boolean rollback() {
+        extensions.clear();
+        return index.rollback();
+    }
+
+    /**
+     * Saves the buffered extensions to the backing index and flushes it, without committing it. The extensions are
+     * cleared even if they fail to save, in which case the owner of the {@link IndexTransaction} should roll back the
+     * store rather than committing only some of them.
+     */
+    @Override
+    public synchronized boolean flush() {
+        if (extensions.isEmpty())
+            return index.flush();
+
+        Map<String, IdDateRange> existing = new HashMap<>(extensions.size());
+        index.forEach(extensions.keySet(), range -> existing.put(range.id(), range));
+
+        List<IdDateRange> ranges = new ArrayList<>(extensions.size());
+        extensions.forEach((id, extension) -> {
+            IdDateRange range = existing.get(id);
+            IdDateRange extended = extension.applyTo(id, range);
+            if (!extended.equals(range))
+                ranges.add(extended);
+        });
+        extensions.clear();
+
+        return (ranges.isEmpty() || index.saveAll(ranges)) && index.flush();
+    }
+
+    @Override
+    public synchronized void committed() {
+        index.committed();
+    }
+
+    @Override
+    public synchronized void discard() {
+        extensions.clear();
+        index.discard();
+    }
+
+    private IdDateRange withExtension(IdDateRange range) {
+        Extension extension = extensions.get(range.id());
+        return extension == null ? range : extension.applyTo(range.id(), range);
+    }
+
+    /**
+     * The days an id has been extended by, held as epoch days with bit 0 of the days being {@link #min}.
+     */
+    @EverythingIsNonnullByDefault
+    private static class Extension {
+
+        private long min;
+        private long max;
+        private BitSet days = new BitSet();
+
+        Extension(long day) {
+            min = day;
+            max = day;
+            days.set(0);
+        }
+
+        void add(long day) {
+            if (day < min) {
+                int shift = (int) (min - day);
+                BitSet shifted = new BitSet((int) (max - day) + 1);
+                for (int i = days.nextSetBit(0); i >= 0; i = days.nextSetBit(i + 1))
+                    shifted.set(i + shift);
+                days = shifted;
+                min = day;
+            } else if (day > max) {
+                max = day;
+            }
+
+            days.set((int) (day - min));
+        }
+
+        /**
+         * @return the range extended to include the days, or a new range of only the days if there is no range.
+         */
+        IdDateRange applyTo(String id, @Nullable IdDateRange range) {
+            LocalDate minDate = LocalDate.ofEpochDay(min);
+            LocalDate maxDate = LocalDate.ofEpochDay(max);
+            if (range == null)
+                return new IdDateRange(id, minDate, maxDate, (BitSet) days.clone());
+
+            LocalDate from = minDate.isBefore(range.from()) ? minDate : range.from();
+            LocalDate to = maxDate.isAfter(range.to()) ? maxDate : range.to();
+
+            // Every day of a range without days may have a profile, so only the days between it and the extension are
+            // left as gaps.
+            BitSet merged = new BitSet((int) DAYS.between(from, to) + 1);
+            int rangeShift = (int) DAYS.between(from, range.from());
+            BitSet rangeDays = range.days();
+            if (rangeDays == null) {
+                merged.set(rangeShift, rangeShift + (int) DAYS.between(range.from(), range.to()) + 1);
+            } else {
+                for (int i = rangeDays.nextSetBit(0); i >= 0; i = rangeDays.nextSetBit(i + 1))
+                    merged.set(i + rangeShift);
+            }
+
+            int shift = (int) (min - from.toEpochDay());
+            for (int i = days.nextSetBit(0); i >= 0; i = days.nextSetBit(i + 1))
+                merged.set(i + shift);
+
+            return new IdDateRange(id, from, to, merged);
+        }
+
+    }
+
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+
+import javax.annotation.Nullable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of non-negative ints, laid out in the same way as a roaring bitmap.
+ * <p>Values are split into chunks of 65536 by their high 16 bits. Sparse chunks are held as sorted arrays of their low
+ * 16 bits and dense chunks as plain bitmaps, so both a handful of values and long runs of consecutive values stay small.
+ * <p>This class is not thread safe.
+ */
+@EverythingIsNonnullByDefault
+public final class CompressedBitmap {
+
+    static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1024;
+    private static final byte ARRAY_TYPE = 0;
+    private static final byte BITMAP_TYPE = 1;
+
+    private char[] keys;
+    private Container[] containers;
+    private int size;
+
+    public CompressedBitmap() {
+        this(new char[4], new Container[4], 0);
+    }
+
+    private CompressedBitmap(char[] keys, Container[] containers, int size) {
+        this.keys = keys;
+        this.containers = containers;
+        this.size = size;
+    }
+
+    public static CompressedBitmap of(int... values) {
+        CompressedBitmap bitmap = new CompressedBitmap();
+        for (int value : values)
+            bitmap.add(value);
+        return bitmap;
+    }
+
+    /**
+     * @return true if the value was added, false if it was already in the bitmap.
+     */
+    public boolean add(int value) {
+        checkValue(value);
+
+        char key = (char) (value >>> 16);
+        char low = (char) value;
+        int index = indexOf(key);
+        if (index < 0) {
+            index = -index - 1;
+            insertContainer(index, key, new ArrayContainer());
+        }
+
+        Container container = containers[index];
+        if (container.contains(low))
+            return false;
+
+        containers[index] = container.add(low);
+        return true;
+    }
+
+    public boolean contains(int value) {
+        if (value < 0)
+            return false;
+
+        int index = indexOf((char) (value >>> 16));
+        return index >= 0 && containers[index].contains((char) value);
+    }
+
+    public int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < size; ++i)
+            cardinality += containers[i].cardinality();
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the largest value in the bitmap, or -1 if it is empty.
+     */
+    public int last() {
+        return size == 0 ? -1 : (keys[size - 1] << 16) | containers[size - 1].last();
+    }
+
+    /**
+     * Calls the consumer with each value in the bitmap in ascending order.
+     */
+    public void forEach(IntConsumer consumer) {
+        for (int i = 0; i < size; ++i)
+            containers[i].forEach(keys[i] << 16, consumer);
+    }
+
+    /**
+     * @return a new bitmap holding the values that are in both this and the other bitmap.
+     */
+    public CompressedBitmap and(CompressedBitmap other) {
+        CompressedBitmap result = new CompressedBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                ++i;
+            } else if (keys[i] > other.keys[j]) {
+                ++j;
+            } else {
+                Container container = containers[i].and(other.containers[j]);
+                if (container.cardinality() > 0)
+                    result.insertContainer(result.size, keys[i], container);
+                ++i;
+                ++j;
+            }
+        }
+        return result;
+    }
+
+    public CompressedBitmap copy() {
+        Container[] copied = new Container[containers.length];
+        for (int i = 0; i < size; ++i)
+            copied[i] = containers[i].copy();
+        return new CompressedBitmap(Arrays.copyOf(keys, keys.length), copied, size);
+    }
+
+    public byte[] serialise() {
+        int length = 4;
+        for (int i = 0; i < size; ++i)
+            length += 2 + containers[i].serialisedSize();
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(size);
+        for (int i = 0; i < size; ++i) {
+            buffer.putChar(keys[i]);
+            containers[i].write(buffer);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes are not a serialised bitmap.
+     */
+    public static CompressedBitmap deserialise(byte[] bytes) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int size = buffer.getInt();
+            if (size < 0 || size > 65536)
+                throw new IllegalArgumentException("invalid container count " + size);
+
+            char[] keys = new char[Math.max(4, size)];
+            Container[] containers = new Container[keys.length];
+            for (int i = 0; i < size; ++i) {
+                keys[i] = buffer.getChar();
+                if (i > 0 && keys[i] <= keys[i - 1])
+                    throw new IllegalArgumentException("container keys are not sorted");
+
+                containers[i] = readContainer(buffer);
+            }
+            return new CompressedBitmap(keys, containers, size);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("bitmap bytes were truncated", e);
+        }
+    }
+
+    @Override
+    public boolean equals(@Nullable Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof CompressedBitmap))
+            return false;
+
+        CompressedBitmap other = (CompressedBitmap) o;
+        return Arrays.equals(serialise(), other.serialise());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(serialise());
+    }
+
+    @Override
+    public String toString() {
+        return "CompressedBitmap{cardinality=" + cardinality() + '}';
+    }
+
+    private static void checkValue(int value) {
+        if (value < 0)
+            throw new IllegalArgumentException("bitmap values must not be negative: " + value);
+    }
+
+    private int indexOf(char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void insertContainer(int index, char key, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = key;
+        containers[index] = container;
+        ++size;
+    }
+
+    private static Container readContainer(ByteBuffer buffer) {
+        byte type = buffer.get();
+        if (type == ARRAY_TYPE) {
+            int cardinality = buffer.getChar() + 1;
+            if (cardinality > ARRAY_MAX)
+                throw new IllegalArgumentException("array container too large");
+
+            char[] values = new char[cardinality];
+            for (int i = 0; i < cardinality; ++i)
+                values[i] = buffer.getChar();
+            return new ArrayContainer(values, cardinality);
+        } else if (type == BITMAP_TYPE) {
+            long[] words = new long[BITMAP_WORDS];
+            int cardinality = 0;
+            for (int i = 0; i < BITMAP_WORDS; ++i) {
+                words[i] = buffer.getLong();
+                cardinality += Long.bitCount(words[i]);
+            }
+            return new BitmapContainer(words, cardinality);
+        }
+
+        throw new IllegalArgumentException("unknown container type " + type);
+    }
+
+    @EverythingIsNonnullByDefault
+    private interface Container {
+
+        boolean contains(char value);
+
+        /**
+         * Adds a value that is not already in the container, returning the container that now holds it.
+         */
+        Container add(char value);
+
+        int cardinality();
+
+        /**
+         * @return the largest value in the container, which is never empty.
+         */
+        char last();
+
+        void forEach(int high, IntConsumer consumer);
+
+        Container and(Container other);
+
+        Container copy();
+
+        /**
+         * @return the number of bytes written by {@link #write}, including the type byte.
+         */
+        int serialisedSize();
+
+        void write(ByteBuffer buffer);
+
+    }
+
+    @EverythingIsNonnullByDefault
+    private static final class ArrayContainer implements Container {
+
+        private char[] values;
+        private int cardinality;
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        public boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        public Container add(char value) {
+            if (cardinality == ARRAY_MAX)
+                return toBitmap().add(value);
+
+            int index = -Arrays.binarySearch(values, 0, cardinality, value) - 1;
+            if (cardinality == values.length)
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, cardinality * 2));
+
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = value;
+            ++cardinality;
+            return this;
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public char last() {
+            return values[cardinality - 1];
+        }
+
+        @Override
+        public void forEach(int high, IntConsumer consumer) {
+            for (int i = 0; i < cardinality; ++i)
+                consumer.accept(high | values[i]);
+        }
+
+        @Override
+        public Container and(Container other) {
+            char[] result = new char[cardinality];
+            int count = 0;
+            for (int i = 0; i < cardinality; ++i) {
+                if (other.contains(values[i]))
+                    result[count++] = values[i];
+            }
+            return new ArrayContainer(result, count);
+        }
+
+        @Override
+        public Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, values.length), cardinality);
+        }
+
+        @Override
+        public int serialisedSize() {
+            return 3 + 2 * cardinality;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) {
+            buffer.put(ARRAY_TYPE);
+            buffer.putChar((char) (cardinality - 1));
+            for (int i = 0; i < cardinality; ++i)
+                buffer.putChar(values[i]);
+        }
+
+        private BitmapContainer toBitmap() {
+            long[] words = new long[BITMAP_WORDS];
+            for (int i = 0; i < cardinality; ++i)
+                words[values[i] >>> 6] |= 1L << values[i];
+            return new BitmapContainer(words, cardinality);
+        }
+
+    }
+
+    @EverythingIsNonnullByDefault
+    private static final class BitmapContainer implements Container {
+
+        private final long[] words;
+        private int cardinality;
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        public boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        public Container add(char value) {
+            words[value >>> 6] |= 1L << value;
+            ++cardinality;
+            return this;
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public char last() {
+            int i = BITMAP_WORDS - 1;
+            while (words[i] == 0)
+                --i;
+            return (char) ((i << 6) | (Long.SIZE - 1 - Long.numberOfLeadingZeros(words[i])));
+        }
+
+        @Override
+        public void forEach(int high, IntConsumer consumer) {
+            for (int i = 0; i < BITMAP_WORDS; ++i) {
+                long word = words[i];
+                while (word != 0) {
+                    consumer.accept(high | (i << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        public Container and(Container other) {
+            if (other instanceof ArrayContainer)
+                return other.and(this);
+
+            long[] otherWords = ((BitmapContainer) other).words;
+            long[] result = new long[BITMAP_WORDS];
+            int count = 0;
+            for (int i = 0; i < BITMAP_WORDS; ++i) {
+                result[i] = words[i] & otherWords[i];
+                count += Long.bitCount(result[i]);
+            }
+
+            BitmapContainer container = new BitmapContainer(result, count);
+            return count > ARRAY_MAX ? container : container.toArray();
+        }
+
+        @Override
+        public Container copy() {
+            return new BitmapContainer(Arrays.copyOf(words, words.length), cardinality);
+        }
+
+        @Override
+        public int serialisedSize() {
+            return 1 + 8 * BITMAP_WORDS;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) {
+            buffer.put(BITMAP_TYPE);
+            for (long word : words)
+                buffer.putLong(word);
+        }
+
+        private ArrayContainer toArray() {
+            char[] values = new char[Math.max(1, cardinality)];
+            int[] count = {0};
+            forEach(0, value -> values[count[0]++] = (char) value);
+            return new ArrayContainer(values, cardinality);
+        }
+
+    }
+
+}
@@ -14,6 +14,7 @@ import com.zepben.energy.model.IdDateRange;
 import javax.annotation.Nullable;
 import java.time.LocalDate;
 import java.util.Collection;
+import java.util.TreeMap;
 import java.util.function.Consumer;
 
 @EverythingIsNonnullByDefault
@@ -26,44 +27,129 @@ public interface DateRangeIndex {
 
     void forAll(Consumer<IdDateRange> handler);
 
+    /**
+     * Passes the ranges of the ids that sort after an id to the handler in id order, stopping after the limit, so the
+     * ranges can be read a page at a time.
+     * <p>The default scans every range, only keeping the page. Indexes that can seek to the id should override this.
+     *
+     * @param after null to start from the first id.
+     * @param limit the maximum number of ranges to pass to the handler.
+     */
+    default void forAllAfter(@Nullable String after, int limit, Consumer<IdDateRange> handler) {
+        if (limit < 1)
+            return;
+
+        TreeMap<String, IdDateRange> page = new TreeMap<>();
+        forAll(range -> {
+            if (after != null && range.id().compareTo(after) <= 0)
+                return;
+
+            if (page.size() < limit) {
+                page.put(range.id(), range);
+            } else if (range.id().compareTo(page.lastKey()) < 0) {
+                page.pollLastEntry();
+                page.put(range.id(), range);
+            }
+        });
+        page.values().forEach(handler);
+    }
+
     boolean save(String id, LocalDate from, LocalDate to);
 
+    /**
+     * Saves the range, including its days if they are known. Indexes that can't store days only save the dates.
+     */
+    default boolean save(IdDateRange range) {
+        return save(range.id(), range.from(), range.to());
+    }
+
+    /**
+     * Saves each of the ranges, as {@link #save(IdDateRange)} does. Indexes that can save a batch of ranges more
+     * cheaply than one at a time should override this.
+     *
+     * @return true if every range was saved.
+     */
+    default boolean saveAll(Collection<IdDateRange> ranges) {
+        boolean saved = true;
+        for (IdDateRange range : ranges)
+            saved &= save(range);
+        return saved;
+    }
+
+    /**
+     * Extends the range of the id to include the date. New ids start tracking the exact days they have, which are then
+     * kept up to date. Ids indexed without days only have their range extended.
+     */
     default boolean extendRange(String id, LocalDate date) {
         IdDateRange range = get(id);
         if (range == null)
-            return save(id, date, date);
+            return save(IdDateRange.ofDate(id, date));
 
-        if (date.isBefore(range.from()))
-            return saveFrom(id, date);
-        else if (date.isAfter(range.to()))
-            return saveTo(id, date);
+        if (range.hasDate(date)) {
+            // Nothing to update
+            return true;
+        }
 
-        // Nothing to update
-        return true;
+        return save(range.withDate(date));
     }
 
+    /**
+     * Moves the start of the range of the id, keeping the known days that are still in it. See
+     * {@link IdDateRange#withRange}.
+     */
     default boolean saveFrom(String id, LocalDate from) {
         IdDateRange range = get(id);
         return range != null &&
             !range.from().equals(from) &&
             isValidRange(from, range.to()) &&
-            save(id, from, range.to());
+            saveWithRange(range, from, range.to());
     }
 
+    /**
+     * Moves the end of the range of the id, keeping the known days that are still in it. See
+     * {@link IdDateRange#withRange}.
+     */
     default boolean saveTo(String id, LocalDate to) {
         IdDateRange range = get(id);
         return range != null &&
             !range.to().equals(to) &&
             isValidRange(range.from(), to) &&
-            save(id, range.from(), to);
+            saveWithRange(range, range.from(), to);
     }
 
     boolean commit();
 
     boolean rollback();
 
+    /**
+     * Saves the changes since the last commit like {@link #commit}, but leaves committing them to the owner of the
+     * {@link IndexTransaction} of a store shared with other indexes, who calls {@link #committed} or {@link #discard}
+     * once it is done.
+     */
+    default boolean flush() {
+        return commit();
+    }
+
+    /**
+     * Called once the changes saved by {@link #flush} have been committed.
+     */
+    default void committed() {
+    }
+
+    /**
+     * Drops the changes since the last commit, leaving rolling back the store to the owner of its
+     * {@link IndexTransaction}.
+     */
+    default void discard() {
+        rollback();
+    }
+
     default boolean isValidRange(LocalDate from, LocalDate to) {
         return !from.isAfter(to);
     }
 
+    default boolean saveWithRange(IdDateRange range, LocalDate from, LocalDate to) {
+        return range.hasDays() ? save(range.withRange(from, to)) : save(range.id(), from, to);
+    }
+
 }
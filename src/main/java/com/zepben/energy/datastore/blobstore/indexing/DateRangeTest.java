@@ -16,27 +16,99 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+/**
+ * Tests if ids have a profile on a date. Dates tracked by the {@link IdPresenceIndex} are checked exactly against its
+ * bitmaps, while other dates fall back to the date range of the id, which is exact if the range knows its days. Ids
+ * that pass their date range are then checked against the {@link BloomFilterIndex} if the date has a filter, so the
+ * filters are only consulted for dates the presence index doesn't track.
+ * <p>Readers that have already looked up the date ranges of the ids test them with {@link #rangeHasDate} and
+ * {@link #filterRangesWithDate}, which give the same answers without looking them up again.
+ */
 @EverythingIsNonnullByDefault
 public class DateRangeTest {
 
     private final DateRangeIndex index;
+    private final IdPresenceIndex presenceIndex;
+    private final BloomFilterIndex bloomFilterIndex;
 
     public DateRangeTest(DateRangeIndex index) {
+        this(index, IdPresenceIndex.untracked());
+    }
+
+    public DateRangeTest(DateRangeIndex index, IdPresenceIndex presenceIndex) {
+        this(index, presenceIndex, BloomFilterIndex.untracked());
+    }
+
+    public DateRangeTest(DateRangeIndex index, IdPresenceIndex presenceIndex, BloomFilterIndex bloomFilterIndex) {
         this.index = index;
+        this.presenceIndex = presenceIndex;
+        this.bloomFilterIndex = bloomFilterIndex;
+    }
+
+    /**
+     * @return true if every id stored on the date is known to be on it, so rows read from the date do not need testing.
+     */
+    public boolean isExact(LocalDate date) {
+        return presenceIndex.isTracked(date);
     }
 
     public boolean idHasDate(String id, LocalDate date) {
+        Boolean present = presenceIndex.contains(id, date);
+        if (present != null)
+            return present;
+
         IdDateRange range = index.get(id);
-        return range != null && range.isInRange(date);
+        return range != null && rangeHasDateUntracked(range, date);
+    }
+
+    /**
+     * Tests the id of a date range the same way as {@link #idHasDate}, using the range rather than looking it up.
+     */
+    public boolean rangeHasDate(IdDateRange range, LocalDate date) {
+        Boolean present = presenceIndex.contains(range.id(), date);
+        if (present != null)
+            return present;
+
+        return rangeHasDateUntracked(range, date);
     }
 
     public Collection<String> filterIdsWithDate(Collection<String> ids, LocalDate date) {
+        List<String> presentIds = presenceIndex.filter(ids, date);
+        if (presentIds != null)
+            return presentIds;
+
         List<String> filteredIds = new ArrayList<>();
         index.forEach(ids, range -> {
-            if (range.isInRange(date))
+            if (rangeHasDateUntracked(range, date))
                 filteredIds.add(range.id());
         });
         return filteredIds;
     }
 
+    /**
+     * Filters the ids of date ranges the same way as {@link #filterIdsWithDate}, using the ranges rather than looking
+     * them up.
+     */
+    public List<String> filterRangesWithDate(Collection<IdDateRange> ranges, LocalDate date) {
+        if (presenceIndex.isTracked(date)) {
+            List<String> ids = new ArrayList<>(ranges.size());
+            ranges.forEach(range -> ids.add(range.id()));
+
+            List<String> presentIds = presenceIndex.filter(ids, date);
+            if (presentIds != null)
+                return presentIds;
+        }
+
+        List<String> filteredIds = new ArrayList<>();
+        for (IdDateRange range : ranges) {
+            if (rangeHasDateUntracked(range, date))
+                filteredIds.add(range.id());
+        }
+        return filteredIds;
+    }
+
+    private boolean rangeHasDateUntracked(IdDateRange range, LocalDate date) {
+        return range.hasDate(date) && !Boolean.FALSE.equals(bloomFilterIndex.mightContain(range.id(), date));
+    }
+
 }
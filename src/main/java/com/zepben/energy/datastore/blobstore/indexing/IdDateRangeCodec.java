@@ -9,39 +9,115 @@
 package com.zepben.energy.datastore.blobstore.indexing;
 
 import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.blobstore.BytesUtil;
 import com.zepben.energy.model.IdDateRange;
 
 import javax.annotation.Nullable;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 
+/**
+ * Encodes a date range as the year, month and day of both ends, which is 12 bytes.
+ * <p>If the range has gaps, its days follow as runs of consecutive days. The count of runs is followed by the gap before
+ * each run and its length, all as 7 bit encoded longs, so each gap only adds a couple of bytes. Older versions can only
+ * read the 12 bytes, so ranges without gaps, such as those of meters that report every day, are written without their
+ * days and are read the same as before days were tracked.
+ */
 @EverythingIsNonnullByDefault
 class IdDateRangeCodec {
 
+    private static final int RANGE_BYTES = 12;
 
     @Nullable
     IdDateRange deserialise(String id, @Nullable byte[] bytes) {
-        final ByteBuffer buffer = ByteBuffer.allocate(12);
-        if (bytes == null || bytes.length < buffer.capacity())
+        if (bytes == null || bytes.length < RANGE_BYTES)
             return null;
 
-        buffer.put(bytes);
-        buffer.flip();
-
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
         LocalDate from = LocalDate.of(buffer.getInt(), buffer.get(), buffer.get());
         LocalDate to = LocalDate.of(buffer.getInt(), buffer.get(), buffer.get());
-        return new IdDateRange(id, from, to);
+        if (!buffer.hasRemaining())
+            return new IdDateRange(id, from, to);
+
+        return new IdDateRange(id, from, to, deserialiseDays(buffer));
     }
 
     byte[] serialise(LocalDate from, LocalDate to) {
-        final ByteBuffer buffer = ByteBuffer.allocate(12);
+        return serialise(from, to, null);
+    }
+
+    /**
+     * Only ranges with gaps have days, so only they are written with them. See {@link IdDateRange#hasDays()}.
+     */
+    byte[] serialise(IdDateRange range) {
+        return serialise(range.from(), range.to(), range.days());
+    }
+
+    private byte[] serialise(LocalDate from, LocalDate to, @Nullable BitSet days) {
+        List<int[]> runs = days == null ? null : toRuns(days);
+        ByteBuffer buffer = ByteBuffer.allocate(RANGE_BYTES + (runs == null ? 0 : 10 + 20 * runs.size()));
         buffer.putInt(from.getYear())
             .put((byte) from.getMonthValue())
             .put((byte) from.getDayOfMonth())
             .putInt(to.getYear())
             .put((byte) to.getMonthValue())
             .put((byte) to.getDayOfMonth());
-        return buffer.array();
+
+        if (runs != null) {
+            BytesUtil.INSTANCE.encode7BitLong(buffer, runs.size());
+            int end = 0;
+            for (int[] run : runs) {
+                BytesUtil.INSTANCE.encode7BitLong(buffer, run[0] - end);
+                BytesUtil.INSTANCE.encode7BitLong(buffer, run[1] - run[0]);
+                end = run[1];
+            }
+        }
+
+        if (buffer.position() == buffer.capacity())
+            return buffer.array();
+
+        byte[] bytes = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * @return the runs of set bits as a start (inclusive) and end (exclusive) pair.
+     */
+    private List<int[]> toRuns(BitSet days) {
+        List<int[]> runs = new ArrayList<>();
+        int start = days.nextSetBit(0);
+        while (start >= 0) {
+            int end = days.nextClearBit(start);
+            runs.add(new int[]{start, end});
+            start = days.nextSetBit(end);
+        }
+        return runs;
+    }
+
+    // Days that can't be read are treated as unknown, which just means the whole range is checked like it used to be.
+    @Nullable
+    private BitSet deserialiseDays(ByteBuffer buffer) {
+        try {
+            long runs = BytesUtil.INSTANCE.decode7BitLong(buffer);
+            BitSet days = new BitSet();
+            int end = 0;
+            for (long i = 0; i < runs; ++i) {
+                int start = end + (int) BytesUtil.INSTANCE.decode7BitLong(buffer);
+                end = start + (int) BytesUtil.INSTANCE.decode7BitLong(buffer);
+                if (start < 0 || end < start)
+                    return null;
+
+                days.set(start, end);
+            }
+            return days;
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
     }
 
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Assigns each id a dense int, starting from 0, so sets of ids can be held in a {@link CompressedBitmap}.
+ * <p>The ids are kept sorted as they are added, so they can be walked in id order from any id without sorting them.
+ * <p>This class is not thread safe.
+ */
+@EverythingIsNonnullByDefault
+class IdDictionary {
+
+    private final TreeMap<String, Integer> indexes = new TreeMap<>();
+    private final List<String> ids = new ArrayList<>();
+
+    /**
+     * @return the index of the id, or -1 if it has not been assigned one.
+     */
+    int indexOf(String id) {
+        Integer index = indexes.get(id);
+        return index == null ? -1 : index;
+    }
+
+    int getOrAdd(String id) {
+        Integer index = indexes.get(id);
+        if (index != null)
+            return index;
+
+        put(id, ids.size());
+        return ids.size() - 1;
+    }
+
+    @Nullable
+    String idAt(int index) {
+        return index >= 0 && index < ids.size() ? ids.get(index) : null;
+    }
+
+    int size() {
+        return ids.size();
+    }
+
+    /**
+     * @param after null for every id.
+     * @return a view of the ids that sort after the id and their indexes, in id order.
+     */
+    NavigableMap<String, Integer> idsAfter(@Nullable String after) {
+        return Collections.unmodifiableNavigableMap(after == null ? indexes : indexes.tailMap(after, false));
+    }
+
+    /**
+     * Adds an id with a known index, as read back from storage. Any gap before the index is left unassigned.
+     */
+    void put(String id, int index) {
+        while (ids.size() <= index)
+            ids.add(null);
+
+        ids.set(index, id);
+        indexes.put(id, index);
+    }
+
+    /**
+     * Removes every id with an index at or past the given size.
+     */
+    void truncate(int size) {
+        while (ids.size() > size) {
+            String id = ids.remove(ids.size() - 1);
+            if (id != null)
+                indexes.remove(id);
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+
+import javax.annotation.Nullable;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Tracks exactly which ids have a profile on each date.
+ * <p>Like the {@link StatCoverageIndex}, a date is only tracked if it has been since the date had no profiles, or if
+ * it has been saved from a scan of the whole date. Callers need to fall back to the {@link DateRangeIndex} for dates
+ * that are not tracked.
+ */
+@EverythingIsNonnullByDefault
+public interface IdPresenceIndex {
+
+    boolean isTracked(LocalDate date);
+
+    /**
+     * @return whether the id has a profile on the date, or null if the date is not tracked.
+     */
+    @Nullable
+    Boolean contains(String id, LocalDate date);
+
+    /**
+     * @return the ids that have a profile on the date, in the order they were given, or null if the date is not tracked.
+     */
+    @Nullable
+    List<String> filter(Collection<String> ids, LocalDate date);
+
+    /**
+     * @return the ids that have a profile on the date, in no particular order, or null if the date is not tracked.
+     */
+    @Nullable
+    List<String> ids(LocalDate date);
+
+    /**
+     * @param after the id to start after, or null to start from the first id.
+     * @param limit the maximum number of ids to return.
+     * @return the next ids that have a profile on the date in id order, or null if the date is not tracked.
+     */
+    @Nullable
+    List<String> idsAfter(LocalDate date, @Nullable String after, int limit);
+
+    /**
+     * Starts tracking the ids on a date that does not have any profiles yet.
+     */
+    void track(LocalDate date);
+
+    /**
+     * Sets the ids that have a profile on the date, replacing anything previously tracked for the date.
+     */
+    void save(LocalDate date, Collection<String> ids);
+
+    void add(String id, LocalDate date);
+
+    boolean commit();
+
+    boolean rollback();
+
+    /**
+     * Saves the changes since the last commit like {@link #commit}, but leaves committing them to the owner of the
+     * {@link IndexTransaction} of a store shared with other indexes, who calls {@link #committed} or {@link #discard}
+     * once it is done.
+     */
+    default boolean flush() {
+        return commit();
+    }
+
+    /**
+     * Called once the changes saved by {@link #flush} have been committed.
+     */
+    default void committed() {
+    }
+
+    /**
+     * Drops the changes since the last commit, leaving rolling back the store to the owner of its
+     * {@link IndexTransaction}.
+     */
+    default void discard() {
+        rollback();
+    }
+
+    /**
+     * @return an index that never tracks any dates.
+     */
+    static IdPresenceIndex untracked() {
+        return UntrackedIdPresenceIndex.INSTANCE;
+    }
+
+}
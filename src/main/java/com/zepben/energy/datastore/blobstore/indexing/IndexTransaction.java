@@ -0,0 +1,51 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.blobstore.BlobStore;
+
+/**
+ * Commits or rolls back a store shared by several indexes once for all of them, so committing one index never commits
+ * the unfinished changes of another and rolling one back never discards the changes of another.
+ * <p>The owner of the transaction flushes the changes of each index to the store, then commits or rolls back the
+ * transaction and tells each index with {@code committed} or {@code discard}:
+ * <pre>{@code
+ * if (statCoverageIndex.flush() && presenceIndex.flush() && transaction.commit()) {
+ *     statCoverageIndex.committed();
+ *     presenceIndex.committed();
+ * } else {
+ *     transaction.rollback();
+ *     statCoverageIndex.discard();
+ *     presenceIndex.discard();
+ * }
+ * }</pre>
+ */
+@EverythingIsNonnullByDefault
+public interface IndexTransaction {
+
+    boolean commit();
+
+    boolean rollback();
+
+    /**
+     * @return a transaction over the writer of the store the indexes share.
+     */
+    static IndexTransaction of(BlobStore store) {
+        return new BlobIndexTransaction(store.getWriter());
+    }
+
+    /**
+     * @return a transaction with nothing to commit, for indexes that commit their own stores when they are flushed.
+     */
+    static IndexTransaction none() {
+        return NoIndexTransaction.INSTANCE;
+    }
+
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+
+@EverythingIsNonnullByDefault
+enum NoIndexTransaction implements IndexTransaction {
+    INSTANCE;
+
+    @Override
+    public boolean commit() {
+        return true;
+    }
+
+    @Override
+    public boolean rollback() {
+        return true;
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+
+import javax.annotation.Nullable;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Tracks which profiles on a date do not have stored stats.
+ * <p>The coverage of a date is only known if it has been tracked since the date had no profiles, or if it has been
+ * saved from a scan of the whole date. Marking ids on a date with unknown coverage does nothing, as there is no way to
+ * know the state of the profiles that were already there.
+ */
+@EverythingIsNonnullByDefault
+public interface StatCoverageIndex {
+
+    /**
+     * @return the ids on the date that are missing stats, or null if the stat coverage of the date is not known.
+     */
+    @Nullable
+    Set<String> getMissing(LocalDate date);
+
+    /**
+     * Starts tracking the stat coverage of a date that does not have any profiles yet.
+     */
+    void track(LocalDate date);
+
+    /**
+     * Sets the ids on the date that are missing stats, replacing anything previously tracked for the date.
+     */
+    void save(LocalDate date, Collection<String> missingIds);
+
+    void markCovered(String id, LocalDate date);
+
+    void markMissing(String id, LocalDate date);
+
+    /**
+     * Commits the ids marked missing since the last commit, but not the ids marked covered. Writers call this before
+     * committing their profiles, and {@link #commit} once they are committed, so the committed coverage never lists
+     * stats that have not been committed.
+     */
+    boolean commitMissing();
+
+    boolean commit();
+
+    boolean rollback();
+
+    /**
+     * Saves the ids marked missing since the last commit like {@link #commitMissing}, but leaves committing them to
+     * the owner of the {@link IndexTransaction} of a store shared with other indexes.
+     */
+    default boolean flushMissing() {
+        return commitMissing();
+    }
+
+    /**
+     * Saves the changes since the last commit like {@link #commit}, but leaves committing them to the owner of the
+     * {@link IndexTransaction} of a store shared with other indexes, who calls {@link #committed} or {@link #discard}
+     * once it is done.
+     */
+    default boolean flush() {
+        return commit();
+    }
+
+    /**
+     * Called once the changes saved by {@link #flush} have been committed.
+     */
+    default void committed() {
+    }
+
+    /**
+     * Drops the changes since the last commit, leaving rolling back the store to the owner of its
+     * {@link IndexTransaction}.
+     */
+    default void discard() {
+        rollback();
+    }
+
+    /**
+     * @return an index that never knows the stat coverage of a date.
+     */
+    static StatCoverageIndex untracked() {
+        return UntrackedStatCoverageIndex.INSTANCE;
+    }
+
+}
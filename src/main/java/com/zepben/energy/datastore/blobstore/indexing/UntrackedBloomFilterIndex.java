@@ -0,0 +1,53 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.datastore.ErrorHandler;
+
+import javax.annotation.Nullable;
+import java.time.LocalDate;
+import java.util.Collection;
+
+@EverythingIsNonnullByDefault
+enum UntrackedBloomFilterIndex implements BloomFilterIndex {
+    INSTANCE;
+
+    @Nullable
+    @Override
+    public Boolean mightContain(String id, LocalDate date) {
+        return null;
+    }
+
+    @Override
+    public void track(LocalDate date) {
+    }
+
+    @Override
+    public void save(LocalDate date, Collection<String> ids) {
+    }
+
+    @Override
+    public void add(String id, LocalDate date) {
+    }
+
+    @Override
+    public boolean write(ErrorHandler onError) {
+        return true;
+    }
+
+    @Override
+    public void commit() {
+    }
+
+    @Override
+    public void rollback() {
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+
+import javax.annotation.Nullable;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+
+@EverythingIsNonnullByDefault
+enum UntrackedIdPresenceIndex implements IdPresenceIndex {
+    INSTANCE;
+
+    @Override
+    public boolean isTracked(LocalDate date) {
+        return false;
+    }
+
+    @Nullable
+    @Override
+    public Boolean contains(String id, LocalDate date) {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public List<String> filter(Collection<String> ids, LocalDate date) {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public List<String> ids(LocalDate date) {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public List<String> idsAfter(LocalDate date, @Nullable String after, int limit) {
+        return null;
+    }
+
+    @Override
+    public void track(LocalDate date) {
+    }
+
+    @Override
+    public void save(LocalDate date, Collection<String> ids) {
+    }
+
+    @Override
+    public void add(String id, LocalDate date) {
+    }
+
+    @Override
+    public boolean commit() {
+        return true;
+    }
+
+    @Override
+    public boolean rollback() {
+        return true;
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+
+import javax.annotation.Nullable;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Set;
+
+@EverythingIsNonnullByDefault
+enum UntrackedStatCoverageIndex implements StatCoverageIndex {
+    INSTANCE;
+
+    @Nullable
+    @Override
+    public Set<String> getMissing(LocalDate date) {
+        return null;
+    }
+
+    @Override
+    public void track(LocalDate date) {
+    }
+
+    @Override
+    public void save(LocalDate date, Collection<String> missingIds) {
+    }
+
+    @Override
+    public void markCovered(String id, LocalDate date) {
+    }
+
+    @Override
+    public void markMissing(String id, LocalDate date) {
+    }
+
+    @Override
+    public boolean commitMissing() {
+        return true;
+    }
+
+    @Override
+    public boolean commit() {
+        return true;
+    }
+
+    @Override
+    public boolean rollback() {
+        return true;
+    }
+
+}
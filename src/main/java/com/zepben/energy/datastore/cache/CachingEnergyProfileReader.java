@@ -0,0 +1,308 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.cache;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.datastore.AggregateSpec;
+import com.zepben.energy.datastore.EnergyProfilePage;
+import com.zepben.energy.datastore.EnergyProfileReader;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.IntervalColumn;
+import com.zepben.energy.datastore.ItemHandler;
+import com.zepben.energy.datastore.PartialProfileReader;
+import com.zepben.energy.datastore.ProfileRanking;
+import com.zepben.energy.datastore.QueryStats;
+import com.zepben.energy.model.EnergyProfile;
+import com.zepben.energy.model.EnergyProfileStat;
+import com.zepben.energy.model.IdDateRange;
+import com.zepben.energy.model.Readings;
+
+import javax.annotation.Nullable;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A read through cache in front of another {@link EnergyProfileReader}.
+ * <p>Single profile reads ({@link #get}, {@link #forEach} and the series reads) are served from the cache where
+ * possible, and any cacheable profiles they read from the backing reader are added to it, unless they were invalidated
+ * while they were being read. Whole date scans are passed straight through so they don't churn the cache, as are pages
+ * of them, reads of a single interval of them, top-K rankings and aggregates. Partial profile readers are not cached.
+ * <p>Writes need to go through a {@link CachingEnergyProfileWriter} sharing the same cache to keep it up to date.
+ */
+@EverythingIsNonnullByDefault
+public class CachingEnergyProfileReader implements EnergyProfileReader {
+
+    private final EnergyProfileReader reader;
+    private final EnergyProfileCache cache;
+
+    public CachingEnergyProfileReader(EnergyProfileReader reader, EnergyProfileCache cache) {
+        this.reader = reader;
+        this.cache = cache;
+    }
+
+    public EnergyProfileCache cache() {
+        return cache;
+    }
+
+    @Nullable
+    @Override
+    public IdDateRange getDateRange(String id) {
+        return reader.getDateRange(id);
+    }
+
+    @Override
+    public void forEachGetDateRange(Collection<String> ids, Consumer<IdDateRange> handler) {
+        reader.forEachGetDateRange(ids, handler);
+    }
+
+    @Override
+    public void forAllGetDateRange(Consumer<IdDateRange> handler) {
+        reader.forAllGetDateRange(handler);
+    }
+
+    @Override
+    public boolean exists(String id, LocalDate date) {
+        return reader.exists(id, date);
+    }
+
+    @Nullable
+    @Override
+    public EnergyProfile get(String id, LocalDate date, ErrorHandler onError) {
+        EnergyProfile profile = cache.get(id, date);
+        if (profile != null)
+            return profile;
+
+        EnergyProfileCache.Generation generation = cache.generation();
+        profile = reader.get(id, date, onError);
+        if (profile != null)
+            cache.put(profile, generation);
+
+        return profile;
+    }
+
+    @Override
+    public void forEach(Collection<String> ids, LocalDate date, ItemHandler<EnergyProfile> onRead, ErrorHandler onError) {
+        List<String> missingIds = new ArrayList<>();
+        for (String id : ids) {
+            EnergyProfile profile = cache.get(id, date);
+            if (profile != null)
+                onRead.handle(id, date, profile);
+            else
+                missingIds.add(id);
+        }
+
+        if (missingIds.isEmpty())
+            return;
+
+        EnergyProfileCache.Generation generation = cache.generation();
+        reader.forEach(missingIds, date, (id, dt, profile) -> {
+            cache.put(profile, generation);
+            onRead.handle(id, dt, profile);
+        }, onError);
+    }
+
+    /**
+     * Records reads served from the cache as cache hits, and passes the stats to the backing reader for the misses.
+     */
+    @Nullable
+    @Override
+    public EnergyProfile get(String id, LocalDate date, QueryStats stats, ErrorHandler onError) {
+        EnergyProfile profile = cache.get(id, date);
+        if (profile != null) {
+            stats.cacheHit();
+            stats.addRowsScanned(1);
+            return profile;
+        }
+
+        stats.cacheMiss();
+        EnergyProfileCache.Generation generation = cache.generation();
+        profile = reader.get(id, date, stats, onError);
+        if (profile != null)
+            cache.put(profile, generation);
+
+        return profile;
+    }
+
+    /**
+     * Records reads served from the cache as cache hits, and passes the stats to the backing reader for the misses.
+     */
+    @Override
+    public void forEach(Collection<String> ids,
+                        LocalDate date,
+                        QueryStats stats,
+                        ItemHandler<EnergyProfile> onRead,
+                        ErrorHandler onError) {
+        ItemHandler<EnergyProfile> onStatsRead = stats.callbackHandler(onRead);
+        List<String> missingIds = new ArrayList<>();
+        for (String id : ids) {
+            EnergyProfile profile = cache.get(id, date);
+            if (profile != null)
+                onStatsRead.handle(id, date, profile);
+            else
+                missingIds.add(id);
+        }
+
+        stats.addCacheHits(ids.size() - missingIds.size());
+        stats.addCacheMisses(missingIds.size());
+        if (missingIds.isEmpty())
+            return;
+
+        EnergyProfileCache.Generation generation = cache.generation();
+        reader.forEach(missingIds, date, stats, (id, dt, profile) -> {
+            cache.put(profile, generation);
+            onRead.handle(id, dt, profile);
+        }, onError);
+    }
+
+    @Override
+    public void forAll(LocalDate date, ItemHandler<EnergyProfile> onRead, ErrorHandler onError) {
+        reader.forAll(date, onRead, onError);
+    }
+
+    @Override
+    public void forAll(LocalDate date, QueryStats stats, ItemHandler<EnergyProfile> onRead, ErrorHandler onError) {
+        reader.forAll(date, stats, onRead, onError);
+    }
+
+    @Override
+    public EnergyProfilePage forAllPage(LocalDate date,
+                                        @Nullable String continuationToken,
+                                        int pageSize,
+                                        ErrorHandler onError) {
+        return reader.forAllPage(date, continuationToken, pageSize, onError);
+    }
+
+    @Override
+    public void aggregate(Map<String, String> groupMapping,
+                          LocalDate from,
+                          LocalDate to,
+                          AggregateSpec spec,
+                          ItemHandler<Readings> onAggregate,
+                          ErrorHandler onError) {
+        reader.aggregate(groupMapping, from, to, spec, onAggregate, onError);
+    }
+
+    @Override
+    public ProfileRanking topK(LocalDate from,
+                               LocalDate to,
+                               int k,
+                               ToDoubleFunction<EnergyProfileStat> value,
+                               ErrorHandler onError) {
+        return reader.topK(from, to, k, value, onError);
+    }
+
+    @Override
+    public IntervalColumn forAllAtInterval(LocalDate date, int interval, ErrorHandler onError) {
+        return reader.forAllAtInterval(date, interval, onError);
+    }
+
+    @Override
+    public void forAllCacheable(LocalDate date, ItemHandler<EnergyProfile> onRead, ErrorHandler onError) {
+        reader.forAllCacheable(date, onRead, onError);
+    }
+
+    /**
+     * Serves the dates in the indexed date range of the id from the cache where possible. If any are missing, the dates
+     * from the first to the last missing one are read with a single series read on the backing reader.
+     */
+    @Override
+    public List<EnergyProfile> getSeries(String id, LocalDate from, LocalDate to, ErrorHandler onError) {
+        IdDateRange range = reader.getDateRange(id);
+        if (range == null)
+            return Collections.emptyList();
+
+        LocalDate start = from.isBefore(range.from()) ? range.from() : from;
+        LocalDate end = to.isAfter(range.to()) ? range.to() : to;
+
+        SortedMap<LocalDate, EnergyProfile> byDate = new TreeMap<>();
+        LocalDate firstMissing = null;
+        LocalDate lastMissing = null;
+        for (LocalDate date = start; !date.isAfter(end); date = date.plusDays(1)) {
+            EnergyProfile profile = cache.get(id, date);
+            if (profile != null)
+                byDate.put(date, profile);
+            else {
+                if (firstMissing == null)
+                    firstMissing = date;
+                lastMissing = date;
+            }
+        }
+
+        if (firstMissing != null) {
+            EnergyProfileCache.Generation generation = cache.generation();
+            reader.getSeries(id, firstMissing, lastMissing, onError).forEach(profile -> {
+                cache.put(profile, generation);
+                byDate.put(profile.date(), profile);
+            });
+        }
+
+        return new ArrayList<>(byDate.values());
+    }
+
+    /**
+     * Reads each date in the combined indexed date range of the ids with {@link #forEach}, so cached profiles are
+     * served from the cache and only the rest are read from the backing reader. Profiles are still passed to the handler
+     * in date order, but the dates are read one at a time rather than with the series read of the backing reader.
+     */
+    @Override
+    public void forEachSeries(Collection<String> ids,
+                              LocalDate from,
+                              LocalDate to,
+                              ItemHandler<EnergyProfile> onRead,
+                              ErrorHandler onError) {
+        LocalDate[] indexed = new LocalDate[2];
+        reader.forEachGetDateRange(ids, range -> {
+            if (indexed[0] == null || range.from().isBefore(indexed[0]))
+                indexed[0] = range.from();
+            if (indexed[1] == null || range.to().isAfter(indexed[1]))
+                indexed[1] = range.to();
+        });
+
+        if (indexed[0] == null)
+            return;
+
+        LocalDate start = from.isBefore(indexed[0]) ? indexed[0] : from;
+        LocalDate end = to.isAfter(indexed[1]) ? indexed[1] : to;
+        for (LocalDate date = start; !date.isAfter(end); date = date.plusDays(1))
+            forEach(ids, date, onRead, onError);
+    }
+
+    @Override
+    public PartialProfileReader<Readings> kwInReader() {
+        return reader.kwInReader();
+    }
+
+    @Override
+    public PartialProfileReader<Readings> kwOutReader() {
+        return reader.kwOutReader();
+    }
+
+    @Override
+    public PartialProfileReader<Readings> kwInReader(int fromInterval, int toInterval) {
+        return reader.kwInReader(fromInterval, toInterval);
+    }
+
+    @Override
+    public PartialProfileReader<Readings> kwOutReader(int fromInterval, int toInterval) {
+        return reader.kwOutReader(fromInterval, toInterval);
+    }
+
+    @Override
+    public PartialProfileReader<Boolean> isCacheableReader() {
+        return reader.isCacheableReader();
+    }
+
+    @Override
+    public PartialProfileReader<EnergyProfileStat> maximumsReader() {
+        return reader.maximumsReader();
+    }
+
+}
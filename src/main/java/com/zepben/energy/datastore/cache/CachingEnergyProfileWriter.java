@@ -0,0 +1,85 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.cache;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.datastore.EnergyProfileWriter;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.model.EnergyProfile;
+import com.zepben.energy.model.Readings;
+
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Invalidates profiles in an {@link EnergyProfileCache} as they are written through to another
+ * {@link EnergyProfileWriter}.
+ * <p>Profiles are invalidated when written, and again on commit and rollback in case the stored values were read back
+ * into the cache before the commit, or the uncommitted values before the rollback.
+ */
+@EverythingIsNonnullByDefault
+public class CachingEnergyProfileWriter implements EnergyProfileWriter {
+
+    private final EnergyProfileWriter writer;
+    private final EnergyProfileCache cache;
+    private final Map<LocalDate, Set<String>> uncommitted = new HashMap<>();
+
+    public CachingEnergyProfileWriter(EnergyProfileWriter writer, EnergyProfileCache cache) {
+        this.writer = writer;
+        this.cache = cache;
+    }
+
+    @Override
+    public boolean write(EnergyProfile profile, boolean writeStats, ErrorHandler onError) {
+        invalidate(profile.id(), profile.date());
+        return writer.write(profile, writeStats, onError);
+    }
+
+    @Override
+    public boolean commit(ErrorHandler onError) {
+        boolean status = writer.commit(onError);
+        uncommitted.forEach((date, ids) -> ids.forEach(id -> cache.invalidate(id, date)));
+        uncommitted.clear();
+        return status;
+    }
+
+    @Override
+    public boolean rollback(ErrorHandler onError) {
+        uncommitted.forEach((date, ids) -> ids.forEach(id -> cache.invalidate(id, date)));
+        uncommitted.clear();
+        return writer.rollback(onError);
+    }
+
+    @Override
+    public boolean writeKwIn(String id, LocalDate date, Readings readings, ErrorHandler onError) {
+        invalidate(id, date);
+        return writer.writeKwIn(id, date, readings, onError);
+    }
+
+    @Override
+    public boolean writeKwOut(String id, LocalDate date, Readings readings, ErrorHandler onError) {
+        invalidate(id, date);
+        return writer.writeKwOut(id, date, readings, onError);
+    }
+
+    @Override
+    public boolean writeCacheable(String id, LocalDate date, boolean cacheable, ErrorHandler onError) {
+        invalidate(id, date);
+        return writer.writeCacheable(id, date, cacheable, onError);
+    }
+
+    private void invalidate(String id, LocalDate date) {
+        cache.invalidate(id, date);
+        uncommitted.computeIfAbsent(date, d -> new HashSet<>()).add(id);
+    }
+
+}
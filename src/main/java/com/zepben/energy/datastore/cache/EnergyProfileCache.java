@@ -0,0 +1,266 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.cache;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.model.EnergyProfile;
+
+import javax.annotation.Nullable;
+import java.time.LocalDate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A memory bounded cache of energy profiles using a segmented LRU eviction policy.
+ * <p>New profiles are admitted to a probation segment and are only promoted to the protected segment when they are
+ * read again. This stops a one off scan from pushing out the profiles that are read repeatedly. Both segments are
+ * bounded by the estimated size of the profiles they hold rather than by a count.
+ * <p>Only profiles flagged as {@link EnergyProfile#cacheable()} are admitted.
+ * <p>Profiles read from a backing store should be added with {@link #put(EnergyProfile, Generation)}, using a
+ * {@link #generation()} taken before they were read. This stops a profile that was read before a concurrent
+ * {@link #invalidate} from being added back after it.
+ */
+@EverythingIsNonnullByDefault
+public class EnergyProfileCache {
+
+    // Rough object overheads for the profile, its id string and readings wrappers.
+    private static final long PROFILE_OVERHEAD = 128;
+    private static final double PROTECTED_RATIO = 0.8;
+    // Invalidations are counted in stripes of the keys, so a read only loses its put to invalidations that may have
+    // touched its profiles. Must be a power of 2.
+    private static final int GENERATION_STRIPES = 64;
+
+    private final long maxBytes;
+    private final long maxProtectedBytes;
+
+    private final LinkedHashMap<Key, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes = 0;
+    private long protectedBytes = 0;
+    private final long[] generations = new long[GENERATION_STRIPES];
+
+    private long hits = 0;
+    private long misses = 0;
+
+    public EnergyProfileCache(long maxBytes) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes must be greater than 0");
+
+        this.maxBytes = maxBytes;
+        this.maxProtectedBytes = (long) (maxBytes * PROTECTED_RATIO);
+    }
+
+    public static long estimateSize(EnergyProfile profile) {
+        return PROFILE_OVERHEAD + 2L * profile.id().length() + profile.kwIn().estimatedSize() + profile.kwOut().estimatedSize();
+    }
+
+    @Nullable
+    public synchronized EnergyProfile get(String id, LocalDate date) {
+        Key key = new Key(id, date);
+        Entry entry = protectedSegment.get(key);
+        if (entry == null) {
+            entry = probation.remove(key);
+            if (entry == null) {
+                ++misses;
+                return null;
+            }
+
+            probationBytes -= entry.size;
+            addProtected(key, entry);
+        }
+
+        ++hits;
+        return entry.profile;
+    }
+
+    /**
+     * Adds the profile to the cache if it is cacheable and fits.
+     *
+     * @return true if the profile was admitted to the cache.
+     */
+    public synchronized boolean put(EnergyProfile profile) {
+        if (!profile.cacheable())
+            return false;
+
+        long size = estimateSize(profile);
+        if (size > maxBytes)
+            return false;
+
+        Key key = new Key(profile.id(), profile.date());
+        remove(key);
+
+        probation.put(key, new Entry(profile, size));
+        probationBytes += size;
+        evict();
+        return true;
+    }
+
+    /**
+     * Adds the profile to the cache if it is cacheable and fits, and the id and date have not been invalidated since the
+     * generation was taken.
+     *
+     * @return true if the profile was admitted to the cache.
+     */
+    public synchronized boolean put(EnergyProfile profile, Generation generation) {
+        int stripe = stripe(profile.id(), profile.date());
+        if (generations[stripe] != generation.stripes[stripe])
+            return false;
+
+        return put(profile);
+    }
+
+    /**
+     * @return a snapshot of the invalidations made so far, to pass to {@link #put(EnergyProfile, Generation)}.
+     */
+    public synchronized Generation generation() {
+        return new Generation(generations.clone());
+    }
+
+    public synchronized void invalidate(String id, LocalDate date) {
+        ++generations[stripe(id, date)];
+        remove(new Key(id, date));
+    }
+
+    public synchronized void invalidateAll() {
+        for (int i = 0; i < GENERATION_STRIPES; ++i)
+            ++generations[i];
+
+        probation.clear();
+        protectedSegment.clear();
+        probationBytes = 0;
+        protectedBytes = 0;
+    }
+
+    public synchronized int size() {
+        return probation.size() + protectedSegment.size();
+    }
+
+    public synchronized long sizeBytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    private void addProtected(Key key, Entry entry) {
+        protectedSegment.put(key, entry);
+        protectedBytes += entry.size;
+
+        // Demote the least recently used protected entries back to probation to make room.
+        Iterator<Map.Entry<Key, Entry>> it = protectedSegment.entrySet().iterator();
+        while (protectedBytes > maxProtectedBytes && it.hasNext()) {
+            Map.Entry<Key, Entry> lru = it.next();
+            if (lru.getKey().equals(key))
+                break;
+
+            it.remove();
+            protectedBytes -= lru.getValue().size;
+            probation.put(lru.getKey(), lru.getValue());
+            probationBytes += lru.getValue().size;
+        }
+
+        evict();
+    }
+
+    private void evict() {
+        evictFrom(probation, true);
+        evictFrom(protectedSegment, false);
+    }
+
+    private void evictFrom(LinkedHashMap<Key, Entry> segment, boolean isProbation) {
+        Iterator<Entry> it = segment.values().iterator();
+        while (probationBytes + protectedBytes > maxBytes && it.hasNext()) {
+            Entry lru = it.next();
+            it.remove();
+            if (isProbation)
+                probationBytes -= lru.size;
+            else
+                protectedBytes -= lru.size;
+        }
+    }
+
+    private static int stripe(String id, LocalDate date) {
+        return (31 * id.hashCode() + date.hashCode()) & (GENERATION_STRIPES - 1);
+    }
+
+    private void remove(Key key) {
+        Entry entry = probation.remove(key);
+        if (entry != null)
+            probationBytes -= entry.size;
+
+        entry = protectedSegment.remove(key);
+        if (entry != null)
+            protectedBytes -= entry.size;
+    }
+
+    /**
+     * A snapshot of the invalidations made to a cache.
+     */
+    @EverythingIsNonnullByDefault
+    public static final class Generation {
+
+        private final long[] stripes;
+
+        private Generation(long[] stripes) {
+            this.stripes = stripes;
+        }
+
+    }
+
+    @EverythingIsNonnullByDefault
+    private static final class Key {
+
+        private final String id;
+        private final LocalDate date;
+
+        Key(String id, LocalDate date) {
+            this.id = id;
+            this.date = date;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return id.equals(key.id) && date.equals(key.date);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, date);
+        }
+
+    }
+
+    @EverythingIsNonnullByDefault
+    private static final class Entry {
+
+        private final EnergyProfile profile;
+        private final long size;
+
+        Entry(EnergyProfile profile, long size) {
+            this.profile = profile;
+            this.size = size;
+        }
+
+    }
+
+}
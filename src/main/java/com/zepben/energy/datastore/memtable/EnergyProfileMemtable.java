@@ -0,0 +1,448 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.memtable;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.datastore.EnergyProfileReader;
+import com.zepben.energy.datastore.EnergyProfileWriter;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.model.Channel;
+import com.zepben.energy.model.EnergyProfile;
+import com.zepben.energy.model.MissingReadings;
+import com.zepben.energy.model.Readings;
+
+import javax.annotation.Nullable;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Holds interval appends to profiles in memory until they are flushed to an {@link EnergyProfileWriter}, so profiles
+ * that are reported a few intervals at a time through the day are not rewritten on every report.
+ * <p>Appended intervals are overlaid on the stored profile when read through a {@link MemtableEnergyProfileReader}, and
+ * when flushed, where each profile is read and written once with every interval appended since the last flush. Profiles
+ * are written with stats once every interval of them has been appended, and without them until then.
+ * <p>The stores can't mark single intervals as missing, so a side of a profile is only flushed once every interval of it
+ * has either been appended or is in the stored profile. Until then it stays in memory, rather than being written with
+ * zeros for the intervals that haven't been reported. Reads through the memtable show those intervals as 0. Appends are
+ * also kept rather than flushed if the stored profile has a different number of channels or intervals, so neither the
+ * appends nor the stored readings are lost.
+ * <p>Appends and reads are safe from multiple threads, but only one thread should flush at a time, as the writer is
+ * not safe to use from multiple threads.
+ */
+@EverythingIsNonnullByDefault
+public class EnergyProfileMemtable {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 10_000;
+
+    private final EnergyProfileReader reader;
+    private final EnergyProfileWriter writer;
+    private final int intervalsPerDay;
+    private final int maxBatchSize;
+    private final Map<LocalDate, Map<String, Row>> rows = new HashMap<>();
+
+    public EnergyProfileMemtable(EnergyProfileReader reader, EnergyProfileWriter writer, int intervalsPerDay) {
+        this(reader, writer, intervalsPerDay, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * @param reader          the reader of the stored profiles the appends are overlaid on.
+     * @param intervalsPerDay the number of intervals in each profile, e.g. 48 for 30 minute readings.
+     * @param maxBatchSize    the max number of profiles written in each commit when flushing.
+     */
+    public EnergyProfileMemtable(EnergyProfileReader reader, EnergyProfileWriter writer, int intervalsPerDay, int maxBatchSize) {
+        if (intervalsPerDay < 1)
+            throw new IllegalArgumentException("intervalsPerDay must be at least 1");
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+
+        this.reader = reader;
+        this.writer = writer;
+        this.intervalsPerDay = intervalsPerDay;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public int intervalsPerDay() {
+        return intervalsPerDay;
+    }
+
+    /**
+     * Appends readings to a profile, starting at the given interval. Either set of readings may be null to only append
+     * to the other one, and later appends replace the values of intervals that were appended before.
+     *
+     * @param fromInterval the 0 based interval of the first value.
+     * @return true if the readings were appended, false if they did not fit in the profile or did not have the same
+     * number of channels as earlier appends, which is reported to the error handler.
+     */
+    public boolean append(String id,
+                          LocalDate date,
+                          int fromInterval,
+                          @Nullable Readings kwIn,
+                          @Nullable Readings kwOut,
+                          ErrorHandler onError) {
+        if (!fits(id, date, fromInterval, kwIn, onError) || !fits(id, date, fromInterval, kwOut, onError))
+            return false;
+
+        if (!hasValues(kwIn) && !hasValues(kwOut))
+            return true;
+
+        synchronized (this) {
+            Row row = rows.computeIfAbsent(date, d -> new HashMap<>()).computeIfAbsent(id, i -> new Row());
+            if (!row.kwIn.canAppend(kwIn) || !row.kwOut.canAppend(kwOut)) {
+                onError.handle(id, date, "Appended readings have a different number of channels to earlier appends", null);
+                return false;
+            }
+
+            row.kwIn.append(fromInterval, kwIn, intervalsPerDay);
+            row.kwOut.append(fromInterval, kwOut, intervalsPerDay);
+            ++row.version;
+            return true;
+        }
+    }
+
+    /**
+     * @return the number of profiles with appends that have not been flushed.
+     */
+    public synchronized int size() {
+        return rows.values().stream().mapToInt(Map::size).sum();
+    }
+
+    /**
+     * @return true if there are unflushed appends for the profile.
+     */
+    public synchronized boolean contains(String id, LocalDate date) {
+        Map<String, Row> dateRows = rows.get(date);
+        return dateRows != null && dateRows.containsKey(id);
+    }
+
+    /**
+     * @return the ids with unflushed appends on the date.
+     */
+    public synchronized Set<String> ids(LocalDate date) {
+        Map<String, Row> dateRows = rows.get(date);
+        return dateRows == null ? Collections.emptySet() : new HashSet<>(dateRows.keySet());
+    }
+
+    /**
+     * @return the ids with unflushed appends on any date.
+     */
+    public synchronized Set<String> ids() {
+        Set<String> ids = new HashSet<>();
+        rows.values().forEach(dateRows -> ids.addAll(dateRows.keySet()));
+        return ids;
+    }
+
+    /**
+     * @return the dates with unflushed appends for the id.
+     */
+    public synchronized SortedSet<LocalDate> dates(String id) {
+        SortedSet<LocalDate> dates = new TreeSet<>();
+        rows.forEach((date, dateRows) -> {
+            if (dateRows.containsKey(id))
+                dates.add(date);
+        });
+        return dates;
+    }
+
+    /**
+     * Overlays any unflushed appends on a stored profile.
+     *
+     * @param stored the stored profile, or null if there isn't one.
+     * @return the profile with the appends overlaid, the stored profile if there were none, or null if there was
+     * neither.
+     */
+    @Nullable
+    public EnergyProfile overlay(String id, LocalDate date, @Nullable EnergyProfile stored) {
+        Snapshot snapshot = snapshot(id, date);
+        return snapshot == null ? stored : snapshot.overlay(id, date, stored);
+    }
+
+    /**
+     * Writes every profile with unflushed appends, except partial profiles that have nothing stored for the intervals
+     * that haven't been appended, which are kept in memory until they can be written.
+     *
+     * @return true if everything that could be written was written and committed.
+     */
+    public boolean flush(ErrorHandler onError) {
+        return flush(false, onError);
+    }
+
+    /**
+     * Writes only the profiles that have had every interval appended, leaving partial profiles in memory.
+     *
+     * @return true if every complete profile was written and committed.
+     */
+    public boolean flushComplete(ErrorHandler onError) {
+        return flush(true, onError);
+    }
+
+    private boolean flush(boolean completeOnly, ErrorHandler onError) {
+        Map<LocalDate, Map<String, Snapshot>> toFlush = new TreeMap<>();
+        synchronized (this) {
+            rows.forEach((date, dateRows) -> dateRows.forEach((id, row) -> {
+                if (!completeOnly || row.isComplete())
+                    toFlush.computeIfAbsent(date, d -> new TreeMap<>()).put(id, row.snapshot());
+            }));
+        }
+
+        boolean status = true;
+        for (Map.Entry<LocalDate, Map<String, Snapshot>> entry : toFlush.entrySet()) {
+            List<String> ids = new ArrayList<>(entry.getValue().keySet());
+            for (int from = 0; from < ids.size(); from += maxBatchSize) {
+                Map<String, Snapshot> batch = new TreeMap<>();
+                ids.subList(from, Math.min(from + maxBatchSize, ids.size())).forEach(id -> batch.put(id, entry.getValue().get(id)));
+                status = flushBatch(entry.getKey(), batch, onError) && status;
+            }
+        }
+
+        return status;
+    }
+
+    private boolean flushBatch(LocalDate date, Map<String, Snapshot> batch, ErrorHandler onError) {
+        Map<String, EnergyProfile> stored = new HashMap<>();
+        reader.forEach(batch.keySet(), date, (id, dt, profile) -> stored.put(id, profile), onError);
+
+        Map<String, Snapshot> written = new HashMap<>();
+        int numWaiting = 0;
+        for (Map.Entry<String, Snapshot> entry : batch.entrySet()) {
+            String id = entry.getKey();
+            Snapshot snapshot = entry.getValue();
+            EnergyProfile storedProfile = stored.get(id);
+            if (!snapshot.fits(storedProfile))
+                onError.handle(id, date, "Stored readings have a different number of channels or intervals to the appended readings", null);
+            else if (!snapshot.isFilledBy(storedProfile))
+                ++numWaiting;
+            else if (writer.write(Objects.requireNonNull(snapshot.overlay(id, date, storedProfile)), snapshot.complete, onError))
+                written.put(id, snapshot);
+        }
+
+        if (written.isEmpty())
+            return numWaiting == batch.size();
+
+        if (!writer.commit(onError)) {
+            writer.rollback(onError);
+            return false;
+        }
+
+        // Rows that were appended to while they were being flushed are kept so the new appends are flushed next time.
+        synchronized (this) {
+            Map<String, Row> dateRows = rows.get(date);
+            if (dateRows != null) {
+                written.forEach((id, snapshot) -> {
+                    Row row = dateRows.get(id);
+                    if (row != null && row.version == snapshot.version)
+                        dateRows.remove(id);
+                });
+
+                if (dateRows.isEmpty())
+                    rows.remove(date);
+            }
+        }
+
+        return written.size() + numWaiting == batch.size();
+    }
+
+    @Nullable
+    private synchronized Snapshot snapshot(String id, LocalDate date) {
+        Map<String, Row> dateRows = rows.get(date);
+        Row row = dateRows == null ? null : dateRows.get(id);
+        return row == null ? null : row.snapshot();
+    }
+
+    private static boolean hasValues(@Nullable Readings readings) {
+        return readings != null && !(readings instanceof MissingReadings) && readings.length() > 0;
+    }
+
+    private boolean fits(String id, LocalDate date, int fromInterval, @Nullable Readings readings, ErrorHandler onError) {
+        if (!hasValues(readings))
+            return true;
+
+        if (fromInterval < 0 || fromInterval + readings.length() > intervalsPerDay) {
+            onError.handle(id, date, String.format("Appended readings for intervals %d to %d do not fit in a profile of %d intervals",
+                fromInterval, fromInterval + readings.length() - 1, intervalsPerDay), null);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * The appended values of one side (kW in or kW out) of a profile.
+     */
+    @EverythingIsNonnullByDefault
+    private static class Appends {
+
+        // Indexed by [channel - 1][interval], null until something is appended.
+        @Nullable private double[][] values = null;
+        private final BitSet appended = new BitSet();
+
+        boolean canAppend(@Nullable Readings readings) {
+            return !hasValues(readings) || values == null || values.length == readings.numChannels();
+        }
+
+        boolean isComplete() {
+            return values != null && appended.cardinality() == values[0].length;
+        }
+
+        /**
+         * @return true if the stored readings are missing or have the same number of channels and intervals as the appends.
+         */
+        boolean fits(@Nullable Readings stored) {
+            double[][] appendedValues = Objects.requireNonNull(values);
+            return !hasValues(stored) || (stored.numChannels() == appendedValues.length && stored.length() == appendedValues[0].length);
+        }
+
+        void append(int fromInterval, @Nullable Readings readings, int intervalsPerDay) {
+            if (!hasValues(readings))
+                return;
+
+            if (values == null)
+                values = new double[readings.numChannels()][intervalsPerDay];
+
+            for (int c = 1, n = readings.numChannels(); c <= n; ++c) {
+                Channel channel = readings.channel(c);
+                for (int i = 0, len = channel.length(); i < len; ++i)
+                    values[c - 1][fromInterval + i] = channel.get(i);
+            }
+            appended.set(fromInterval, fromInterval + readings.length());
+        }
+
+        @Nullable
+        Appends copy() {
+            if (values == null)
+                return null;
+
+            Appends copy = new Appends();
+            copy.values = new double[values.length][];
+            for (int c = 0; c < values.length; ++c)
+                copy.values[c] = values[c].clone();
+            copy.appended.or(appended);
+            return copy;
+        }
+
+        /**
+         * @param stored the stored readings, which are only used if they {@link #fits fit} the appends. Intervals that
+         *               are in neither are 0.
+         */
+        Readings overlay(@Nullable Readings stored) {
+            double[][] appendedValues = Objects.requireNonNull(values);
+            int intervalsPerDay = appendedValues[0].length;
+            boolean useStored = hasValues(stored) && fits(stored);
+
+            Channel[] channels = new Channel[appendedValues.length];
+            for (int c = 0; c < appendedValues.length; ++c) {
+                double[] channel = new double[intervalsPerDay];
+                if (useStored) {
+                    Channel storedChannel = stored.channel(c + 1);
+                    for (int i = 0; i < intervalsPerDay; ++i)
+                        channel[i] = storedChannel.get(i);
+                }
+
+                for (int i = appended.nextSetBit(0); i >= 0; i = appended.nextSetBit(i + 1))
+                    channel[i] = appendedValues[c][i];
+
+                channels[c] = Channel.of(channel);
+            }
+
+            return Readings.of(channels);
+        }
+
+    }
+
+    @EverythingIsNonnullByDefault
+    private static class Row {
+
+        private final Appends kwIn = new Appends();
+        private final Appends kwOut = new Appends();
+        private int version = 0;
+
+        boolean isComplete() {
+            return (kwIn.values != null || kwOut.values != null)
+                && (kwIn.values == null || kwIn.isComplete())
+                && (kwOut.values == null || kwOut.isComplete());
+        }
+
+        Snapshot snapshot() {
+            return new Snapshot(kwIn.copy(), kwOut.copy(), isComplete(), version);
+        }
+
+    }
+
+    /**
+     * A copy of a row that can be overlaid on the stored profile without holding the lock.
+     */
+    @EverythingIsNonnullByDefault
+    private static class Snapshot {
+
+        @Nullable private final Appends kwIn;
+        @Nullable private final Appends kwOut;
+        private final boolean complete;
+        private final int version;
+
+        Snapshot(@Nullable Appends kwIn, @Nullable Appends kwOut, boolean complete, int version) {
+            this.kwIn = kwIn;
+            this.kwOut = kwOut;
+            this.complete = complete;
+            this.version = version;
+        }
+
+        /**
+         * @return true if the stored profile can be written with the appends without losing any of its readings, i.e.
+         * each stored side has the same number of channels and intervals as the appends, or is missing.
+         */
+        boolean fits(@Nullable EnergyProfile stored) {
+            if (stored == null)
+                return true;
+
+            Appends appends = kwIn != null ? kwIn : Objects.requireNonNull(kwOut);
+            int intervalsPerDay = Objects.requireNonNull(appends.values)[0].length;
+            return fits(kwIn, stored.kwIn(), intervalsPerDay) && fits(kwOut, stored.kwOut(), intervalsPerDay);
+        }
+
+        /**
+         * @return true if every interval of the appended sides has either been appended or is in the stored profile.
+         */
+        boolean isFilledBy(@Nullable EnergyProfile stored) {
+            return (kwIn == null || kwIn.isComplete() || (stored != null && hasValues(stored.kwIn())))
+                && (kwOut == null || kwOut.isComplete() || (stored != null && hasValues(stored.kwOut())));
+        }
+
+        @Nullable
+        EnergyProfile overlay(String id, LocalDate date, @Nullable EnergyProfile stored) {
+            if (kwIn == null && kwOut == null)
+                return stored;
+
+            Readings storedKwIn = stored == null ? null : stored.kwIn();
+            Readings storedKwOut = stored == null ? null : stored.kwOut();
+            Readings newKwIn = kwIn == null ? usable(storedKwIn) : kwIn.overlay(storedKwIn);
+            Readings newKwOut = kwOut == null ? usable(storedKwOut) : kwOut.overlay(storedKwOut);
+
+            // A stored side that doesn't line up with the appended side is dropped rather than failing the whole read.
+            // Profiles are only flushed if their stored sides fit, so this never loses stored readings.
+            if (newKwIn != null && newKwOut != null && newKwIn.length() != newKwOut.length()) {
+                if (kwIn == null)
+                    newKwIn = null;
+                else
+                    newKwOut = null;
+            }
+
+            return EnergyProfile.of(id, date, newKwIn, newKwOut, stored != null && stored.cacheable());
+        }
+
+        private static boolean fits(@Nullable Appends appends, Readings stored, int intervalsPerDay) {
+            return appends != null ? appends.fits(stored) : !hasValues(stored) || stored.length() == intervalsPerDay;
+        }
+
+        @Nullable
+        private static Readings usable(@Nullable Readings readings) {
+            return readings instanceof MissingReadings ? null : readings;
+        }
+
+    }
+
+}
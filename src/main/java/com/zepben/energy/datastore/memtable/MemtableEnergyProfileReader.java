@@ -0,0 +1,290 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.memtable;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.energy.datastore.AggregateSpec;
+import com.zepben.energy.datastore.EnergyProfilePage;
+import com.zepben.energy.datastore.EnergyProfileReader;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.IntervalColumn;
+import com.zepben.energy.datastore.ItemHandler;
+import com.zepben.energy.datastore.PartialProfileReader;
+import com.zepben.energy.datastore.ProfileRanking;
+import com.zepben.energy.datastore.QueryStats;
+import com.zepben.energy.model.EnergyProfile;
+import com.zepben.energy.model.EnergyProfileStat;
+import com.zepben.energy.model.IdDateRange;
+import com.zepben.energy.model.Readings;
+
+import javax.annotation.Nullable;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Reads profiles from another {@link EnergyProfileReader} with the unflushed appends of an {@link EnergyProfileMemtable}
+ * overlaid on them.
+ * <p>Profile reads ({@link #get}, {@link #forEach}, {@link #forAll} and the series reads) and date ranges include the
+ * appends, as do profiles that only exist in the memtable. Pages, reads of a single interval, top-K rankings, aggregates
+ * and the partial profile readers are passed straight through, so they only see profiles once they have been flushed.
+ */
+@EverythingIsNonnullByDefault
+public class MemtableEnergyProfileReader implements EnergyProfileReader {
+
+    private final EnergyProfileReader reader;
+    private final EnergyProfileMemtable memtable;
+
+    public MemtableEnergyProfileReader(EnergyProfileReader reader, EnergyProfileMemtable memtable) {
+        this.reader = reader;
+        this.memtable = memtable;
+    }
+
+    public EnergyProfileMemtable memtable() {
+        return memtable;
+    }
+
+    @Nullable
+    @Override
+    public IdDateRange getDateRange(String id) {
+        return withAppends(id, reader.getDateRange(id));
+    }
+
+    @Override
+    public void forEachGetDateRange(Collection<String> ids, Consumer<IdDateRange> handler) {
+        Set<String> seen = new HashSet<>();
+        reader.forEachGetDateRange(ids, range -> {
+            seen.add(range.id());
+            handler.accept(Objects.requireNonNull(withAppends(range.id(), range)));
+        });
+
+        rangesOfUnseen(ids, seen, handler);
+    }
+
+    @Override
+    public void forAllGetDateRange(Consumer<IdDateRange> handler) {
+        Set<String> seen = new HashSet<>();
+        reader.forAllGetDateRange(range -> {
+            seen.add(range.id());
+            handler.accept(Objects.requireNonNull(withAppends(range.id(), range)));
+        });
+
+        rangesOfUnseen(memtable.ids(), seen, handler);
+    }
+
+    @Override
+    public boolean exists(String id, LocalDate date) {
+        return memtable.contains(id, date) || reader.exists(id, date);
+    }
+
+    @Nullable
+    @Override
+    public EnergyProfile get(String id, LocalDate date, ErrorHandler onError) {
+        EnergyProfile stored = reader.get(id, date, onError);
+        return memtable.overlay(id, date, stored);
+    }
+
+    @Nullable
+    @Override
+    public EnergyProfile get(String id, LocalDate date, QueryStats stats, ErrorHandler onError) {
+        EnergyProfile stored = reader.get(id, date, stats, onError);
+        return memtable.overlay(id, date, stored);
+    }
+
+    @Override
+    public void forEach(Collection<String> ids, LocalDate date, ItemHandler<EnergyProfile> onRead, ErrorHandler onError) {
+        Set<String> appended = appendedIds(date, ids);
+        reader.forEach(ids, date, overlayHandler(appended, onRead), onError);
+        onlyAppended(date, appended, onRead);
+    }
+
+    @Override
+    public void forEach(Collection<String> ids,
+                        LocalDate date,
+                        QueryStats stats,
+                        ItemHandler<EnergyProfile> onRead,
+                        ErrorHandler onError) {
+        Set<String> appended = appendedIds(date, ids);
+        reader.forEach(ids, date, stats, overlayHandler(appended, onRead), onError);
+        onlyAppended(date, appended, onRead);
+    }
+
+    @Override
+    public void forAll(LocalDate date, ItemHandler<EnergyProfile> onRead, ErrorHandler onError) {
+        Set<String> appended = appendedIds(date, null);
+        reader.forAll(date, overlayHandler(appended, onRead), onError);
+        onlyAppended(date, appended, onRead);
+    }
+
+    @Override
+    public void forAll(LocalDate date, QueryStats stats, ItemHandler<EnergyProfile> onRead, ErrorHandler onError) {
+        Set<String> appended = appendedIds(date, null);
+        reader.forAll(date, stats, overlayHandler(appended, onRead), onError);
+        onlyAppended(date, appended, onRead);
+    }
+
+    @Override
+    public List<EnergyProfile> getSeries(String id, LocalDate from, LocalDate to, ErrorHandler onError) {
+        SortedSet<LocalDate> appendedDates = memtable.dates(id).subSet(from, to.plusDays(1));
+        List<EnergyProfile> series = reader.getSeries(id, from, to, onError);
+        if (appendedDates.isEmpty())
+            return series;
+
+        SortedMap<LocalDate, EnergyProfile> byDate = new TreeMap<>();
+        series.forEach(profile -> byDate.put(profile.date(), profile));
+        appendedDates.forEach(date -> {
+            EnergyProfile profile = memtable.overlay(id, date, byDate.get(date));
+            if (profile != null)
+                byDate.put(date, profile);
+        });
+
+        return new ArrayList<>(byDate.values());
+    }
+
+    /**
+     * Passed straight through unless some of the ids have appends in the range, in which case each date is read with
+     * {@link #forEach} so the profiles are still passed to the handler in date order.
+     */
+    @Override
+    public void forEachSeries(Collection<String> ids,
+                              LocalDate from,
+                              LocalDate to,
+                              ItemHandler<EnergyProfile> onRead,
+                              ErrorHandler onError) {
+        boolean hasAppends = ids.stream().anyMatch(id -> !memtable.dates(id).subSet(from, to.plusDays(1)).isEmpty());
+        if (!hasAppends) {
+            reader.forEachSeries(ids, from, to, onRead, onError);
+            return;
+        }
+
+        for (LocalDate date = from; !date.isAfter(to); date = date.plusDays(1))
+            forEach(ids, date, onRead, onError);
+    }
+
+    @Override
+    public EnergyProfilePage forAllPage(LocalDate date,
+                                        @Nullable String continuationToken,
+                                        int pageSize,
+                                        ErrorHandler onError) {
+        return reader.forAllPage(date, continuationToken, pageSize, onError);
+    }
+
+    @Override
+    public void aggregate(Map<String, String> groupMapping,
+                          LocalDate from,
+                          LocalDate to,
+                          AggregateSpec spec,
+                          ItemHandler<Readings> onAggregate,
+                          ErrorHandler onError) {
+        reader.aggregate(groupMapping, from, to, spec, onAggregate, onError);
+    }
+
+    @Override
+    public ProfileRanking topK(LocalDate from,
+                               LocalDate to,
+                               int k,
+                               ToDoubleFunction<EnergyProfileStat> value,
+                               ErrorHandler onError) {
+        return reader.topK(from, to, k, value, onError);
+    }
+
+    @Override
+    public IntervalColumn forAllAtInterval(LocalDate date, int interval, ErrorHandler onError) {
+        return reader.forAllAtInterval(date, interval, onError);
+    }
+
+    @Override
+    public void forAllCacheable(LocalDate date, ItemHandler<EnergyProfile> onRead, ErrorHandler onError) {
+        reader.forAllCacheable(date, onRead, onError);
+    }
+
+    @Override
+    public PartialProfileReader<Readings> kwInReader() {
+        return reader.kwInReader();
+    }
+
+    @Override
+    public PartialProfileReader<Readings> kwOutReader() {
+        return reader.kwOutReader();
+    }
+
+    @Override
+    public PartialProfileReader<Readings> kwInReader(int fromInterval, int toInterval) {
+        return reader.kwInReader(fromInterval, toInterval);
+    }
+
+    @Override
+    public PartialProfileReader<Readings> kwOutReader(int fromInterval, int toInterval) {
+        return reader.kwOutReader(fromInterval, toInterval);
+    }
+
+    @Override
+    public PartialProfileReader<Boolean> isCacheableReader() {
+        return reader.isCacheableReader();
+    }
+
+    @Override
+    public PartialProfileReader<EnergyProfileStat> maximumsReader() {
+        return reader.maximumsReader();
+    }
+
+    /**
+     * @param ids the ids being read, or null for all ids on the date.
+     * @return the ids with appends on the date, in a set that is safe to update from the threads of the backing reader.
+     */
+    private Set<String> appendedIds(LocalDate date, @Nullable Collection<String> ids) {
+        Set<String> appended = ConcurrentHashMap.newKeySet();
+        appended.addAll(memtable.ids(date));
+        if (ids != null && !appended.isEmpty())
+            appended.retainAll(ids instanceof Set ? ids : new HashSet<>(ids));
+        return appended;
+    }
+
+    /**
+     * Overlays the appends on the stored profiles that have them, removing them from the set of appended ids so the
+     * ones that were not stored can be read from the memtable afterwards.
+     */
+    private ItemHandler<EnergyProfile> overlayHandler(Set<String> appended, ItemHandler<EnergyProfile> onRead) {
+        return (id, date, profile) -> {
+            if (appended.remove(id))
+                profile = Objects.requireNonNull(memtable.overlay(id, date, profile));
+
+            onRead.handle(id, date, profile);
+        };
+    }
+
+    private void onlyAppended(LocalDate date, Set<String> appended, ItemHandler<EnergyProfile> onRead) {
+        appended.stream().sorted().forEach(id -> {
+            EnergyProfile profile = memtable.overlay(id, date, null);
+            if (profile != null)
+                onRead.handle(id, date, profile);
+        });
+    }
+
+    private void rangesOfUnseen(Collection<String> ids, Set<String> seen, Consumer<IdDateRange> handler) {
+        ids.forEach(id -> {
+            if (!seen.contains(id)) {
+                IdDateRange range = withAppends(id, null);
+                if (range != null)
+                    handler.accept(range);
+            }
+        });
+    }
+
+    @Nullable
+    private IdDateRange withAppends(String id, @Nullable IdDateRange range) {
+        for (LocalDate date : memtable.dates(id))
+            range = range == null ? IdDateRange.ofDate(id, date) : range.withDate(date);
+
+        return range;
+    }
+
+}
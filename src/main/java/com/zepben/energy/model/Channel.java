@@ -41,6 +41,15 @@ public abstract class Channel implements DoubleArrayView {
         return new FloatChannel(values);
     }
 
+    /**
+     * Estimates the number of bytes used to hold the values of this channel. Used when weighing profiles held in memory.
+     *
+     * @return the estimated size in bytes.
+     */
+    public long estimatedSize() {
+        return 8L * length();
+    }
+
     @Override
     public boolean equals(@Nullable Object o) {
         if (this == o) return true;
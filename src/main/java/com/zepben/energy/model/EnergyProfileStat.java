@@ -26,7 +26,7 @@ public class EnergyProfileStat {
     }
 
     public static EnergyProfileStat ofMax(EnergyProfile profile) {
-        return accumulating(profile, Math::max, (l, v) -> v, 0, 0, Double.NEGATIVE_INFINITY);
+        return new MaximumsAccumulator().of(profile).toStat();
     }
 
     @SuppressWarnings("WeakerAccess")
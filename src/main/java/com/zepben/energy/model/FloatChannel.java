@@ -41,4 +41,9 @@ class FloatChannel extends Channel {
         return values[i];
     }
 
+    @Override
+    public long estimatedSize() {
+        return 4L * values.length;
+    }
+
 }
@@ -10,11 +10,18 @@ package com.zepben.energy.model;
 
 import com.zepben.annotations.EverythingIsNonnullByDefault;
 
+import javax.annotation.Nullable;
 import java.time.LocalDate;
+import java.util.BitSet;
 import java.util.Objects;
 
+import static java.time.temporal.ChronoUnit.DAYS;
+
 /**
  * Class that holds a date range represented by from and to dates.
+ * <p>A range may also know exactly which days within it have a profile, which lets gaps in the range be skipped. Only
+ * ranges with gaps hold their days. Ranges without days, either because they have no gaps or because they were indexed
+ * before days were tracked, assume every day in the range may have a profile.
  */
 @EverythingIsNonnullByDefault
 public final class IdDateRange {
@@ -22,8 +29,17 @@ public final class IdDateRange {
     private final String id;
     private final LocalDate from;
     private final LocalDate to;
+    @Nullable private final BitSet days;
 
     public IdDateRange(String id, LocalDate from, LocalDate to) {
+        this(id, from, to, null);
+    }
+
+    /**
+     * @param days the days that have a profile, where bit 0 is the earlier of from and to. Null if not known. Days
+     *             without any gaps are dropped, as they say no more than a range without days.
+     */
+    public IdDateRange(String id, LocalDate from, LocalDate to, @Nullable BitSet days) {
         this.id = id;
         if (from.isBefore(to)) {
             this.from = from;
@@ -32,6 +48,18 @@ public final class IdDateRange {
             this.from = to;
             this.to = from;
         }
+
+        int length = (int) DAYS.between(this.from, this.to) + 1;
+        this.days = days == null || days.nextClearBit(0) >= length ? null : days.get(0, length);
+    }
+
+    /**
+     * @return a range for an id that has only been seen on a single date.
+     */
+    public static IdDateRange ofDate(String id, LocalDate date) {
+        BitSet days = new BitSet();
+        days.set(0);
+        return new IdDateRange(id, date, date, days);
     }
 
     public String id() {
@@ -50,18 +78,86 @@ public final class IdDateRange {
         return !date.isBefore(from) && !date.isAfter(to);
     }
 
+    /**
+     * @return true if the range has gaps, which are known from its days.
+     */
+    public boolean hasDays() {
+        return days != null;
+    }
+
+    /**
+     * @return a copy of the days that have a profile, where bit 0 is {@link #from()}, or null if the range has no gaps
+     * or they are not known.
+     */
+    @Nullable
+    public BitSet days() {
+        return days == null ? null : (BitSet) days.clone();
+    }
+
+    /**
+     * @return true if the id may have a profile on the date. This is exact if the days of the range are known,
+     * otherwise it is the same as {@link #isInRange(LocalDate)}.
+     */
+    public boolean hasDate(LocalDate date) {
+        if (!isInRange(date))
+            return false;
+
+        return days == null || days.get((int) DAYS.between(from, date));
+    }
+
+    /**
+     * @return a range that includes the date, extending the range if needed. The days between the range and the date
+     * are left as a gap, with every day of a range without days treated as having a profile.
+     */
+    public IdDateRange withDate(LocalDate date) {
+        if (hasDate(date))
+            return this;
+
+        LocalDate newFrom = date.isBefore(from) ? date : from;
+        LocalDate newTo = date.isAfter(to) ? date : to;
+        int shift = (int) DAYS.between(newFrom, from);
+        BitSet newDays = new BitSet();
+        if (days == null)
+            newDays.set(shift, shift + (int) DAYS.between(from, to) + 1);
+        else
+            days.stream().forEach(day -> newDays.set(day + shift));
+        newDays.set((int) DAYS.between(newFrom, date));
+        return new IdDateRange(id, newFrom, newTo, newDays);
+    }
+
+    /**
+     * @return a range over the given dates. Known days outside them are dropped, and the days the range is extended by
+     * are assumed to have a profile, as nothing is known about them.
+     */
+    public IdDateRange withRange(LocalDate newFrom, LocalDate newTo) {
+        if (days == null)
+            return new IdDateRange(id, newFrom, newTo);
+
+        IdDateRange range = new IdDateRange(id, newFrom, newTo);
+        int length = (int) DAYS.between(range.from, range.to) + 1;
+        int shift = (int) DAYS.between(range.from, from);
+        BitSet newDays = new BitSet();
+        for (int day = 0; day < length; ++day) {
+            int oldDay = day - shift;
+            if (oldDay < 0 || oldDay > DAYS.between(from, to) || days.get(oldDay))
+                newDays.set(day);
+        }
+        return new IdDateRange(id, range.from, range.to, newDays);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         IdDateRange idDateRange = (IdDateRange) o;
         return Objects.equals(from, idDateRange.from) &&
-            Objects.equals(to, idDateRange.to);
+            Objects.equals(to, idDateRange.to) &&
+            Objects.equals(days, idDateRange.days);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(from, to);
+        return Objects.hash(from, to, days);
     }
 
 }
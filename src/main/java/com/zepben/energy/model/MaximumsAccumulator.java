@@ -0,0 +1,69 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.model;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+
+/**
+ * Calculates the maximums of profiles in place, so they can be calculated for many profiles without allocating an
+ * {@link EnergyProfileStat} for each of them.
+ * <p>The values are replaced by each call to {@link #of}, so they should only be read by code that is done with them
+ * before the next call, such as a serialiser. Use {@link #toStat} for a stat that can be kept.
+ */
+@EverythingIsNonnullByDefault
+public class MaximumsAccumulator {
+
+    private double kwIn = 0;
+    private double kwOut = 0;
+    private double kwNet = 0;
+
+    /**
+     * Replaces the values with the maximums of the profile.
+     *
+     * @return this accumulator.
+     */
+    public MaximumsAccumulator of(EnergyProfile profile) {
+        int len = profile.kwIn().length();
+        if (len == 0)
+            throw new IllegalArgumentException("profile must have readings with a length");
+
+        kwIn = 0;
+        kwOut = 0;
+        kwNet = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < len; ++i) {
+            double in = profile.kwIn().get(i);
+            double out = profile.kwOut().get(i);
+            kwIn = Math.max(kwIn, in);
+            kwOut = Math.max(kwOut, out);
+            kwNet = Math.max(kwNet, in - out);
+        }
+
+        return this;
+    }
+
+    /**
+     * @return a stat of the current values that is not changed by later calls to {@link #of}.
+     */
+    public EnergyProfileStat toStat() {
+        return new EnergyProfileStat(kwIn, kwOut, kwNet);
+    }
+
+    public double kwIn() {
+        return kwIn;
+    }
+
+    public double kwOut() {
+        return kwOut;
+    }
+
+    public double kwNet() {
+        return kwNet;
+    }
+
+}
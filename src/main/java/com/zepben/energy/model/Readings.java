@@ -88,6 +88,18 @@ public abstract class Readings implements DoubleArrayView {
         }
     }
 
+    /**
+     * Estimates the number of bytes used to hold the values of all channels in these readings.
+     *
+     * @return the estimated size in bytes.
+     */
+    public long estimatedSize() {
+        long size = 0;
+        for (int i = 1, n = numChannels(); i <= n; ++i)
+            size += channel(i).estimatedSize();
+        return size;
+    }
+
     @Override
     public boolean equals(@Nullable Object o) {
         if (this == o) return true;
@@ -32,4 +32,10 @@ public class ZeroedChannel extends Channel {
         return 0;
     }
 
+    @Override
+    public long estimatedSize() {
+        // Zeroed channels hold no values and are shared via the ZeroedChannelsCache.
+        return 0;
+    }
+
 }
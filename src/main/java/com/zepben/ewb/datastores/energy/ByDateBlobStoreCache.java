@@ -15,6 +15,7 @@ import com.zepben.blobstore.BlobStoreException;
 import com.zepben.blobstore.BlobWriter;
 import com.zepben.blobstore.itemwrappers.ByDateBlobReaderProvider;
 import com.zepben.blobstore.itemwrappers.ByDateBlobWriterProvider;
+import com.zepben.energy.datastore.QueryStats;
 
 import javax.annotation.Nullable;
 import java.time.LocalDate;
@@ -63,8 +64,13 @@ class ByDateBlobStoreCache implements ByDateBlobWriterProvider, ByDateBlobReader
         BlobStore store = cache.get(date);
         if (store == null) {
             store = factory.get(date, timeZone, createIfNotExists);
-            if (store != null)
+            if (store != null) {
                 cache.put(date, store);
+
+                QueryStats stats = QueryStats.current();
+                if (stats != null)
+                    stats.storeOpened();
+            }
         }
         return store;
     }
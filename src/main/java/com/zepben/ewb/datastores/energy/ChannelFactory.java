@@ -16,4 +16,11 @@ interface ChannelFactory {
 
     Channel create(double... values);
 
+    /**
+     * @return the value as it would be held by a channel created by this factory.
+     */
+    default double valueOf(double value) {
+        return create(value).get(0);
+    }
+
 }
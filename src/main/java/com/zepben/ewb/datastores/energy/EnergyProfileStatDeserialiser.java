@@ -14,34 +14,37 @@ import com.zepben.energy.datastore.blobstore.Deserialiser;
 import com.zepben.energy.model.EnergyProfileStat;
 
 import javax.annotation.Nullable;
-import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
+/**
+ * Deserialises an {@link EnergyProfileStat} that has been serialised by {@link EnergyProfileStatSerialiser}.
+ * <p>This class is thread safe, so stats can be read on multiple threads at once.
+ */
 @EverythingIsNonnullByDefault
 public class EnergyProfileStatDeserialiser implements Deserialiser<EnergyProfileStat> {
 
     private static final int NUM_STAT_VALUES = 3;
 
-    // Buffer has length of the number of stat values times the maximum 7 bit encoded long
-    private final ByteBuffer buffer = ByteBuffer.allocate(NUM_STAT_VALUES * 9);
+    // The number of stat values times the maximum 7 bit encoded long
+    private static final int MAX_LENGTH = NUM_STAT_VALUES * 9;
 
     @Nullable
     @Override
     public EnergyProfileStat dsx(byte[] bytes, int offset, int length) {
-        buffer.clear();
+        if (length > MAX_LENGTH)
+            return null;
 
         try {
-            buffer.clear();
-            buffer.put(bytes, offset, length);
-            buffer.flip();
+            // The bytes are wrapped rather than copied into a shared buffer, so there is no state shared between calls.
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
 
             double kwIn = KToUnitCodec.unitToK(BytesUtil.INSTANCE.decode7BitLong(buffer));
             double kwOut = KToUnitCodec.unitToK(BytesUtil.INSTANCE.decode7BitLong(buffer));
             double kwNet = KToUnitCodec.unitToK(BytesUtil.INSTANCE.decode7BitLong(buffer));
 
             return new EnergyProfileStat(kwIn, kwOut, kwNet);// Need to remove id and date from profile stat class
-        } catch (BufferUnderflowException | BufferOverflowException | IndexOutOfBoundsException e) {
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
             return null;
         }
     }
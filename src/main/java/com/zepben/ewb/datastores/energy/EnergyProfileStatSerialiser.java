@@ -10,13 +10,12 @@ package com.zepben.ewb.datastores.energy;
 
 import com.zepben.annotations.EverythingIsNonnullByDefault;
 import com.zepben.blobstore.BytesUtil;
-import com.zepben.energy.datastore.blobstore.Serialiser;
-import com.zepben.energy.model.EnergyProfileStat;
+import com.zepben.energy.datastore.blobstore.StatSerialiser;
 
 import java.nio.ByteBuffer;
 
 @EverythingIsNonnullByDefault
-public class EnergyProfileStatSerialiser implements Serialiser<EnergyProfileStat> {
+public class EnergyProfileStatSerialiser implements StatSerialiser {
 
     private static final int NUM_STAT_VALUES = 3;
 
@@ -24,12 +23,12 @@ public class EnergyProfileStatSerialiser implements Serialiser<EnergyProfileStat
     private final ByteBuffer buffer = ByteBuffer.allocate(NUM_STAT_VALUES * 9);
 
     @Override
-    public byte[] sx(EnergyProfileStat stat) {
+    public byte[] sx(double kwIn, double kwOut, double kwNet) {
         buffer.clear();
 
-        BytesUtil.INSTANCE.encode7BitLong(buffer, KToUnitCodec.kToUnit(stat.kwIn()));
-        BytesUtil.INSTANCE.encode7BitLong(buffer, KToUnitCodec.kToUnit(stat.kwOut()));
-        BytesUtil.INSTANCE.encode7BitLong(buffer, KToUnitCodec.kToUnit(stat.kwNet()));
+        BytesUtil.INSTANCE.encode7BitLong(buffer, KToUnitCodec.kToUnit(kwIn));
+        BytesUtil.INSTANCE.encode7BitLong(buffer, KToUnitCodec.kToUnit(kwOut));
+        BytesUtil.INSTANCE.encode7BitLong(buffer, KToUnitCodec.kToUnit(kwNet));
 
         buffer.flip();
         return buffer.array();
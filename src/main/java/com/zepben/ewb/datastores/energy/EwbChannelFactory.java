@@ -11,19 +11,28 @@ package com.zepben.ewb.datastores.energy;
 import com.zepben.annotations.EverythingIsNonnullByDefault;
 import com.zepben.energy.model.Channel;
 
+import java.util.function.DoubleUnaryOperator;
+
 @EverythingIsNonnullByDefault
 public enum EwbChannelFactory implements ChannelFactory {
-    FLOAT_VALUES(Channel::ofFloats),
-    DOUBLE_VALUES(Channel::of);
+    FLOAT_VALUES(Channel::ofFloats, value -> (float) value),
+    DOUBLE_VALUES(Channel::of, value -> value);
 
     private final ChannelFactory factory;
+    private final DoubleUnaryOperator precision;
 
-    EwbChannelFactory(ChannelFactory factory) {
+    EwbChannelFactory(ChannelFactory factory, DoubleUnaryOperator precision) {
         this.factory = factory;
+        this.precision = precision;
     }
 
     @Override
     public Channel create(double... values) {
         return factory.create(values);
     }
+
+    @Override
+    public double valueOf(double value) {
+        return precision.applyAsDouble(value);
+    }
 }
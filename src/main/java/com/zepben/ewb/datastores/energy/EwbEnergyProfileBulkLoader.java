@@ -0,0 +1,479 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.ewb.datastores.energy;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.blobstore.BlobStore;
+import com.zepben.blobstore.BlobStoreException;
+import com.zepben.blobstore.itemwrappers.ByDateItemWriter;
+import com.zepben.energy.datastore.EnergyProfileWriter;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.blobstore.ByDateBlobEnergyProfileWriter;
+import com.zepben.energy.datastore.blobstore.indexing.*;
+import com.zepben.energy.model.EnergyProfile;
+import com.zepben.energy.model.IdDateRange;
+import com.zepben.ewb.database.paths.DatabaseType;
+import com.zepben.ewb.database.paths.EwbDataFilePaths;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Loads profiles for dates that don't have a store yet, such as the initial load of a data set or a backfill of its
+ * history, without going through the live stores.
+ * <p>Each date is written to a store in a staging directory, which is created with large pages and has its profiles
+ * inserted in id order. Nothing is visible to readers until {@link #swapIn()}, which syncs the staged stores to disk,
+ * moves them into the EWB layout and then indexes the loaded dates.
+ * <p>The staging directory must be on the same file system as the EWB data, so the stores can be moved atomically.
+ * <p>The index is written through the index instances of a {@link SqliteEwbEnergyProfileStore} when the loader is
+ * created from one, so its readers see the loaded dates straight away. Its writers must not have uncommitted writes
+ * while the dates are swapped in, as the swap commits the indexes they share. A loader created from the EWB paths opens
+ * the index itself, and refuses to swap in while a store has the index open in the same JVM, as the store would keep
+ * serving and writing its own copies of the index. Stores in other processes are not detected, and won't see the loaded
+ * dates until they are reopened.
+ * <p>This class is not thread safe.
+ */
+@SuppressWarnings("WeakerAccess")
+@EverythingIsNonnullByDefault
+public class EwbEnergyProfileBulkLoader implements AutoCloseable {
+
+    public static final int DEFAULT_PAGE_SIZE = 65536;
+
+    private final EwbDataFilePaths ewbPaths;
+    private final Path stagingDirectory;
+    private final int pageSize;
+    private final IndexOpener indexOpener;
+    private final Progress.Factory progressFactory;
+    private final ByDateBlobStoreCache stagingStores;
+    private final EnergyProfileWriter writer;
+    private final Set<LocalDate> createdDates = new HashSet<>();
+    private final Map<String, Integer> idOrders = new HashMap<>();
+    private final List<String> ids = new ArrayList<>();
+    private final Map<LocalDate, StagedDate> stagedDates = new TreeMap<>();
+
+    public static EwbEnergyProfileBulkLoader create(EwbDataFilePaths ewbPaths,
+                                                    Path stagingDirectory,
+                                                    ZoneId timeZone,
+                                                    Progress.Factory progressFactory) {
+        return create(ewbPaths, stagingDirectory, timeZone, 0, progressFactory);
+    }
+
+    /**
+     * @param readingsBlockSize the number of intervals in each block of the readings, as for
+     *                          {@link SqliteEwbEnergyProfileStore}.
+     */
+    public static EwbEnergyProfileBulkLoader create(EwbDataFilePaths ewbPaths,
+                                                    Path stagingDirectory,
+                                                    ZoneId timeZone,
+                                                    int readingsBlockSize,
+                                                    Progress.Factory progressFactory) {
+        return new EwbEnergyProfileBulkLoader(
+            ewbPaths,
+            stagingDirectory,
+            timeZone,
+            readingsBlockSize,
+            DEFAULT_PAGE_SIZE,
+            () -> {
+                if (SqliteEwbEnergyProfileStore.isIndexOpen(ewbPaths))
+                    throw new BlobStoreException("The energy profile index is open in a store, so the loader needs to be created from it", null);
+                return Indexes.of(SqliteEwbEnergyProfileStore.createIndexStore(ewbPaths));
+            },
+            progressFactory);
+    }
+
+    /**
+     * Creates a loader that indexes the loaded dates through the indexes of the store, with the EWB paths, time zone and
+     * readings block size of the store.
+     */
+    public static EwbEnergyProfileBulkLoader create(SqliteEwbEnergyProfileStore store,
+                                                    Path stagingDirectory,
+                                                    Progress.Factory progressFactory) {
+        return new EwbEnergyProfileBulkLoader(
+            store.ewbPaths(),
+            stagingDirectory,
+            store.timeZone(),
+            store.readingsBlockSize(),
+            DEFAULT_PAGE_SIZE,
+            () -> new Indexes(store.dateRangeIndex(), store.presenceIndex(), store.statCoverageIndex(), store.indexTransaction(), null),
+            progressFactory);
+    }
+
+    EwbEnergyProfileBulkLoader(EwbDataFilePaths ewbPaths,
+                               Path stagingDirectory,
+                               ZoneId timeZone,
+                               int readingsBlockSize,
+                               int pageSize,
+                               IndexOpener indexOpener,
+                               Progress.Factory progressFactory) {
+        this.ewbPaths = ewbPaths;
+        this.stagingDirectory = stagingDirectory;
+        this.pageSize = pageSize;
+        this.indexOpener = indexOpener;
+        this.progressFactory = progressFactory;
+
+        stagingStores = new ByDateBlobStoreCache(new SqliteByDateBlobStoreProvider(new StagingPaths(), createdDates::add));
+
+        // The date ranges, id presence and stat coverage are built from the loaded ids when the dates are swapped in.
+        writer = new ByDateBlobEnergyProfileWriter(
+            new StagingDateRangeIndex(),
+            StatCoverageIndex.untracked(),
+            IdPresenceIndex.untracked(),
+            new ByDateItemWriter(timeZone, stagingStores),
+            SqliteEwbEnergyProfileStore.createSerialisers(readingsBlockSize));
+    }
+
+    /**
+     * @return the dates that have been loaded but not yet swapped in.
+     */
+    public Set<LocalDate> stagedDates() {
+        return Collections.unmodifiableSet(stagedDates.keySet());
+    }
+
+    public boolean load(LocalDate date, Collection<EnergyProfile> profiles, ErrorHandler onError) {
+        return load(date, profiles, false, onError);
+    }
+
+    /**
+     * Writes the profiles into the staged store for the date, in one transaction. A date can be loaded more than once
+     * before it is swapped in, but dates that already have a store in the EWB layout can't be loaded.
+     *
+     * @param profiles the profiles to load, which must all be for the date.
+     * @return true if every profile was loaded. Profiles that fail to write are reported to the error handler and the
+     * rest are still loaded, unless the transaction fails to commit, in which case none of them are.
+     */
+    public boolean load(LocalDate date, Collection<EnergyProfile> profiles, boolean writeStats, ErrorHandler onError) {
+        if (Files.exists(ewbPaths.resolve(DatabaseType.ENERGY_READING, date))) {
+            onError.handle("", date, "A store already exists for the date, so it can't be bulk loaded", null);
+            return false;
+        }
+
+        // Inserting in id order keeps the pages of the id index of the store filled in order.
+        List<EnergyProfile> sorted = new ArrayList<>(profiles);
+        sorted.sort(Comparator.comparing(EnergyProfile::id));
+
+        boolean status = true;
+        CompressedBitmap loaded = new CompressedBitmap();
+        for (EnergyProfile profile : sorted) {
+            if (!profile.date().equals(date)) {
+                onError.handle(profile.id(), profile.date(), "Profile is not for the date being loaded, " + date, null);
+                status = false;
+            } else if (writer.write(profile, writeStats, onError)) {
+                loaded.add(orderOf(profile.id()));
+            } else {
+                status = false;
+            }
+        }
+
+        if (!writer.commit(onError)) {
+            writer.rollback(onError);
+            return false;
+        }
+
+        StagedDate staged = stagedDates.computeIfAbsent(date, d -> new StagedDate());
+        loaded.forEach(staged.present::add);
+        if (!writeStats)
+            loaded.forEach(staged.missingStats::add);
+
+        return status;
+    }
+
+    /**
+     * Syncs the staged stores to disk, moves them into the EWB layout and indexes their dates. Nothing is moved if any
+     * of the dates have had a store created for them in the EWB layout since they were loaded, or if the index can't be
+     * opened.
+     * <p>If indexing fails after the stores have been moved the loaded dates are readable, but will only be found once
+     * the store has been reindexed with {@link EwbEnergyProfileStoreReindexer}.
+     */
+    public void swapIn() throws BlobStoreException {
+        closeStagingStores();
+
+        List<LocalDate> dates = new ArrayList<>(stagedDates.keySet());
+        for (LocalDate date : dates) {
+            if (Files.exists(ewbPaths.resolve(DatabaseType.ENERGY_READING, date)))
+                throw new BlobStoreException(String.format("A store was created for %s while it was being loaded", date), null);
+        }
+
+        try (Indexes indexes = indexOpener.open()) {
+            Progress syncProgress = progressFactory.create("Syncing staged stores", dates.size());
+            for (LocalDate date : dates) {
+                sync(stagedPath(date));
+                syncProgress.step();
+            }
+
+            Progress moveProgress = progressFactory.create("Moving staged stores", dates.size());
+            for (LocalDate date : dates) {
+                moveIntoPlace(date);
+                moveProgress.step();
+            }
+
+            writeIndex(indexes, dates);
+        }
+        stagedDates.clear();
+    }
+
+    /**
+     * Deletes any staged stores that have not been swapped in.
+     */
+    @Override
+    public void close() throws BlobStoreException {
+        closeStagingStores();
+
+        try {
+            for (LocalDate date : createdDates) {
+                Path path = stagedPath(date);
+                Files.deleteIfExists(path);
+                Files.deleteIfExists(path.getParent());
+            }
+        } catch (IOException e) {
+            throw new BlobStoreException("Failed to delete staged stores from " + stagingDirectory, e);
+        }
+
+        createdDates.clear();
+        stagedDates.clear();
+    }
+
+    private int orderOf(String id) {
+        Integer order = idOrders.get(id);
+        if (order == null) {
+            order = ids.size();
+            idOrders.put(id, order);
+            ids.add(id);
+        }
+        return order;
+    }
+
+    private Path stagedPath(LocalDate date) {
+        return stagingDirectory.resolve(date.toString()).resolve(ewbPaths.resolve(DatabaseType.ENERGY_READING, date).getFileName());
+    }
+
+    private void closeStagingStores() throws BlobStoreException {
+        List<String> errors = new ArrayList<>();
+        stagingStores.close((store, date, error) -> errors.add(date + ": " + error.getMessage()));
+        if (!errors.isEmpty())
+            throw new BlobStoreException("Failed to close staged stores: " + errors, null);
+    }
+
+    private void sync(Path path) throws BlobStoreException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (IOException e) {
+            throw new BlobStoreException("Failed to sync staged store " + path, e);
+        }
+    }
+
+    private void moveIntoPlace(LocalDate date) throws BlobStoreException {
+        Path source = stagedPath(date);
+        Path target = ewbPaths.resolve(DatabaseType.ENERGY_READING, date);
+        try {
+            ewbPaths.createDirectories(date);
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(source.getParent());
+            createdDates.remove(date);
+        } catch (AtomicMoveNotSupportedException e) {
+            throw new BlobStoreException("The staging directory must be on the same file system as the EWB data", e);
+        } catch (IOException e) {
+            throw new BlobStoreException(String.format("Failed to move the staged store for %s into place", date), e);
+        }
+
+        // The rename is only durable once the directory holding it has been synced, which not every platform supports.
+        try (FileChannel channel = FileChannel.open(target.getParent(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+            // The rename will still be synced with the rest of the file system.
+        }
+    }
+
+    private void writeIndex(Indexes indexes, List<LocalDate> dates) throws BlobStoreException {
+        Progress progress = progressFactory.create("Indexing loaded dates", dates.size());
+
+        DateRangeIndex dateRangeIndex = new CoalescingDateRangeIndex(indexes.dateRangeIndex);
+        for (LocalDate date : dates) {
+            StagedDate staged = stagedDates.get(date);
+            List<String> dateIds = idsOf(staged.present);
+            dateIds.forEach(id -> dateRangeIndex.extendRange(id, date));
+            indexes.presenceIndex.save(date, dateIds);
+            indexes.statCoverageIndex.save(date, idsOf(staged.missingStats));
+            progress.step();
+        }
+
+        // The indexes share a store, so they are all flushed before it is committed once.
+        if (indexes.statCoverageIndex.flush() &&
+            indexes.presenceIndex.flush() &&
+            dateRangeIndex.flush() &&
+            indexes.transaction.commit()) {
+            indexes.statCoverageIndex.committed();
+            indexes.presenceIndex.committed();
+            dateRangeIndex.committed();
+            return;
+        }
+
+        indexes.transaction.rollback();
+        indexes.statCoverageIndex.discard();
+        indexes.presenceIndex.discard();
+        dateRangeIndex.discard();
+        throw new BlobStoreException("Failed to index the loaded dates. The store needs to be reindexed to find them.", null);
+    }
+
+    private List<String> idsOf(CompressedBitmap orders) {
+        List<String> orderIds = new ArrayList<>(orders.cardinality());
+        orders.forEach(order -> orderIds.add(ids.get(order)));
+        return orderIds;
+    }
+
+    private void initialise(Path path) throws IOException {
+        // The page size of a database can only be set before anything is written to it, so it is created here rather
+        // than by the blob store.
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + path);
+             Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA page_size = " + pageSize);
+            statement.execute("CREATE TABLE bulk_load_init (id INTEGER)");
+            statement.execute("DROP TABLE bulk_load_init");
+        } catch (SQLException e) {
+            throw new IOException("Failed to create staged store " + path, e);
+        }
+    }
+
+    @EverythingIsNonnullByDefault
+    private class StagingPaths implements SqliteByDateBlobStoreProvider.StorePaths {
+
+        @Override
+        public Path resolve(LocalDate date) {
+            return stagedPath(date);
+        }
+
+        @Override
+        public void prepare(LocalDate date, Path path) throws IOException {
+            Files.createDirectories(path.getParent());
+            if (!Files.exists(path))
+                initialise(path);
+        }
+
+    }
+
+    /**
+     * Opens the indexes the loaded dates are written to.
+     */
+    @EverythingIsNonnullByDefault
+    @FunctionalInterface
+    interface IndexOpener {
+
+        Indexes open() throws BlobStoreException;
+
+    }
+
+    /**
+     * The indexes the loaded dates are written to, the transaction of the store they share, and the index store to
+     * close with them if they were opened for the loader.
+     */
+    @EverythingIsNonnullByDefault
+    static class Indexes implements AutoCloseable {
+
+        private final DateRangeIndex dateRangeIndex;
+        private final IdPresenceIndex presenceIndex;
+        private final StatCoverageIndex statCoverageIndex;
+        private final IndexTransaction transaction;
+        @Nullable private final BlobStore indexStore;
+
+        Indexes(DateRangeIndex dateRangeIndex,
+                IdPresenceIndex presenceIndex,
+                StatCoverageIndex statCoverageIndex,
+                IndexTransaction transaction,
+                @Nullable BlobStore indexStore) {
+            this.dateRangeIndex = dateRangeIndex;
+            this.presenceIndex = presenceIndex;
+            this.statCoverageIndex = statCoverageIndex;
+            this.transaction = transaction;
+            this.indexStore = indexStore;
+        }
+
+        static Indexes of(BlobStore indexStore) {
+            return new Indexes(
+                new BlobDateRangeIndex(indexStore),
+                new BlobIdPresenceIndex(indexStore),
+                new BlobStatCoverageIndex(indexStore),
+                IndexTransaction.of(indexStore),
+                indexStore);
+        }
+
+        @Override
+        public void close() throws BlobStoreException {
+            if (indexStore != null)
+                indexStore.close();
+        }
+
+    }
+
+    /**
+     * The ids loaded on a date, held as their order in {@link #ids}.
+     */
+    @EverythingIsNonnullByDefault
+    private static class StagedDate {
+
+        private final CompressedBitmap present = new CompressedBitmap();
+        private final CompressedBitmap missingStats = new CompressedBitmap();
+
+    }
+
+    /**
+     * Drops the range updates of the writer, as nothing is indexed until the dates are swapped in.
+     */
+    @EverythingIsNonnullByDefault
+    private static class StagingDateRangeIndex implements DateRangeIndex {
+
+        @Nullable
+        @Override
+        public IdDateRange get(String id) {
+            return null;
+        }
+
+        @Override
+        public void forEach(Collection<String> ids, Consumer<IdDateRange> handler) {
+        }
+
+        @Override
+        public void forAll(Consumer<IdDateRange> handler) {
+        }
+
+        @Override
+        public boolean save(String id, LocalDate from, LocalDate to) {
+            return true;
+        }
+
+        @Override
+        public boolean extendRange(String id, LocalDate date) {
+            return true;
+        }
+
+        @Override
+        public boolean commit() {
+            return true;
+        }
+
+        @Override
+        public boolean rollback() {
+            return true;
+        }
+
+    }
+
+}
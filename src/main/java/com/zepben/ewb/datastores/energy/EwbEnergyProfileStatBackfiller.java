@@ -0,0 +1,343 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.ewb.datastores.energy;
+
+import com.zepben.annotations.EverythingIsNonnullByDefault;
+import com.zepben.blobstore.BlobStore;
+import com.zepben.blobstore.BlobStoreException;
+import com.zepben.blobstore.itemwrappers.ByDateItemHandler;
+import com.zepben.blobstore.itemwrappers.ByDateItemReader;
+import com.zepben.blobstore.itemwrappers.ByDateItemWriter;
+import com.zepben.blobstore.itemwrappers.ByDateTagDeserialiser;
+import com.zepben.blobstore.itemwrappers.ItemBlobWriter;
+import com.zepben.energy.datastore.blobstore.Deserialiser;
+import com.zepben.energy.datastore.blobstore.Deserialisers;
+import com.zepben.energy.datastore.blobstore.EnergyProfileAttribute;
+import com.zepben.energy.datastore.blobstore.Serialiser;
+import com.zepben.energy.datastore.blobstore.indexing.BlobStatCoverageIndex;
+import com.zepben.energy.datastore.blobstore.indexing.StatCoverageIndex;
+import com.zepben.energy.model.EnergyProfile;
+import com.zepben.energy.model.EnergyProfileStat;
+import com.zepben.energy.model.Readings;
+import com.zepben.ewb.database.paths.DatabaseType;
+import com.zepben.ewb.database.paths.EwbDataFilePaths;
+import kotlin.Unit;
+import kotlin.jvm.functions.Function2;
+
+import javax.annotation.Nullable;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+import static com.zepben.energy.datastore.blobstore.EnergyProfileAttribute.*;
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * Writes the maximums of the profiles in existing date stores that were written without stats, so stat reads of them no
+ * longer need to decode their readings.
+ * <p>Dates are scanned in parallel, a date to a thread. Only profiles without stored maximums are decoded, and their
+ * stats are written in transactions of up to the batch size. Once a date has been scanned its stat coverage is saved,
+ * so later runs skip it, and readers can read its stats from the store rather than calculating them.
+ * <p>A run that is stopped part way through can be resumed by running it again. The transactions that were committed
+ * are kept, and the dates that were not finished are scanned again, skipping the profiles that already have stats.
+ * <p>This can't be run while the store is being written to, as the stat coverage of each date is replaced with what
+ * was found by the scan, so it refuses to run while a {@link SqliteEwbEnergyProfileStore} in this process has the index
+ * open.
+ */
+@SuppressWarnings("WeakerAccess")
+@EverythingIsNonnullByDefault
+public class EwbEnergyProfileStatBackfiller {
+
+    public static final int DEFAULT_BATCH_SIZE = 10_000;
+
+    private final EwbDataFilePaths ewbPaths;
+    private final ZoneId timeZone;
+    private final ByDateBlobStoreProvider storeProvider;
+    private final Supplier<BlobStore> indexStoreSupplier;
+    private final Supplier<Deserialisers> deserialisersFactory;
+    private final Supplier<Serialiser<EnergyProfileStat>> statSxFactory;
+    private final int numThreads;
+    private final int batchSize;
+    private final Throttle throttle;
+    private final Progress.Factory progressFactory;
+    // The stat coverage index is shared by the threads, and a commit saves everything saved to it since the last one.
+    private final Object coverageLock = new Object();
+
+    private final Map<String, ByDateTagDeserialiser<?>> rawTagDeserialisers = Arrays.stream(EnergyProfileAttribute.values())
+        .collect(toMap(EnergyProfileAttribute::storeString, attr -> (id, date, tag, blob) -> blob));
+
+    public static EwbEnergyProfileStatBackfiller create(EwbDataFilePaths ewbPaths,
+                                                        ZoneId timeZone,
+                                                        ChannelFactory channelFactory,
+                                                        Progress.Factory progressFactory) {
+        return create(ewbPaths, timeZone, channelFactory, Runtime.getRuntime().availableProcessors(), DEFAULT_BATCH_SIZE, 0, progressFactory);
+    }
+
+    /**
+     * @param numThreads           the number of dates to backfill at once.
+     * @param batchSize            the maximum number of stats written in each transaction.
+     * @param maxProfilesPerSecond the maximum rate, across all threads, to write stats at, so the backfill can run
+     *                             alongside readers of the store without starving them of I/O. 0 does not limit it.
+     */
+    public static EwbEnergyProfileStatBackfiller create(EwbDataFilePaths ewbPaths,
+                                                        ZoneId timeZone,
+                                                        ChannelFactory channelFactory,
+                                                        int numThreads,
+                                                        int batchSize,
+                                                        long maxProfilesPerSecond,
+                                                        Progress.Factory progressFactory) {
+        return new EwbEnergyProfileStatBackfiller(
+            ewbPaths,
+            timeZone,
+            new SqliteByDateBlobStoreProvider(ewbPaths),
+            () -> SqliteEwbEnergyProfileStore.createIndexStore(ewbPaths),
+            () -> SqliteEwbEnergyProfileStore.createDeserialisers(channelFactory),
+            EnergyProfileStatSerialiser::new,
+            numThreads,
+            batchSize,
+            maxProfilesPerSecond,
+            progressFactory);
+    }
+
+    EwbEnergyProfileStatBackfiller(EwbDataFilePaths ewbPaths,
+                                   ZoneId timeZone,
+                                   ByDateBlobStoreProvider storeProvider,
+                                   Supplier<BlobStore> indexStoreSupplier,
+                                   Supplier<Deserialisers> deserialisersFactory,
+                                   Supplier<Serialiser<EnergyProfileStat>> statSxFactory,
+                                   int numThreads,
+                                   int batchSize,
+                                   long maxProfilesPerSecond,
+                                   Progress.Factory progressFactory) {
+        if (numThreads < 1)
+            throw new IllegalArgumentException("numThreads must be at least 1");
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        if (maxProfilesPerSecond < 0)
+            throw new IllegalArgumentException("maxProfilesPerSecond can't be negative");
+
+        this.ewbPaths = ewbPaths;
+        this.timeZone = timeZone;
+        this.storeProvider = storeProvider;
+        this.indexStoreSupplier = indexStoreSupplier;
+        this.deserialisersFactory = deserialisersFactory;
+        this.statSxFactory = statSxFactory;
+        this.numThreads = numThreads;
+        this.batchSize = batchSize;
+        this.throttle = new Throttle(maxProfilesPerSecond);
+        this.progressFactory = progressFactory;
+    }
+
+    /**
+     * Backfills the stats of every date with a store.
+     *
+     * @throws BlobStoreException if a store has the index open, or if any of the dates could not be backfilled. The
+     *                            other dates are still backfilled, and the profiles that failed are left to calculate
+     *                            their stats when read.
+     */
+    public void backfill() throws BlobStoreException {
+        if (SqliteEwbEnergyProfileStore.isIndexOpen(ewbPaths))
+            throw new BlobStoreException("The energy profile index is open in a store, so stats can't be backfilled while it may be written to", null);
+
+        List<LocalDate> dates = getAvailableDates();
+        Progress progress = progressFactory.create("Backfilling stats", dates.size());
+
+        List<String> failures = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try (BlobStore indexStore = indexStoreSupplier.get()) {
+            StatCoverageIndex statCoverageIndex = new BlobStatCoverageIndex(indexStore);
+
+            Map<LocalDate, Future<List<String>>> results = new LinkedHashMap<>();
+            for (LocalDate date : dates) {
+                results.put(date, executor.submit(() -> {
+                    List<String> errors = backfill(date, statCoverageIndex);
+                    synchronized (progress) {
+                        progress.step();
+                    }
+                    return errors;
+                }));
+            }
+
+            for (Map.Entry<LocalDate, Future<List<String>>> entry : results.entrySet()) {
+                try {
+                    List<String> errors = entry.getValue().get();
+                    if (!errors.isEmpty())
+                        failures.add(String.format("%s: %s", entry.getKey(), errors));
+                } catch (ExecutionException e) {
+                    failures.add(String.format("%s: %s", entry.getKey(), e.getCause()));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BlobStoreException("Interrupted while backfilling stats", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (!failures.isEmpty())
+            throw new BlobStoreException(String.format("Failed to backfill stats for %d dates: %s", failures.size(), failures), null);
+    }
+
+    /**
+     * @return the errors from backfilling the date.
+     */
+    private List<String> backfill(LocalDate date, StatCoverageIndex statCoverageIndex) throws BlobStoreException, InterruptedException {
+        Set<String> missingIds = statCoverageIndex.getMissing(date);
+        if (missingIds != null && missingIds.isEmpty())
+            return Collections.emptyList();
+
+        List<String> errors = new ArrayList<>();
+        try (BlobStore store = storeProvider.get(date, timeZone, false)) {
+            if (store == null)
+                return Collections.emptyList();
+
+            // Written in id order, so each transaction updates pages that are close together.
+            Map<String, EnergyProfileStat> stats = new TreeMap<>();
+            Set<String> stillMissing = new HashSet<>();
+            readStats(store, date, missingIds, stats, stillMissing, errors);
+            writeStats(store, date, stats, stillMissing, errors);
+
+            // Profiles that failed, or have no readings to calculate stats from, are still missing them. Each date is
+            // saved and committed on its own, so a commit never includes the coverage of other dates, and coverage that
+            // fails to commit is rolled back rather than being committed with the next date.
+            synchronized (coverageLock) {
+                statCoverageIndex.save(date, stillMissing);
+                if (!statCoverageIndex.commit()) {
+                    statCoverageIndex.rollback();
+                    errors.add("Failed to save the stat coverage");
+                }
+            }
+        }
+
+        return errors;
+    }
+
+    private void readStats(BlobStore store,
+                           LocalDate date,
+                           @Nullable Set<String> missingIds,
+                           Map<String, EnergyProfileStat> stats,
+                           Set<String> stillMissing,
+                           List<String> errors) {
+        ByDateItemReader<Map<String, byte[]>> reader = new ByDateItemReader<>(timeZone, (d, tz) -> store.getReader());
+        reader.setDeserialisers((id, dt, blobs) -> blobs, rawTagDeserialisers);
+        Deserialisers dsx = deserialisersFactory.get();
+
+        ByDateItemHandler<Map<String, byte[]>> onRead = (id, dt, blobs) -> {
+            if (blobs.containsKey(MAXIMUMS.storeString()))
+                return;
+
+            Readings kwIn = deserialiseReadings(blobs, KW_IN, dsx.kwInDsx());
+            Readings kwOut = deserialiseReadings(blobs, KW_OUT, dsx.kwOutDsx());
+            if ((blobs.containsKey(KW_IN.storeString()) && kwIn == null) || (blobs.containsKey(KW_OUT.storeString()) && kwOut == null)) {
+                stillMissing.add(id);
+                errors.add(id + ": failed to deserialise readings");
+            } else if ((kwIn == null && kwOut == null) || (kwIn != null && kwOut != null && kwIn.length() != kwOut.length())) {
+                stillMissing.add(id);
+            } else {
+                EnergyProfile profile = EnergyProfile.of(id, dt, kwIn, kwOut);
+                if (profile.kwIn().length() == 0)
+                    stillMissing.add(id);
+                else
+                    stats.put(id, EnergyProfileStat.ofMax(profile));
+            }
+        };
+
+        // Only the ids known to be missing stats need to be read if the coverage of the date is known.
+        if (missingIds == null)
+            reader.forAll(date, onRead, (id, dt, msg, t) -> onReadError(id, msg, stillMissing, errors));
+        else
+            reader.forEach(missingIds, date, onRead, (id, dt, msg, t) -> onReadError(id, msg, stillMissing, errors));
+    }
+
+    private void writeStats(BlobStore store,
+                            LocalDate date,
+                            Map<String, EnergyProfileStat> stats,
+                            Set<String> stillMissing,
+                            List<String> errors) throws InterruptedException {
+        ByDateItemWriter writer = new ByDateItemWriter(timeZone, (d, tz) -> store.getWriter());
+        Serialiser<EnergyProfileStat> sx = statSxFactory.get();
+        Function2<ItemBlobWriter, EnergyProfileStat, Unit> writeStat = (blobWriter, stat) -> {
+            blobWriter.write(MAXIMUMS.storeString(), sx.sx(stat), sx.sxOffset(), sx.sxLength());
+            return Unit.INSTANCE;
+        };
+
+        List<String> batch = new ArrayList<>(Math.min(batchSize, stats.size()));
+        Iterator<Map.Entry<String, EnergyProfileStat>> it = stats.entrySet().iterator();
+        for (int remaining = stats.size(); remaining > 0; remaining -= batchSize) {
+            throttle.acquire(Math.min(batchSize, remaining));
+
+            batch.clear();
+            while (it.hasNext() && batch.size() < batchSize) {
+                Map.Entry<String, EnergyProfileStat> entry = it.next();
+                if (writer.write(entry.getKey(), date, entry.getValue(), writeStat, (id, dt, msg, t) -> errors.add(id + ": " + msg)))
+                    batch.add(entry.getKey());
+                else
+                    stillMissing.add(entry.getKey());
+            }
+
+            if (!writer.commit((id, dt, msg, t) -> errors.add("Failed to commit: " + msg))) {
+                writer.rollback((id, dt, msg, t) -> errors.add("Failed to rollback: " + msg));
+                stillMissing.addAll(batch);
+            }
+        }
+    }
+
+    @Nullable
+    private Readings deserialiseReadings(Map<String, byte[]> blobs, EnergyProfileAttribute tag, Deserialiser<Readings> dsx) {
+        byte[] bytes = blobs.get(tag.storeString());
+        return bytes == null ? null : dsx.dsx(bytes);
+    }
+
+    private void onReadError(String id, String msg, Set<String> stillMissing, List<String> errors) {
+        stillMissing.add(id);
+        errors.add(id + ": " + msg);
+    }
+
+    private List<LocalDate> getAvailableDates() throws BlobStoreException {
+        try {
+            return ewbPaths.getAvailableDatesFor(DatabaseType.ENERGY_READING);
+        } catch (Exception ex) {
+            throw new BlobStoreException("Failed to read date listing from " + ewbPaths.getClass().getSimpleName(), ex);
+        }
+    }
+
+    /**
+     * Spaces out the batches of all the threads so they don't write more than the maximum number of profiles per second.
+     */
+    @EverythingIsNonnullByDefault
+    private static class Throttle {
+
+        private final long nanosPerProfile;
+        private long nextFree = System.nanoTime();
+
+        Throttle(long maxProfilesPerSecond) {
+            nanosPerProfile = maxProfilesPerSecond == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / maxProfilesPerSecond;
+        }
+
+        void acquire(int profiles) throws InterruptedException {
+            if (nanosPerProfile == 0)
+                return;
+
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long start = Math.max(now, nextFree);
+                nextFree = start + profiles * nanosPerProfile;
+                wait = start - now;
+            }
+
+            if (wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+        }
+
+    }
+
+}
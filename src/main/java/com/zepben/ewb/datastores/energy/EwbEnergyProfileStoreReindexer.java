@@ -10,24 +10,29 @@ package com.zepben.ewb.datastores.energy;
 
 import com.zepben.annotations.EverythingIsNonnullByDefault;
 import com.zepben.blobstore.BlobReader;
+import com.zepben.blobstore.BlobStore;
 import com.zepben.blobstore.BlobStoreException;
 import com.zepben.blobstore.itemwrappers.ByDateBlobReaderProvider;
 import com.zepben.energy.datastore.blobstore.indexing.BlobDateRangeIndex;
+import com.zepben.energy.datastore.blobstore.indexing.BlobIdPresenceIndex;
+import com.zepben.energy.datastore.blobstore.indexing.CompressedBitmap;
+import com.zepben.energy.model.IdDateRange;
 import com.zepben.ewb.database.paths.DatabaseType;
 import com.zepben.ewb.database.paths.EwbDataFilePaths;
 import kotlin.Unit;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.time.ZoneId;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.function.Supplier;
 
+import static java.time.temporal.ChronoUnit.DAYS;
+
 @SuppressWarnings("WeakerAccess")
 @EverythingIsNonnullByDefault
 public class EwbEnergyProfileStoreReindexer {
@@ -37,6 +42,7 @@ public class EwbEnergyProfileStoreReindexer {
     private final ZoneId timeZone;
     private final ByDateBlobReaderProvider byDateStoreProvider;
     private final Supplier<BlobDateRangeIndex> indexSupplier;
+    @Nullable private final Supplier<BlobStore> presenceStoreSupplier;
 
     public static EwbEnergyProfileStoreReindexer create(EwbDataFilePaths ewbPaths,
                                                         ZoneId timeZone,
@@ -46,6 +52,7 @@ public class EwbEnergyProfileStoreReindexer {
             timeZone,
             SqliteEwbEnergyProfileStore.createByDateBlobStoreCache(ewbPaths),
             () -> SqliteEwbEnergyProfileStore.createEnergyProfileIndex(ewbPaths),
+            () -> SqliteEwbEnergyProfileStore.createIndexStore(ewbPaths),
             progressFactory);
     }
 
@@ -54,37 +61,60 @@ public class EwbEnergyProfileStoreReindexer {
                                    ByDateBlobReaderProvider byDateStoreProvider,
                                    Supplier<BlobDateRangeIndex> indexSupplier,
                                    Progress.Factory progressFactory) {
+        this(ewbPaths, timeZone, byDateStoreProvider, indexSupplier, null, progressFactory);
+    }
+
+    /**
+     * @param presenceStoreSupplier supplies the index store to save the id presence of each date into. If null, the id
+     *                              presence is not saved and readers fall back to the date ranges.
+     */
+    EwbEnergyProfileStoreReindexer(EwbDataFilePaths ewbPaths,
+                                   ZoneId timeZone,
+                                   ByDateBlobReaderProvider byDateStoreProvider,
+                                   Supplier<BlobDateRangeIndex> indexSupplier,
+                                   @Nullable Supplier<BlobStore> presenceStoreSupplier,
+                                   Progress.Factory progressFactory) {
         this.ewbPaths = ewbPaths;
         this.timeZone = timeZone;
         this.byDateStoreProvider = byDateStoreProvider;
         this.indexSupplier = indexSupplier;
+        this.presenceStoreSupplier = presenceStoreSupplier;
         this.progressFactory = progressFactory;
     }
 
     @SuppressWarnings("WeakerAccess")
     public void reindex() throws BlobStoreException {
         List<LocalDate> dates = getAvailableDates();
-        Map<String, Range> index = buildIndex(dates);
-        writeIndex(index);
+        Map<LocalDate, CompressedBitmap> presence = new TreeMap<>();
+        Map<String, Range> index = buildIndex(dates, presence);
+        writeIndex(index, presence);
     }
 
-    private Map<String, Range> buildIndex(List<LocalDate> dates) throws BlobStoreException {
+    private Map<String, Range> buildIndex(List<LocalDate> dates, Map<LocalDate, CompressedBitmap> presence) throws BlobStoreException {
         Progress progress = progressFactory.create("Building index", dates.size());
         Map<String, Range> index = new HashMap<>();
+        LocalDate firstDate = dates.isEmpty() ? LocalDate.MIN : Collections.min(dates);
 
         for (LocalDate date : dates) {
+            int day = (int) DAYS.between(firstDate, date);
             try (BlobReader readingsStore = byDateStoreProvider.getReader(date, timeZone)) {
                 if (readingsStore != null) {
+                    // The ids on each date are held against the order they were first seen rather than as strings,
+                    // which keeps this small enough to hold for every date until the index has been written.
+                    CompressedBitmap datePresence = new CompressedBitmap();
                     readingsStore.ids(id -> {
-                        Range range = index.computeIfAbsent(id, i -> new Range(i, date, date));
+                        Range range = index.computeIfAbsent(id, i -> new Range(i, index.size(), firstDate, date));
                         if (date.isBefore(range.from))
                             range.from = date;
 
                         if (date.isAfter(range.to))
                             range.to = date;
 
+                        range.days.set(day);
+                        datePresence.add(range.order);
                         return Unit.INSTANCE;
                     });
+                    presence.put(date, datePresence);
                 }
             }
 
@@ -94,7 +124,7 @@ public class EwbEnergyProfileStoreReindexer {
         return index;
     }
 
-    private void writeIndex(Map<String, Range> index) throws BlobStoreException {
+    private void writeIndex(Map<String, Range> index, Map<LocalDate, CompressedBitmap> presence) throws BlobStoreException {
         Progress progress = progressFactory.create("Saving index", index.size());
         Path backupPath = Paths.get(ewbPaths.resolve(DatabaseType.ENERGY_READINGS_INDEX) + ".bak");
         backupIndex(backupPath);
@@ -102,13 +132,16 @@ public class EwbEnergyProfileStoreReindexer {
         boolean status = true;
         try (BlobDateRangeIndex indexStore = indexSupplier.get()) {
             for (Range range : index.values()) {
-                status &= indexStore.save(range.id, range.from, range.to);
+                status &= indexStore.save(range.toIdDateRange());
                 progress.step();
             }
 
             status &= indexStore.commit();
         }
 
+        if (status && presenceStoreSupplier != null)
+            status = writePresence(presenceStoreSupplier, index, presence);
+
         if (!status) {
             restoreIndex(backupPath);
             throw new BlobStoreException("Failed to write to index database.", null);
@@ -117,6 +150,30 @@ public class EwbEnergyProfileStoreReindexer {
         deleteBackup(backupPath);
     }
 
+    private boolean writePresence(Supplier<BlobStore> storeSupplier,
+                                  Map<String, Range> index,
+                                  Map<LocalDate, CompressedBitmap> presence) throws BlobStoreException {
+        Progress progress = progressFactory.create("Saving id presence", presence.size());
+        String[] ids = new String[index.size()];
+        index.values().forEach(range -> ids[range.order] = range.id);
+
+        boolean status = true;
+        try (BlobStore store = storeSupplier.get()) {
+            BlobIdPresenceIndex presenceIndex = new BlobIdPresenceIndex(store);
+            for (Map.Entry<LocalDate, CompressedBitmap> entry : presence.entrySet()) {
+                List<String> dateIds = new ArrayList<>(entry.getValue().cardinality());
+                entry.getValue().forEach(order -> dateIds.add(ids[order]));
+
+                // Committed a date at a time so only one date of ids is ever held as strings.
+                presenceIndex.save(entry.getKey(), dateIds);
+                status &= presenceIndex.commit();
+                progress.step();
+            }
+        }
+
+        return status;
+    }
+
     private List<LocalDate> getAvailableDates() throws BlobStoreException {
         try {
             return ewbPaths.getAvailableDatesFor(DatabaseType.ENERGY_READING);
@@ -158,13 +215,24 @@ public class EwbEnergyProfileStoreReindexer {
     private static class Range {
 
         private final String id;
+        private final int order;
+        private final LocalDate firstDate;
+        private final BitSet days = new BitSet();
         private LocalDate from;
         private LocalDate to;
 
-        Range(String id, LocalDate from, LocalDate to) {
+        Range(String id, int order, LocalDate firstDate, LocalDate date) {
             this.id = id;
-            this.from = from;
-            this.to = to;
+            this.order = order;
+            this.firstDate = firstDate;
+            this.from = date;
+            this.to = date;
+        }
+
+        IdDateRange toIdDateRange() {
+            int fromDay = (int) DAYS.between(firstDate, from);
+            int toDay = (int) DAYS.between(firstDate, to);
+            return new IdDateRange(id, from, to, days.get(fromDay, toDay + 1));
         }
 
     }
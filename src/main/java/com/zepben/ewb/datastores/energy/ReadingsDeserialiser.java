@@ -11,6 +11,7 @@ package com.zepben.ewb.datastores.energy;
 import com.zepben.annotations.EverythingIsNonnullByDefault;
 import com.zepben.blobstore.BytesUtil;
 import com.zepben.energy.datastore.blobstore.Deserialiser;
+import com.zepben.energy.datastore.blobstore.IntervalDeserialiser;
 import com.zepben.energy.model.Channel;
 import com.zepben.energy.model.Readings;
 import com.zepben.energy.model.ZeroedChannelsCache;
@@ -22,11 +23,13 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
 /**
- * Deserilases a {@link Readings} instance that has been serialised by {@link ReadingsSerialiser}.
+ * Deserilases a {@link Readings} instance that has been serialised by {@link ReadingsSerialiser}, with or without blocks.
  * <p>The 7 bit zig-zag encoded longs are decoded into a standard long and then divided by 1000 to give reading values.
+ * <p>A single interval or a range of intervals can be decoded without decoding the rest of the readings. Blocked
+ * readings seek to the first block the intervals are in, otherwise the values before them are skipped over.
  */
 @EverythingIsNonnullByDefault
-class ReadingsDeserialiser implements Deserialiser<Readings> {
+class ReadingsDeserialiser implements Deserialiser<Readings>, IntervalDeserialiser {
 
     private final ChannelFactory channelFactory;
 
@@ -45,6 +48,7 @@ class ReadingsDeserialiser implements Deserialiser<Readings> {
             buffer.put(bytes, offset, length);
             buffer.flip();
 
+            int blockSize = readBlockSize(buffer);
             int nChannels = buffer.get();
             if (nChannels <= 0) {
                 return null;
@@ -58,7 +62,7 @@ class ReadingsDeserialiser implements Deserialiser<Readings> {
                 values = new double[nIntervals];
             }
 
-            boolean allZeroed = createChannels(buffer.asReadOnlyBuffer(), channels, values);
+            boolean allZeroed = createChannels(buffer.asReadOnlyBuffer(), blockSize, channels, values);
 
             if (allZeroed)
                 return ZeroedReadingsCache.of(channels.length, channels[0].length());
@@ -66,12 +70,95 @@ class ReadingsDeserialiser implements Deserialiser<Readings> {
                 return Readings.of(channels[0]);
             else
                 return Readings.of(channels);
-        } catch (BufferUnderflowException | BufferOverflowException | IndexOutOfBoundsException e) {
+        } catch (BufferUnderflowException | BufferOverflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public double dsxInterval(byte[] bytes, int interval) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int blockSize = readBlockSize(buffer);
+            int nChannels = buffer.get();
+            int nIntervals = buffer.getInt();
+            if (nChannels <= 0 || interval < 0 || interval >= nIntervals)
+                return Double.NaN;
+
+            // Channels are written in channel number order, so they are summed in the same order as Readings.get.
+            double value = 0;
+            for (int channelIdx = 0; channelIdx < nChannels; ++channelIdx) {
+                // Negative channel number means that channel has all 0 values, and none are stored
+                if (buffer.get() < 0)
+                    continue;
+
+                int channelEnd = seek(buffer, blockSize, nIntervals, interval);
+                value += channelFactory.valueOf(KToUnitCodec.unitToK(BytesUtil.INSTANCE.decode7BitLong(buffer)));
+                if (channelIdx < nChannels - 1)
+                    skipRest(buffer, channelEnd, nIntervals - interval - 1);
+            }
+
+            return value;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            return Double.NaN;
+        }
+    }
+
+    @Override
+    @Nullable
+    public Readings dsxRange(byte[] bytes, int fromInterval, int toInterval) {
+        if (fromInterval < 0 || toInterval < fromInterval)
+            return null;
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int blockSize = readBlockSize(buffer);
+            int nChannels = buffer.get();
+            int nIntervals = buffer.getInt();
+            if (nChannels <= 0)
+                return null;
+
+            int end = Math.min(toInterval, nIntervals);
+            int length = Math.max(0, end - fromInterval);
+            if (length == 0)
+                return ZeroedReadingsCache.of(nChannels, 0);
+
+            Channel[] channels = new Channel[nChannels];
+            boolean allZeroed = true;
+            for (int channelIdx = 0; channelIdx < nChannels; ++channelIdx) {
+                int channelNum = buffer.get();
+
+                // Negative channel number means that channel has all 0 values
+                if (channelNum < 0) {
+                    channels[-channelNum - 1] = ZeroedChannelsCache.of(length);
+                    continue;
+                }
+
+                allZeroed = false;
+                int channelEnd = seek(buffer, blockSize, nIntervals, fromInterval);
+                double[] values = new double[length];
+                for (int i = 0; i < length; ++i)
+                    values[i] = KToUnitCodec.unitToK(BytesUtil.INSTANCE.decode7BitLong(buffer));
+
+                if (channelIdx < nChannels - 1)
+                    skipRest(buffer, channelEnd, nIntervals - end);
+
+                channels[channelNum - 1] = channelFactory.create(values);
+            }
+
+            if (allZeroed)
+                return ZeroedReadingsCache.of(nChannels, length);
+            if (nChannels == 1)
+                return Readings.of(channels[0]);
+            else
+                return Readings.of(channels);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
             return null;
         }
     }
 
     private boolean createChannels(ByteBuffer buffer,
+                                   int blockSize,
                                    Channel[] channels,
                                    double[] values) {
         int nChannels = channels.length;
@@ -88,6 +175,10 @@ class ReadingsDeserialiser implements Deserialiser<Readings> {
                 channel = ZeroedChannelsCache.of(nIntervals);
             } else {
                 allZeroed = false;
+                // The whole channel is read, so the block table is not needed.
+                if (blockSize > 0)
+                    buffer.position(buffer.position() + 2 * numBlocks(nIntervals, blockSize));
+
                 for (int interval = 0; interval < nIntervals; ++interval) {
                     double value = KToUnitCodec.unitToK(BytesUtil.INSTANCE.decode7BitLong(buffer));
                     values[interval] = value;
@@ -99,4 +190,54 @@ class ReadingsDeserialiser implements Deserialiser<Readings> {
 
         return allZeroed;
     }
+
+    // Returns the block size of blocked readings, or 0 if the readings are not blocked, leaving the buffer at the
+    // number of channels.
+    private static int readBlockSize(ByteBuffer buffer) {
+        if (buffer.get(buffer.position()) != ReadingsSerialiser.BLOCKED_FORMAT)
+            return 0;
+
+        buffer.get();
+        int blockSize = buffer.get();
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("invalid block size " + blockSize);
+
+        return blockSize;
+    }
+
+    private static int numBlocks(int nIntervals, int blockSize) {
+        return (nIntervals + blockSize - 1) / blockSize;
+    }
+
+    // Moves the buffer from the start of a channel to the value of the interval. Returns the position after the last
+    // value of the channel, or -1 if it can't be found without decoding the values.
+    private static int seek(ByteBuffer buffer, int blockSize, int nIntervals, int interval) {
+        if (blockSize == 0) {
+            skipValues(buffer, interval);
+            return -1;
+        }
+
+        int nBlocks = numBlocks(nIntervals, blockSize);
+        int tableStart = buffer.position();
+        int valuesStart = tableStart + 2 * nBlocks;
+        int block = interval / blockSize;
+        int blockStart = block == 0 ? 0 : buffer.getChar(tableStart + 2 * (block - 1));
+
+        buffer.position(valuesStart + blockStart);
+        skipValues(buffer, interval - block * blockSize);
+        return valuesStart + buffer.getChar(tableStart + 2 * (nBlocks - 1));
+    }
+
+    private static void skipRest(ByteBuffer buffer, int channelEnd, int remaining) {
+        if (channelEnd >= 0)
+            buffer.position(channelEnd);
+        else
+            skipValues(buffer, remaining);
+    }
+
+    private static void skipValues(ByteBuffer buffer, int count) {
+        for (int i = 0; i < count; ++i)
+            BytesUtil.INSTANCE.decode7BitLong(buffer);
+    }
+
 }
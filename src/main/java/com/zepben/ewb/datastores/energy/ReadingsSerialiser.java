@@ -21,12 +21,35 @@ import java.nio.ByteBuffer;
  * <p>What this does is multiplies each reading value by 1000 and rounds to the nearest whole number.
  * This does mean fractional values at the single unit level are lost.
  * <p>Values are stored as 7 bit zig-zag encoded longs. See {@link BytesUtil#encode7BitLong(ByteBuffer, long)}.
+ * <p>When created with a block size, the values of each channel are preceded by a table of the byte offsets of the end
+ * of each block of that many intervals, so a range of intervals can be decoded by seeking to the first block it touches.
+ * Blocked readings start with a {@link #BLOCKED_FORMAT} byte and the block size ahead of the usual header. If the values
+ * of a channel are too long for the offsets, the readings are written without blocks.
  */
 @EverythingIsNonnullByDefault
 class ReadingsSerialiser implements Serialiser<Readings> {
 
+    static final byte BLOCKED_FORMAT = Byte.MIN_VALUE;
+    static final int MAX_BLOCK_SIZE = Byte.MAX_VALUE;
+    private static final int MAX_BLOCK_OFFSET = Character.MAX_VALUE;
+
+    private final int blockSize;
     private ByteBuffer buffer = ByteBuffer.allocate(0);
 
+    ReadingsSerialiser() {
+        this(0);
+    }
+
+    /**
+     * @param blockSize the number of intervals in each block, or 0 to write the readings without blocks.
+     */
+    ReadingsSerialiser(int blockSize) {
+        if (blockSize < 0 || blockSize > MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("blockSize must be between 0 and " + MAX_BLOCK_SIZE);
+
+        this.blockSize = blockSize;
+    }
+
     @Override
     public byte[] sx(Readings readings) {
         if (readings.numChannels() > 127)
@@ -35,6 +58,26 @@ class ReadingsSerialiser implements Serialiser<Readings> {
         checkOrGrowBuffer(calculateSize(readings));
 
         buffer.clear();
+        if (blockSize == 0 || !sxBlocks(readings)) {
+            buffer.clear();
+            sxChannels(readings);
+        }
+
+        buffer.flip();
+        return buffer.array();
+    }
+
+    @Override
+    public int sxOffset() {
+        return buffer.position();
+    }
+
+    @Override
+    public int sxLength() {
+        return buffer.remaining();
+    }
+
+    private void sxChannels(Readings readings) {
         buffer.put((byte) readings.numChannels());
         buffer.putInt(readings.length());
 
@@ -58,25 +101,60 @@ class ReadingsSerialiser implements Serialiser<Readings> {
                 buffer.put((byte) -channelNum);
             }
         }
-
-        buffer.flip();
-        return buffer.array();
     }
 
-    @Override
-    public int sxOffset() {
-        return buffer.position();
-    }
+    // Returns false if the values of a channel are too long for the block offsets.
+    private boolean sxBlocks(Readings readings) {
+        int nIntervals = readings.length();
+        int nBlocks = (nIntervals + blockSize - 1) / blockSize;
 
-    @Override
-    public int sxLength() {
-        return buffer.remaining();
+        buffer.put(BLOCKED_FORMAT);
+        buffer.put((byte) blockSize);
+        buffer.put((byte) readings.numChannels());
+        buffer.putInt(nIntervals);
+
+        for (int channelNum = 1; channelNum <= readings.numChannels(); ++channelNum) {
+            Channel channel = readings.channel(channelNum);
+
+            buffer.mark();
+            buffer.put((byte) channelNum);
+
+            int tableStart = buffer.position();
+            int valuesStart = tableStart + 2 * nBlocks;
+            buffer.position(valuesStart);
+
+            boolean allZero = true;
+            for (int i = 0; i < nIntervals; ++i) {
+                long value = KToUnitCodec.kToUnit(channel.get(i));
+                allZero &= value == 0;
+                BytesUtil.INSTANCE.encode7BitLong(buffer, value);
+
+                if ((i + 1) % blockSize == 0 || i == nIntervals - 1) {
+                    int blockEnd = buffer.position() - valuesStart;
+                    if (blockEnd > MAX_BLOCK_OFFSET)
+                        return false;
+
+                    buffer.putChar(tableStart + 2 * (i / blockSize), (char) blockEnd);
+                }
+            }
+
+            // Zeroed channels are flagged the same as without blocks, and have no table.
+            if (allZero) {
+                buffer.reset();
+                buffer.put((byte) -channelNum);
+            }
+        }
+
+        return true;
     }
 
     private int calculateSize(Readings readings) {
-        return 1 + // 1 byte for number of channels
+        int nBlocks = blockSize == 0 ? 0 : (readings.length() + blockSize - 1) / blockSize;
+        return 2 + // 2 bytes for the blocked format and block size
+            1 + // 1 byte for number of channels
             4 + // int for number of intervals on each channel
             readings.numChannels() + // byte for each channels number
+            (2 * nBlocks * readings.numChannels()) + // char for the end of each block on each channel
             (calculateValuesSize(readings) * readings.numChannels()); // Maximum number of bytes required to store all the values
     }
 
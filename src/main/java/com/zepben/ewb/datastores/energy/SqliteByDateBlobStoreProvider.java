@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.*;
+import java.util.function.Consumer;
 
 @EverythingIsNonnullByDefault
 class SqliteByDateBlobStoreProvider implements ByDateBlobStoreProvider {
@@ -27,10 +28,38 @@ class SqliteByDateBlobStoreProvider implements ByDateBlobStoreProvider {
     static final String METADATA_DATE_ID = "date";
     static final String METADATA_TIME_ZONE_ID = "timezone";
 
-    private final EwbDataFilePaths ewbPaths;
+    private final StorePaths storePaths;
+    private final Consumer<LocalDate> onCreated;
 
     SqliteByDateBlobStoreProvider(EwbDataFilePaths ewbPaths) {
-        this.ewbPaths = ewbPaths;
+        this(ewbPaths, date -> {
+        });
+    }
+
+    /**
+     * @param onCreated called with the date of each store that is created by this provider, after its metadata has been
+     *                  committed.
+     */
+    SqliteByDateBlobStoreProvider(EwbDataFilePaths ewbPaths, Consumer<LocalDate> onCreated) {
+        this(new StorePaths() {
+            @Override
+            public Path resolve(LocalDate date) {
+                return ewbPaths.resolve(DatabaseType.ENERGY_READING, date);
+            }
+
+            @Override
+            public void prepare(LocalDate date, Path path) throws IOException {
+                ewbPaths.createDirectories(date);
+            }
+        }, onCreated);
+    }
+
+    /**
+     * @param storePaths where the store of each date is kept, for stores that are not in the EWB layout.
+     */
+    SqliteByDateBlobStoreProvider(StorePaths storePaths, Consumer<LocalDate> onCreated) {
+        this.storePaths = storePaths;
+        this.onCreated = onCreated;
     }
 
     @Nullable
@@ -39,17 +68,18 @@ class SqliteByDateBlobStoreProvider implements ByDateBlobStoreProvider {
         SqliteBlobStore blobStore = null;
         boolean needsClosing = true;
         try {
-            Path path = ewbPaths.resolve(DatabaseType.ENERGY_READING, date);
+            Path path = storePaths.resolve(date);
             if (!Files.exists(path) && !createIfNotExists)
                 return null;
 
-            ewbPaths.createDirectories(date);
+            storePaths.prepare(date, path);
 
             blobStore = new SqliteBlobStore(path, EnergyProfileAttribute.storeTagSet());
 
             ZonedDateTime zdt = getDateMetaData(blobStore);
             if (zdt == null) {
                 writeDateMetadata(blobStore, date, timeZone);
+                onCreated.accept(date);
             } else if (!zdt.toLocalDate().equals(date)) {
                 throw new BlobStoreException(
                     String.format("metadata %s was '%s', expected '%s'", METADATA_DATE_ID, zdt.toLocalDate(), date),
@@ -112,4 +142,16 @@ class SqliteByDateBlobStoreProvider implements ByDateBlobStoreProvider {
         blobStore.getWriter().commit();
     }
 
+    @EverythingIsNonnullByDefault
+    interface StorePaths {
+
+        Path resolve(LocalDate date);
+
+        /**
+         * Called before the store at the path is opened, which creates it if it does not exist.
+         */
+        void prepare(LocalDate date, Path path) throws IOException;
+
+    }
+
 }
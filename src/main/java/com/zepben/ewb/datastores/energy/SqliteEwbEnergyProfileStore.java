@@ -19,31 +19,65 @@ import com.zepben.energy.datastore.EnergyProfileWriter;
 import com.zepben.energy.datastore.blobstore.ByDateBlobEnergyProfileReader;
 import com.zepben.energy.datastore.blobstore.ByDateBlobEnergyProfileWriter;
 import com.zepben.energy.datastore.blobstore.Deserialisers;
+import com.zepben.energy.datastore.blobstore.ParallelByDateBlobEnergyProfileWriter;
 import com.zepben.energy.datastore.blobstore.Serialisers;
-import com.zepben.energy.datastore.blobstore.indexing.BlobDateRangeIndex;
-import com.zepben.energy.datastore.blobstore.indexing.CachedDateRangeIndex;
-import com.zepben.energy.datastore.blobstore.indexing.DateRangeIndex;
+import com.zepben.energy.datastore.blobstore.indexing.*;
+import com.zepben.energy.datastore.cache.CachingEnergyProfileReader;
+import com.zepben.energy.datastore.cache.CachingEnergyProfileWriter;
+import com.zepben.energy.datastore.cache.EnergyProfileCache;
 import com.zepben.energy.model.EnergyProfile;
 import com.zepben.ewb.database.paths.DatabaseType;
 import com.zepben.ewb.database.paths.EwbDataFilePaths;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.nio.file.Path;
+import java.time.LocalDate;
 import java.time.ZoneId;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 /**
  * Creates a energy profile reader and writer for use with EWB and its tools.
+ * <p>The dates of series reads, aggregates and rankings are read on a pool of daemon threads owned by the store, one
+ * for each processor, which is shut down when the store is closed.
+ * <p>Ids are checked against the id presence bitmaps of the index, so the stores are written without bloom filters.
+ * <p>The stores open on each index are counted, so tools that write the index themselves, such as
+ * {@link EwbEnergyProfileBulkLoader}, can refuse to while a store has it open in the same JVM.
  */
 @EverythingIsNonnullByDefault
 public class SqliteEwbEnergyProfileStore implements EnergyProfileStore {
 
+    private static final int READ_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_DATES_IN_FLIGHT = 2 * READ_THREADS;
+    private static final Map<Path, Integer> OPEN_INDEXES = new ConcurrentHashMap<>();
+
     private final Logger log = LoggerFactory.getLogger(SqliteEwbEnergyProfileStore.class);
 
+    private final EwbDataFilePaths ewbPaths;
+    private final Path indexPath;
+    private final AtomicBoolean open = new AtomicBoolean(true);
+
     private final BlobDateRangeIndex dateRangeIndex;
+    private final StatCoverageIndex statCoverageIndex;
+    private final IdPresenceIndex presenceIndex;
+    private final IndexTransaction indexTransaction;
+    private final DateRangeIndex cachedIndex;
     private final ByDateBlobStoreCache storeProvider;
+    private final ZoneId timeZone;
+    private final int readingsBlockSize;
+    @Nullable private final EnergyProfileCache profileCache;
     private final Serialisers serialisers;
     private final Deserialisers deserialisers;
+    private final ExecutorService readExecutor;
+    private final EnergyProfileReader blobReader;
     private final EnergyProfileReader reader;
     private final EnergyProfileWriter writer;
 
@@ -51,42 +85,141 @@ public class SqliteEwbEnergyProfileStore implements EnergyProfileStore {
     public SqliteEwbEnergyProfileStore(EwbDataFilePaths ewbPaths,
                                        ZoneId timeZone,
                                        EwbChannelFactory channelFactory) {
-        storeProvider = createByDateBlobStoreCache(ewbPaths);
-        dateRangeIndex = createEnergyProfileIndex(ewbPaths);
-        DateRangeIndex cachedIndex = new CachedDateRangeIndex(dateRangeIndex);
+        this(ewbPaths, timeZone, channelFactory, 0);
+    }
+
+    /**
+     * @param profileCacheBytes the maximum estimated size of cacheable profiles to hold in memory. 0 disables caching.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public SqliteEwbEnergyProfileStore(EwbDataFilePaths ewbPaths,
+                                       ZoneId timeZone,
+                                       EwbChannelFactory channelFactory,
+                                       long profileCacheBytes) {
+        this(ewbPaths, timeZone, channelFactory, profileCacheBytes, 0);
+    }
+
+    /**
+     * @param profileCacheBytes the maximum estimated size of cacheable profiles to hold in memory. 0 disables caching.
+     * @param readingsBlockSize the number of intervals in each block of the readings that are written, so ranges of
+     *                          intervals can be read without decoding the whole readings. 0 writes readings without
+     *                          blocks, which can be read by older versions. Readings are read in either layout.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public SqliteEwbEnergyProfileStore(EwbDataFilePaths ewbPaths,
+                                       ZoneId timeZone,
+                                       EwbChannelFactory channelFactory,
+                                       long profileCacheBytes,
+                                       int readingsBlockSize) {
+        this.ewbPaths = ewbPaths;
+        this.timeZone = timeZone;
+        this.readingsBlockSize = readingsBlockSize;
+
+        indexPath = indexPath(ewbPaths);
+        SqliteBlobStore indexStore = createIndexStore(ewbPaths);
+        OPEN_INDEXES.merge(indexPath, 1, Integer::sum);
+        dateRangeIndex = new BlobDateRangeIndex(indexStore);
+        statCoverageIndex = new BlobStatCoverageIndex(indexStore);
+        presenceIndex = new BlobIdPresenceIndex(indexStore);
+        indexTransaction = IndexTransaction.of(indexStore);
+
+        storeProvider = createByDateBlobStoreCache(ewbPaths, this::onStoreCreated);
+        cachedIndex = new CachedDateRangeIndex(dateRangeIndex);
 
         ByDateItemReader<EnergyProfile> itemReader = new ByDateItemReader<>(timeZone, storeProvider);
 
-        serialisers = new Serialisers(
-            new ReadingsSerialiser(),
-            new ReadingsSerialiser(),
+        serialisers = createSerialisers(readingsBlockSize);
+
+        deserialisers = createDeserialisers(channelFactory);
+
+        readExecutor = Executors.newFixedThreadPool(READ_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "energy-profile-store-read");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        blobReader = new ByDateBlobEnergyProfileReader(
+            cachedIndex,
+            statCoverageIndex,
+            presenceIndex,
+            BloomFilterIndex.untracked(),
+            itemReader,
+            new ByDateItemReader<>(timeZone, storeProvider),
+            EnergyProfile::of,
+            deserialisers,
+            readExecutor,
+            MAX_DATES_IN_FLIGHT);
+
+        ByDateItemWriter itemWriter = new ByDateItemWriter(timeZone, storeProvider);
+        EnergyProfileWriter blobWriter = new ByDateBlobEnergyProfileWriter(
+            new CoalescingDateRangeIndex(cachedIndex),
+            statCoverageIndex,
+            presenceIndex,
+            BloomFilterIndex.untracked(),
+            indexTransaction,
+            itemWriter,
+            new ByDateItemReader<>(timeZone, storeProvider),
+            blobReader,
+            serialisers);
+
+        if (profileCacheBytes > 0) {
+            profileCache = new EnergyProfileCache(profileCacheBytes);
+            reader = new CachingEnergyProfileReader(blobReader, profileCache);
+            writer = new CachingEnergyProfileWriter(blobWriter, profileCache);
+        } else {
+            profileCache = null;
+            reader = blobReader;
+            writer = blobWriter;
+        }
+    }
+
+    static Serialisers createSerialisers(int readingsBlockSize) {
+        return new Serialisers(
+            new ReadingsSerialiser(readingsBlockSize),
+            new ReadingsSerialiser(readingsBlockSize),
             new CacheableSerialiser(),
             new EnergyProfileStatSerialiser());
+    }
 
-        deserialisers = new Deserialisers(
+    static Deserialisers createDeserialisers(ChannelFactory channelFactory) {
+        return new Deserialisers(
             new ReadingsDeserialiser(channelFactory),
             new ReadingsDeserialiser(channelFactory),
             new CacheableDeserialiser(),
             new EnergyProfileStatDeserialiser());
+    }
 
-        reader = new ByDateBlobEnergyProfileReader(
-            cachedIndex,
-            itemReader,
-            EnergyProfile::of,
-            deserialisers);
+    /**
+     * @return true if a store has the index of the EWB data open in this JVM.
+     */
+    static boolean isIndexOpen(EwbDataFilePaths ewbPaths) {
+        return OPEN_INDEXES.containsKey(indexPath(ewbPaths));
+    }
 
-        ByDateItemWriter itemWriter = new ByDateItemWriter(timeZone, storeProvider);
-        writer = new ByDateBlobEnergyProfileWriter(cachedIndex, itemWriter, serialisers);
+    private static Path indexPath(EwbDataFilePaths ewbPaths) {
+        return ewbPaths.resolve(DatabaseType.ENERGY_READINGS_INDEX).toAbsolutePath().normalize();
+    }
+
+    static SqliteBlobStore createIndexStore(EwbDataFilePaths ewbPaths) {
+        return new SqliteBlobStore(
+            ewbPaths.resolve(DatabaseType.ENERGY_READINGS_INDEX),
+            new HashSet<>(Arrays.asList(
+                BlobDateRangeIndex.STORE_TAG,
+                BlobStatCoverageIndex.STORE_TAG,
+                BlobIdPresenceIndex.STORE_TAG,
+                BlobIdPresenceIndex.DICTIONARY_TAG)));
     }
 
     static BlobDateRangeIndex createEnergyProfileIndex(EwbDataFilePaths ewbPaths) {
-        SqliteBlobStore dateRangeIndexStore = new SqliteBlobStore(ewbPaths.resolve(DatabaseType.ENERGY_READINGS_INDEX), Collections.singleton(BlobDateRangeIndex.STORE_TAG));
-        return new BlobDateRangeIndex(dateRangeIndexStore);
+        return new BlobDateRangeIndex(createIndexStore(ewbPaths));
     }
 
     static ByDateBlobStoreCache createByDateBlobStoreCache(EwbDataFilePaths ewbPaths) {
-        SqliteByDateBlobStoreProvider blobStoreProvider = new SqliteByDateBlobStoreProvider(ewbPaths);
-        return new ByDateBlobStoreCache(blobStoreProvider);
+        return new ByDateBlobStoreCache(new SqliteByDateBlobStoreProvider(ewbPaths));
+    }
+
+    static ByDateBlobStoreCache createByDateBlobStoreCache(EwbDataFilePaths ewbPaths, Consumer<LocalDate> onStoreCreated) {
+        return new ByDateBlobStoreCache(new SqliteByDateBlobStoreProvider(ewbPaths, onStoreCreated));
     }
 
     @Override
@@ -99,8 +232,36 @@ public class SqliteEwbEnergyProfileStore implements EnergyProfileStore {
         return writer;
     }
 
+    /**
+     * @return a writer that writes the profiles of different dates in parallel, from a lane for each of numLanes
+     * threads with its own item writer and serialisers. It shares the indexes and profile cache of this store, so it
+     * should not be used at the same time as {@link #writer()}, and should be closed before this store is.
+     */
+    public ParallelByDateBlobEnergyProfileWriter parallelWriter(int numLanes) {
+        return new ParallelByDateBlobEnergyProfileWriter(
+            new CoalescingDateRangeIndex(cachedIndex),
+            statCoverageIndex,
+            presenceIndex,
+            BloomFilterIndex.untracked(),
+            indexTransaction,
+            (laneDateRangeIndex, laneStatCoverageIndex, lanePresenceIndex, laneBloomFilterIndex) -> {
+                EnergyProfileWriter laneWriter = new ByDateBlobEnergyProfileWriter(
+                    laneDateRangeIndex,
+                    laneStatCoverageIndex,
+                    lanePresenceIndex,
+                    laneBloomFilterIndex,
+                    new ByDateItemWriter(timeZone, storeProvider),
+                    new ByDateItemReader<>(timeZone, storeProvider),
+                    blobReader,
+                    createSerialisers(readingsBlockSize));
+                return profileCache == null ? laneWriter : new CachingEnergyProfileWriter(laneWriter, profileCache);
+            },
+            numLanes);
+    }
+
     @Override
     public void close() {
+        readExecutor.shutdown();
         storeProvider.close((store, date, error) -> log.error("Failed to close sqlite energy profile store for " + date, error));
 
         try {
@@ -108,6 +269,44 @@ public class SqliteEwbEnergyProfileStore implements EnergyProfileStore {
         } catch (BlobStoreException e) {
             log.error("Failed to close sqlite energy profile index db", e);
         }
+
+        if (open.compareAndSet(true, false))
+            OPEN_INDEXES.computeIfPresent(indexPath, (path, count) -> count == 1 ? null : count - 1);
+    }
+
+    // Only called once the indexes have been created, as stores are not created until something is written to them.
+    private void onStoreCreated(LocalDate date) {
+        statCoverageIndex.track(date);
+        presenceIndex.track(date);
+    }
+
+    EwbDataFilePaths ewbPaths() {
+        return ewbPaths;
+    }
+
+    ZoneId timeZone() {
+        return timeZone;
+    }
+
+    int readingsBlockSize() {
+        return readingsBlockSize;
+    }
+
+    // The cached index, so the date ranges saved through it are seen by the reader of the store.
+    DateRangeIndex dateRangeIndex() {
+        return cachedIndex;
+    }
+
+    StatCoverageIndex statCoverageIndex() {
+        return statCoverageIndex;
+    }
+
+    IdPresenceIndex presenceIndex() {
+        return presenceIndex;
+    }
+
+    IndexTransaction indexTransaction() {
+        return indexTransaction;
     }
 
     Serialisers serialisers() {
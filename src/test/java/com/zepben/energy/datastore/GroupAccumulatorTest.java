@@ -0,0 +1,89 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore;
+
+import com.zepben.energy.model.Channel;
+import com.zepben.energy.model.Readings;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static com.zepben.energy.datastore.AggregateSpec.Operation.*;
+import static com.zepben.testutils.exception.ExpectException.expect;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+public class GroupAccumulatorTest {
+
+    @Test
+    public void sums() {
+        GroupAccumulator accumulator = new GroupAccumulator(SUM);
+        accumulator.add("g1", Readings.of(Channel.of(1., 2.)));
+        accumulator.add("g2", Readings.of(Channel.of(-1., -2.)));
+        accumulator.add("g1", Readings.of(Channel.of(3., 4.), Channel.of(10., 10.)));
+
+        Map<String, Readings> readings = accumulator.toReadings();
+        assertThat(readings.keySet(), contains("g1", "g2"));
+        assertThat(readings.get("g1"), is(Readings.of(Channel.of(14., 16.))));
+        assertThat(readings.get("g2"), is(Readings.of(Channel.of(-1., -2.))));
+    }
+
+    @Test
+    public void combinesToTheLongestLength() {
+        GroupAccumulator accumulator = new GroupAccumulator(MEAN);
+        accumulator.add("g", Readings.of(Channel.of(1., 2.)));
+        accumulator.add("g", Readings.of(Channel.of(3., 4., 5.)));
+
+        assertThat(accumulator.toReadings().get("g"), is(Readings.of(Channel.of(2., 3., 5.))));
+    }
+
+    @Test
+    public void minAndMax() {
+        GroupAccumulator min = new GroupAccumulator(MIN);
+        GroupAccumulator max = new GroupAccumulator(MAX);
+        for (GroupAccumulator accumulator : new GroupAccumulator[]{min, max}) {
+            accumulator.add("g", Readings.of(Channel.of(1., -2.)));
+            accumulator.add("g", Readings.of(Channel.of(-3., 4.)));
+        }
+
+        assertThat(min.toReadings().get("g"), is(Readings.of(Channel.of(-3., -2.))));
+        assertThat(max.toReadings().get("g"), is(Readings.of(Channel.of(1., 4.))));
+    }
+
+    @Test
+    public void addsNet() {
+        GroupAccumulator accumulator = new GroupAccumulator(SUM);
+        accumulator.addNet("g", Readings.of(Channel.of(5., 5.)), Readings.of(Channel.of(1., 2.)));
+        accumulator.addNet("g", Readings.of(Channel.of(1.)), Readings.of(Channel.of(0., 3.)));
+
+        assertThat(accumulator.toReadings().get("g"), is(Readings.of(Channel.of(5., 0.))));
+    }
+
+    @Test
+    public void mergesAccumulators() {
+        GroupAccumulator accumulator1 = new GroupAccumulator(MEAN);
+        accumulator1.add("g1", Readings.of(Channel.of(1., 2.)));
+        GroupAccumulator accumulator2 = new GroupAccumulator(MEAN);
+        accumulator2.add("g1", Readings.of(Channel.of(3., 4., 6.)));
+        accumulator2.add("g2", Readings.of(Channel.of(7.)));
+
+        accumulator1.merge(accumulator2);
+        Map<String, Readings> readings = accumulator1.toReadings();
+        assertThat(accumulator1.numGroups(), is(2));
+        assertThat(readings.get("g1"), is(Readings.of(Channel.of(2., 3., 6.))));
+        assertThat(readings.get("g2"), is(Readings.of(Channel.of(7.))));
+    }
+
+    @Test
+    public void onlyMergesTheSameOperation() {
+        expect(() -> new GroupAccumulator(SUM).merge(new GroupAccumulator(MAX))).toThrow(IllegalArgumentException.class);
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore;
+
+import com.zepben.energy.model.Channel;
+import com.zepben.energy.model.Readings;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.Collections;
+
+import static com.zepben.testutils.exception.ExpectException.expect;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class IntervalRangeReaderTest {
+
+    private final LocalDate date = LocalDate.of(2020, 1, 1);
+    private final Readings readings = Readings.of(Channel.of(1, 2, 3, 4), Channel.of(10, 20, 30, 40));
+
+    @Test
+    public void copiesTheRange() {
+        assertThat(IntervalRangeReader.range(readings, 1, 3), is(Readings.of(Channel.of(2, 3), Channel.of(20, 30))));
+        assertThat(IntervalRangeReader.range(Readings.of(Channel.of(1, 2, 3)), 2, 3), is(Readings.of(Channel.of(3))));
+    }
+
+    @Test
+    public void rangesPastTheEndAreCutShort() {
+        assertThat(IntervalRangeReader.range(readings, 3, 10), is(Readings.of(Channel.of(4), Channel.of(40))));
+        assertThat(IntervalRangeReader.range(readings, 4, 10), sameInstance(Readings.EMPTY_READINGS));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void readsRangesFromTheWholeReadings() {
+        PartialProfileReader<Readings> wholeReader = mock(PartialProfileReader.class);
+        ItemHandler<Readings> onRead = mock(ItemHandler.class);
+        ErrorHandler onError = mock(ErrorHandler.class);
+        doReturn(readings).when(wholeReader).get("id", date, onError);
+        doAnswer(inv -> {
+            inv.<ItemHandler<Readings>>getArgument(1).handle("id", date, readings);
+            return null;
+        }).when(wholeReader).forAll(eq(date), any(), eq(onError));
+
+        IntervalRangeReader reader = new IntervalRangeReader(wholeReader, 0, 2);
+        assertThat(reader.get("id", date, onError), is(Readings.of(Channel.of(1, 2), Channel.of(10, 20))));
+        assertThat(reader.get("missing", date, onError), nullValue());
+
+        reader.forAll(date, onRead, onError);
+        verify(onRead).handle("id", date, Readings.of(Channel.of(1, 2), Channel.of(10, 20)));
+
+        reader.forEach(Collections.singletonList("id"), date, onRead, onError);
+        verify(wholeReader).forEach(eq(Collections.singletonList("id")), eq(date), any(), eq(onError));
+    }
+
+    @Test
+    public void rangeMustBeValid() {
+        expect(() -> IntervalRangeReader.checkRange(-1, 2)).toThrow(IllegalArgumentException.class);
+        expect(() -> IntervalRangeReader.checkRange(3, 2)).toThrow(IllegalArgumentException.class);
+        IntervalRangeReader.checkRange(2, 2);
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import static com.zepben.energy.datastore.QueryStats.Stage.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class QueryStatsTest {
+
+    private final QueryStats stats = new QueryStats();
+
+    @Test
+    public void sumsCounters() {
+        stats.addRowsScanned(3);
+        stats.addRowsFilteredByIndex(2);
+        stats.addBytesRead(100);
+        stats.addBytesDecoded(60);
+        stats.storeOpened();
+        stats.cacheHit();
+        stats.addCacheHits(2);
+        stats.cacheMiss();
+        stats.addCacheMisses(4);
+
+        assertThat(stats.rowsScanned(), is(3L));
+        assertThat(stats.rowsFilteredByIndex(), is(2L));
+        assertThat(stats.bytesRead(), is(100L));
+        assertThat(stats.bytesDecoded(), is(60L));
+        assertThat(stats.storesOpened(), is(1L));
+        assertThat(stats.cacheHits(), is(3L));
+        assertThat(stats.cacheMisses(), is(5L));
+    }
+
+    @Test
+    public void recordsStages() {
+        long wall = System.nanoTime() - 1000;
+        stats.record(READ, wall, stats.cpuTime());
+        stats.recordWall(DECODE, wall);
+
+        assertThat(stats.wallNanos(READ), greaterThanOrEqualTo(1000L));
+        assertThat(stats.wallNanos(DECODE), greaterThanOrEqualTo(1000L));
+        assertThat(stats.wallNanos(INDEX), is(0L));
+    }
+
+    @Test
+    public void onlyMeasuresCpuTimeWhenAskedTo() {
+        assertThat(stats.cpuTime(), is(0L));
+        stats.record(READ, System.nanoTime(), stats.cpuTime());
+        assertThat(stats.cpuNanos(READ), is(0L));
+
+        QueryStats cpuStats = new QueryStats(true);
+        long cpu = cpuStats.cpuTime();
+        cpuStats.record(READ, System.nanoTime(), cpu);
+        assertThat(cpuStats.cpuNanos(READ), greaterThanOrEqualTo(0L));
+    }
+
+    @Test
+    public void callbackHandlerCountsRows() {
+        @SuppressWarnings("unchecked")
+        ItemHandler<String> onRead = mock(ItemHandler.class);
+        LocalDate date = LocalDate.of(2020, 1, 1);
+
+        ItemHandler<String> handler = stats.callbackHandler(onRead);
+        handler.handle("id1", date, "item1");
+        handler.handle("id2", date, "item2");
+
+        verify(onRead).handle("id1", date, "item1");
+        verify(onRead).handle("id2", date, "item2");
+        assertThat(stats.rowsScanned(), is(2L));
+    }
+
+    @Test
+    public void isCurrentWhileEntered() {
+        QueryStats other = new QueryStats();
+        assertThat(QueryStats.current(), nullValue());
+
+        try (QueryStats.Scope ignored = stats.enter()) {
+            assertThat(QueryStats.current(), sameInstance(stats));
+            try (QueryStats.Scope ignored2 = other.enter()) {
+                assertThat(QueryStats.current(), sameInstance(other));
+            }
+            assertThat(QueryStats.current(), sameInstance(stats));
+        }
+
+        assertThat(QueryStats.current(), nullValue());
+    }
+
+    @Test
+    public void carriesTheCurrentStatsOntoOtherThreads() throws Exception {
+        Function<String, QueryStats> withoutStats = QueryStats.inCurrent(value -> QueryStats.current());
+        Function<String, QueryStats> withStats;
+        try (QueryStats.Scope ignored = stats.enter()) {
+            withStats = QueryStats.inCurrent(value -> QueryStats.current());
+        }
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertThat(executor.submit(() -> withStats.apply("")).get(), sameInstance(stats));
+            assertThat(executor.submit(() -> withoutStats.apply("")).get(), nullValue());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void recordsFromMultipleThreads() {
+        IntStream.range(0, 10_000).parallel().forEach(i -> {
+            stats.addRowsScanned(1);
+            stats.addBytesRead(2);
+        });
+
+        assertThat(stats.rowsScanned(), is(10_000L));
+        assertThat(stats.bytesRead(), is(20_000L));
+    }
+
+}
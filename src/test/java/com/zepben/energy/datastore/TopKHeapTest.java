@@ -0,0 +1,98 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+
+import static com.zepben.testutils.exception.ExpectException.expect;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class TopKHeapTest {
+
+    private final LocalDate date = LocalDate.of(2020, 1, 1);
+
+    @Test
+    public void keepsTheHighestValues() {
+        TopKHeap heap = new TopKHeap(3);
+        for (int i = 0; i < 1000; ++i)
+            heap.offer("id" + i, date, (i * 7919) % 1000);
+
+        ProfileRanking ranking = heap.toRanking();
+        assertThat(ranking.size(), is(3));
+        assertThat(ranking.value(0), is(999.0));
+        assertThat(ranking.value(1), is(998.0));
+        assertThat(ranking.value(2), is(997.0));
+        assertThat(heap.size(), is(3));
+    }
+
+    @Test
+    public void tiesRankByIdThenDate() {
+        TopKHeap heap = new TopKHeap(3);
+        heap.offer("b", date, 1);
+        heap.offer("a", date.plusDays(1), 1);
+        heap.offer("c", date, 1);
+        heap.offer("a", date, 1);
+
+        ProfileRanking ranking = heap.toRanking();
+        assertThat(ranking.id(0), is("a"));
+        assertThat(ranking.date(0), is(date));
+        assertThat(ranking.id(1), is("a"));
+        assertThat(ranking.date(1), is(date.plusDays(1)));
+        assertThat(ranking.id(2), is("b"));
+    }
+
+    @Test
+    public void ignoresNaN() {
+        TopKHeap heap = new TopKHeap(2);
+        heap.offer("nan", date, Double.NaN);
+        heap.offer("negative", date, -1);
+
+        ProfileRanking ranking = heap.toRanking();
+        assertThat(ranking.size(), is(1));
+        assertThat(ranking.id(0), is("negative"));
+    }
+
+    @Test
+    public void mergesHeaps() {
+        TopKHeap heap1 = new TopKHeap(2);
+        heap1.offer("id1", date, 1);
+        heap1.offer("id3", date, 3);
+        TopKHeap heap2 = new TopKHeap(2);
+        heap2.offer("id2", date.plusDays(1), 2);
+        heap2.offer("id4", date.plusDays(1), 4);
+
+        heap1.merge(heap2);
+        ProfileRanking ranking = heap1.toRanking();
+        assertThat(ranking.size(), is(2));
+        assertThat(ranking.id(0), is("id4"));
+        assertThat(ranking.date(0), is(date.plusDays(1)));
+        assertThat(ranking.id(1), is("id3"));
+    }
+
+    @Test
+    public void growsToLargeK() {
+        TopKHeap heap = new TopKHeap(100_000);
+        for (int i = 0; i < 5000; ++i)
+            heap.offer("id" + i, date, i);
+
+        ProfileRanking ranking = heap.toRanking();
+        assertThat(ranking.size(), is(5000));
+        assertThat(ranking.value(0), is(4999.0));
+        assertThat(ranking.value(4999), is(0.0));
+    }
+
+    @Test
+    public void needsAtLeastOne() {
+        expect(() -> new TopKHeap(0)).toThrow(IllegalArgumentException.class);
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.async;
+
+import com.zepben.energy.datastore.EnergyProfileReader;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.ItemHandler;
+import com.zepben.energy.model.EnergyProfile;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static com.zepben.testutils.exception.ExpectException.expect;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.*;
+
+public class AsyncEnergyProfileReaderTest {
+
+    private final String id = "id";
+    private final LocalDate date = LocalDate.now(ZoneId.systemDefault());
+    private final EnergyProfile profile = EnergyProfile.of(id, date, null, null);
+
+    private final EnergyProfileReader reader = mock(EnergyProfileReader.class);
+    private final ErrorHandler onError = mock(ErrorHandler.class);
+    @SuppressWarnings("unchecked")
+    private final ItemHandler<EnergyProfile> onRead = mock(ItemHandler.class);
+
+    private final AsyncEnergyProfileReader asyncReader = new AsyncEnergyProfileReader(reader, Runnable::run, 4);
+
+    @Test
+    public void get() throws Exception {
+        doReturn(profile).when(reader).get(id, date, onError);
+        assertThat(asyncReader.get(id, date, onError).get(), is(profile));
+        assertThat(asyncReader.get("missing", date, onError).get(), is(nullValue()));
+    }
+
+    @Test
+    public void forEach() throws Exception {
+        List<String> ids = Collections.singletonList(id);
+        asyncReader.forEach(ids, date, onRead, onError).get();
+        verify(reader).forEach(ids, date, onRead, onError);
+    }
+
+    @Test
+    public void forAll() throws Exception {
+        asyncReader.forAll(date, onRead, onError).get();
+        verify(reader).forAll(date, onRead, onError);
+    }
+
+    @Test
+    public void completesExceptionallyOnFailure() {
+        doThrow(new IllegalStateException("test")).when(reader).get(id, date, onError);
+        CompletableFuture<EnergyProfile> future = asyncReader.get(id, date, onError);
+
+        assertThat(future.isCompletedExceptionally(), is(true));
+        expect(future::get).toThrow(ExecutionException.class);
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.async;
+
+import com.zepben.energy.datastore.EnergyProfileWriter;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.model.EnergyProfile;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.*;
+
+public class AsyncEnergyProfileWriterTest {
+
+    private final LocalDate date = LocalDate.now(ZoneId.systemDefault());
+    private final EnergyProfileWriter writer = mock(EnergyProfileWriter.class);
+    private final ErrorHandler onError = mock(ErrorHandler.class);
+
+    @Test
+    public void writesAndCommits() throws Exception {
+        AsyncEnergyProfileWriter asyncWriter = new AsyncEnergyProfileWriter(writer, Runnable::run);
+        EnergyProfile profile = EnergyProfile.of("id", date, null, null);
+        doReturn(true).when(writer).write(profile, true, onError);
+        doReturn(true).when(writer).commit(onError);
+        doReturn(false).when(writer).rollback(onError);
+
+        assertThat(asyncWriter.write(profile, true, onError).get(), is(true));
+        assertThat(asyncWriter.commit(onError).get(), is(true));
+        assertThat(asyncWriter.rollback(onError).get(), is(false));
+    }
+
+    @Test
+    public void runsCallsInOrder() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            AsyncEnergyProfileWriter asyncWriter = new AsyncEnergyProfileWriter(writer, executor);
+            doReturn(true).when(writer).write(any(), anyBoolean(), any());
+            doReturn(true).when(writer).commit(any());
+
+            EnergyProfile first = EnergyProfile.of("id1", date, null, null);
+            EnergyProfile second = EnergyProfile.of("id2", date, null, null);
+            asyncWriter.write(first, onError);
+            asyncWriter.write(second, onError);
+            CompletableFuture<Boolean> commit = asyncWriter.commit(onError);
+            assertThat(commit.get(), is(true));
+
+            InOrder inOrder = inOrder(writer);
+            inOrder.verify(writer).write(first, false, onError);
+            inOrder.verify(writer).write(second, false, onError);
+            inOrder.verify(writer).commit(onError);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
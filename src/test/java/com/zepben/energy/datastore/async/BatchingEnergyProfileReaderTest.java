@@ -0,0 +1,153 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.async;
+
+import com.zepben.energy.datastore.EnergyProfileReader;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.ItemHandler;
+import com.zepben.energy.model.EnergyProfile;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.zepben.testutils.exception.ExpectException.expect;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class BatchingEnergyProfileReaderTest {
+
+    private final LocalDate date = LocalDate.now(ZoneId.systemDefault());
+    private final EnergyProfileReader reader = mock(EnergyProfileReader.class);
+    private final ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+    private final ErrorHandler onError = mock(ErrorHandler.class);
+    private final List<Collection<String>> batches = new ArrayList<>();
+
+    private final BatchingEnergyProfileReader batchingReader = new BatchingEnergyProfileReader(
+        reader,
+        Runnable::run,
+        scheduler,
+        3,
+        Duration.ofMillis(5),
+        4);
+
+    @BeforeEach
+    public void before() {
+        doAnswer(inv -> {
+            Collection<String> ids = inv.getArgument(0);
+            ItemHandler<EnergyProfile> onRead = inv.getArgument(2);
+            ErrorHandler onReadError = inv.getArgument(3);
+
+            batches.add(new ArrayList<>(ids));
+            for (String id : ids) {
+                if (id.startsWith("missing"))
+                    continue;
+                if (id.startsWith("error"))
+                    onReadError.handle(id, date, "test", null);
+                else
+                    onRead.handle(id, date, EnergyProfile.of(id, date, null, null));
+            }
+            return null;
+        }).when(reader).forEach(any(), eq(date), any(ItemHandler.class), any(ErrorHandler.class));
+    }
+
+    @Test
+    public void readsFullBatchesStraightAway() throws Exception {
+        CompletableFuture<EnergyProfile> id1 = batchingReader.get("id1", date, onError);
+        CompletableFuture<EnergyProfile> id2 = batchingReader.get("id2", date, onError);
+        assertThat(id1.isDone(), is(false));
+
+        CompletableFuture<EnergyProfile> missing = batchingReader.get("missing", date, onError);
+
+        assertThat(batches, contains(Arrays.asList("id1", "id2", "missing")));
+        assertThat(id1.get().id(), is("id1"));
+        assertThat(id2.get().id(), is("id2"));
+        assertThat(missing.get(), nullValue());
+        assertThat(batchingReader.pending(), is(0));
+    }
+
+    @Test
+    public void readsPartialBatchesAfterTheDelay() throws Exception {
+        CompletableFuture<EnergyProfile> id1 = batchingReader.get("id1", date, onError);
+        CompletableFuture<EnergyProfile> other = batchingReader.get("id1", date.plusDays(1), onError);
+
+        ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler, times(2)).schedule(flush.capture(), eq(Duration.ofMillis(5).toNanos()), eq(TimeUnit.NANOSECONDS));
+        assertThat(batchingReader.pending(), is(2));
+
+        flush.getAllValues().get(0).run();
+        assertThat(id1.get().id(), is("id1"));
+        assertThat(other.isDone(), is(false));
+        verify(reader).forEach(any(), eq(date), any(ItemHandler.class), any(ErrorHandler.class));
+    }
+
+    @Test
+    public void flushAfterFullBatchDoesNothing() {
+        batchingReader.get("id1", date, onError);
+        batchingReader.get("id2", date, onError);
+        batchingReader.get("id3", date, onError);
+
+        ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(flush.capture(), anyLong(), any());
+        flush.getValue().run();
+
+        assertThat(batches, hasSize(1));
+    }
+
+    @Test
+    public void sharesDuplicateGets() throws Exception {
+        ErrorHandler otherError = mock(ErrorHandler.class);
+        CompletableFuture<EnergyProfile> first = batchingReader.get("error", date, onError);
+        CompletableFuture<EnergyProfile> second = batchingReader.get("error", date, otherError);
+        batchingReader.get("id1", date, onError);
+        batchingReader.get("id2", date, onError);
+
+        assertThat(second, sameInstance(first));
+        assertThat(batches, contains(Arrays.asList("error", "id1", "id2")));
+        assertThat(first.get(), nullValue());
+        verify(onError).handle("error", date, "test", null);
+        verify(otherError).handle("error", date, "test", null);
+    }
+
+    @Test
+    public void completesExceptionallyOnFailure() {
+        IllegalStateException error = new IllegalStateException("test");
+        doThrow(error).when(reader).forEach(any(), eq(date), any(ItemHandler.class), any(ErrorHandler.class));
+
+        CompletableFuture<EnergyProfile> id1 = batchingReader.get("id1", date, onError);
+        batchingReader.get("id2", date, onError);
+        batchingReader.get("id3", date, onError);
+
+        assertThat(id1.isCompletedExceptionally(), is(true));
+        expect(id1::get).toThrow(ExecutionException.class);
+        assertThat(batchingReader.pending(), is(0));
+    }
+
+    @Test
+    public void rejectsInvalidBatchSize() {
+        expect(() -> new BatchingEnergyProfileReader(reader, Runnable::run, scheduler, 0, Duration.ZERO, 1))
+            .toThrow(IllegalArgumentException.class);
+    }
+
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.async;
+
+import com.zepben.energy.datastore.EnergyProfileWriter;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.cache.EnergyProfileCache;
+import com.zepben.energy.model.Channel;
+import com.zepben.energy.model.EnergyProfile;
+import com.zepben.energy.model.Readings;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.zepben.energy.datastore.async.BatchingEnergyProfileWriter.Backpressure.FAIL;
+import static com.zepben.testutils.exception.ExpectException.expect;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class BatchingEnergyProfileWriterTest {
+
+    private final LocalDate date = LocalDate.now(ZoneId.systemDefault());
+    private final EnergyProfileWriter writer = mock(EnergyProfileWriter.class);
+    private final ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+    private final ErrorHandler onError = mock(ErrorHandler.class);
+
+    private final BatchingEnergyProfileWriter batchingWriter = new BatchingEnergyProfileWriter(
+        writer,
+        Runnable::run,
+        scheduler,
+        3,
+        1_000_000,
+        Duration.ofMillis(50));
+
+    @BeforeEach
+    public void before() {
+        doReturn(true).when(writer).write(any(), anyBoolean(), any());
+        doReturn(true).when(writer).commit(any());
+        doReturn(true).when(writer).rollback(any());
+    }
+
+    @Test
+    public void commitsFullBatchesStraightAway() throws Exception {
+        EnergyProfile profile1 = profile("id1");
+        EnergyProfile profile2 = profile("id2");
+        EnergyProfile profile3 = profile("id3");
+
+        CompletableFuture<Boolean> write1 = batchingWriter.write(profile1, onError);
+        CompletableFuture<Boolean> write2 = batchingWriter.write(profile2, true, onError);
+        assertThat(write1.isDone(), is(false));
+        assertThat(batchingWriter.pending(), is(2));
+        verify(writer, never()).write(any(), anyBoolean(), any());
+
+        CompletableFuture<Boolean> write3 = batchingWriter.write(profile3, onError);
+
+        assertThat(write1.get(), is(true));
+        assertThat(write2.get(), is(true));
+        assertThat(write3.get(), is(true));
+        assertThat(batchingWriter.pending(), is(0));
+
+        InOrder inOrder = inOrder(writer);
+        inOrder.verify(writer).write(profile1, false, onError);
+        inOrder.verify(writer).write(profile2, true, onError);
+        inOrder.verify(writer).write(profile3, false, onError);
+        inOrder.verify(writer).commit(any());
+    }
+
+    @Test
+    public void commitsPartialBatchesAfterTheDelay() throws Exception {
+        CompletableFuture<Boolean> write = batchingWriter.write(profile("id1"), onError);
+
+        ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(flush.capture(), eq(Duration.ofMillis(50).toNanos()), eq(TimeUnit.NANOSECONDS));
+        assertThat(write.isDone(), is(false));
+
+        flush.getValue().run();
+        assertThat(write.get(), is(true));
+        verify(writer).commit(any());
+
+        // Running the timer of a batch that has already been committed does nothing.
+        flush.getValue().run();
+        verify(writer, times(1)).commit(any());
+    }
+
+    @Test
+    public void commitsAtTheByteThreshold() throws Exception {
+        EnergyProfile profile = EnergyProfile.of("id1", date, Readings.of(Channel.of(new double[48])), null);
+        BatchingEnergyProfileWriter bytesWriter = new BatchingEnergyProfileWriter(
+            writer,
+            Runnable::run,
+            scheduler,
+            100,
+            EnergyProfileCache.estimateSize(profile) * 2,
+            Duration.ofMillis(50));
+
+        CompletableFuture<Boolean> write1 = bytesWriter.write(profile, onError);
+        assertThat(write1.isDone(), is(false));
+
+        CompletableFuture<Boolean> write2 = bytesWriter.write(profile, onError);
+        assertThat(write1.get(), is(true));
+        assertThat(write2.get(), is(true));
+        verify(writer).commit(any());
+    }
+
+    @Test
+    public void flushCommitsTheOpenBatch() throws Exception {
+        CompletableFuture<Boolean> write = batchingWriter.write(profile("id1"), onError);
+
+        assertThat(batchingWriter.flush().get(), is(true));
+        assertThat(write.get(), is(true));
+        assertThat(batchingWriter.flush().get(), is(true));
+        verify(writer, times(1)).commit(any());
+    }
+
+    @Test
+    public void reportsFailedWritesPerItem() throws Exception {
+        EnergyProfile failed = profile("failed");
+        ErrorHandler onFailedError = mock(ErrorHandler.class);
+        doAnswer(inv -> {
+            ErrorHandler handler = inv.getArgument(2);
+            handler.handle("failed", date, "test", null);
+            return false;
+        }).when(writer).write(eq(failed), anyBoolean(), any());
+
+        CompletableFuture<Boolean> write = batchingWriter.write(profile("id1"), onError);
+        CompletableFuture<Boolean> failedWrite = batchingWriter.write(failed, onFailedError);
+        batchingWriter.flush();
+
+        assertThat(write.get(), is(true));
+        assertThat(failedWrite.get(), is(false));
+        verify(onFailedError).handle("failed", date, "test", null);
+        verify(onError, never()).handle(any(), any(), any(), any());
+        verify(writer).commit(any());
+    }
+
+    @Test
+    public void reportsFailedCommitsToEveryItem() throws Exception {
+        ErrorHandler onError2 = mock(ErrorHandler.class);
+        doAnswer(inv -> {
+            ErrorHandler handler = inv.getArgument(0);
+            handler.handle("", date, "commit failed", null);
+            return false;
+        }).when(writer).commit(any());
+
+        CompletableFuture<Boolean> write1 = batchingWriter.write(profile("id1"), onError);
+        CompletableFuture<Boolean> write2 = batchingWriter.write(profile("id2"), onError2);
+
+        assertThat(batchingWriter.flush().get(), is(false));
+        assertThat(write1.get(), is(false));
+        assertThat(write2.get(), is(false));
+        verify(onError).handle("", date, "commit failed", null);
+        verify(onError2).handle("", date, "commit failed", null);
+        verify(writer).rollback(any());
+    }
+
+    @Test
+    public void failsTheBatchIfTheWriterThrows() {
+        RuntimeException error = new IllegalStateException("test");
+        doThrow(error).when(writer).commit(any());
+
+        CompletableFuture<Boolean> write = batchingWriter.write(profile("id1"), onError);
+        batchingWriter.flush();
+
+        expect(write::get).toThrow(ExecutionException.class);
+        verify(writer).rollback(any());
+    }
+
+    @Test
+    public void blocksWritesOnceTheMaxPendingAreWaiting() throws Exception {
+        BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+        BatchingEnergyProfileWriter boundedWriter = new BatchingEnergyProfileWriter(
+            writer,
+            tasks::add,
+            scheduler,
+            100,
+            1_000_000,
+            Duration.ofMillis(50),
+            2);
+
+        CompletableFuture<Boolean> write1 = boundedWriter.write(profile("id1"), onError);
+        CompletableFuture<Boolean> write2 = boundedWriter.write(profile("id2"), onError);
+        assertThat(boundedWriter.uncommitted(), is(2));
+
+        CompletableFuture<CompletableFuture<Boolean>> write3 = new CompletableFuture<>();
+        Thread producer = new Thread(() -> write3.complete(boundedWriter.write(profile("id3"), onError)));
+        producer.start();
+
+        // The blocked write sends the open batch to be committed rather than waiting for its timer.
+        Runnable commit = tasks.poll(5, TimeUnit.SECONDS);
+        assertThat(commit != null, is(true));
+        assertThat(write3.isDone(), is(false));
+
+        commit.run();
+        producer.join(5000);
+
+        assertThat(write1.get(), is(true));
+        assertThat(write2.get(), is(true));
+        assertThat(write3.get().isDone(), is(false));
+        assertThat(boundedWriter.uncommitted(), is(1));
+    }
+
+    @Test
+    public void failsWritesOnceTheMaxPendingAreWaitingIfAskedTo() throws Exception {
+        BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+        BatchingEnergyProfileWriter boundedWriter = new BatchingEnergyProfileWriter(
+            writer,
+            tasks::add,
+            scheduler,
+            100,
+            1_000_000,
+            Duration.ofMillis(50),
+            2,
+            FAIL);
+
+        CompletableFuture<Boolean> write1 = boundedWriter.write(profile("id1"), onError);
+        CompletableFuture<Boolean> write2 = boundedWriter.write(profile("id2"), onError);
+        CompletableFuture<Boolean> write3 = boundedWriter.write(profile("id3"), onError);
+
+        expect(write3::get).toThrow(ExecutionException.class);
+        assertThat(write3.handle((committed, t) -> t).get(), instanceOf(RejectedExecutionException.class));
+        assertThat(boundedWriter.uncommitted(), is(2));
+
+        // The rejected write still sends the open batch to be committed, so there will be space once it has been.
+        Runnable commit = tasks.poll();
+        assertThat(commit != null, is(true));
+        commit.run();
+
+        assertThat(write1.get(), is(true));
+        assertThat(write2.get(), is(true));
+        verify(writer, times(2)).write(any(), anyBoolean(), any());
+
+        CompletableFuture<Boolean> write4 = boundedWriter.write(profile("id4"), onError);
+        assertThat(write4.isDone(), is(false));
+        assertThat(boundedWriter.uncommitted(), is(1));
+    }
+
+    @Test
+    public void neverHasMoreThanTheMaxPendingWithManyProducers() throws Exception {
+        int maxPending = 5;
+        ExecutorService committer = Executors.newSingleThreadExecutor();
+        BatchingEnergyProfileWriter boundedWriter = new BatchingEnergyProfileWriter(
+            writer,
+            committer,
+            scheduler,
+            2,
+            1_000_000,
+            Duration.ofMillis(50),
+            maxPending);
+
+        AtomicInteger maxUncommitted = new AtomicInteger();
+        doAnswer(inv -> {
+            maxUncommitted.accumulateAndGet(boundedWriter.uncommitted(), Math::max);
+            return true;
+        }).when(writer).write(any(), anyBoolean(), any());
+
+        List<CompletableFuture<Boolean>> writes = new CopyOnWriteArrayList<>();
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < 8; ++p) {
+            Thread producer = new Thread(() -> {
+                for (int i = 0; i < 200; ++i) {
+                    writes.add(boundedWriter.write(profile("id" + i), onError));
+                    maxUncommitted.accumulateAndGet(boundedWriter.uncommitted(), Math::max);
+                }
+            });
+            producers.add(producer);
+            producer.start();
+        }
+
+        for (Thread producer : producers)
+            producer.join(10_000);
+
+        boundedWriter.close();
+        committer.shutdown();
+
+        assertThat(maxUncommitted.get(), lessThanOrEqualTo(maxPending));
+        assertThat(writes.size(), is(1600));
+        for (CompletableFuture<Boolean> write : writes)
+            assertThat(write.get(), is(true));
+    }
+
+    @Test
+    public void closeWaitsForEveryWriteToBeCommitted() throws Exception {
+        ExecutorService committer = Executors.newSingleThreadExecutor();
+        BatchingEnergyProfileWriter closingWriter = new BatchingEnergyProfileWriter(writer, committer, scheduler, 2, 1_000_000, Duration.ofMillis(50));
+        doAnswer(inv -> {
+            Thread.sleep(5);
+            return true;
+        }).when(writer).commit(any());
+
+        List<CompletableFuture<Boolean>> writes = new ArrayList<>();
+        for (int i = 0; i < 5; ++i)
+            writes.add(closingWriter.write(profile("id" + i), onError));
+
+        closingWriter.close();
+        committer.shutdown();
+
+        // The last write was still buffered in a batch that hadn't filled, so close had to send it to be committed.
+        for (CompletableFuture<Boolean> write : writes) {
+            assertThat(write.isDone(), is(true));
+            assertThat(write.get(), is(true));
+        }
+        verify(writer, times(3)).commit(any());
+
+        CompletableFuture<Boolean> afterClose = closingWriter.write(profile("id6"), onError);
+        expect(afterClose::get).toThrow(ExecutionException.class);
+        assertThat(afterClose.handle((committed, t) -> t).get(), instanceOf(RejectedExecutionException.class));
+    }
+
+    @Test
+    public void commitsStraightAwayIfTheSchedulerRejects() throws Exception {
+        doThrow(new RejectedExecutionException()).when(scheduler).schedule(any(Runnable.class), anyLong(), any());
+
+        CompletableFuture<Boolean> write = batchingWriter.write(profile("id1"), onError);
+
+        assertThat(write.get(), is(true));
+        verify(writer).commit(any());
+    }
+
+    @Test
+    public void validatesArguments() {
+        expect(() -> new BatchingEnergyProfileWriter(writer, Runnable::run, scheduler, 0, 1, Duration.ZERO))
+            .toThrow(IllegalArgumentException.class);
+        expect(() -> new BatchingEnergyProfileWriter(writer, Runnable::run, scheduler, 1, 0, Duration.ZERO))
+            .toThrow(IllegalArgumentException.class);
+        expect(() -> new BatchingEnergyProfileWriter(writer, Runnable::run, scheduler, 1, 1, Duration.ZERO, 0))
+            .toThrow(IllegalArgumentException.class);
+    }
+
+    private EnergyProfile profile(String id) {
+        return EnergyProfile.of(id, date, null, null);
+    }
+
+}
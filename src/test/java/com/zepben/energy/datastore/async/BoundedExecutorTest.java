@@ -0,0 +1,145 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.async;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.zepben.testutils.exception.ExpectException.expect;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+
+public class BoundedExecutorTest {
+
+    private final List<Runnable> submitted = new ArrayList<>();
+    private final List<Integer> ran = new ArrayList<>();
+    private final List<RejectedExecutionException> rejected = new ArrayList<>();
+
+    @Test
+    public void limitsTasksInFlight() {
+        BoundedExecutor executor = new BoundedExecutor(submitted::add, 2, 10);
+
+        for (int i = 0; i < 5; ++i) {
+            int task = i;
+            executor.execute(() -> ran.add(task), rejected::add);
+        }
+
+        assertThat(submitted.size(), equalTo(2));
+        assertThat(executor.inFlight(), equalTo(2));
+        assertThat(executor.pending(), equalTo(3));
+
+        submitted.remove(0).run();
+        assertThat(submitted.size(), equalTo(2));
+        assertThat(executor.pending(), equalTo(2));
+
+        while (!submitted.isEmpty())
+            submitted.remove(0).run();
+
+        assertThat(ran, contains(0, 1, 2, 3, 4));
+        assertThat(executor.inFlight(), equalTo(0));
+        assertThat(executor.pending(), equalTo(0));
+        assertThat(rejected.isEmpty(), is(true));
+    }
+
+    @Test
+    public void singleInFlightRunsInOrder() {
+        BoundedExecutor executor = new BoundedExecutor(submitted::add, 1, 10);
+
+        for (int i = 0; i < 3; ++i) {
+            int task = i;
+            executor.execute(() -> ran.add(task), rejected::add);
+        }
+
+        assertThat(submitted.size(), equalTo(1));
+        while (!submitted.isEmpty())
+            submitted.remove(0).run();
+
+        assertThat(ran, contains(0, 1, 2));
+    }
+
+    @Test
+    public void releasesSlotWhenTaskThrows() {
+        BoundedExecutor executor = new BoundedExecutor(Runnable::run, 1, 10);
+
+        expect(() -> executor.execute(() -> {
+            throw new IllegalStateException("test");
+        }, rejected::add)).toThrow(IllegalStateException.class);
+
+        executor.execute(() -> ran.add(1), rejected::add);
+        assertThat(ran, contains(1));
+        assertThat(executor.inFlight(), equalTo(0));
+    }
+
+    @Test
+    public void rejectsTasksOverThePendingLimit() {
+        BoundedExecutor executor = new BoundedExecutor(submitted::add, 1, 2);
+
+        for (int i = 0; i < 4; ++i) {
+            int task = i;
+            executor.execute(() -> ran.add(task), rejected::add);
+        }
+
+        assertThat(executor.pending(), equalTo(2));
+        assertThat(rejected.size(), equalTo(1));
+
+        while (!submitted.isEmpty())
+            submitted.remove(0).run();
+
+        assertThat(ran, contains(0, 1, 2));
+    }
+
+    @Test
+    public void rejectsQueuedTasksTheExecutorRejects() {
+        List<Runnable> accepted = new ArrayList<>();
+        BoundedExecutor executor = new BoundedExecutor(task -> {
+            if (!accepted.isEmpty())
+                throw new RejectedExecutionException("test");
+            accepted.add(task);
+        }, 1, 10);
+
+        CompletableFuture<Integer> first = executor.supply(() -> 1);
+        CompletableFuture<Integer> second = executor.supply(() -> 2);
+
+        // The second task is handed to the executor from the thread of the first, which must not lose it.
+        accepted.get(0).run();
+
+        assertThat(first.join(), equalTo(1));
+        assertThat(second.isCompletedExceptionally(), is(true));
+        expect(second::get).toThrow(ExecutionException.class);
+        assertThat(causeOf(second), instanceOf(RejectedExecutionException.class));
+        assertThat(executor.inFlight(), equalTo(0));
+        assertThat(executor.pending(), equalTo(0));
+    }
+
+    @Test
+    public void requiresPositiveLimits() {
+        expect(() -> new BoundedExecutor(Runnable::run, 0, 1)).toThrow(IllegalArgumentException.class);
+        expect(() -> new BoundedExecutor(Runnable::run, 1, 0)).toThrow(IllegalArgumentException.class);
+    }
+
+    private static Throwable causeOf(CompletableFuture<?> future) {
+        try {
+            future.get();
+            throw new AssertionError("future did not fail");
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+}
@@ -9,27 +9,44 @@
 package com.zepben.energy.datastore.blobstore;
 
 import com.zepben.blobstore.itemwrappers.*;
+import com.zepben.energy.datastore.AggregateSpec;
+import com.zepben.energy.datastore.EnergyProfilePage;
 import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.IntervalColumn;
+import com.zepben.energy.datastore.IntervalRangeReader;
 import com.zepben.energy.datastore.ItemHandler;
+import com.zepben.energy.datastore.PartialProfileReader;
+import com.zepben.energy.datastore.ProfileRanking;
+import com.zepben.energy.datastore.QueryStats;
+import com.zepben.energy.datastore.blobstore.indexing.BloomFilterIndex;
 import com.zepben.energy.datastore.blobstore.indexing.DateRangeIndex;
+import com.zepben.energy.datastore.blobstore.indexing.IdPresenceIndex;
 import com.zepben.energy.datastore.blobstore.indexing.MockDateRangeIndex;
+import com.zepben.energy.datastore.blobstore.indexing.StatCoverageIndex;
 import com.zepben.energy.model.*;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import static com.zepben.energy.datastore.blobstore.EnergyProfileAttribute.*;
 import static com.zepben.testutils.exception.ExpectException.expect;
+import static java.util.stream.Collectors.toList;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
+import static org.hamcrest.Matchers.contains;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
@@ -249,6 +266,190 @@ public class ByDateBlobEnergyProfileReaderTest {
         verify(itemHandler, never()).handle(any(), any(), any());
     }
 
+    @Test
+    public void getSeriesClipsToIndexedRange() {
+        EnergyProfile expectedProfile = EnergyProfile.of(id, date, Readings.of(Channel.of(1.)), Readings.of(Channel.of(2.)));
+        when(byDateItemReader.get(eq(id), eq(date), any())).thenReturn(expectedProfile);
+
+        List<EnergyProfile> series = profileReader.getSeries(id, date.minusDays(2), date.plusDays(2), itemError);
+        assertThat(series, contains(expectedProfile));
+
+        verify(byDateItemReader, times(1)).get(any(), any(), any());
+    }
+
+    @Test
+    public void getSeriesNotInIndex() {
+        List<EnergyProfile> series = profileReader.getSeries("missing", date.minusDays(2), date.plusDays(2), itemError);
+        assertThat(series, empty());
+
+        verify(byDateItemReader, never()).get(any(), any(), any());
+    }
+
+    @Test
+    public void forEachSeries() {
+        EnergyProfile expectedProfile = EnergyProfile.of(id, date, Readings.of(Channel.of(1.)), Readings.of(Channel.of(2.)));
+        doAnswer(inv -> {
+            ByDateItemHandler<EnergyProfile> handler = inv.getArgument(2);
+            handler.handle(id, date, expectedProfile);
+            return null;
+        }).when(byDateItemReader).forEach(eq(Collections.singletonList(id)), eq(date), any(), any());
+
+        profileReader.forEachSeries(Arrays.asList(id, "missing"), date.minusDays(2), date.plusDays(2), itemHandler, itemError);
+
+        verify(byDateItemReader, times(1)).forEach(any(), any(), any(), any());
+        verify(itemHandler).handle(id, date, expectedProfile);
+    }
+
+    @Test
+    public void seriesDatesAreReadOnTheDateExecutorWithBoundedDatesInFlight() throws Exception {
+        LocalDate from = LocalDate.of(2020, 1, 1);
+        AtomicInteger reading = new AtomicInteger();
+        AtomicInteger maxReading = new AtomicInteger();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        Set<QueryStats> currentStats = ConcurrentHashMap.newKeySet();
+        doAnswer(inv -> {
+            LocalDate dt = inv.getArgument(1);
+            maxReading.accumulateAndGet(reading.incrementAndGet(), Math::max);
+            threads.add(Thread.currentThread().getName());
+            currentStats.add(QueryStats.current());
+            Thread.sleep(20);
+            reading.decrementAndGet();
+
+            ByDateItemHandler<EnergyProfile> handler = inv.getArgument(2);
+            handler.handle(id, dt, EnergyProfile.of(id, dt, null, null));
+            return null;
+        }).when(byDateItemReader).forEach(any(), any(), any(ByDateItemHandler.class), any());
+
+        ExecutorService executor = Executors.newFixedThreadPool(4, runnable -> new Thread(runnable, "date-reader"));
+        try {
+            Deserialisers deserialisers = new Deserialisers(kwInDsx, kwOutDsx, cacheableDsx, statDsx);
+            profileReader = new ByDateBlobEnergyProfileReader(
+                new MockDateRangeIndex(Collections.singletonList(new IdDateRange(id, from, from.plusDays(5)))),
+                StatCoverageIndex.untracked(),
+                IdPresenceIndex.untracked(),
+                BloomFilterIndex.untracked(),
+                byDateItemReader,
+                null,
+                EnergyProfile::of,
+                deserialisers,
+                executor,
+                2);
+
+            List<LocalDate> dates = new ArrayList<>();
+            QueryStats stats = new QueryStats();
+            try (QueryStats.Scope ignored = stats.enter()) {
+                profileReader.forEachSeries(Collections.singletonList(id), from, from.plusDays(5), (readId, dt, profile) -> dates.add(dt), itemError);
+            }
+
+            assertThat(dates, contains(from, from.plusDays(1), from.plusDays(2), from.plusDays(3), from.plusDays(4), from.plusDays(5)));
+            assertThat(maxReading.get(), lessThanOrEqualTo(2));
+            assertThat(threads, contains("date-reader"));
+            assertThat(currentStats, contains(stats));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void seriesReadFailuresArePassedToTheCaller() {
+        LocalDate from = LocalDate.of(2020, 1, 1);
+        doThrow(new IllegalStateException("test")).when(byDateItemReader).get(any(), any(), any());
+        Deserialisers deserialisers = new Deserialisers(kwInDsx, kwOutDsx, cacheableDsx, statDsx);
+        profileReader = new ByDateBlobEnergyProfileReader(
+            new MockDateRangeIndex(Collections.singletonList(new IdDateRange(id, from, from.plusDays(5)))),
+            StatCoverageIndex.untracked(),
+            IdPresenceIndex.untracked(),
+            BloomFilterIndex.untracked(),
+            byDateItemReader,
+            null,
+            EnergyProfile::of,
+            deserialisers,
+            Runnable::run,
+            2);
+
+        expect(() -> profileReader.getSeries(id, from, from.plusDays(5), itemError)).toThrow(IllegalStateException.class);
+    }
+
+    @Test
+    public void forAllFilteredStreamsRowsTestingStoredMaximumsBeforeDecoding() throws Exception {
+        @SuppressWarnings("unchecked")
+        ByDateItemReader<Map<String, byte[]>> rawItemReader = mock(ByDateItemReader.class);
+        byte[] passingIn = {1};
+        byte[] failingIn = {2};
+        byte[] calculatedIn = {3};
+        byte[] passingStat = {4};
+        byte[] failingStat = {5};
+        Readings passingReadings = Readings.of(Channel.of(11.));
+        Readings calculatedReadings = Readings.of(Channel.of(1., 12.));
+        doReturn(passingReadings).when(kwInDsx).dsx(passingIn);
+        doReturn(calculatedReadings).when(kwInDsx).dsx(calculatedIn);
+        doReturn(new EnergyProfileStat(11, 0, 11)).when(statDsx).dsx(passingStat);
+        doReturn(new EnergyProfileStat(5, 0, 5)).when(statDsx).dsx(failingStat);
+        doAnswer(inv -> {
+            ByDateItemHandler<Map<String, byte[]>> handler = inv.getArgument(1);
+            handler.handle("passing", date, blobs(passingIn, passingStat));
+            handler.handle("failing", date, blobs(failingIn, failingStat));
+            handler.handle("calculated", date, blobs(calculatedIn, null));
+            handler.handle("unindexed", date, blobs(passingIn, passingStat));
+            return null;
+        }).when(rawItemReader).forAll(eq(date), any(ByDateItemHandler.class), any());
+
+        DateRangeIndex index = spy(new MockDateRangeIndex(Arrays.asList(
+            new IdDateRange("passing", date, date),
+            new IdDateRange("failing", date, date),
+            new IdDateRange("calculated", date, date))));
+        profileReader = new ByDateBlobEnergyProfileReader(
+            index,
+            StatCoverageIndex.untracked(),
+            IdPresenceIndex.untracked(),
+            BloomFilterIndex.untracked(),
+            byDateItemReader,
+            rawItemReader,
+            EnergyProfile::of,
+            new Deserialisers(kwInDsx, kwOutDsx, cacheableDsx, statDsx));
+
+        profileReader.forAll(date, stat -> stat.kwIn() > 10, itemHandler, itemError);
+
+        verify(itemHandler).handle("passing", date, EnergyProfile.of("passing", date, passingReadings, null));
+        verify(itemHandler).handle("calculated", date, EnergyProfile.of("calculated", date, calculatedReadings, null));
+        verifyNoMoreInteractions(itemHandler);
+        verify(kwInDsx, never()).dsx(failingIn);
+        verify(index, never()).forAll(any());
+        verify(byDateItemReader, never()).forEach(any(), any(), any(), any());
+    }
+
+    @Test
+    public void forAllFilteredCalculatesMaximumsWithoutRawReader() {
+        EnergyProfile profile = EnergyProfile.of(id, date, Readings.of(Channel.of(1., 12.)), Readings.of(Channel.of(2., 2.)));
+        doAnswer(inv -> {
+            ByDateItemHandler<EnergyProfile> handler = inv.getArgument(1);
+            handler.handle(id, date, profile);
+            handler.handle("unindexed", date, EnergyProfile.of("unindexed", date, Readings.of(Channel.of(12.)), null));
+            return null;
+        }).when(byDateItemReader).forAll(eq(date), any(ByDateItemHandler.class), any());
+
+        profileReader.forAll(date, stat -> stat.kwIn() > 20, itemHandler, itemError);
+        verify(itemHandler, never()).handle(any(), any(), any());
+
+        profileReader.forAll(date, stat -> stat.kwIn() > 10, itemHandler, itemError);
+        verify(itemHandler).handle(id, date, profile);
+        verifyNoMoreInteractions(itemHandler);
+        verify(dateRangeIndex, never()).forAll(any());
+    }
+
+    @Test
+    public void forEachFilteredByStoredMaximums() {
+        List<String> ids = Arrays.asList(id, "missing");
+        doAnswer(inv -> {
+            ByDateItemHandler<EnergyProfileStat> handler = inv.getArgument(3);
+            handler.handle(id, date, new EnergyProfileStat(11, 0, 11));
+            return null;
+        }).when(byDateItemReader).forEach(eq(Collections.singletonList(id)), eq(date), eq(MAXIMUMS.storeString()), any(), any());
+
+        profileReader.forEach(ids, date, stat -> stat.kwIn() > 10, itemHandler, itemError);
+        verify(byDateItemReader).forEach(eq(Collections.singletonList(id)), eq(date), any(), any());
+    }
+
     @Test
     public void forAllCacheable() {
         Readings kwIn = Readings.of(Channel.of(1.));
@@ -319,4 +520,413 @@ public class ByDateBlobEnergyProfileReaderTest {
         assertThat(stat.kwNet(), is(-3.));
     }
 
+    @Test
+    public void usesPresenceIndexForTrackedDates() {
+        IdPresenceIndex presenceIndex = mock(IdPresenceIndex.class);
+        doReturn(false).when(presenceIndex).contains(id, date);
+        doReturn(true).when(presenceIndex).isTracked(date);
+        doReturn(Collections.emptyList()).when(presenceIndex).filter(any(), eq(date));
+
+        Deserialisers deserialisers = new Deserialisers(kwInDsx, kwOutDsx, cacheableDsx, statDsx);
+        profileReader = new ByDateBlobEnergyProfileReader(dateRangeIndex, StatCoverageIndex.untracked(), presenceIndex, byDateItemReader, EnergyProfile::of, deserialisers);
+
+        // The id is in range, but the presence index knows it has no profile on the date.
+        assertThat(profileReader.exists(id, date), is(false));
+        assertThat(profileReader.get(id, date, itemError), nullValue());
+        profileReader.forEach(Collections.singletonList(id), date, itemHandler, itemError);
+        verify(byDateItemReader, never()).get(any(), any(), any());
+        verify(byDateItemReader, never()).forEach(any(), any(), any(), any());
+
+        // Every row of a tracked date is passed through without checking the index.
+        EnergyProfile profile = EnergyProfile.of("notIndexed", date, Readings.of(Channel.of(1.)), null);
+        doAnswer(inv -> {
+            ByDateItemHandler<EnergyProfile> handler = inv.getArgument(1);
+            handler.handle(profile.id(), date, profile);
+            return null;
+        }).when(byDateItemReader).forAll(eq(date), any(), any());
+
+        profileReader.forAll(date, itemHandler, itemError);
+        verify(itemHandler).handle(profile.id(), date, profile);
+    }
+
+    @Test
+    public void seriesTestTrackedDatesTheSameAsExists() {
+        // The range says the id isn't on the middle date, but the date is tracked and the presence index has it there.
+        BitSet days = new BitSet();
+        days.set(0);
+        days.set(2);
+        DateRangeIndex gappedIndex = new MockDateRangeIndex(Collections.singletonList(new IdDateRange(id, date.minusDays(1), date.plusDays(1), days)));
+
+        IdPresenceIndex presenceIndex = mock(IdPresenceIndex.class);
+        doReturn(null).when(presenceIndex).contains(any(), any());
+        doReturn(null).when(presenceIndex).filter(any(), any());
+        doReturn(true).when(presenceIndex).contains(id, date);
+        doReturn(true).when(presenceIndex).isTracked(date);
+        doReturn(Collections.singletonList(id)).when(presenceIndex).filter(any(), eq(date));
+
+        Deserialisers deserialisers = new Deserialisers(kwInDsx, kwOutDsx, cacheableDsx, statDsx);
+        profileReader = new ByDateBlobEnergyProfileReader(gappedIndex, StatCoverageIndex.untracked(), presenceIndex, byDateItemReader, EnergyProfile::of, deserialisers);
+
+        assertThat(profileReader.exists(id, date), is(true));
+
+        profileReader.getSeries(id, date.minusDays(1), date.plusDays(1), itemError);
+        verify(byDateItemReader).get(eq(id), eq(date.minusDays(1)), any());
+        verify(byDateItemReader).get(eq(id), eq(date), any());
+        verify(byDateItemReader).get(eq(id), eq(date.plusDays(1)), any());
+
+        profileReader.forEachSeries(Collections.singletonList(id), date.minusDays(1), date.plusDays(1), itemHandler, itemError);
+        verify(byDateItemReader).forEach(eq(Collections.singletonList(id)), eq(date), any(), any());
+        verify(byDateItemReader, times(3)).forEach(any(), any(), any(), any());
+    }
+
+    @Test
+    public void usesBloomFiltersBeforeReadingTheStore() {
+        BloomFilterIndex bloomFilters = mock(BloomFilterIndex.class);
+        doReturn(false).when(bloomFilters).mightContain(id, date);
+
+        Deserialisers deserialisers = new Deserialisers(kwInDsx, kwOutDsx, cacheableDsx, statDsx);
+        profileReader = new ByDateBlobEnergyProfileReader(
+            dateRangeIndex,
+            StatCoverageIndex.untracked(),
+            IdPresenceIndex.untracked(),
+            bloomFilters,
+            byDateItemReader,
+            EnergyProfile::of,
+            deserialisers);
+
+        // The id is in range, but the filter for the date knows it was never written to it.
+        assertThat(profileReader.get(id, date, itemError), nullValue());
+        assertThat(profileReader.kwInReader().get(id, date, itemError), nullValue());
+        profileReader.forEach(Collections.singletonList(id), date, itemHandler, itemError);
+        verify(byDateItemReader, never()).get(any(), any(), any());
+        verify(byDateItemReader, never()).get(any(), any(), any(), any());
+        verify(byDateItemReader, never()).forEach(any(), any(), any(), any());
+
+        // Dates without a filter fall back to the date range.
+        doReturn(null).when(bloomFilters).mightContain(id, date);
+        profileReader.get(id, date, itemError);
+        verify(byDateItemReader).get(eq(id), eq(date), any());
+    }
+
+    @Test
+    public void onlyUsesBloomFiltersOnDatesWithoutPresence() {
+        BloomFilterIndex bloomFilters = mock(BloomFilterIndex.class);
+        IdPresenceIndex presenceIndex = mock(IdPresenceIndex.class);
+        doReturn(true).when(presenceIndex).contains(id, date);
+
+        Deserialisers deserialisers = new Deserialisers(kwInDsx, kwOutDsx, cacheableDsx, statDsx);
+        profileReader = new ByDateBlobEnergyProfileReader(
+            dateRangeIndex,
+            StatCoverageIndex.untracked(),
+            presenceIndex,
+            bloomFilters,
+            byDateItemReader,
+            EnergyProfile::of,
+            deserialisers);
+
+        profileReader.get(id, date, itemError);
+        verify(byDateItemReader).get(eq(id), eq(date), any());
+        verify(bloomFilters, never()).mightContain(any(), any());
+    }
+
+    @Test
+    public void readsPagesOfTrackedDates() {
+        IdPresenceIndex presenceIndex = mock(IdPresenceIndex.class);
+        List<String> sortedIds = Arrays.asList("id1", "id2", "id3", "missing");
+        doReturn(true).when(presenceIndex).isTracked(date);
+        doAnswer(inv -> {
+            String after = inv.getArgument(1);
+            int limit = inv.getArgument(2);
+            return sortedIds.stream().filter(pageId -> after == null || pageId.compareTo(after) > 0).limit(limit).collect(toList());
+        }).when(presenceIndex).idsAfter(eq(date), any(), anyInt());
+        doAnswer(inv -> new ArrayList<>(inv.<Collection<String>>getArgument(0))).when(presenceIndex).filter(any(), eq(date));
+        doAnswer(inv -> {
+            Collection<String> ids = inv.getArgument(0);
+            ByDateItemHandler<EnergyProfile> handler = inv.getArgument(2);
+            ids.stream()
+                .filter(pageId -> !pageId.equals("missing"))
+                .forEach(pageId -> handler.handle(pageId, date, EnergyProfile.of(pageId, date, null, null)));
+            return null;
+        }).when(byDateItemReader).forEach(any(), eq(date), any(), any());
+
+        Deserialisers deserialisers = new Deserialisers(kwInDsx, kwOutDsx, cacheableDsx, statDsx);
+        profileReader = new ByDateBlobEnergyProfileReader(dateRangeIndex, StatCoverageIndex.untracked(), presenceIndex, byDateItemReader, EnergyProfile::of, deserialisers);
+
+        EnergyProfilePage page = profileReader.forAllPage(date, null, 2, itemError);
+        assertThat(page.profiles().stream().map(EnergyProfile::id).collect(toList()), contains("id1", "id2"));
+        assertThat(page.hasMore(), is(true));
+
+        // Ids without a profile leave the page short, but it is still the last page once all the ids have been read.
+        page = profileReader.forAllPage(date, page.continuationToken(), 2, itemError);
+        assertThat(page.profiles().stream().map(EnergyProfile::id).collect(toList()), contains("id3"));
+        assertThat(page.hasMore(), is(false));
+        verify(byDateItemReader).forEach(eq(Arrays.asList("id1", "id2")), eq(date), any(), any());
+        verify(byDateItemReader).forEach(eq(Arrays.asList("id3", "missing")), eq(date), any(), any());
+        verify(presenceIndex, never()).ids(any());
+    }
+
+    @Test
+    public void readsPagesOfUntrackedDatesFromDateRanges() {
+        profileReader.forAllPage(date, null, 10, itemError);
+        verify(byDateItemReader).forEach(eq(Collections.singletonList(id)), eq(date), any(), any());
+
+        EnergyProfilePage page = profileReader.forAllPage(date.plusDays(1), null, 10, itemError);
+        assertThat(page.profiles(), empty());
+        assertThat(page.hasMore(), is(false));
+    }
+
+    @Test
+    public void pagesUntrackedDatesFromTheContinuationToken() {
+        DateRangeIndex pagedIndex = spy(new MockDateRangeIndex(Arrays.asList(
+            IdDateRange.ofDate("id1", date),
+            IdDateRange.ofDate("id2", date.plusDays(1)),
+            IdDateRange.ofDate("id3", date),
+            IdDateRange.ofDate("id4", date))));
+        doAnswer(inv -> {
+            Collection<String> ids = inv.getArgument(0);
+            ByDateItemHandler<EnergyProfile> handler = inv.getArgument(2);
+            ids.forEach(pageId -> handler.handle(pageId, date, EnergyProfile.of(pageId, date, null, null)));
+            return null;
+        }).when(byDateItemReader).forEach(any(), eq(date), any(), any());
+
+        Deserialisers deserialisers = new Deserialisers(kwInDsx, kwOutDsx, cacheableDsx, statDsx);
+        profileReader = new ByDateBlobEnergyProfileReader(pagedIndex, byDateItemReader, EnergyProfile::of, deserialisers);
+
+        EnergyProfilePage page = profileReader.forAllPage(date, null, 2, itemError);
+        assertThat(page.profiles().stream().map(EnergyProfile::id).collect(toList()), contains("id1", "id3"));
+        assertThat(page.hasMore(), is(true));
+
+        page = profileReader.forAllPage(date, page.continuationToken(), 2, itemError);
+        assertThat(page.profiles().stream().map(EnergyProfile::id).collect(toList()), contains("id4"));
+        assertThat(page.hasMore(), is(false));
+
+        // Each page seeks to the ranges after the last id read rather than reading them all.
+        verify(pagedIndex, times(2)).forAllAfter(eq("id3"), eq(3), any());
+    }
+
+    @Test
+    public void pagesNeedAtLeastOneProfile() {
+        expect(() -> profileReader.forAllPage(date, null, 0, itemError)).toThrow(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void readsIntervalsFromStoredReadings() {
+        doAnswer(inv -> {
+            ByDateItemHandler<Readings> handler = inv.getArgument(2);
+            handler.handle(id, date, Readings.of(Channel.of(1., 2., 3.)));
+            handler.handle("notInRange", date, Readings.of(Channel.of(1., 2., 3.)));
+            return null;
+        }).when(byDateItemReader).forAll(eq(date), eq(KW_IN.storeString()), any(), any());
+        doAnswer(inv -> {
+            ByDateItemHandler<Readings> handler = inv.getArgument(2);
+            handler.handle(id, date, Readings.of(Channel.of(4., 5.)));
+            return null;
+        }).when(byDateItemReader).forAll(eq(date), eq(KW_OUT.storeString()), any(), any());
+
+        IntervalColumn column = profileReader.forAllAtInterval(date, 2, itemError);
+
+        assertThat(column.size(), is(1));
+        assertThat(column.id(0), is(id));
+        assertThat(column.kwIn(0), is(3.));
+        assertThat(column.kwOut(0), is(Double.NaN));
+        verify(byDateItemReader, never()).forAll(any(), any(ByDateItemHandler.class), any());
+    }
+
+    @Test
+    public void decodesOnlyTheIntervalWithRawReader() {
+        @SuppressWarnings("unchecked")
+        ByDateItemReader<Map<String, byte[]>> rawItemReader = mock(ByDateItemReader.class);
+        @SuppressWarnings("unchecked")
+        Deserialiser<Readings> intervalDsx = mock(Deserialiser.class, withSettings().extraInterfaces(IntervalDeserialiser.class));
+        byte[] kwInBytes = new byte[]{1};
+        byte[] kwOutBytes = new byte[]{2};
+        doReturn(7.5).when((IntervalDeserialiser) intervalDsx).dsxInterval(kwInBytes, 36);
+        doReturn(-2.5).when((IntervalDeserialiser) intervalDsx).dsxInterval(kwOutBytes, 36);
+
+        doAnswer(inv -> {
+            ByDateItemHandler<byte[]> handler = inv.getArgument(2);
+            handler.handle(id, date, kwInBytes);
+            return null;
+        }).when(rawItemReader).forAll(eq(date), eq(KW_IN.storeString()), any(), any());
+        doAnswer(inv -> {
+            ByDateItemHandler<byte[]> handler = inv.getArgument(2);
+            handler.handle(id, date, kwOutBytes);
+            return null;
+        }).when(rawItemReader).forAll(eq(date), eq(KW_OUT.storeString()), any(), any());
+
+        Deserialisers deserialisers = new Deserialisers(intervalDsx, intervalDsx, cacheableDsx, statDsx);
+        profileReader = new ByDateBlobEnergyProfileReader(
+            dateRangeIndex,
+            StatCoverageIndex.untracked(),
+            IdPresenceIndex.untracked(),
+            BloomFilterIndex.untracked(),
+            byDateItemReader,
+            rawItemReader,
+            EnergyProfile::of,
+            deserialisers);
+
+        IntervalColumn column = profileReader.forAllAtInterval(date, 36, itemError);
+
+        assertThat(column.size(), is(1));
+        assertThat(column.kwIn(column.indexOf(id)), is(7.5));
+        assertThat(column.kwOut(column.indexOf(id)), is(-2.5));
+        verify(rawItemReader).setDeserialisers(any(), any());
+        verify(intervalDsx, never()).dsx(any());
+        verify(intervalDsx, never()).dsx(any(), anyInt(), anyInt());
+        verify(byDateItemReader, never()).forAll(eq(date), any(String.class), any(), any());
+    }
+
+    @Test
+    public void intervalRangeReadersDecodeOnlyTheRangeWithRawReader() {
+        assertThat(profileReader.kwInReader(32, 42), instanceOf(IntervalRangeReader.class));
+        assertThat(profileReader.kwOutReader(32, 42), instanceOf(IntervalRangeReader.class));
+
+        @SuppressWarnings("unchecked")
+        ByDateItemReader<Map<String, byte[]>> rawItemReader = mock(ByDateItemReader.class);
+        @SuppressWarnings("unchecked")
+        Deserialiser<Readings> intervalDsx = mock(Deserialiser.class, withSettings().extraInterfaces(IntervalDeserialiser.class));
+        Deserialisers deserialisers = new Deserialisers(intervalDsx, intervalDsx, cacheableDsx, statDsx);
+        profileReader = new ByDateBlobEnergyProfileReader(
+            dateRangeIndex,
+            StatCoverageIndex.untracked(),
+            IdPresenceIndex.untracked(),
+            BloomFilterIndex.untracked(),
+            byDateItemReader,
+            rawItemReader,
+            EnergyProfile::of,
+            deserialisers);
+
+        PartialProfileReader<Readings> kwInReader = profileReader.kwInReader(32, 42);
+        assertThat(kwInReader, instanceOf(ByDateIntervalRangeReader.class));
+        assertThat(((ByDateIntervalRangeReader) kwInReader).tag(), is(KW_IN));
+
+        PartialProfileReader<Readings> kwOutReader = profileReader.kwOutReader(32, 42);
+        assertThat(kwOutReader, instanceOf(ByDateIntervalRangeReader.class));
+        assertThat(((ByDateIntervalRangeReader) kwOutReader).tag(), is(KW_OUT));
+    }
+
+    @Test
+    public void ranksMaximumsAcrossDates() {
+        doAnswer(inv -> {
+            LocalDate dt = inv.getArgument(0);
+            ByDateItemHandler<EnergyProfile> handler = inv.getArgument(1);
+            double offset = dt.getDayOfMonth() * 100;
+            for (int i = 0; i < 10; ++i) {
+                String profileId = "id" + i;
+                handler.handle(profileId, dt, EnergyProfile.of(profileId, dt, Readings.of(Channel.of(offset + i, 1.)), null));
+            }
+            return null;
+        }).when(byDateItemReader).forAll(any(LocalDate.class), any(ByDateItemHandler.class), any());
+
+        LocalDate from = LocalDate.of(2020, 1, 1);
+        ProfileRanking ranking = profileReader.topK(from, from.plusDays(2), 3, EnergyProfileStat::kwIn, itemError);
+
+        assertThat(ranking.size(), is(3));
+        assertThat(ranking.id(0), is("id9"));
+        assertThat(ranking.date(0), is(from.plusDays(2)));
+        assertThat(ranking.value(0), is(309.0));
+        assertThat(ranking.id(2), is("id7"));
+        assertThat(ranking.value(2), is(307.0));
+        verify(byDateItemReader, times(3)).forAll(any(LocalDate.class), any(ByDateItemHandler.class), any());
+    }
+
+    @Test
+    public void aggregatesGroupsOnEachDate() {
+        Map<String, String> groupMapping = new HashMap<>();
+        groupMapping.put("id1", "g1");
+        groupMapping.put("id2", "g1");
+        groupMapping.put("id3", "g2");
+
+        LocalDate from = LocalDate.of(2020, 1, 1);
+        MockDateRangeIndex index = new MockDateRangeIndex(Arrays.asList(
+            new IdDateRange("id1", from, from.plusDays(1)),
+            new IdDateRange("id2", from, from.plusDays(1)),
+            new IdDateRange("id3", from, from.plusDays(1))));
+        Deserialisers deserialisers = new Deserialisers(kwInDsx, kwOutDsx, cacheableDsx, statDsx);
+        profileReader = new ByDateBlobEnergyProfileReader(index, byDateItemReader, EnergyProfile::of, deserialisers);
+
+        doAnswer(inv -> {
+            Collection<String> ids = inv.getArgument(0);
+            LocalDate dt = inv.getArgument(1);
+            ByDateItemHandler<Readings> handler = inv.getArgument(3);
+            ids.forEach(readId -> handler.handle(readId, dt, Readings.of(Channel.of(dt.getDayOfMonth(), 1.))));
+            return null;
+        }).when(byDateItemReader).forEach(any(), any(), eq(KW_IN.storeString()), any(), any());
+
+        @SuppressWarnings("unchecked")
+        ItemHandler<Readings> onAggregate = mock(ItemHandler.class);
+        profileReader.aggregate(groupMapping, from, from.plusDays(1), AggregateSpec.sum(AggregateSpec.Value.KW_IN), onAggregate, itemError);
+
+        InOrder inOrder = inOrder(onAggregate);
+        inOrder.verify(onAggregate).handle(eq("g1"), eq(from), eq(Readings.of(Channel.of(2., 2.))));
+        inOrder.verify(onAggregate).handle(eq("g1"), eq(from.plusDays(1)), eq(Readings.of(Channel.of(4., 2.))));
+        verify(onAggregate).handle("g2", from, Readings.of(Channel.of(1., 1.)));
+        verify(onAggregate).handle("g2", from.plusDays(1), Readings.of(Channel.of(2., 1.)));
+        verify(byDateItemReader, never()).forEach(any(), any(), any(ByDateItemHandler.class), any());
+    }
+
+    @Test
+    public void forEachRecordsStats() {
+        doAnswer(inv -> {
+            ByDateItemHandler<EnergyProfile> handler = inv.getArgument(2);
+            handler.handle(id, date, EnergyProfile.of(id, date, null, null));
+            return null;
+        }).when(byDateItemReader).forEach(eq(Collections.singletonList(id)), eq(date), any(ByDateItemHandler.class), any());
+
+        QueryStats stats = new QueryStats();
+        profileReader.forEach(Arrays.asList(id, "missing"), date, stats, itemHandler, itemError);
+
+        verify(itemHandler).handle(eq(id), eq(date), any());
+        assertThat(stats.rowsScanned(), is(1L));
+        assertThat(stats.rowsFilteredByIndex(), is(1L));
+        assertThat(QueryStats.current(), nullValue());
+    }
+
+    @Test
+    public void forAllRecordsRowsDroppedByTheIndex() {
+        doAnswer(inv -> {
+            ByDateItemHandler<EnergyProfile> handler = inv.getArgument(1);
+            handler.handle(id, date.plusDays(1), EnergyProfile.of(id, date.plusDays(1), null, null));
+            handler.handle("missing", date.plusDays(1), EnergyProfile.of("missing", date.plusDays(1), null, null));
+            return null;
+        }).when(byDateItemReader).forAll(eq(date.plusDays(1)), any(ByDateItemHandler.class), any());
+
+        QueryStats stats = new QueryStats();
+        profileReader.forAll(date.plusDays(1), stats, itemHandler, itemError);
+
+        verify(itemHandler, never()).handle(any(), any(), any());
+        assertThat(stats.rowsScanned(), is(2L));
+        assertThat(stats.rowsFilteredByIndex(), is(2L));
+    }
+
+    @Test
+    public void itemDeserialiserRecordsBytesIntoTheCurrentStats() throws Exception {
+        when(kwInDsx.dsx(any())).thenReturn(Readings.of(Channel.of(1.)));
+        when(kwOutDsx.dsx(any())).thenReturn(Readings.of(Channel.of(2.)));
+        Map<String, byte[]> blobs = new HashMap<>();
+        blobs.put(KW_IN.storeString(), new byte[3]);
+        blobs.put(KW_OUT.storeString(), new byte[2]);
+        blobs.put(MAXIMUMS.storeString(), new byte[5]);
+
+        QueryStats stats = new QueryStats();
+        profileReader.itemDeserialiser().deserialise(id, date, blobs);
+        try (QueryStats.Scope ignored = stats.enter()) {
+            EnergyProfile profile = profileReader.itemDeserialiser().deserialise(id, date, blobs);
+            assertThat(profile.kwIn(), is(Readings.of(Channel.of(1.))));
+        }
+
+        assertThat(stats.bytesRead(), is(10L));
+        assertThat(stats.bytesDecoded(), is(5L));
+        assertThat(stats.wallNanos(QueryStats.Stage.DECODE), greaterThan(0L));
+        assertThat(stats.cpuNanos(QueryStats.Stage.DECODE), is(0L));
+    }
+
+    private static Map<String, byte[]> blobs(byte[] kwIn, byte[] maximums) {
+        Map<String, byte[]> blobs = new HashMap<>();
+        blobs.put(KW_IN.storeString(), kwIn);
+        if (maximums != null)
+            blobs.put(MAXIMUMS.storeString(), maximums);
+        return blobs;
+    }
+
 }
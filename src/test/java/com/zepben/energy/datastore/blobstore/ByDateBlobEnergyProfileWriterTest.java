@@ -8,27 +8,55 @@
 
 package com.zepben.energy.datastore.blobstore;
 
+import com.zepben.blobstore.BlobReader;
+import com.zepben.blobstore.BlobStore;
 import com.zepben.blobstore.BlobStoreException;
 import com.zepben.blobstore.BlobWriter;
+import com.zepben.blobstore.itemwrappers.ByDateItemError;
+import com.zepben.blobstore.itemwrappers.ByDateItemReader;
 import com.zepben.blobstore.itemwrappers.ByDateItemWriter;
+import com.zepben.blobstore.itemwrappers.ItemBlobWriter;
+import com.zepben.energy.datastore.EnergyProfileReader;
 import com.zepben.energy.datastore.EnergyProfileWriter;
 import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.PartialProfileReader;
+import com.zepben.energy.datastore.blobstore.indexing.BlobDateRangeIndex;
+import com.zepben.energy.datastore.blobstore.indexing.BlobIdPresenceIndex;
+import com.zepben.energy.datastore.blobstore.indexing.BlobStatCoverageIndex;
+import com.zepben.energy.datastore.blobstore.indexing.BloomFilterIndex;
+import com.zepben.energy.datastore.blobstore.indexing.CachedDateRangeIndex;
+import com.zepben.energy.datastore.blobstore.indexing.CoalescingDateRangeIndex;
 import com.zepben.energy.datastore.blobstore.indexing.DateRangeIndex;
+import com.zepben.energy.datastore.blobstore.indexing.IdPresenceIndex;
+import com.zepben.energy.datastore.blobstore.indexing.IndexTransaction;
 import com.zepben.energy.datastore.blobstore.indexing.MockDateRangeIndex;
+import com.zepben.energy.datastore.blobstore.indexing.StatCoverageIndex;
 import com.zepben.energy.model.*;
+import kotlin.Unit;
+import kotlin.jvm.functions.Function2;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import javax.annotation.Nullable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Proxy;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.Collections;
+import java.util.function.BooleanSupplier;
 
 import static com.zepben.energy.datastore.blobstore.EnergyProfileAttribute.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 public class ByDateBlobEnergyProfileWriterTest {
@@ -92,6 +120,68 @@ public class ByDateBlobEnergyProfileWriterTest {
         return mock;
     }
 
+    @SuppressWarnings("unchecked")
+    private ByDateItemReader<byte[]> useHashReader(StatCoverageIndex coverage, byte[] storedHash) {
+        return useHashReader(coverage, IdPresenceIndex.untracked(), storedHash);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ByDateItemReader<byte[]> useHashReader(StatCoverageIndex coverage, IdPresenceIndex presence, byte[] storedHash) {
+        ByDateItemReader<byte[]> hashReader = mock(ByDateItemReader.class);
+        doReturn(storedHash).when(hashReader).get(eq(id), eq(date), eq(HASH.storeString()), any());
+        profileWriter = new ByDateBlobEnergyProfileWriter(
+            dateRangeIndex,
+            coverage,
+            presence,
+            BloomFilterIndex.untracked(),
+            byDateItemWriter,
+            hashReader,
+            new Serialisers(kwInSx, kwOutSx, cacheableSx, statSx));
+        return hashReader;
+    }
+
+    @SuppressWarnings("unchecked")
+    private EnergyProfileReader useStoredReader(StatCoverageIndex coverage, @Nullable Readings storedKwIn, @Nullable Readings storedKwOut) {
+        PartialProfileReader<Readings> kwInReader = mock(PartialProfileReader.class);
+        PartialProfileReader<Readings> kwOutReader = mock(PartialProfileReader.class);
+        doReturn(storedKwIn).when(kwInReader).get(eq(id), eq(date), any());
+        doReturn(storedKwOut).when(kwOutReader).get(eq(id), eq(date), any());
+
+        EnergyProfileReader storedReader = mock(EnergyProfileReader.class);
+        doReturn(kwInReader).when(storedReader).kwInReader();
+        doReturn(kwOutReader).when(storedReader).kwOutReader();
+
+        profileWriter = new ByDateBlobEnergyProfileWriter(
+            dateRangeIndex,
+            coverage,
+            IdPresenceIndex.untracked(),
+            BloomFilterIndex.untracked(),
+            byDateItemWriter,
+            null,
+            storedReader,
+            new Serialisers(kwInSx, kwOutSx, cacheableSx, statSx));
+        return storedReader;
+    }
+
+    private void useIndexTransaction(DateRangeIndex dateRanges, StatCoverageIndex coverage, IdPresenceIndex presence, IndexTransaction transaction) {
+        profileWriter = new ByDateBlobEnergyProfileWriter(
+            dateRanges,
+            coverage,
+            presence,
+            BloomFilterIndex.untracked(),
+            transaction,
+            byDateItemWriter,
+            null,
+            null,
+            new Serialisers(kwInSx, kwOutSx, cacheableSx, statSx));
+    }
+
+    private EnergyProfileStat writtenStat() {
+        ArgumentCaptor<EnergyProfileStat> captor = ArgumentCaptor.forClass(EnergyProfileStat.class);
+        verify(statSx, atLeastOnce()).sx(captor.capture());
+        return captor.getValue();
+    }
+
     private void setupBlobWriter(boolean write, boolean update, boolean delete) throws BlobStoreException {
         when(blobWriter.write(anyString(), anyString(), any(byte[].class), anyInt(), anyInt())).thenReturn(write);
         when(blobWriter.update(anyString(), anyString(), any(byte[].class), anyInt(), anyInt())).thenReturn(update);
@@ -105,13 +195,15 @@ public class ByDateBlobEnergyProfileWriterTest {
         setupBlobWriter(true, false, false);
 
         assertTrue(profileWriter.write(profile, onError));
-        verify(blobWriter, times(3)).write(anyString(), anyString(), any(byte[].class), anyInt(), anyInt());
+        verify(blobWriter, times(4)).write(anyString(), anyString(), any(byte[].class), anyInt(), anyInt());
         verify(blobWriter, atMost(1)).write(profile.id(), KW_IN.storeString(), kwInBytes, 0, kwInBytes.length);
         verify(blobWriter, atMost(1)).write(profile.id(), KW_OUT.storeString(), kwInBytes, 0, kwInBytes.length);
         verify(blobWriter, atMost(1)).write(profile.id(), CACHEABLE.storeString(), new byte[]{1}, 0, 1);
-        verify(profile).kwIn();
-        verify(profile).kwOut();
-        verify(profile).cacheable();
+
+        // Each is read once to hash the profile and once to write it.
+        verify(profile, times(2)).kwIn();
+        verify(profile, times(2)).kwOut();
+        verify(profile, times(2)).cacheable();
         verify(dateRangeIndex).extendRange(id, date);
 
         verify(onError, never()).handle(any(), any(), any(), any());
@@ -125,7 +217,7 @@ public class ByDateBlobEnergyProfileWriterTest {
 
         assertTrue(profileWriter.write(profile, onError));
         verify(blobWriter, never()).write(profile.id(), CACHEABLE.storeString(), new byte[]{1}, 0, 1);
-        verify(profile).cacheable();
+        verify(profile, times(2)).cacheable();
 
         verify(onError, never()).handle(any(), any(), any(), any());
     }
@@ -138,14 +230,14 @@ public class ByDateBlobEnergyProfileWriterTest {
         when(blobWriter.update(anyString(), anyString(), any(byte[].class), anyInt(), anyInt())).thenReturn(true, true, false);
 
         assertTrue(profileWriter.write(profile, onError));
-        verify(blobWriter, times(1)).write(anyString(), anyString(), any(byte[].class), anyInt(), anyInt());
-        verify(blobWriter, times(3)).update(anyString(), anyString(), any(byte[].class), anyInt(), anyInt());
+        verify(blobWriter, times(2)).write(anyString(), anyString(), any(byte[].class), anyInt(), anyInt());
+        verify(blobWriter, times(4)).update(anyString(), anyString(), any(byte[].class), anyInt(), anyInt());
         verify(blobWriter, atMost(1)).update(profile.id(), KW_IN.storeString(), kwInBytes, 0, kwInBytes.length);
         verify(blobWriter, atMost(1)).update(profile.id(), KW_OUT.storeString(), kwInBytes, 0, kwInBytes.length);
         verify(blobWriter, atMost(1)).write(profile.id(), CACHEABLE.storeString(), new byte[]{1}, 0, 1);
-        verify(profile, times(1)).kwIn();
-        verify(profile, times(1)).kwOut();
-        verify(profile, times(1)).cacheable();
+        verify(profile, times(2)).kwIn();
+        verify(profile, times(2)).kwOut();
+        verify(profile, times(2)).cacheable();
         verify(dateRangeIndex).extendRange(id, date);
 
         verify(onError, never()).handle(any(), any(), any(), any());
@@ -159,7 +251,7 @@ public class ByDateBlobEnergyProfileWriterTest {
 
         assertTrue(profileWriter.write(profile, onError));
         verify(blobWriter, atMost(1)).delete(profile.id(), CACHEABLE.storeString());
-        verify(profile, times(1)).cacheable();
+        verify(profile, times(2)).cacheable();
 
         verify(onError, never()).handle(any(), any(), any(), any());
     }
@@ -373,6 +465,707 @@ public class ByDateBlobEnergyProfileWriterTest {
         doReturn(false).when(byDateItemWriter).rollback(any());
         assertFalse(profileWriter.rollback(onError));
         verify(dateRangeIndex, never()).commit();
+        verify(dateRangeIndex).rollback();
+    }
+
+    @Test
+    public void discardsTheHashesWrittenInTheTransactionEvenIfTheRollbackFails() throws Exception {
+        EnergyProfile stored = newProfile(id, date, false);
+        ByDateItemReader<byte[]> hashReader = useHashReader(StatCoverageIndex.untracked(), ContentHash.serialise(ContentHash.of(stored), false));
+        setupBlobWriter(true, false, true);
+
+        assertTrue(profileWriter.write(newProfile(id, date, true), onError));
+        doReturn(false).when(byDateItemWriter).rollback(any());
+        assertFalse(profileWriter.rollback(onError));
+
+        // The stored profile is compared against the store again rather than the hash that was rolled back.
+        assertTrue(profileWriter.write(stored, onError));
+        verify(blobWriter, times(1)).write(id, KW_IN.storeString(), kwInBytes, 0, kwInBytes.length);
+        verify(hashReader, times(2)).get(eq(id), eq(date), eq(HASH.storeString()), any());
+    }
+
+    @Test
+    public void maintainsStatCoverage() throws BlobStoreException {
+        StatCoverageIndex coverage = mock(StatCoverageIndex.class);
+        doReturn(true).when(coverage).flushMissing();
+        doReturn(true).when(coverage).flush();
+        profileWriter = new ByDateBlobEnergyProfileWriter(dateRangeIndex, coverage, IdPresenceIndex.untracked(), byDateItemWriter, new Serialisers(kwInSx, kwOutSx, cacheableSx, statSx));
+        setupBlobWriter(true, false, true);
+
+        assertTrue(profileWriter.write(newProfile(id, date, false), true, onError));
+        verify(coverage).markCovered(id, date);
+
+        assertTrue(profileWriter.write(newProfile(id, date, false), false, onError));
+        verify(coverage).markMissing(id, date);
+
+        assertTrue(profileWriter.writeKwIn(id, date, Readings.of(Channel.of(1)), onError));
+        verify(coverage, times(2)).markMissing(id, date);
+
+        assertTrue(profileWriter.commit(onError));
+        InOrder inOrder = inOrder(coverage, byDateItemWriter);
+        inOrder.verify(coverage).flushMissing();
+        inOrder.verify(byDateItemWriter).commit(any());
+        inOrder.verify(coverage).flush();
+        inOrder.verify(coverage).committed();
+
+        assertTrue(profileWriter.rollback(onError));
+        verify(coverage).discard();
+    }
+
+    @Test
+    public void rollsBackIfTheMissingStatsCantBeCommitted() throws BlobStoreException {
+        StatCoverageIndex coverage = mock(StatCoverageIndex.class);
+        profileWriter = new ByDateBlobEnergyProfileWriter(dateRangeIndex, coverage, IdPresenceIndex.untracked(), byDateItemWriter, new Serialisers(kwInSx, kwOutSx, cacheableSx, statSx));
+        setupBlobWriter(true, false, true);
+
+        assertTrue(profileWriter.write(newProfile(id, date, false), false, onError));
+        assertFalse(profileWriter.commit(onError));
+
+        verify(byDateItemWriter, never()).commit(any());
+        verify(byDateItemWriter).rollback(any());
+        verify(coverage, never()).flush();
+        verify(coverage).discard();
+    }
+
+    @Test
+    public void commitsAddedIdsBeforeTheProfiles() throws BlobStoreException {
+        IdPresenceIndex presence = mock(IdPresenceIndex.class);
+        doReturn(true).when(presence).flush();
+        profileWriter = new ByDateBlobEnergyProfileWriter(dateRangeIndex, StatCoverageIndex.untracked(), presence, byDateItemWriter, new Serialisers(kwInSx, kwOutSx, cacheableSx, statSx));
+        setupBlobWriter(true, false, true);
+
+        assertTrue(profileWriter.write(newProfile(id, date, false), onError));
+        verify(presence).add(id, date);
+
+        assertTrue(profileWriter.commit(onError));
+        InOrder inOrder = inOrder(presence, byDateItemWriter);
+        inOrder.verify(presence).flush();
+        inOrder.verify(presence).committed();
+        inOrder.verify(byDateItemWriter).commit(any());
+    }
+
+    @Test
+    public void rollsBackIfTheAddedIdsCantBeCommitted() throws BlobStoreException {
+        IdPresenceIndex presence = mock(IdPresenceIndex.class);
+        profileWriter = new ByDateBlobEnergyProfileWriter(dateRangeIndex, StatCoverageIndex.untracked(), presence, byDateItemWriter, new Serialisers(kwInSx, kwOutSx, cacheableSx, statSx));
+        setupBlobWriter(true, false, true);
+
+        assertTrue(profileWriter.write(newProfile(id, date, false), onError));
+        assertFalse(profileWriter.commit(onError));
+
+        verify(byDateItemWriter, never()).commit(any());
+        verify(byDateItemWriter).rollback(any());
+        verify(presence).discard();
+    }
+
+    @Test
+    public void commitsTheSharedIndexStoreOnceTheIndexesAreFlushed() throws BlobStoreException {
+        StatCoverageIndex coverage = mock(StatCoverageIndex.class);
+        IdPresenceIndex presence = mock(IdPresenceIndex.class);
+        DateRangeIndex dateRanges = mock(DateRangeIndex.class);
+        IndexTransaction transaction = mock(IndexTransaction.class);
+        doReturn(true).when(coverage).flushMissing();
+        doReturn(true).when(coverage).flush();
+        doReturn(true).when(presence).flush();
+        doReturn(true).when(dateRanges).flush();
+        doReturn(true).when(transaction).commit();
+        useIndexTransaction(dateRanges, coverage, presence, transaction);
+        setupBlobWriter(true, false, true);
+
+        assertTrue(profileWriter.write(newProfile(id, date, false), onError));
+        assertTrue(profileWriter.commit(onError));
+
+        InOrder inOrder = inOrder(coverage, presence, dateRanges, transaction, byDateItemWriter);
+        inOrder.verify(coverage).flushMissing();
+        inOrder.verify(presence).flush();
+        inOrder.verify(transaction).commit();
+        inOrder.verify(presence).committed();
+        inOrder.verify(byDateItemWriter).commit(any());
+        inOrder.verify(coverage).flush();
+        inOrder.verify(dateRanges).flush();
+        inOrder.verify(transaction).commit();
+        inOrder.verify(coverage).committed();
+        inOrder.verify(dateRanges).committed();
+
+        // The indexes never commit or roll back the store they share themselves.
+        verify(coverage, never()).commitMissing();
+        verify(coverage, never()).commit();
+        verify(presence, never()).commit();
+        verify(dateRanges, never()).commit();
+        verify(transaction, never()).rollback();
+    }
+
+    @Test
+    public void rollsBackTheSharedIndexStoreOnceAndDiscardsEveryIndex() {
+        StatCoverageIndex coverage = mock(StatCoverageIndex.class);
+        IdPresenceIndex presence = mock(IdPresenceIndex.class);
+        DateRangeIndex dateRanges = mock(DateRangeIndex.class);
+        IndexTransaction transaction = mock(IndexTransaction.class);
+        useIndexTransaction(dateRanges, coverage, presence, transaction);
+
+        assertTrue(profileWriter.rollback(onError));
+
+        verify(transaction, times(1)).rollback();
+        verify(coverage).discard();
+        verify(presence).discard();
+        verify(dateRanges).discard();
+        verify(coverage, never()).rollback();
+        verify(presence, never()).rollback();
+        verify(dateRanges, never()).rollback();
+    }
+
+    @Test
+    public void discardsTheIndexesIfTheSharedIndexStoreFailsToCommitAfterTheProfiles() throws BlobStoreException {
+        StatCoverageIndex coverage = mock(StatCoverageIndex.class);
+        IdPresenceIndex presence = mock(IdPresenceIndex.class);
+        DateRangeIndex dateRanges = mock(DateRangeIndex.class);
+        IndexTransaction transaction = mock(IndexTransaction.class);
+        doReturn(true).when(coverage).flushMissing();
+        doReturn(true).when(coverage).flush();
+        doReturn(true).when(presence).flush();
+        doReturn(true).when(dateRanges).flush();
+        doReturn(true, false).when(transaction).commit();
+        useIndexTransaction(dateRanges, coverage, presence, transaction);
+        setupBlobWriter(true, false, true);
+
+        assertTrue(profileWriter.write(newProfile(id, date, false), onError));
+
+        // The profiles are committed, so only the date ranges and covered stats that failed to commit are lost.
+        assertTrue(profileWriter.commit(onError));
+        verify(byDateItemWriter).commit(any());
+        verify(transaction).rollback();
+        verify(coverage).discard();
+        verify(dateRanges).discard();
+        verify(coverage, never()).committed();
+        verify(dateRanges, never()).committed();
+    }
+
+    @Test
+    public void storesTheContentHash() throws Exception {
+        EnergyProfile profile = newProfile(id, date, false);
+        setupBlobWriter(true, false, true);
+
+        assertTrue(profileWriter.write(profile, true, onError));
+
+        byte[] hashBytes = ContentHash.serialise(ContentHash.of(profile), true);
+        verify(blobWriter).write(id, HASH.storeString(), hashBytes, 0, hashBytes.length);
+    }
+
+    @Test
+    public void skipsProfilesIdenticalToTheStoredOnes() throws Exception {
+        StatCoverageIndex coverage = mock(StatCoverageIndex.class);
+        EnergyProfile profile = newProfile(id, date, true);
+        useHashReader(coverage, ContentHash.serialise(ContentHash.of(profile), true));
+        setupBlobWriter(true, false, true);
+
+        // Stats that were stored are left in place whether or not they were asked for.
+        assertTrue(profileWriter.write(profile, false, onError));
+        assertTrue(profileWriter.write(profile, true, onError));
+
+        verify(blobWriter, never()).write(anyString(), anyString(), any(byte[].class), anyInt(), anyInt());
+        verify(blobWriter, never()).delete(anyString(), anyString());
+        verify(coverage, never()).markMissing(any(), any());
+        verify(coverage, never()).markCovered(any(), any());
+        verify(dateRangeIndex, times(2)).extendRange(id, date);
+    }
+
+    @Test
+    public void writesIdenticalProfilesThatNeedStatsTheyWereNotStoredWith() throws Exception {
+        StatCoverageIndex coverage = mock(StatCoverageIndex.class);
+        EnergyProfile profile = newProfile(id, date, true);
+        useHashReader(coverage, ContentHash.serialise(ContentHash.of(profile), false));
+        setupBlobWriter(true, false, true);
+
+        assertTrue(profileWriter.write(profile, true, onError));
+        verify(blobWriter).write(id, MAXIMUMS.storeString(), statBytes, 0, statBytes.length);
+        verify(coverage).markCovered(id, date);
+    }
+
+    @Test
+    public void writesChangedProfiles() throws Exception {
+        EnergyProfile stored = newProfile(id, date, false);
+        useHashReader(StatCoverageIndex.untracked(), ContentHash.serialise(ContentHash.of(stored), true));
+        setupBlobWriter(true, false, true);
+
+        assertTrue(profileWriter.write(newProfile(id, date, true), onError));
+        verify(blobWriter).write(id, CACHEABLE.storeString(), cacheableBytes, 0, cacheableBytes.length);
+    }
+
+    @Test
+    public void checksAgainstTheHashesWrittenInTheTransaction() throws Exception {
+        EnergyProfile stored = newProfile(id, date, false);
+        ByDateItemReader<byte[]> hashReader = useHashReader(StatCoverageIndex.untracked(), ContentHash.serialise(ContentHash.of(stored), false));
+        setupBlobWriter(true, false, true);
+
+        assertTrue(profileWriter.write(newProfile(id, date, true), onError));
+        assertTrue(profileWriter.write(stored, onError));
+        verify(blobWriter, times(2)).write(id, KW_IN.storeString(), kwInBytes, 0, kwInBytes.length);
+
+        // Once committed, the hashes are read from the stores again.
+        assertTrue(profileWriter.commit(onError));
+        assertTrue(profileWriter.write(stored, onError));
+        verify(blobWriter, times(2)).write(id, KW_IN.storeString(), kwInBytes, 0, kwInBytes.length);
+        verify(hashReader, times(2)).get(eq(id), eq(date), eq(HASH.storeString()), any());
+    }
+
+    @Test
+    public void onlyReadsTheHashesOfProfilesThePresenceIndexMightHave() throws Exception {
+        IdPresenceIndex presence = mock(IdPresenceIndex.class);
+        doReturn(false).when(presence).contains(id, date);
+        doReturn(true).when(presence).flush();
+        EnergyProfile profile = newProfile(id, date, false);
+        ByDateItemReader<byte[]> hashReader = useHashReader(StatCoverageIndex.untracked(), presence, ContentHash.serialise(ContentHash.of(profile), false));
+        setupBlobWriter(true, false, true);
+
+        assertTrue(profileWriter.write(profile, onError));
+        verify(blobWriter).write(id, KW_IN.storeString(), kwInBytes, 0, kwInBytes.length);
+        verify(hashReader, never()).get(any(), any(), anyString(), any());
+
+        doReturn(true).when(presence).contains(id, date);
+        assertTrue(profileWriter.commit(onError));
+        assertTrue(profileWriter.write(profile, onError));
+        verify(blobWriter).write(id, KW_IN.storeString(), kwInBytes, 0, kwInBytes.length);
+        verify(hashReader).get(eq(id), eq(date), eq(HASH.storeString()), any());
+    }
+
+    @Test
+    public void partialWritesDeleteTheHash() throws Exception {
+        setupBlobWriter(true, false, true);
+
+        assertTrue(profileWriter.writeKwIn(id, date, Readings.of(Channel.of(1)), onError));
+        assertTrue(profileWriter.writeKwOut(id, date, Readings.of(Channel.of(1)), onError));
+        assertTrue(profileWriter.writeCacheable(id, date, true, onError));
+
+        verify(blobWriter, times(3)).delete(id, HASH.storeString());
+    }
+
+    @Test
+    public void partialWritesRecalculateTheStatsFromTheStoredSide() throws Exception {
+        StatCoverageIndex coverage = mock(StatCoverageIndex.class);
+        useStoredReader(coverage, Readings.of(Channel.of(9, 9)), Readings.of(Channel.of(2, 5)));
+        setupBlobWriter(true, false, true);
+
+        assertTrue(profileWriter.writeKwIn(id, date, Readings.of(Channel.of(3, 1)), onError));
+
+        EnergyProfileStat stat = writtenStat();
+        assertEquals(3, stat.kwIn());
+        assertEquals(5, stat.kwOut());
+        assertEquals(1, stat.kwNet());
+        verify(blobWriter).write(id, MAXIMUMS.storeString(), statBytes, 0, statBytes.length);
+        verify(blobWriter, never()).delete(id, MAXIMUMS.storeString());
+        verify(blobWriter).delete(id, HASH.storeString());
+        verify(coverage).markCovered(id, date);
+        verify(coverage, never()).markMissing(any(), any());
+    }
+
+    @Test
+    public void partialWritesWithoutAStoredSideRecalculateTheStats() throws Exception {
+        useStoredReader(StatCoverageIndex.untracked(), null, null);
+        setupBlobWriter(true, false, true);
+
+        assertTrue(profileWriter.writeKwOut(id, date, Readings.of(Channel.of(2, 4)), onError));
+
+        EnergyProfileStat stat = writtenStat();
+        assertEquals(0, stat.kwIn());
+        assertEquals(4, stat.kwOut());
+        assertEquals(-2, stat.kwNet());
+        verify(blobWriter).write(id, MAXIMUMS.storeString(), statBytes, 0, statBytes.length);
+    }
+
+    @Test
+    public void partialWritesDeleteStatsThatCanNotBeRecalculated() throws Exception {
+        StatCoverageIndex coverage = mock(StatCoverageIndex.class);
+        EnergyProfileReader storedReader = useStoredReader(coverage, null, Readings.of(Channel.of(2, 5, 1)));
+        setupBlobWriter(true, false, true);
+
+        // The stored side has a different length.
+        assertTrue(profileWriter.writeKwIn(id, date, Readings.of(Channel.of(3, 1)), onError));
+        assertTrue(profileWriter.rollback(onError));
+
+        // The stored side can't be read.
+        doAnswer(inv -> {
+            inv.<ErrorHandler>getArgument(2).handle(id, date, "Failed to read", null);
+            return null;
+        }).when(storedReader.kwInReader()).get(eq(id), eq(date), any());
+        assertTrue(profileWriter.writeKwOut(id, date, Readings.of(Channel.of(3, 1)), onError));
+
+        verify(blobWriter, never()).write(eq(id), eq(MAXIMUMS.storeString()), any(byte[].class), anyInt(), anyInt());
+        verify(blobWriter, times(2)).delete(id, MAXIMUMS.storeString());
+        verify(coverage, times(2)).markMissing(id, date);
+        verify(onError, never()).handle(any(), any(), any(), any());
+    }
+
+    @Test
+    public void partialWritesUseTheReadingsWrittenInTheTransaction() throws Exception {
+        StatCoverageIndex coverage = mock(StatCoverageIndex.class);
+        doReturn(true).when(coverage).flushMissing();
+        doReturn(true).when(coverage).flush();
+        EnergyProfileReader storedReader = useStoredReader(coverage, Readings.of(Channel.of(9, 9)), Readings.of(Channel.of(9, 9)));
+        setupBlobWriter(true, false, true);
+
+        assertTrue(profileWriter.writeKwIn(id, date, Readings.of(Channel.of(3, 1)), onError));
+        assertTrue(profileWriter.writeKwOut(id, date, Readings.of(Channel.of(1, 2)), onError));
+
+        EnergyProfileStat stat = writtenStat();
+        assertEquals(3, stat.kwIn());
+        assertEquals(2, stat.kwOut());
+        assertEquals(2, stat.kwNet());
+        verify(storedReader.kwOutReader()).get(eq(id), eq(date), any());
+        verify(storedReader.kwInReader(), never()).get(any(), any(), any());
+        verify(coverage, times(2)).markCovered(id, date);
+
+        // The readings of full writes aren't kept, so partial writes after them in the transaction remove the stats.
+        assertTrue(profileWriter.write(newProfile(id, date, false), onError));
+        assertTrue(profileWriter.writeKwIn(id, date, Readings.of(Channel.of(3, 1)), onError));
+        verify(blobWriter, times(2)).delete(id, MAXIMUMS.storeString());
+        verify(coverage, times(2)).markMissing(id, date);
+
+        // Once committed, the other side is read from the stores again.
+        assertTrue(profileWriter.commit(onError));
+        assertTrue(profileWriter.writeKwOut(id, date, Readings.of(Channel.of(1, 2)), onError));
+        verify(storedReader.kwInReader()).get(eq(id), eq(date), any());
+    }
+
+    @Test
+    public void writesStatsOfTheMaximums() throws Exception {
+        EnergyProfile profile = EnergyProfile.of(id, date, Readings.of(Channel.of(3, 1, 2)), Readings.of(Channel.of(2, 5, 0)));
+        EnergyProfileStat expected = EnergyProfileStat.ofMax(profile);
+        setupBlobWriter(true, false, true);
+
+        assertTrue(profileWriter.write(profile, true, onError));
+        assertTrue(profileWriter.write(EnergyProfile.of(id, date, Readings.of(Channel.of(-1, -2)), null), true, onError));
+
+        ArgumentCaptor<EnergyProfileStat> captor = ArgumentCaptor.forClass(EnergyProfileStat.class);
+        verify(statSx, times(2)).sx(captor.capture());
+
+        EnergyProfileStat first = captor.getAllValues().get(0);
+        assertEquals(expected.kwIn(), first.kwIn());
+        assertEquals(expected.kwOut(), first.kwOut());
+        assertEquals(expected.kwNet(), first.kwNet());
+
+        EnergyProfileStat stat = captor.getAllValues().get(1);
+        assertEquals(0, stat.kwIn());
+        assertEquals(0, stat.kwOut());
+        assertEquals(-1, stat.kwNet());
+
+        profileWriter.write(profile, true, onError);
+        assertEquals(expected.kwIn(), writtenStat().kwIn());
+        assertEquals(expected.kwOut(), writtenStat().kwOut());
+        assertEquals(expected.kwNet(), writtenStat().kwNet());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void rewritesProfilesInATransactionWithoutAllocating() {
+        com.sun.management.ThreadMXBean allocations = allocationsBean();
+
+        // The first write of each profile in a transaction reads the stored hash, as the presence index isn't tracking
+        // the date, so only writes of profiles already written in it are measured.
+        ByDateItemWriter itemWriter = acceptingItemWriter();
+        ByDateItemReader<byte[]> hashReader = mock(ByDateItemReader.class);
+        EnergyProfileWriter writer = new ByDateBlobEnergyProfileWriter(
+            new CoalescingDateRangeIndex(new MockDateRangeIndex(Collections.emptyList())),
+            StatCoverageIndex.untracked(),
+            IdPresenceIndex.untracked(),
+            BloomFilterIndex.untracked(),
+            itemWriter,
+            hashReader,
+            fixedSerialisers());
+
+        double[] values = new double[48];
+        for (int i = 0; i < values.length; ++i)
+            values[i] = i;
+        EnergyProfile profile = EnergyProfile.ofCacheable(id, date, Readings.of(Channel.of(values)), Readings.of(Channel.of(values)));
+        EnergyProfile changed = EnergyProfile.of(id, date, Readings.of(Channel.of(values)), Readings.of(Channel.of(values)));
+
+        // The item writer is measured making the same blob writes, so what it allocates isn't counted against the writer.
+        byte[] hashBytes = new byte[ContentHash.BYTES];
+        Function2<ItemBlobWriter, EnergyProfile, Unit> sameWrites = (blobWriter, p) -> {
+            blobWriter.write(KW_IN.storeString(), kwInBytes, 0, kwInBytes.length);
+            blobWriter.write(KW_OUT.storeString(), kwOutBytes, 0, kwOutBytes.length);
+            blobWriter.write(CACHEABLE.storeString(), cacheableBytes, 0, cacheableBytes.length);
+            blobWriter.write(MAXIMUMS.storeString(), statBytes, 0, statBytes.length);
+            blobWriter.write(HASH.storeString(), hashBytes, 0, hashBytes.length);
+            return Unit.INSTANCE;
+        };
+        ByDateItemError noErrors = (i, dt, msg, t) -> {
+        };
+
+        // Alternating between two versions of the profile means every write changes it, so none are skipped.
+        int[] numWrites = {0};
+        long itemWriterBytes = bytesPerWrite(allocations, () -> itemWriter.write(id, date, profile, sameWrites, noErrors));
+        long writerBytes = bytesPerWrite(allocations, () -> writer.write((numWrites[0]++ & 1) == 0 ? profile : changed, true, onError));
+
+        assertTrue(writerBytes <= itemWriterBytes, String.format("allocated %d bytes per profile on top of the item writer", writerBytes - itemWriterBytes));
+        verify(hashReader, times(1)).get(eq(id), eq(date), eq(HASH.storeString()), any());
+    }
+
+    @Test
+    public void writesNewIdsWithoutAllocatingOutsideTheIndexes() {
+        com.sun.management.ThreadMXBean allocations = allocationsBean();
+
+        // Every write is of a new id, with a commit after each batch as an ingest would do, so the writer is measured
+        // as it is after warming up rather than while the pending profiles grow to the size of a transaction.
+        int batchSize = 1000;
+        double[] values = new double[48];
+        for (int i = 0; i < values.length; ++i)
+            values[i] = i;
+        Readings readings = Readings.of(Channel.of(values));
+        EnergyProfile[] profiles = new EnergyProfile[120_000];
+        for (int i = 0; i < profiles.length; ++i)
+            profiles[i] = EnergyProfile.of("id" + i, date, readings, readings);
+
+        // New ids still allocate their presence dictionary entries and date range extensions, so the writer is measured
+        // against making the same index and item writer calls on indexes of its own.
+        StoreIndexes baselineIndexes = new StoreIndexes();
+        ByDateItemWriter baselineItemWriter = acceptingItemWriter();
+        byte[] hashBytes = new byte[ContentHash.BYTES];
+        Function2<ItemBlobWriter, EnergyProfile, Unit> sameWrites = (blobWriter, p) -> {
+            blobWriter.write(KW_IN.storeString(), kwInBytes, 0, kwInBytes.length);
+            blobWriter.write(KW_OUT.storeString(), kwOutBytes, 0, kwOutBytes.length);
+            blobWriter.write(CACHEABLE.storeString(), cacheableBytes, 0, cacheableBytes.length);
+            blobWriter.write(MAXIMUMS.storeString(), statBytes, 0, statBytes.length);
+            blobWriter.write(HASH.storeString(), hashBytes, 0, hashBytes.length);
+            return Unit.INSTANCE;
+        };
+        ByDateItemError noErrors = (i, dt, msg, t) -> {
+        };
+        int[] numBaselineWrites = {0};
+        long baselineBytes = bytesPerWrite(allocations, () -> {
+            EnergyProfile profile = profiles[numBaselineWrites[0]++];
+            boolean written = baselineItemWriter.write(profile.id(), date, profile, sameWrites, noErrors);
+            baselineIndexes.coverage.markCovered(profile.id(), date);
+            baselineIndexes.presence.add(profile.id(), date);
+            written &= baselineIndexes.dateRanges.extendRange(profile.id(), date);
+            if (numBaselineWrites[0] % batchSize == 0) {
+                written &= baselineIndexes.coverage.flushMissing();
+                written &= baselineIndexes.presence.flush();
+                written &= baselineIndexes.transaction.commit();
+                baselineIndexes.presence.committed();
+                written &= baselineItemWriter.commit(noErrors);
+                written &= baselineIndexes.coverage.flush();
+                written &= baselineIndexes.dateRanges.flush();
+                written &= baselineIndexes.transaction.commit();
+                baselineIndexes.coverage.committed();
+                baselineIndexes.dateRanges.committed();
+            }
+            return written;
+        });
+
+        // Built as SqliteEwbEnergyProfileStore builds its writer. The stored reader is only read by partial writes.
+        StoreIndexes indexes = new StoreIndexes();
+        int[] numHashReads = {0};
+        BlobReader acceptingReader = acceptingBlobStore().getReader();
+        EnergyProfileWriter writer = new ByDateBlobEnergyProfileWriter(
+            indexes.dateRanges,
+            indexes.coverage,
+            indexes.presence,
+            BloomFilterIndex.untracked(),
+            indexes.transaction,
+            acceptingItemWriter(),
+            new ByDateItemReader<>(timeZone, (dt, tz) -> {
+                ++numHashReads[0];
+                return acceptingReader;
+            }),
+            mock(EnergyProfileReader.class),
+            fixedSerialisers());
+
+        int[] numWrites = {0};
+        long writerBytes = bytesPerWrite(allocations, () -> {
+            boolean written = writer.write(profiles[numWrites[0]++], true, onError);
+            if (numWrites[0] % batchSize == 0)
+                written &= writer.commit(onError);
+            return written;
+        });
+
+        assertTrue(writerBytes <= baselineBytes, String.format("allocated %d bytes per new id on top of the indexes and item writer", writerBytes - baselineBytes));
+
+        // The presence index knows the ids are new, so their stored hashes are never read.
+        assertEquals(0, numHashReads[0]);
+        verify(onError, never()).handle(any(), any(), any(), any());
+    }
+
+    @Test
+    public void writesPartialReadingsWithoutAllocating() {
+        com.sun.management.ThreadMXBean allocations = allocationsBean();
+
+        // Without a stored reader the stats are removed rather than recalculated, which would read the stored side.
+        ByDateItemWriter itemWriter = acceptingItemWriter();
+        EnergyProfileWriter writer = new ByDateBlobEnergyProfileWriter(
+            new CoalescingDateRangeIndex(new MockDateRangeIndex(Collections.emptyList())),
+            StatCoverageIndex.untracked(),
+            IdPresenceIndex.untracked(),
+            BloomFilterIndex.untracked(),
+            itemWriter,
+            fixedSerialisers());
+
+        Readings readings = Readings.of(Channel.of(new double[48]));
+        Function2<ItemBlobWriter, Readings, Unit> sameWrites = (blobWriter, r) -> {
+            blobWriter.write(KW_IN.storeString(), kwInBytes, 0, kwInBytes.length);
+            blobWriter.delete(MAXIMUMS.storeString());
+            blobWriter.delete(HASH.storeString());
+            return Unit.INSTANCE;
+        };
+        ByDateItemError noErrors = (i, dt, msg, t) -> {
+        };
+
+        long itemWriterBytes = bytesPerWrite(allocations, () -> itemWriter.write(id, date, readings, sameWrites, noErrors));
+        long writerBytes = bytesPerWrite(allocations, () -> writer.writeKwIn(id, date, readings, onError));
+
+        assertTrue(writerBytes <= itemWriterBytes, String.format("allocated %d bytes per write on top of the item writer", writerBytes - itemWriterBytes));
+    }
+
+    private com.sun.management.ThreadMXBean allocationsBean() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+        return allocations;
+    }
+
+    // A blob writer that accepts everything, so the only allocations left are those of the writer and the item writer.
+    private ByDateItemWriter acceptingItemWriter() {
+        BlobWriter acceptingWriter = acceptingBlobStore().getWriter();
+        return new ByDateItemWriter(timeZone, (dt, tz) -> acceptingWriter);
+    }
+
+    // A blob store that accepts every write and has nothing stored.
+    private static BlobStore acceptingBlobStore() {
+        BlobReader reader = (BlobReader) Proxy.newProxyInstance(
+            BlobReader.class.getClassLoader(),
+            new Class<?>[]{BlobReader.class},
+            (proxy, method, args) -> null);
+        BlobWriter writer = (BlobWriter) Proxy.newProxyInstance(
+            BlobWriter.class.getClassLoader(),
+            new Class<?>[]{BlobWriter.class},
+            (proxy, method, args) -> method.getReturnType() == boolean.class ? Boolean.TRUE : null);
+        return (BlobStore) Proxy.newProxyInstance(
+            BlobStore.class.getClassLoader(),
+            new Class<?>[]{BlobStore.class},
+            (proxy, method, args) -> method.getName().equals("getReader") ? reader : method.getName().equals("getWriter") ? writer : null);
+    }
+
+    /**
+     * The indexes of a {@link com.zepben.ewb.datastores.energy.SqliteEwbEnergyProfileStore} over an empty index store,
+     * with the date the profiles are written to tracked as the store does when the date is created.
+     */
+    private class StoreIndexes {
+
+        private final BlobStatCoverageIndex coverage;
+        private final BlobIdPresenceIndex presence;
+        private final CoalescingDateRangeIndex dateRanges;
+        private final IndexTransaction transaction;
+
+        StoreIndexes() {
+            BlobStore indexStore = acceptingBlobStore();
+            coverage = new BlobStatCoverageIndex(indexStore);
+            presence = new BlobIdPresenceIndex(indexStore);
+            dateRanges = new CoalescingDateRangeIndex(new CachedDateRangeIndex(new BlobDateRangeIndex(indexStore)));
+            transaction = IndexTransaction.of(indexStore);
+            coverage.track(date);
+            presence.track(date);
+        }
+
+    }
+
+    private Serialisers fixedSerialisers() {
+        return new Serialisers(fixedSerialiser(kwInBytes), fixedSerialiser(kwOutBytes), fixedSerialiser(cacheableBytes), fixedStatSerialiser(statBytes));
+    }
+
+    private long bytesPerWrite(com.sun.management.ThreadMXBean allocations, BooleanSupplier write) {
+        // Enough writes to warm up the JIT, then the allocations of many more so the cost of measuring rounds away.
+        for (int i = 0; i < 20_000; ++i)
+            assertTrue(write.getAsBoolean());
+
+        int numWrites = 100_000;
+        long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        boolean status = true;
+        for (int i = 0; i < numWrites; ++i)
+            status &= write.getAsBoolean();
+        long after = allocations.getThreadAllocatedBytes(threadId);
+
+        assertTrue(status);
+        return (after - before) / numWrites;
+    }
+
+    private static StatSerialiser fixedStatSerialiser(byte[] bytes) {
+        return new StatSerialiser() {
+            @Override
+            public byte[] sx(double kwIn, double kwOut, double kwNet) {
+                return bytes;
+            }
+
+            @Override
+            public int sxOffset() {
+                return 0;
+            }
+
+            @Override
+            public int sxLength() {
+                return bytes.length;
+            }
+        };
+    }
+
+    private static <T> Serialiser<T> fixedSerialiser(byte[] bytes) {
+        return new Serialiser<T>() {
+            @Override
+            public byte[] sx(T item) {
+                return bytes;
+            }
+
+            @Override
+            public int sxOffset() {
+                return 0;
+            }
+
+            @Override
+            public int sxLength() {
+                return bytes.length;
+            }
+        };
+    }
+
+    @Test
+    public void writesBloomFiltersBeforeCommitting() throws BlobStoreException {
+        BloomFilterIndex bloomFilters = mock(BloomFilterIndex.class);
+        doReturn(true).when(bloomFilters).write(any());
+        profileWriter = new ByDateBlobEnergyProfileWriter(
+            dateRangeIndex,
+            StatCoverageIndex.untracked(),
+            IdPresenceIndex.untracked(),
+            bloomFilters,
+            byDateItemWriter,
+            new Serialisers(kwInSx, kwOutSx, cacheableSx, statSx));
+        setupBlobWriter(true, false, true);
+
+        assertTrue(profileWriter.write(newProfile(id, date, false), true, onError));
+        verify(bloomFilters).add(id, date);
+
+        assertTrue(profileWriter.commit(onError));
+        InOrder inOrder = inOrder(bloomFilters, byDateItemWriter);
+        inOrder.verify(bloomFilters).write(onError);
+        inOrder.verify(byDateItemWriter).commit(any());
+        inOrder.verify(bloomFilters).commit();
+    }
+
+    @Test
+    public void rollsBackIfBloomFiltersFailToWrite() {
+        BloomFilterIndex bloomFilters = mock(BloomFilterIndex.class);
+        profileWriter = new ByDateBlobEnergyProfileWriter(
+            dateRangeIndex,
+            StatCoverageIndex.untracked(),
+            IdPresenceIndex.untracked(),
+            bloomFilters,
+            byDateItemWriter,
+            new Serialisers(kwInSx, kwOutSx, cacheableSx, statSx));
+
+        assertFalse(profileWriter.commit(onError));
+        verify(byDateItemWriter, never()).commit(any());
+        verify(byDateItemWriter).rollback(any());
+        verify(bloomFilters).rollback();
+        verify(bloomFilters, never()).commit();
     }
 
 }
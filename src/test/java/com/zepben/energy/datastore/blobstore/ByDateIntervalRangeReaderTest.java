@@ -0,0 +1,130 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore;
+
+import com.zepben.blobstore.itemwrappers.ByDateItemHandler;
+import com.zepben.blobstore.itemwrappers.ByDateItemReader;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.ItemHandler;
+import com.zepben.energy.datastore.blobstore.indexing.DateRangeTest;
+import com.zepben.energy.model.Channel;
+import com.zepben.energy.model.Readings;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import static com.zepben.testutils.exception.ExpectException.expect;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class ByDateIntervalRangeReaderTest {
+
+    @Mock private ByDateItemReader<Map<String, byte[]>> rawItemReader;
+    @Mock private DateRangeTest dateRangeTest;
+    @Mock private IntervalDeserialiser dsx;
+    private final EnergyProfileAttribute tag = EnergyProfileAttribute.KW_IN;
+    private ByDateIntervalRangeReader reader;
+    @Mock private ItemHandler<Readings> itemHandler;
+    @Captor private ArgumentCaptor<ByDateItemHandler<byte[]>> itemHandlerCaptor;
+    @Mock private ErrorHandler onError;
+    private final LocalDate date = LocalDate.now(ZoneId.systemDefault());
+    private final byte[] bytes = new byte[]{1, 2, 3};
+    private final Readings readings = Readings.of(Channel.of(1, 2));
+
+    @BeforeEach
+    public void before() throws Exception {
+        MockitoAnnotations.openMocks(this).close();
+        doReturn(true).when(dateRangeTest).idHasDate(any(), any());
+        doAnswer(inv -> inv.getArgument(0)).when(dateRangeTest).filterIdsWithDate(any(), any());
+        doReturn(readings).when(dsx).dsxRange(bytes, 32, 34);
+        reader = new ByDateIntervalRangeReader(tag, rawItemReader, dateRangeTest, dsx, 32, 34);
+    }
+
+    @Test
+    public void correctTag() {
+        assertThat(reader.tag(), is(tag));
+    }
+
+    @Test
+    public void getDecodesTheRange() {
+        doReturn(bytes).when(rawItemReader).get(eq("id"), eq(date), eq(tag.storeString()), any());
+
+        assertThat(reader.get("id", date, onError), is(readings));
+        verify(dsx).dsxRange(bytes, 32, 34);
+    }
+
+    @Test
+    public void getIdNotInDate() {
+        doReturn(false).when(dateRangeTest).idHasDate(any(), any());
+
+        assertThat(reader.get("id", date, onError), nullValue());
+        verify(rawItemReader, never()).get(any(), any(), any(), any());
+    }
+
+    @Test
+    public void reportsReadingsThatFailToDeserialise() {
+        byte[] badBytes = new byte[]{-1};
+        doReturn(badBytes).when(rawItemReader).get(eq("id"), eq(date), eq(tag.storeString()), any());
+
+        assertThat(reader.get("id", date, onError), nullValue());
+        verify(onError).handle("id", date, "failed to deserialise readings: " + tag.storeString(), null);
+    }
+
+    @Test
+    public void forEach() {
+        Collection<String> ids = Arrays.asList("id1", "id2");
+        reader.forEach(ids, date, itemHandler, onError);
+        verify(rawItemReader).forEach(eq(ids), eq(date), eq(tag.storeString()), itemHandlerCaptor.capture(), any());
+
+        itemHandlerCaptor.getValue().handle("id1", date, bytes);
+        verify(itemHandler).handle("id1", date, readings);
+    }
+
+    @Test
+    public void forEachShortCircuitsWhenNoneIdDate() {
+        Collection<String> ids = Arrays.asList("id1", "id2");
+        doReturn(Collections.emptyList()).when(dateRangeTest).filterIdsWithDate(ids, date);
+        reader.forEach(ids, date, itemHandler, onError);
+        verify(rawItemReader, never()).forEach(any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void forAll() {
+        reader.forAll(date, itemHandler, onError);
+        verify(rawItemReader).forAll(eq(date), eq(tag.storeString()), itemHandlerCaptor.capture(), any());
+
+        itemHandlerCaptor.getValue().handle("id1", date, bytes);
+        verify(itemHandler).handle("id1", date, readings);
+
+        itemHandlerCaptor.getValue().handle("id2", date, new byte[]{-1});
+        verify(itemHandler, never()).handle(eq("id2"), any(), any());
+        verify(onError).handle("id2", date, "failed to deserialise readings: " + tag.storeString(), null);
+    }
+
+    @Test
+    public void rangeMustBeValid() {
+        expect(() -> new ByDateIntervalRangeReader(tag, rawItemReader, dateRangeTest, dsx, -1, 2)).toThrow(IllegalArgumentException.class);
+        expect(() -> new ByDateIntervalRangeReader(tag, rawItemReader, dateRangeTest, dsx, 3, 2)).toThrow(IllegalArgumentException.class);
+    }
+
+}
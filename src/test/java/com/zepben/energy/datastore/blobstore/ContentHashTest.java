@@ -0,0 +1,76 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore;
+
+import com.zepben.energy.model.Channel;
+import com.zepben.energy.model.EnergyProfile;
+import com.zepben.energy.model.Readings;
+import com.zepben.energy.model.ZeroedReadingsCache;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ContentHashTest {
+
+    private final LocalDate date = LocalDate.of(2020, 1, 1);
+
+    @Test
+    public void hashesTheContentOfTheProfile() {
+        long hash = ContentHash.of(profile(Readings.of(Channel.of(1, 2, 3)), false));
+
+        // The id and date are not part of the content.
+        assertThat(ContentHash.of(EnergyProfile.of("other", date.plusDays(1), Readings.of(Channel.of(1, 2, 3)), null, false)), equalTo(hash));
+        assertThat(ContentHash.of(profile(Readings.of(Channel.of(1, 2, 3)), false)), equalTo(hash));
+    }
+
+    @Test
+    public void changesWithTheContent() {
+        long hash = ContentHash.of(profile(Readings.of(Channel.of(1, 2, 3)), false));
+
+        assertThat(ContentHash.of(profile(Readings.of(Channel.of(1, 2, 4)), false)), not(equalTo(hash)));
+        assertThat(ContentHash.of(profile(Readings.of(Channel.of(1, 2, 3)), true)), not(equalTo(hash)));
+
+        long twoChannels = ContentHash.of(EnergyProfile.of("id", date, Readings.of(Channel.of(1, 2), Channel.of(3, 4)), null, false));
+        long swapped = ContentHash.of(EnergyProfile.of("id", date, Readings.of(Channel.of(3, 4), Channel.of(1, 2)), null, false));
+        assertThat(swapped, not(equalTo(twoChannels)));
+    }
+
+    @Test
+    public void missingReadingsDoNotMatchZeros() {
+        Readings readings = Readings.of(Channel.of(1, 2, 3));
+        EnergyProfile missing = EnergyProfile.of("id", date, readings, null, false);
+        EnergyProfile zeros = EnergyProfile.of("id", date, readings, ZeroedReadingsCache.of(1, 3), false);
+
+        assertThat(ContentHash.of(missing), not(equalTo(ContentHash.of(zeros))));
+    }
+
+    @Test
+    public void matchesTheStoredHash() {
+        long hash = ContentHash.of(profile(Readings.of(Channel.of(1, 2, 3)), false));
+        byte[] withStats = ContentHash.serialise(hash, true);
+        byte[] withoutStats = ContentHash.serialise(hash, false);
+
+        assertThat(withStats.length, equalTo(ContentHash.BYTES));
+        assertThat(ContentHash.matches(withStats, hash, true), is(true));
+        assertThat(ContentHash.matches(withStats, hash, false), is(true));
+        assertThat(ContentHash.matches(withoutStats, hash, false), is(true));
+        assertThat(ContentHash.matches(withoutStats, hash, true), is(false));
+        assertThat(ContentHash.matches(withStats, hash + 1, false), is(false));
+        assertThat(ContentHash.matches(null, hash, false), is(false));
+        assertThat(ContentHash.matches(new byte[]{1}, hash, false), is(false));
+    }
+
+    private EnergyProfile profile(Readings kwIn, boolean cacheable) {
+        return EnergyProfile.of("id", date, kwIn, Readings.of(Channel.of(4, 5, 6)), cacheable);
+    }
+
+}
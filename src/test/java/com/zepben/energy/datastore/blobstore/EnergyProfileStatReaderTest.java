@@ -12,6 +12,7 @@ import com.zepben.blobstore.itemwrappers.ByDateItemHandler;
 import com.zepben.blobstore.itemwrappers.ByDateItemReader;
 import com.zepben.energy.datastore.ErrorHandler;
 import com.zepben.energy.datastore.ItemHandler;
+import com.zepben.energy.datastore.blobstore.indexing.StatCoverageIndex;
 import com.zepben.energy.model.Channel;
 import com.zepben.energy.model.EnergyProfile;
 import com.zepben.energy.model.EnergyProfileStat;
@@ -26,10 +27,12 @@ import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.equalTo;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
@@ -125,4 +128,29 @@ public class EnergyProfileStatReaderTest {
         assertThat(stats, contains(expectedStat1));
     }
 
+    @Test
+    public void forAllWithKnownCoverageOnlyCalculatesMissingStats() {
+        StatCoverageIndex coverage = mock(StatCoverageIndex.class);
+        doReturn(new HashSet<>(Collections.singleton(id2))).when(coverage).getMissing(date);
+        statReader = new EnergyProfileStatReader(partialReader, EnergyProfileStat::ofMax, coverage);
+
+        doAnswer(inv -> {
+            ItemHandler<EnergyProfileStat> handler = inv.getArgument(1);
+            handler.handle(id1, date, expectedStat1);
+            return null;
+        }).when(partialReader).forAll(eq(date), any(), any());
+
+        doAnswer(inv -> {
+            ByDateItemHandler<EnergyProfile> hander = inv.getArgument(2);
+            hander.handle(id2, date, profile2);
+            return null;
+        }).when(profileReader).forEach(eq(Collections.singleton(id2)), eq(date), any(), any());
+
+        List<EnergyProfileStat> stats = new ArrayList<>();
+        statReader.forAll(date, (id, dt, stat) -> stats.add(stat), onError);
+
+        assertThat(stats, containsInAnyOrder(expectedStat1, expectedStat2));
+        verify(profileReader, never()).forAll(eq(date), any(), any());
+    }
+
 }
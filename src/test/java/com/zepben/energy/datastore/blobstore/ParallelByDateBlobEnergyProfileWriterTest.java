@@ -0,0 +1,331 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore;
+
+import com.zepben.energy.datastore.EnergyProfileWriter;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.blobstore.indexing.BloomFilterIndex;
+import com.zepben.energy.datastore.blobstore.indexing.DateRangeIndex;
+import com.zepben.energy.datastore.blobstore.indexing.IdPresenceIndex;
+import com.zepben.energy.datastore.blobstore.indexing.IndexTransaction;
+import com.zepben.energy.datastore.blobstore.indexing.StatCoverageIndex;
+import com.zepben.energy.model.EnergyProfile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.zepben.testutils.exception.ExpectException.expect;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.Matchers.startsWith;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class ParallelByDateBlobEnergyProfileWriterTest {
+
+    private final LocalDate date = LocalDate.of(2020, 1, 1);
+    private final DateRangeIndex dateRangeIndex = mock(DateRangeIndex.class);
+    private final StatCoverageIndex statCoverageIndex = mock(StatCoverageIndex.class);
+    private final IdPresenceIndex presenceIndex = mock(IdPresenceIndex.class);
+    private final BloomFilterIndex bloomFilterIndex = mock(BloomFilterIndex.class);
+    private final IndexTransaction indexTransaction = mock(IndexTransaction.class);
+    private final ErrorHandler onError = mock(ErrorHandler.class);
+
+    private final List<EnergyProfileWriter> laneWriters = new ArrayList<>();
+    private final Map<EnergyProfile, String> writtenOn = new ConcurrentHashMap<>();
+    private final List<DateRangeIndex> laneDateRangeIndexes = new ArrayList<>();
+    private final List<StatCoverageIndex> laneStatCoverageIndexes = new ArrayList<>();
+    private BloomFilterIndex laneBloomFilterIndex;
+    private ParallelByDateBlobEnergyProfileWriter parallelWriter;
+
+    @BeforeEach
+    public void before() {
+        doReturn(true).when(bloomFilterIndex).write(any());
+        doReturn(true).when(statCoverageIndex).flushMissing();
+        doReturn(true).when(statCoverageIndex).flush();
+        doReturn(true).when(presenceIndex).flush();
+        doReturn(true).when(dateRangeIndex).flush();
+        doReturn(true).when(indexTransaction).commit();
+
+        parallelWriter = new ParallelByDateBlobEnergyProfileWriter(
+            dateRangeIndex,
+            statCoverageIndex,
+            presenceIndex,
+            bloomFilterIndex,
+            indexTransaction,
+            (laneDateRangeIndex, laneStatCoverageIndex, lanePresenceIndex, laneBloomFilterIndex) -> {
+                laneDateRangeIndexes.add(laneDateRangeIndex);
+                laneStatCoverageIndexes.add(laneStatCoverageIndex);
+                this.laneBloomFilterIndex = laneBloomFilterIndex;
+
+                EnergyProfileWriter writer = mock(EnergyProfileWriter.class);
+                doAnswer(inv -> {
+                    EnergyProfile profile = inv.getArgument(0);
+                    writtenOn.put(profile, Thread.currentThread().getName());
+                    lanePresenceIndex.add(profile.id(), profile.date());
+                    return true;
+                }).when(writer).write(any(), anyBoolean(), any());
+                doReturn(true).when(writer).commit(any());
+                doReturn(true).when(writer).rollback(any());
+                laneWriters.add(writer);
+                return writer;
+            },
+            2);
+    }
+
+    @AfterEach
+    public void after() {
+        parallelWriter.close();
+    }
+
+    @Test
+    public void writesEachDateOnItsOwnLane() throws Exception {
+        EnergyProfile profile1 = EnergyProfile.of("id1", date, null, null);
+        EnergyProfile profile2 = EnergyProfile.of("id2", date, null, null);
+        EnergyProfile profile3 = EnergyProfile.of("id1", date.plusDays(1), null, null);
+
+        assertThat(parallelWriter.write(profile1, onError).get(), is(true));
+        assertThat(parallelWriter.write(profile2, true, onError).get(), is(true));
+        assertThat(parallelWriter.write(profile3, onError).get(), is(true));
+
+        assertThat(parallelWriter.numLanes(), is(2));
+        assertThat(writtenOn.get(profile1), startsWith("energy-profile-writer-lane-"));
+        assertThat(writtenOn.get(profile1), is(writtenOn.get(profile2)));
+        assertThat(writtenOn.get(profile1), not(writtenOn.get(profile3)));
+
+        EnergyProfileWriter dateWriter = laneWriters.get((int) Math.floorMod(date.toEpochDay(), 2L));
+        verify(dateWriter).write(profile1, false, onError);
+        verify(dateWriter).write(profile2, true, onError);
+        verify(dateWriter, never()).write(eq(profile3), anyBoolean(), any());
+    }
+
+    @Test
+    public void commitsTheLanesBetweenTheFiltersAndTheIndexes() {
+        parallelWriter.write(EnergyProfile.of("id1", date, null, null), onError);
+
+        assertThat(parallelWriter.commit(onError), is(true));
+
+        InOrder inOrder = inOrder(bloomFilterIndex, statCoverageIndex, presenceIndex, indexTransaction, laneWriters.get(0), dateRangeIndex);
+        inOrder.verify(bloomFilterIndex).write(onError);
+        inOrder.verify(statCoverageIndex).flushMissing();
+        inOrder.verify(presenceIndex).flush();
+        inOrder.verify(indexTransaction).commit();
+        inOrder.verify(laneWriters.get(0)).commit(onError);
+        inOrder.verify(dateRangeIndex).flush();
+        inOrder.verify(indexTransaction).commit();
+        inOrder.verify(dateRangeIndex).committed();
+        verify(laneWriters.get(1)).commit(onError);
+        verify(bloomFilterIndex).commit();
+        verify(statCoverageIndex).flush();
+        verify(statCoverageIndex).committed();
+        verify(presenceIndex, times(2)).flush();
+        verify(presenceIndex, times(2)).committed();
+    }
+
+    @Test
+    public void commitsTheSharedIndexStoreOnceTheIndexesAreFlushed() {
+        parallelWriter.write(EnergyProfile.of("id1", date, null, null), onError);
+
+        assertThat(parallelWriter.commit(onError), is(true));
+
+        // Once for the missing stats and added ids before the lanes commit, and once for the merged updates after.
+        verify(indexTransaction, times(2)).commit();
+        verify(indexTransaction, never()).rollback();
+        verify(statCoverageIndex, never()).commitMissing();
+        verify(statCoverageIndex, never()).commit();
+        verify(presenceIndex, never()).commit();
+        verify(dateRangeIndex, never()).commit();
+    }
+
+    @Test
+    public void discardsTheMergedUpdatesIfTheSharedIndexStoreFailsToCommit() {
+        doReturn(true, false).when(indexTransaction).commit();
+        parallelWriter.write(EnergyProfile.of("id1", date, null, null), onError);
+
+        assertThat(parallelWriter.commit(onError), is(false));
+
+        laneWriters.forEach(writer -> verify(writer, never()).rollback(any()));
+        verify(indexTransaction).rollback();
+        verify(statCoverageIndex).discard();
+        verify(presenceIndex).discard();
+        verify(dateRangeIndex).discard();
+        verify(dateRangeIndex, never()).committed();
+    }
+
+    @Test
+    public void rollsBackEverythingIfTheFiltersCantBeWritten() {
+        doReturn(false).when(bloomFilterIndex).write(any());
+
+        assertThat(parallelWriter.commit(onError), is(false));
+
+        laneWriters.forEach(writer -> {
+            verify(writer, never()).commit(any());
+            verify(writer).rollback(onError);
+        });
+        verify(dateRangeIndex, never()).flush();
+        verify(indexTransaction).rollback();
+        verify(dateRangeIndex).discard();
+        verify(bloomFilterIndex).rollback();
+    }
+
+    @Test
+    public void rollsBackEverythingIfTheMissingStatsCantBeCommitted() {
+        doReturn(false).when(statCoverageIndex).flushMissing();
+
+        assertThat(parallelWriter.commit(onError), is(false));
+
+        laneWriters.forEach(writer -> {
+            verify(writer, never()).commit(any());
+            verify(writer).rollback(onError);
+        });
+        verify(statCoverageIndex, never()).flush();
+        verify(indexTransaction, never()).commit();
+        verify(indexTransaction).rollback();
+        verify(statCoverageIndex).discard();
+    }
+
+    @Test
+    public void rollsBackEverythingIfTheAddedIdsCantBeCommitted() {
+        doReturn(false).when(presenceIndex).flush();
+
+        assertThat(parallelWriter.commit(onError), is(false));
+
+        laneWriters.forEach(writer -> {
+            verify(writer, never()).commit(any());
+            verify(writer).rollback(onError);
+        });
+        verify(indexTransaction, never()).commit();
+        verify(indexTransaction).rollback();
+        verify(presenceIndex).discard();
+    }
+
+    @Test
+    public void onlyMergesTheIndexUpdatesOfLanesThatCommitted() {
+        LocalDate failedDate = date.plusDays(1);
+        int failedLane = (int) Math.floorMod(failedDate.toEpochDay(), 2L);
+        doReturn(false).when(laneWriters.get(failedLane)).commit(any());
+
+        parallelWriter.write(EnergyProfile.of("id1", date, null, null), onError);
+        parallelWriter.write(EnergyProfile.of("id2", failedDate, null, null), onError);
+
+        assertThat(parallelWriter.commit(onError), is(false));
+
+        verify(laneWriters.get(1 - failedLane), never()).rollback(any());
+        verify(laneWriters.get(failedLane)).rollback(onError);
+        verify(dateRangeIndex).flush();
+        verify(dateRangeIndex, never()).extendRange("id2", failedDate);
+
+        // The updates of the failed lane are discarded rather than being merged by the next commit.
+        doReturn(true).when(laneWriters.get(failedLane)).commit(any());
+        assertThat(parallelWriter.commit(onError), is(true));
+        verify(dateRangeIndex, never()).extendRange("id2", failedDate);
+    }
+
+    @Test
+    public void commitsMissingStatsOfEveryLaneBeforeTheStores() {
+        int failedLane = (int) Math.floorMod(date.toEpochDay(), 2L);
+        doReturn(false).when(laneWriters.get(failedLane)).commit(any());
+        StatCoverageIndex laneStatCoverageIndex = laneStatCoverageIndexes.get(failedLane);
+        laneStatCoverageIndex.markCovered("id1", date);
+        laneStatCoverageIndex.markMissing("id2", date);
+
+        assertThat(parallelWriter.commit(onError), is(false));
+
+        InOrder inOrder = inOrder(statCoverageIndex, laneWriters.get(failedLane));
+        inOrder.verify(statCoverageIndex).markMissing("id2", date);
+        inOrder.verify(statCoverageIndex).flushMissing();
+        inOrder.verify(laneWriters.get(failedLane)).commit(onError);
+        verify(statCoverageIndex, never()).markCovered(any(), any());
+    }
+
+    @Test
+    public void commitsAddedIdsOfEveryLaneBeforeTheStores() {
+        LocalDate failedDate = date.plusDays(1);
+        int failedLane = (int) Math.floorMod(failedDate.toEpochDay(), 2L);
+        doReturn(false).when(laneWriters.get(failedLane)).commit(any());
+
+        parallelWriter.write(EnergyProfile.of("id1", date, null, null), onError);
+        parallelWriter.write(EnergyProfile.of("id2", failedDate, null, null), onError);
+
+        assertThat(parallelWriter.commit(onError), is(false));
+
+        // The ids of the failed lane stay added, so they are only looked for and not found.
+        InOrder inOrder = inOrder(presenceIndex, laneWriters.get(failedLane));
+        inOrder.verify(presenceIndex).add("id2", failedDate);
+        inOrder.verify(presenceIndex).flush();
+        inOrder.verify(laneWriters.get(failedLane)).commit(onError);
+        verify(presenceIndex, times(2)).add("id1", date);
+        verify(presenceIndex, times(1)).add("id2", failedDate);
+    }
+
+    @Test
+    public void rollsBackEveryLaneAndTheIndexes() {
+        assertThat(parallelWriter.rollback(onError), is(true));
+
+        laneWriters.forEach(writer -> verify(writer).rollback(onError));
+        verify(indexTransaction).rollback();
+        verify(dateRangeIndex).discard();
+        verify(statCoverageIndex).discard();
+        verify(presenceIndex).discard();
+        verify(bloomFilterIndex).rollback();
+    }
+
+    @Test
+    public void laneIndexesLeaveCommittingToTheParallelWriter() {
+        doReturn(true).when(dateRangeIndex).extendRange("id1", date);
+        DateRangeIndex laneDateRangeIndex = laneDateRangeIndexes.get(0);
+
+        assertThat(laneDateRangeIndex.extendRange("id1", date), is(true));
+        assertThat(laneDateRangeIndex.commit(), is(true));
+        assertThat(laneDateRangeIndex.rollback(), is(true));
+        assertThat(laneBloomFilterIndex.write(onError), is(true));
+        laneBloomFilterIndex.add("id1", date);
+
+        verify(dateRangeIndex, never()).extendRange(any(), any());
+        verify(bloomFilterIndex).add("id1", date);
+        verify(dateRangeIndex, never()).flush();
+        verify(dateRangeIndex, never()).discard();
+        verify(bloomFilterIndex, never()).write(any());
+
+        assertThat(parallelWriter.commit(onError), is(true));
+        verify(dateRangeIndex).extendRange("id1", date);
+    }
+
+    @Test
+    public void reportsIndexUpdatesThatFailToMerge() {
+        doReturn(false).when(dateRangeIndex).extendRange("id1", date);
+        laneDateRangeIndexes.get(0).extendRange("id1", date);
+
+        assertThat(parallelWriter.commit(onError), is(false));
+
+        verify(onError).handle("id1", date, "Unable to extend date range in index", null);
+        verify(dateRangeIndex).flush();
+    }
+
+    @Test
+    public void needsALane() {
+        expect(() -> new ParallelByDateBlobEnergyProfileWriter(
+            dateRangeIndex,
+            statCoverageIndex,
+            presenceIndex,
+            bloomFilterIndex,
+            (a, b, c, d) -> mock(EnergyProfileWriter.class),
+            0)).toThrow(IllegalArgumentException.class);
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore;
+
+import com.zepben.energy.model.Channel;
+import com.zepben.energy.model.EnergyProfile;
+import com.zepben.energy.model.Readings;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class PendingProfilesTest {
+
+    private final PendingProfiles pending = new PendingProfiles();
+    private final LocalDate date = LocalDate.of(2020, 1, 1);
+
+    @Test
+    public void matchesTheHashesThatHaveBeenSet() {
+        assertThat(pending.hashMatches("id", date, 1, false), nullValue());
+
+        pending.setHash("id", date, 1, false);
+        assertThat(pending.hashMatches("id", date, 1, false), is(true));
+        assertThat(pending.hashMatches("id", date, 2, false), is(false));
+        assertThat(pending.hashMatches("id", date, 1, true), is(false));
+        assertThat(pending.hashMatches("id", date.plusDays(1), 1, false), nullValue());
+        assertThat(pending.hashMatches("other", date, 1, false), nullValue());
+
+        pending.setHash("id", date, 2, true);
+        assertThat(pending.hashMatches("id", date, 2, true), is(true));
+        assertThat(pending.hashMatches("id", date, 2, false), is(true));
+        assertThat(pending.size(), is(1));
+    }
+
+    @Test
+    public void clearedHashesNeverMatch() {
+        pending.setHash("id", date, 1, true);
+        pending.clearHash("id", date);
+        assertThat(pending.hashMatches("id", date, 1, false), is(false));
+
+        pending.clearHash("other", date);
+        assertThat(pending.hashMatches("other", date, 1, false), is(false));
+    }
+
+    @Test
+    public void keepsReadingsAndHashesSeparately() {
+        EnergyProfile profile = EnergyProfile.of("id", date, Readings.of(Channel.of(1, 2)), Readings.of(Channel.of(3, 4)));
+        pending.setHash("id", date, 1, false);
+        assertThat(pending.hasReadings("id", date), is(false));
+
+        pending.setReadings("id", date, profile);
+        assertThat(pending.hasReadings("id", date), is(true));
+        assertThat(pending.readings("id", date), sameInstance(profile));
+        assertThat(pending.hashMatches("id", date, 1, false), is(true));
+
+        pending.clearHash("id", date);
+        assertThat(pending.readings("id", date), sameInstance(profile));
+
+        pending.setReadings("id", date, null);
+        assertThat(pending.hasReadings("id", date), is(true));
+        assertThat(pending.readings("id", date), nullValue());
+    }
+
+    @Test
+    public void growsToHoldEveryProfile() {
+        for (int i = 0; i < 1000; ++i)
+            pending.setHash("id" + i % 100, date.plusDays(i / 100), i, false);
+
+        assertThat(pending.size(), is(1000));
+        for (int i = 0; i < 1000; ++i)
+            assertThat(pending.hashMatches("id" + i % 100, date.plusDays(i / 100), i, false), is(true));
+    }
+
+    @Test
+    public void clearRemovesEveryProfile() {
+        pending.setHash("id", date, 1, false);
+        pending.setReadings("other", date, null);
+        pending.clear();
+
+        assertThat(pending.size(), is(0));
+        assertThat(pending.hashMatches("id", date, 1, false), nullValue());
+        assertThat(pending.hasReadings("other", date), is(false));
+
+        pending.setHash("id", date, 2, false);
+        assertThat(pending.hashMatches("id", date, 2, false), is(true));
+    }
+
+}
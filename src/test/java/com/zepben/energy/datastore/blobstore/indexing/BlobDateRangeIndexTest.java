@@ -20,17 +20,23 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.time.LocalDate;
 import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.function.Consumer;
 
 import static com.zepben.energy.datastore.blobstore.indexing.BlobDateRangeIndex.STORE_TAG;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import static org.mockito.Mockito.*;
@@ -108,6 +114,41 @@ public class BlobDateRangeIndexTest {
         verify(handler).accept(expectedRange);
     }
 
+    @Test
+    public void forAllAfterSeeksToTheIdInTheSortedIds() throws Exception {
+        doAnswer(inv -> {
+            Function3<String, String, byte[], Unit> blobHandler = inv.getArgument(1);
+            for (String storedId : Arrays.asList("c", "a", "b"))
+                blobHandler.invoke(storedId, STORE_TAG, rangeBytes);
+            return null;
+        }).when(blobReader).forAll(eq(STORE_TAG), any());
+        doAnswer(inv -> {
+            Collection<String> ids = inv.getArgument(0);
+            Function3<String, String, byte[], Unit> blobHandler = inv.getArgument(2);
+            ids.forEach(storedId -> blobHandler.invoke(storedId, STORE_TAG, rangeBytes));
+            return null;
+        }).when(blobReader).forEach(any(), eq(STORE_TAG), any());
+        doReturn(true).when(blobWriter).write(any(), any(), any(), anyInt(), anyInt());
+
+        List<String> ids = new ArrayList<>();
+        index.forAllAfter(null, 2, range -> ids.add(range.id()));
+        assertThat(ids, contains("a", "b"));
+
+        // Ids saved through the index are added to the sorted ids.
+        index.save("bb", from, to);
+        ids.clear();
+        index.forAllAfter("b", 2, range -> ids.add(range.id()));
+        assertThat(ids, contains("bb", "c"));
+
+        verify(blobReader, times(1)).forAll(eq(STORE_TAG), any());
+        verify(blobReader).forEach(eq(Arrays.asList("bb", "c")), eq(STORE_TAG), any());
+
+        // The sorted ids may hold ids that were rolled back, so they are read again.
+        index.rollback();
+        index.forAllAfter(null, 2, range -> ids.add(range.id()));
+        verify(blobReader, times(2)).forAll(eq(STORE_TAG), any());
+    }
+
     @Test
     public void saveWrites() throws Exception {
         doReturn(false).when(blobWriter).update(any(), any(), any(), anyInt(), anyInt());
@@ -145,6 +186,24 @@ public class BlobDateRangeIndexTest {
         verify(index).save(id, newFrom, to);
     }
 
+    @Test
+    public void updatingFromAndToKeepsKnownDays() {
+        BitSet days = new BitSet();
+        days.set(0);
+        days.set(2);
+        IdDateRange gappy = new IdDateRange(id, from, from.plusDays(2), days);
+        index = spy(index);
+        doReturn(gappy).when(index).get(id);
+        doReturn(true).when(index).save(any(IdDateRange.class));
+
+        assertThat(index.saveFrom(id, from.plusDays(1)), is(true));
+        verify(index).save(gappy.withRange(from.plusDays(1), from.plusDays(2)));
+
+        assertThat(index.saveTo(id, from.plusDays(4)), is(true));
+        verify(index).save(gappy.withRange(from, from.plusDays(4)));
+        verify(index, never()).save(any(), any(), any());
+    }
+
     @Test
     public void doesNotUpdateFromWhenInvalidRange() {
         index = spy(index);
@@ -194,6 +253,72 @@ public class BlobDateRangeIndexTest {
         verify(index, never()).save(any(), any(), any());
     }
 
+    @Test
+    public void extendRangeTracksDaysForNewIds() throws Exception {
+        doReturn(true).when(blobWriter).update(any(), any(), any(), anyInt(), anyInt());
+
+        assertThat(index.extendRange(id, from), is(true));
+
+        byte[] expectedBytes = new IdDateRangeCodec().serialise(IdDateRange.ofDate(id, from));
+        verify(blobWriter).update(id, STORE_TAG, expectedBytes, 0, expectedBytes.length);
+    }
+
+    @Test
+    public void extendRangeSkipsKnownDays() {
+        index = spy(index);
+        IdDateRange range = IdDateRange.ofDate(id, from).withDate(to);
+        doReturn(range).when(index).get(id);
+        doReturn(true).when(index).save(any(IdDateRange.class));
+
+        assertThat(index.extendRange(id, to), is(true));
+        verify(index, never()).save(any(IdDateRange.class));
+
+        assertThat(index.extendRange(id, from.plusDays(1)), is(true));
+        verify(index).save(range.withDate(from.plusDays(1)));
+    }
+
+    @Test
+    public void saveAllUpdatesStoredRangesAndInsertsTheRest() throws Exception {
+        doReturn(true).when(blobWriter).update(any(), any(), any(), anyInt(), anyInt());
+        doReturn(true).when(blobWriter).write(any(), any(), any(), anyInt(), anyInt());
+        doAnswer(inv -> {
+            Function3<String, String, byte[], Unit> blobHandler = inv.getArgument(2);
+            blobHandler.invoke("id2", STORE_TAG, new byte[0]);
+            return null;
+        }).when(blobReader).forEach(any(), eq(STORE_TAG), any());
+        IdDateRange range1 = IdDateRange.ofDate("id1", from);
+        IdDateRange range2 = new IdDateRange("id2", from, to);
+
+        assertThat(index.saveAll(Arrays.asList(range2, range1)), is(true));
+
+        IdDateRangeCodec codec = new IdDateRangeCodec();
+        byte[] bytes1 = codec.serialise(range1);
+        byte[] bytes2 = codec.serialise(range2);
+        InOrder inOrder = inOrder(blobReader, blobWriter);
+        inOrder.verify(blobReader).forEach(eq(Arrays.asList("id1", "id2")), eq(STORE_TAG), any());
+        inOrder.verify(blobWriter).write("id1", STORE_TAG, bytes1, 0, bytes1.length);
+        inOrder.verify(blobWriter).update("id2", STORE_TAG, bytes2, 0, bytes2.length);
+        verify(blobWriter, never()).update(eq("id1"), any(), any(), anyInt(), anyInt());
+        verify(blobWriter, never()).write(eq("id2"), any(), any(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void saveAllTriesUpdatesFirstIfTheStoredIdsCantBeRead() throws Exception {
+        doThrow(new BlobStoreException("test", null)).when(blobReader).forEach(any(), any(), any());
+        doReturn(true).when(blobWriter).update(any(), any(), any(), anyInt(), anyInt());
+
+        assertThat(index.saveAll(Collections.singletonList(IdDateRange.ofDate("id1", from))), is(true));
+        verify(blobWriter).update(eq("id1"), any(), any(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void saveAllReturnsFalseIfAnyRangeFails() throws Exception {
+        doReturn(true).when(blobWriter).write(eq("id1"), any(), any(), anyInt(), anyInt());
+
+        assertThat(index.saveAll(Arrays.asList(IdDateRange.ofDate("id1", from), IdDateRange.ofDate("id2", from))), is(false));
+        verify(blobWriter).write(eq("id2"), any(), any(), anyInt(), anyInt());
+    }
+
     @Test
     public void commits() throws Exception {
         index.commit();
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.blobstore.BlobReader;
+import com.zepben.blobstore.BlobStore;
+import com.zepben.blobstore.BlobWriter;
+import kotlin.Unit;
+import kotlin.jvm.functions.Function3;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.zepben.energy.datastore.blobstore.indexing.BlobIdPresenceIndex.DICTIONARY_SIZE_KEY;
+import static com.zepben.energy.datastore.blobstore.indexing.BlobIdPresenceIndex.DICTIONARY_TAG;
+import static com.zepben.energy.datastore.blobstore.indexing.BlobIdPresenceIndex.STORE_TAG;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class BlobIdPresenceIndexTest {
+
+    private final BlobReader blobReader = mock(BlobReader.class);
+    private final BlobWriter blobWriter = mock(BlobWriter.class);
+    private final BlobStore blobStore = mock(BlobStore.class);
+    private BlobIdPresenceIndex index;
+
+    private final LocalDate date = LocalDate.now(ZoneId.systemDefault());
+    private final String key = date.toString();
+
+    @BeforeEach
+    public void before() {
+        doReturn(blobReader).when(blobStore).getReader();
+        doReturn(blobWriter).when(blobStore).getWriter();
+        index = new BlobIdPresenceIndex(blobStore);
+    }
+
+    @Test
+    public void untrackedDatesAreUnknown() {
+        assertThat(index.isTracked(date), is(false));
+        assertThat(index.contains("id1", date), nullValue());
+        assertThat(index.filter(Arrays.asList("id1", "id2"), date), nullValue());
+
+        index.add("id1", date);
+        assertThat(index.isTracked(date), is(false));
+    }
+
+    @Test
+    public void tracksAddedIds() {
+        index.track(date);
+        index.add("id1", date);
+        index.add("id3", date);
+
+        assertThat(index.isTracked(date), is(true));
+        assertThat(index.contains("id1", date), is(true));
+        assertThat(index.contains("id2", date), is(false));
+        assertThat(index.filter(Arrays.asList("id3", "id2", "id1"), date), contains("id3", "id1"));
+    }
+
+    @Test
+    public void listsIds() {
+        assertThat(index.ids(date), nullValue());
+
+        index.track(date);
+        index.add("id2", date);
+        index.add("id1", date);
+
+        assertThat(index.ids(date), containsInAnyOrder("id1", "id2"));
+    }
+
+    @Test
+    public void seeksIdsInIdOrder() {
+        assertThat(index.idsAfter(date, null, 10), nullValue());
+
+        index.track(date);
+        index.add("id4", date);
+        index.add("id1", date);
+        index.add("id3", date);
+        index.add("id2", date.plusDays(1));
+
+        assertThat(index.idsAfter(date, null, 2), contains("id1", "id3"));
+        assertThat(index.idsAfter(date, "id1", 10), contains("id3", "id4"));
+        assertThat(index.idsAfter(date, "id2", 10), contains("id3", "id4"));
+        assertThat(index.idsAfter(date, "id4", 10), empty());
+
+        // Ids added once paging has started are sorted into the dictionary as they are added.
+        index.add("id0", date);
+        assertThat(index.idsAfter(date, null, 2), contains("id0", "id1"));
+    }
+
+    @Test
+    public void loadsStoredPresence() throws Exception {
+        doAnswer(inv -> {
+            Function3<String, String, byte[], Unit> handler = inv.getArgument(1);
+            handler.invoke("id1", DICTIONARY_TAG, ByteBuffer.allocate(4).putInt(0).array());
+            handler.invoke("id2", DICTIONARY_TAG, ByteBuffer.allocate(4).putInt(1).array());
+            return null;
+        }).when(blobReader).forAll(eq(DICTIONARY_TAG), any());
+        doReturn(CompressedBitmap.of(1).serialise()).when(blobReader).get(key, STORE_TAG);
+
+        assertThat(index.contains("id1", date), is(false));
+        assertThat(index.contains("id2", date), is(true));
+
+        // New ids must not reuse the stored indexes.
+        index.add("id3", date);
+        assertThat(index.contains("id1", date), is(false));
+        assertThat(index.contains("id3", date), is(true));
+    }
+
+    @Test
+    public void commitSavesDictionaryAndBitmaps() throws Exception {
+        doReturn(true).when(blobWriter).write(any(), any(), any(), anyInt(), anyInt());
+        doReturn(true).when(blobWriter).writeMetadata(any(), any());
+        index.save(date, Arrays.asList("id1", "id2"));
+
+        assertThat(index.commit(), is(true));
+
+        verify(blobWriter).write(eq("id1"), eq(DICTIONARY_TAG), eq(ByteBuffer.allocate(4).putInt(0).array()), eq(0), eq(4));
+        verify(blobWriter).write(eq("id2"), eq(DICTIONARY_TAG), eq(ByteBuffer.allocate(4).putInt(1).array()), eq(0), eq(4));
+        verify(blobWriter).writeMetadata(DICTIONARY_SIZE_KEY, "2");
+
+        ArgumentCaptor<byte[]> bytes = ArgumentCaptor.forClass(byte[].class);
+        verify(blobWriter).write(eq(key), eq(STORE_TAG), bytes.capture(), eq(0), anyInt());
+        assertThat(CompressedBitmap.deserialise(bytes.getValue()), equalTo(CompressedBitmap.of(0, 1)));
+        verify(blobWriter).commit();
+
+        clearInvocations(blobWriter);
+        assertThat(index.commit(), is(true));
+        verify(blobWriter, never()).write(any(), any(), any(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void readsIdsSavedByOtherIndexesWhenABitmapRefersToThem() throws Exception {
+        Map<String, Integer> storedDictionary = new LinkedHashMap<>();
+        storedDictionary.put("id1", 0);
+        useStoredDictionary(storedDictionary);
+        doReturn(CompressedBitmap.of(0).serialise()).when(blobReader).get(key, STORE_TAG);
+        assertThat(index.contains("id1", date), is(true));
+
+        LocalDate nextDate = date.plusDays(1);
+        storedDictionary.put("id2", 1);
+        doReturn("2").when(blobReader).getMetadata(DICTIONARY_SIZE_KEY);
+        doReturn(CompressedBitmap.of(1).serialise()).when(blobReader).get(nextDate.toString(), STORE_TAG);
+
+        assertThat(index.contains("id2", nextDate), is(true));
+        assertThat(index.contains("id1", nextDate), is(false));
+    }
+
+    @Test
+    public void givesNewIdsIndexesAfterThoseSavedByOtherIndexes() throws Exception {
+        Map<String, Integer> storedDictionary = new LinkedHashMap<>();
+        useStoredDictionary(storedDictionary);
+        doReturn(true).when(blobWriter).write(any(), any(), any(), anyInt(), anyInt());
+        doReturn(true).when(blobWriter).updateMetadata(any(), any());
+        index.track(date);
+        index.add("id1", date);
+
+        // Another index saves an id with the index given to id1, and adds it to the date.
+        storedDictionary.put("other", 0);
+        doReturn("1").when(blobReader).getMetadata(DICTIONARY_SIZE_KEY);
+        doReturn(CompressedBitmap.of(0).serialise()).when(blobReader).get(key, STORE_TAG);
+
+        assertThat(index.commit(), is(true));
+
+        verify(blobWriter).write(eq("id1"), eq(DICTIONARY_TAG), eq(ByteBuffer.allocate(4).putInt(1).array()), eq(0), eq(4));
+        verify(blobWriter).updateMetadata(DICTIONARY_SIZE_KEY, "2");
+        ArgumentCaptor<byte[]> bytes = ArgumentCaptor.forClass(byte[].class);
+        verify(blobWriter).write(eq(key), eq(STORE_TAG), bytes.capture(), eq(0), anyInt());
+        assertThat(CompressedBitmap.deserialise(bytes.getValue()), equalTo(CompressedBitmap.of(0, 1)));
+        assertThat(index.contains("id1", date), is(true));
+        assertThat(index.contains("other", date), is(true));
+    }
+
+    @Test
+    public void savedBitmapsReplaceTheStoredBitmap() throws Exception {
+        doReturn(true).when(blobWriter).write(any(), any(), any(), anyInt(), anyInt());
+        doReturn(true).when(blobWriter).writeMetadata(any(), any());
+        index.save(date, Collections.singletonList("id1"));
+
+        assertThat(index.commit(), is(true));
+
+        verify(blobReader, never()).get(key, STORE_TAG);
+    }
+
+    @Test
+    public void rollbackDiscardsChanges() throws Exception {
+        index.track(date);
+        index.add("id1", date);
+        assertThat(index.rollback(), is(true));
+
+        verify(blobWriter).rollback();
+        assertThat(index.isTracked(date), is(false));
+    }
+
+    @Test
+    public void flushSavesDictionaryAndBitmapsWithoutCommittingTheStore() throws Exception {
+        doReturn(true).when(blobWriter).write(any(), any(), any(), anyInt(), anyInt());
+        doReturn(true).when(blobWriter).writeMetadata(any(), any());
+        index.save(date, Arrays.asList("id1", "id2"));
+
+        assertThat(index.flush(), is(true));
+        verify(blobWriter).write(eq("id1"), eq(DICTIONARY_TAG), any(), eq(0), eq(4));
+        verify(blobWriter).write(eq(key), eq(STORE_TAG), any(), eq(0), anyInt());
+        verify(blobWriter, never()).commit();
+
+        clearInvocations(blobWriter);
+        index.committed();
+        assertThat(index.flush(), is(true));
+        verify(blobWriter, never()).write(any(), any(), any(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void discardDropsChangesWithoutRollingBackTheStore() throws Exception {
+        index.track(date);
+        index.add("id1", date);
+        index.discard();
+
+        verify(blobWriter, never()).rollback();
+        assertThat(index.isTracked(date), is(false));
+    }
+
+    private void useStoredDictionary(Map<String, Integer> storedDictionary) throws Exception {
+        doAnswer(inv -> {
+            Function3<String, String, byte[], Unit> handler = inv.getArgument(1);
+            storedDictionary.forEach((id, i) -> handler.invoke(id, DICTIONARY_TAG, ByteBuffer.allocate(4).putInt(i).array()));
+            return null;
+        }).when(blobReader).forAll(eq(DICTIONARY_TAG), any());
+    }
+
+}
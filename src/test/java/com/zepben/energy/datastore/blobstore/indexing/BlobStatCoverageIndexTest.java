@@ -0,0 +1,197 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.blobstore.BlobReader;
+import com.zepben.blobstore.BlobStore;
+import com.zepben.blobstore.BlobWriter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.zepben.energy.datastore.blobstore.indexing.BlobStatCoverageIndex.STORE_TAG;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.Matchers.contains;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class BlobStatCoverageIndexTest {
+
+    private final BlobReader blobReader = mock(BlobReader.class);
+    private final BlobWriter blobWriter = mock(BlobWriter.class);
+    private final BlobStore blobStore = mock(BlobStore.class);
+    private BlobStatCoverageIndex index;
+
+    private final LocalDate date = LocalDate.now(ZoneId.systemDefault());
+    private final String key = date.toString();
+
+    @BeforeEach
+    public void before() {
+        doReturn(blobReader).when(blobStore).getReader();
+        doReturn(blobWriter).when(blobStore).getWriter();
+        index = new BlobStatCoverageIndex(blobStore, 2);
+    }
+
+    @Test
+    public void unknownUntilTracked() throws Exception {
+        assertThat(index.getMissing(date), nullValue());
+
+        index.markMissing("id1", date);
+        assertThat(index.getMissing(date), nullValue());
+
+        index.track(date);
+        index.markMissing("id1", date);
+        assertThat(index.getMissing(date), contains("id1"));
+
+        index.markCovered("id1", date);
+        assertThat(index.getMissing(date), empty());
+    }
+
+    @Test
+    public void loadsStoredCoverage() throws Exception {
+        doReturn(BlobStatCoverageIndex.serialise(new HashSet<>(Arrays.asList("id1", "id2")))).when(blobReader).get(key, STORE_TAG);
+
+        assertThat(index.getMissing(date), containsInAnyOrder("id1", "id2"));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedDatesWithoutChanges() throws Exception {
+        index = new BlobStatCoverageIndex(blobStore, 2, 1);
+        doReturn(true).when(blobWriter).write(any(), any(), any(), anyInt(), anyInt());
+        LocalDate nextDate = date.plusDays(1);
+
+        index.track(date);
+        index.markMissing("id1", date);
+        index.getMissing(nextDate);
+
+        // The changed date is kept until it is committed, while the dates without changes are read again.
+        assertThat(index.getMissing(date), contains("id1"));
+        index.getMissing(nextDate.plusDays(1));
+        index.getMissing(nextDate);
+        verify(blobReader, times(1)).get(key, STORE_TAG);
+        verify(blobReader, times(2)).get(nextDate.toString(), STORE_TAG);
+
+        assertThat(index.commit(), is(true));
+        index.getMissing(nextDate.plusDays(2));
+        index.getMissing(date);
+        verify(blobReader, times(2)).get(key, STORE_TAG);
+    }
+
+    @Test
+    public void corruptCoverageIsUnknown() throws Exception {
+        doReturn(new byte[]{0, 0, 0, 5, 1}).when(blobReader).get(key, STORE_TAG);
+
+        assertThat(index.getMissing(date), nullValue());
+    }
+
+    @Test
+    public void tooManyMissingBecomesUnknown() throws Exception {
+        index.save(date, Arrays.asList("id1", "id2"));
+        index.markMissing("id3", date);
+
+        assertThat(index.getMissing(date), nullValue());
+        assertThat(index.commit(), is(true));
+        verify(blobWriter).delete(key, STORE_TAG);
+    }
+
+    @Test
+    public void commitWritesChangedDates() throws Exception {
+        index.track(date);
+        index.markMissing("id1", date);
+        index.getMissing(date.plusDays(1));
+        doReturn(false).when(blobWriter).update(any(), any(), any(), anyInt(), anyInt());
+        doReturn(true).when(blobWriter).write(any(), any(), any(), anyInt(), anyInt());
+
+        assertThat(index.commit(), is(true));
+
+        ArgumentCaptor<byte[]> bytes = ArgumentCaptor.forClass(byte[].class);
+        verify(blobWriter).write(eq(key), eq(STORE_TAG), bytes.capture(), eq(0), anyInt());
+        verify(blobWriter, never()).write(eq(date.plusDays(1).toString()), any(), any(), anyInt(), anyInt());
+        verify(blobWriter).commit();
+
+        Set<String> saved = BlobStatCoverageIndex.deserialise(bytes.getValue());
+        assertThat(saved, contains("id1"));
+
+        clearInvocations(blobWriter);
+        assertThat(index.commit(), is(true));
+        verify(blobWriter, never()).write(any(), any(), any(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void commitMissingKeepsCoveredIdsMissingUntilCommitted() throws Exception {
+        index.save(date, Arrays.asList("id1", "id2"));
+        assertThat(index.commit(), is(true));
+        clearInvocations(blobWriter);
+        doReturn(true).when(blobWriter).update(any(), any(), any(), anyInt(), anyInt());
+
+        index.markCovered("id1", date);
+        index.markMissing("id3", date);
+        assertThat(index.getMissing(date), containsInAnyOrder("id2", "id3"));
+
+        ArgumentCaptor<byte[]> bytes = ArgumentCaptor.forClass(byte[].class);
+        assertThat(index.commitMissing(), is(true));
+        verify(blobWriter).update(eq(key), eq(STORE_TAG), bytes.capture(), eq(0), anyInt());
+        verify(blobWriter).commit();
+        assertThat(BlobStatCoverageIndex.deserialise(bytes.getValue()), containsInAnyOrder("id1", "id2", "id3"));
+
+        clearInvocations(blobWriter);
+        assertThat(index.commit(), is(true));
+        verify(blobWriter).update(eq(key), eq(STORE_TAG), bytes.capture(), eq(0), anyInt());
+        assertThat(BlobStatCoverageIndex.deserialise(bytes.getValue()), containsInAnyOrder("id2", "id3"));
+    }
+
+    @Test
+    public void rollbackDiscardsChanges() throws Exception {
+        index.track(date);
+        assertThat(index.rollback(), is(true));
+
+        verify(blobWriter).rollback();
+        assertThat(index.getMissing(date), nullValue());
+    }
+
+    @Test
+    public void flushSavesChangesWithoutCommittingTheStore() throws Exception {
+        index.track(date);
+        index.markMissing("id1", date);
+        doReturn(true).when(blobWriter).write(any(), any(), any(), anyInt(), anyInt());
+
+        assertThat(index.flush(), is(true));
+        verify(blobWriter).write(eq(key), eq(STORE_TAG), any(), eq(0), anyInt());
+        verify(blobWriter, never()).commit();
+
+        // Saved again until the owner of the store says it was committed.
+        clearInvocations(blobWriter);
+        assertThat(index.flush(), is(true));
+        verify(blobWriter).write(eq(key), eq(STORE_TAG), any(), eq(0), anyInt());
+
+        clearInvocations(blobWriter);
+        index.committed();
+        assertThat(index.flush(), is(true));
+        verify(blobWriter, never()).write(any(), any(), any(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void discardDropsChangesWithoutRollingBackTheStore() throws Exception {
+        index.track(date);
+        index.discard();
+
+        verify(blobWriter, never()).rollback();
+        assertThat(index.getMissing(date), nullValue());
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import org.junit.jupiter.api.Test;
+
+import static com.zepben.testutils.exception.ExpectException.expect;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class BloomFilterTest {
+
+    @Test
+    public void containsAddedIds() {
+        BloomFilter filter = BloomFilter.create(1000, 0.01);
+        for (int i = 0; i < 1000; ++i)
+            filter.add("id" + i);
+
+        for (int i = 0; i < 1000; ++i)
+            assertThat(filter.mightContain("id" + i), is(true));
+
+        assertThat(filter.count(), equalTo(1000));
+        assertThat(filter.isOverCapacity(), is(false));
+    }
+
+    @Test
+    public void falsePositiveRateIsNearRequested() {
+        BloomFilter filter = BloomFilter.create(10_000, 0.01);
+        for (int i = 0; i < 10_000; ++i)
+            filter.add("id" + i);
+
+        int falsePositives = 0;
+        for (int i = 0; i < 100_000; ++i) {
+            if (filter.mightContain("other" + i))
+                ++falsePositives;
+        }
+
+        assertThat(falsePositives, lessThan(2000));
+    }
+
+    @Test
+    public void emptyFilterContainsNothing() {
+        BloomFilter filter = BloomFilter.create(10, 0.01);
+        assertThat(filter.mightContain("id"), is(false));
+    }
+
+    @Test
+    public void overCapacity() {
+        BloomFilter filter = BloomFilter.create(2, 0.01);
+        filter.add("id1");
+        filter.add("id2");
+        assertThat(filter.isOverCapacity(), is(false));
+
+        filter.add("id3");
+        assertThat(filter.isOverCapacity(), is(true));
+    }
+
+    @Test
+    public void serialises() {
+        BloomFilter filter = BloomFilter.create(100, 0.01);
+        filter.add("id1");
+        filter.add("id2");
+
+        BloomFilter read = BloomFilter.deserialise(filter.serialise());
+
+        assertThat(read, equalTo(filter));
+        assertThat(read.mightContain("id1"), is(true));
+        assertThat(read.mightContain("id2"), is(true));
+        assertThat(read.count(), equalTo(2));
+        assertThat(read.capacity(), equalTo(100));
+    }
+
+    @Test
+    public void rejectsInvalidBytes() {
+        expect(() -> BloomFilter.deserialise(new byte[3])).toThrow(IllegalArgumentException.class);
+        expect(() -> BloomFilter.deserialise(new byte[16])).toThrow(IllegalArgumentException.class);
+
+        byte[] bytes = BloomFilter.create(100, 0.01).serialise();
+        byte[] truncated = new byte[bytes.length - 8];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        expect(() -> BloomFilter.deserialise(truncated)).toThrow(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void rejectsInvalidSizes() {
+        expect(() -> BloomFilter.create(0, 0.01)).toThrow(IllegalArgumentException.class);
+        expect(() -> BloomFilter.create(10, 0)).toThrow(IllegalArgumentException.class);
+        expect(() -> BloomFilter.create(10, 1)).toThrow(IllegalArgumentException.class);
+    }
+
+}
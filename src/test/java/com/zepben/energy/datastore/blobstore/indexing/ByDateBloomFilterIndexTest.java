@@ -0,0 +1,204 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.blobstore.BlobReader;
+import com.zepben.blobstore.BlobStoreException;
+import com.zepben.blobstore.BlobWriter;
+import com.zepben.blobstore.itemwrappers.ByDateBlobReaderProvider;
+import com.zepben.blobstore.itemwrappers.ByDateBlobWriterProvider;
+import com.zepben.energy.datastore.ErrorHandler;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static com.zepben.energy.datastore.blobstore.indexing.ByDateBloomFilterIndex.METADATA_KEY;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class ByDateBloomFilterIndexTest {
+
+    private final ZoneId timeZone = ZoneId.systemDefault();
+    private final LocalDate date = LocalDate.now(timeZone);
+    private final BlobReader blobReader = mock(BlobReader.class);
+    private final BlobWriter blobWriter = mock(BlobWriter.class);
+    private final ByDateBlobReaderProvider readerProvider = mock(ByDateBlobReaderProvider.class);
+    private final ByDateBlobWriterProvider writerProvider = mock(ByDateBlobWriterProvider.class);
+    private final ErrorHandler onError = mock(ErrorHandler.class);
+    private ByDateBloomFilterIndex index;
+
+    @BeforeEach
+    public void before() throws Exception {
+        doReturn(blobReader).when(readerProvider).getReader(any(), any());
+        doReturn(blobWriter).when(writerProvider).getWriter(any(), any());
+        doReturn(true).when(blobWriter).updateMetadata(anyString(), anyString());
+        index = new ByDateBloomFilterIndex(timeZone, readerProvider, writerProvider, 2, 10, 0.01);
+    }
+
+    @Test
+    public void datesWithoutFiltersAreUnknown() {
+        assertThat(index.mightContain("id1", date), nullValue());
+
+        index.add("id1", date);
+        assertThat(index.mightContain("id1", date), nullValue());
+        assertThat(index.write(onError), is(true));
+        verifyNoInteractions(writerProvider);
+    }
+
+    @Test
+    public void loadsStoredFilters() throws Exception {
+        doReturn(encode(filterOf("id1", "id2"))).when(blobReader).getMetadata(METADATA_KEY);
+
+        assertThat(index.mightContain("id1", date), is(true));
+        assertThat(index.mightContain("id2", date), is(true));
+        assertThat(index.mightContain("id3", date), is(false));
+    }
+
+    @Test
+    public void invalidFiltersAreIgnored() throws Exception {
+        doReturn("not a filter").when(blobReader).getMetadata(METADATA_KEY);
+        assertThat(index.mightContain("id1", date), nullValue());
+    }
+
+    @Test
+    public void missingStoresHaveNoFilter() throws Exception {
+        doReturn(null).when(readerProvider).getReader(date, timeZone);
+        assertThat(index.mightContain("id1", date), nullValue());
+    }
+
+    @Test
+    public void writesFiltersOfTrackedDates() throws Exception {
+        index.track(date);
+        index.add("id1", date);
+        index.add("id2", date);
+
+        assertThat(index.write(onError), is(true));
+        index.commit();
+
+        ArgumentCaptor<String> value = ArgumentCaptor.forClass(String.class);
+        verify(blobWriter).updateMetadata(eq(METADATA_KEY), value.capture());
+        BloomFilter filter = BloomFilter.deserialise(Base64.getDecoder().decode(value.getValue()));
+        assertThat(filter.mightContain("id1"), is(true));
+        assertThat(filter.mightContain("id2"), is(true));
+        assertThat(filter.capacity(), equalTo(10));
+
+        assertThat(index.mightContain("id1", date), is(true));
+        assertThat(index.mightContain("id3", date), is(false));
+        verify(blobWriter, never()).commit();
+    }
+
+    @Test
+    public void writesNewMetadataIfNoneToUpdate() throws Exception {
+        doReturn(false).when(blobWriter).updateMetadata(anyString(), anyString());
+        doReturn(true).when(blobWriter).writeMetadata(anyString(), anyString());
+
+        index.track(date);
+        index.add("id1", date);
+
+        assertThat(index.write(onError), is(true));
+        verify(blobWriter).writeMetadata(eq(METADATA_KEY), anyString());
+    }
+
+    @Test
+    public void savesFilters() throws Exception {
+        index.save(date, Arrays.asList("id1", "id2"));
+
+        assertThat(index.mightContain("id1", date), is(true));
+        assertThat(index.mightContain("id3", date), is(false));
+
+        assertThat(index.write(onError), is(true));
+        verify(blobWriter).updateMetadata(eq(METADATA_KEY), anyString());
+    }
+
+    @Test
+    public void addsToStoredFilters() throws Exception {
+        doReturn(encode(filterOf("id1"))).when(blobReader).getMetadata(METADATA_KEY);
+
+        index.add("id1", date);
+        assertThat(index.write(onError), is(true));
+        verify(blobWriter, never()).updateMetadata(anyString(), anyString());
+
+        index.add("id2", date);
+        assertThat(index.mightContain("id2", date), is(true));
+        assertThat(index.write(onError), is(true));
+        verify(blobWriter).updateMetadata(eq(METADATA_KEY), anyString());
+    }
+
+    @Test
+    public void removesFiltersOverCapacity() throws Exception {
+        doReturn(encode(filterOf("id1"))).when(blobReader).getMetadata(METADATA_KEY);
+
+        // A few of these may be false positives that don't count, so add plenty to go over capacity.
+        for (int i = 0; i < 20; ++i)
+            index.add("other" + i, date);
+
+        assertThat(index.mightContain("id1", date), nullValue());
+        assertThat(index.write(onError), is(true));
+        verify(blobWriter).updateMetadata(METADATA_KEY, "");
+    }
+
+    @Test
+    public void reportsWriteFailures() throws Exception {
+        doReturn(false).when(blobWriter).updateMetadata(anyString(), anyString());
+        index.track(date);
+        index.add("id1", date);
+
+        assertThat(index.write(onError), is(false));
+        verify(onError).handle(eq(""), eq(date), anyString(), isNull());
+
+        BlobStoreException error = new BlobStoreException("test", null);
+        doThrow(error).when(writerProvider).getWriter(date, timeZone);
+        assertThat(index.write(onError), is(false));
+        verify(onError).handle(eq(""), eq(date), anyString(), eq(error));
+    }
+
+    @Test
+    public void rollbackDiscardsChanges() throws Exception {
+        doReturn(encode(filterOf("id1"))).when(blobReader).getMetadata(METADATA_KEY);
+
+        index.add("id2", date);
+        index.rollback();
+
+        assertThat(index.mightContain("id2", date), is(false));
+        assertThat(index.write(onError), is(true));
+        verify(blobWriter, never()).updateMetadata(anyString(), anyString());
+    }
+
+    @Test
+    public void doesNotEvictUnwrittenFilters() throws Exception {
+        index.track(date);
+        index.add("id1", date);
+        for (int i = 1; i <= 3; ++i)
+            index.mightContain("id1", date.plusDays(i));
+
+        assertThat(index.write(onError), is(true));
+        verify(writerProvider).getWriter(date, timeZone);
+    }
+
+    private BloomFilter filterOf(String... ids) {
+        BloomFilter filter = BloomFilter.create(10, 0.01);
+        for (String id : ids)
+            filter.add(id);
+        return filter;
+    }
+
+    private String encode(BloomFilter filter) {
+        return Base64.getEncoder().encodeToString(filter.serialise());
+    }
+
+}
@@ -8,12 +8,14 @@
 
 package com.zepben.energy.datastore.blobstore.indexing;
 
+import com.zepben.energy.datastore.QueryStats;
 import com.zepben.energy.model.IdDateRange;
 import org.junit.jupiter.api.Test;
 
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.function.Consumer;
@@ -102,6 +104,32 @@ public class CachedDateRangeIndexTest {
         verify(index, times(1)).save(expectedRange.id(), expectedRange.from(), expectedRange.to());
     }
 
+    @Test
+    public void cachesRangesWithDays() {
+        IdDateRange range = IdDateRange.ofDate(id, from).withDate(to);
+        cachedIndex.save(range);
+        cachedIndex.save(range);
+
+        verify(index, times(1)).save(range);
+        assertThat(cachedIndex.get(id), equalTo(range));
+        verify(index, never()).get(id);
+    }
+
+    @Test
+    public void saveAllOnlySavesChangedRanges() {
+        IdDateRange other = new IdDateRange("other", from, to);
+        cachedIndex.save(expectedRange);
+        doReturn(true).when(index).saveAll(any());
+
+        cachedIndex.saveAll(Arrays.asList(expectedRange, other));
+        verify(index).saveAll(Collections.singletonList(other));
+
+        cachedIndex.saveAll(Arrays.asList(expectedRange, other));
+        verify(index, times(1)).saveAll(any());
+        assertThat(cachedIndex.get("other"), equalTo(other));
+        verify(index, never()).get("other");
+    }
+
     @Test
     public void commits() {
         doReturn(true).when(index).commit();
@@ -131,4 +159,52 @@ public class CachedDateRangeIndexTest {
         verify(index, times(1)).get(id);
     }
 
+    @Test
+    public void clearsCacheOnFlushError() {
+        doReturn(false).when(index).flush();
+
+        cachedIndex.save(expectedRange.id(), expectedRange.from(), expectedRange.to());
+        cachedIndex.flush();
+        verify(index).flush();
+        verify(index, never()).commit();
+
+        cachedIndex.get(id);
+        verify(index, times(1)).get(id);
+    }
+
+    @Test
+    public void discards() {
+        cachedIndex.discard();
+        verify(index).discard();
+        verify(index, never()).rollback();
+
+        cachedIndex.get(id);
+        verify(index, times(1)).get(id);
+    }
+
+    @Test
+    public void recordsCacheHitsIntoTheCurrentStats() {
+        doReturn(expectedRange).when(index).get(id);
+        doAnswer(inv -> {
+            Consumer<IdDateRange> handler = inv.getArgument(1);
+            handler.accept(new IdDateRange("other", from, to));
+            return null;
+        }).when(index).forEach(eq(Collections.singleton("other")), any());
+
+        QueryStats stats = new QueryStats();
+        try (QueryStats.Scope ignored = stats.enter()) {
+            cachedIndex.get(id);
+            cachedIndex.get(id);
+            cachedIndex.forEach(Arrays.asList(id, "other"), range -> {
+            });
+        }
+
+        assertThat(stats.cacheHits(), equalTo(2L));
+        assertThat(stats.cacheMisses(), equalTo(2L));
+
+        // Lookups outside of a scope are not recorded.
+        cachedIndex.get(id);
+        assertThat(stats.cacheHits(), equalTo(2L));
+    }
+
 }
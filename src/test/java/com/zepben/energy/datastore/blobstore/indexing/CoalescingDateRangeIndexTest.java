@@ -0,0 +1,244 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import com.zepben.energy.model.IdDateRange;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.function.Consumer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class CoalescingDateRangeIndexTest {
+
+    private final DateRangeIndex index = mock(DateRangeIndex.class);
+    private final CoalescingDateRangeIndex coalescingIndex = new CoalescingDateRangeIndex(index);
+    private final Map<String, IdDateRange> savedRanges = new HashMap<>();
+
+    private final String id = "id";
+    private final LocalDate date = LocalDate.of(2020, 1, 10);
+
+    @BeforeEach
+    public void before() {
+        doAnswer(inv -> {
+            Collection<String> ids = inv.getArgument(0);
+            Consumer<IdDateRange> handler = inv.getArgument(1);
+            ids.forEach(id -> {
+                if (savedRanges.containsKey(id))
+                    handler.accept(savedRanges.get(id));
+            });
+            return null;
+        }).when(index).forEach(any(), any());
+        doAnswer(inv -> savedRanges.get(inv.<String>getArgument(0))).when(index).get(any());
+        doReturn(true).when(index).saveAll(any());
+        doReturn(true).when(index).flush();
+        doReturn(true).when(index).commit();
+        doReturn(true).when(index).rollback();
+    }
+
+    @Test
+    public void buffersExtensionsUntilCommit() {
+        assertThat(coalescingIndex.extendRange(id, date), is(true));
+        assertThat(coalescingIndex.extendRange(id, date.plusDays(2)), is(true));
+        assertThat(coalescingIndex.extendRange(id, date.minusDays(1)), is(true));
+        assertThat(coalescingIndex.extendRange("other", date), is(true));
+
+        assertThat(coalescingIndex.pending(), equalTo(2));
+        verify(index, never()).get(any());
+        verify(index, never()).save(any(IdDateRange.class));
+        verify(index, never()).saveAll(any());
+    }
+
+    @Test
+    public void commitSavesTheMergedExtensionsInOneBatch() {
+        coalescingIndex.extendRange(id, date);
+        coalescingIndex.extendRange(id, date.plusDays(2));
+        coalescingIndex.extendRange(id, date.minusDays(1));
+        coalescingIndex.extendRange("other", date);
+
+        assertThat(coalescingIndex.commit(), is(true));
+
+        List<IdDateRange> ranges = savedBatch();
+        assertThat(ranges, containsInAnyOrder(
+            IdDateRange.ofDate(id, date).withDate(date.plusDays(2)).withDate(date.minusDays(1)),
+            IdDateRange.ofDate("other", date)));
+
+        InOrder inOrder = inOrder(index);
+        inOrder.verify(index).forEach(any(), any());
+        inOrder.verify(index).saveAll(any());
+        inOrder.verify(index).commit();
+        assertThat(coalescingIndex.pending(), equalTo(0));
+    }
+
+    @Test
+    public void mergesExtensionsWithTheSavedDays() {
+        savedRanges.put(id, IdDateRange.ofDate(id, date).withDate(date.plusDays(3)));
+        coalescingIndex.extendRange(id, date.minusDays(2));
+        coalescingIndex.extendRange(id, date.plusDays(1));
+
+        IdDateRange expectedRange = savedRanges.get(id).withDate(date.minusDays(2)).withDate(date.plusDays(1));
+        assertThat(coalescingIndex.get(id), equalTo(expectedRange));
+
+        coalescingIndex.commit();
+        assertThat(savedBatch(), contains(expectedRange));
+    }
+
+    @Test
+    public void extendsTheRangeOfIdsWithoutDaysWithAGap() {
+        savedRanges.put(id, new IdDateRange(id, date, date.plusDays(3)));
+        coalescingIndex.extendRange(id, date.plusDays(5));
+
+        BitSet days = new BitSet();
+        days.set(0, 4);
+        days.set(5);
+        coalescingIndex.commit();
+        assertThat(savedBatch(), contains(new IdDateRange(id, date, date.plusDays(5), days)));
+    }
+
+    @Test
+    public void doesNotSaveUnchangedRanges() {
+        savedRanges.put(id, IdDateRange.ofDate(id, date).withDate(date.plusDays(1)));
+        coalescingIndex.extendRange(id, date.plusDays(1));
+
+        assertThat(coalescingIndex.commit(), is(true));
+        verify(index, never()).saveAll(any());
+        verify(index).commit();
+    }
+
+    @Test
+    public void rollsBackTheBackingIndexIfTheBatchFails() {
+        doReturn(false).when(index).saveAll(any());
+        coalescingIndex.extendRange(id, date);
+
+        assertThat(coalescingIndex.commit(), is(false));
+        verify(index).rollback();
+        verify(index, never()).commit();
+        assertThat(coalescingIndex.pending(), equalTo(0));
+    }
+
+    @Test
+    public void rollbackDiscardsTheExtensions() {
+        coalescingIndex.extendRange(id, date);
+
+        assertThat(coalescingIndex.rollback(), is(true));
+        verify(index).rollback();
+        assertThat(coalescingIndex.pending(), equalTo(0));
+        assertThat(coalescingIndex.get(id), nullValue());
+
+        coalescingIndex.commit();
+        verify(index, never()).saveAll(any());
+    }
+
+    @Test
+    public void flushSavesTheExtensionsWithoutCommitting() {
+        coalescingIndex.extendRange(id, date);
+
+        assertThat(coalescingIndex.flush(), is(true));
+        assertThat(savedBatch(), contains(IdDateRange.ofDate(id, date)));
+        verify(index).flush();
+        verify(index, never()).commit();
+        assertThat(coalescingIndex.pending(), equalTo(0));
+
+        coalescingIndex.committed();
+        verify(index).committed();
+    }
+
+    @Test
+    public void flushFailsWithoutRollingBackIfTheBatchFails() {
+        doReturn(false).when(index).saveAll(any());
+        coalescingIndex.extendRange(id, date);
+
+        assertThat(coalescingIndex.flush(), is(false));
+        verify(index, never()).rollback();
+        verify(index, never()).flush();
+    }
+
+    @Test
+    public void discardDropsTheExtensionsWithoutRollingBack() {
+        coalescingIndex.extendRange(id, date);
+
+        coalescingIndex.discard();
+        verify(index).discard();
+        verify(index, never()).rollback();
+        assertThat(coalescingIndex.pending(), equalTo(0));
+    }
+
+    @Test
+    public void savesReplaceTheExtensions() {
+        IdDateRange range = new IdDateRange(id, date, date.plusDays(1));
+        coalescingIndex.extendRange(id, date.plusDays(5));
+
+        coalescingIndex.save(range);
+        verify(index).save(range);
+        assertThat(coalescingIndex.pending(), equalTo(0));
+    }
+
+    @Test
+    public void readsIncludeTheExtensions() {
+        IdDateRange saved = IdDateRange.ofDate(id, date);
+        savedRanges.put(id, saved);
+        doAnswer(inv -> {
+            savedRanges.values().forEach(inv.<Consumer<IdDateRange>>getArgument(0));
+            return null;
+        }).when(index).forAll(any());
+
+        coalescingIndex.extendRange(id, date.plusDays(1));
+        coalescingIndex.extendRange("other", date);
+
+        List<IdDateRange> ranges = new ArrayList<>();
+        coalescingIndex.forEach(Arrays.asList(id, "other", "missing"), ranges::add);
+        assertThat(ranges, contains(saved.withDate(date.plusDays(1)), IdDateRange.ofDate("other", date)));
+
+        ranges.clear();
+        coalescingIndex.forAll(ranges::add);
+        assertThat(ranges, containsInAnyOrder(saved.withDate(date.plusDays(1)), IdDateRange.ofDate("other", date)));
+    }
+
+    @Test
+    public void pagesIncludeTheExtensions() {
+        savedRanges.put("a", IdDateRange.ofDate("a", date));
+        savedRanges.put("c", IdDateRange.ofDate("c", date));
+        doAnswer(inv -> {
+            String after = inv.getArgument(0);
+            int limit = inv.getArgument(1);
+            Consumer<IdDateRange> handler = inv.getArgument(2);
+            new TreeMap<>(savedRanges).tailMap(after == null ? "" : after, after == null).values().stream().limit(limit).forEach(handler);
+            return null;
+        }).when(index).forAllAfter(any(), anyInt(), any());
+
+        coalescingIndex.extendRange("a", date.plusDays(1));
+        coalescingIndex.extendRange("b", date);
+        coalescingIndex.extendRange("d", date);
+
+        // Extended ids only sort into the page before the last saved id of a full page.
+        List<IdDateRange> ranges = new ArrayList<>();
+        coalescingIndex.forAllAfter(null, 2, ranges::add);
+        assertThat(ranges, contains(IdDateRange.ofDate("a", date).withDate(date.plusDays(1)), IdDateRange.ofDate("b", date)));
+
+        ranges.clear();
+        coalescingIndex.forAllAfter("b", 2, ranges::add);
+        assertThat(ranges, contains(IdDateRange.ofDate("c", date), IdDateRange.ofDate("d", date)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<IdDateRange> savedBatch() {
+        ArgumentCaptor<Collection<IdDateRange>> captor = ArgumentCaptor.forClass(Collection.class);
+        verify(index).saveAll(captor.capture());
+        return new ArrayList<>(captor.getValue());
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.blobstore.indexing;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static com.zepben.testutils.exception.ExpectException.expect;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class CompressedBitmapTest {
+
+    @Test
+    public void addsAndContains() {
+        CompressedBitmap bitmap = new CompressedBitmap();
+        assertThat(bitmap.isEmpty(), is(true));
+
+        assertThat(bitmap.add(5), is(true));
+        assertThat(bitmap.add(5), is(false));
+        assertThat(bitmap.add(70000), is(true));
+
+        assertThat(bitmap.contains(5), is(true));
+        assertThat(bitmap.contains(70000), is(true));
+        assertThat(bitmap.contains(6), is(false));
+        assertThat(bitmap.contains(-1), is(false));
+        assertThat(bitmap.cardinality(), equalTo(2));
+    }
+
+    @Test
+    public void lastIsTheLargestValue() {
+        CompressedBitmap bitmap = new CompressedBitmap();
+        assertThat(bitmap.last(), equalTo(-1));
+
+        bitmap.add(5);
+        assertThat(bitmap.last(), equalTo(5));
+        bitmap.add(70000);
+        bitmap.add(7);
+        assertThat(bitmap.last(), equalTo(70000));
+
+        CompressedBitmap dense = new CompressedBitmap();
+        for (int i = 0; i < CompressedBitmap.ARRAY_MAX * 2; ++i)
+            dense.add(i * 2);
+        assertThat(dense.last(), equalTo(CompressedBitmap.ARRAY_MAX * 4 - 2));
+    }
+
+    @Test
+    public void rejectsNegativeValues() {
+        expect(() -> new CompressedBitmap().add(-1)).toThrow(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void convertsDenseChunksToBitmaps() {
+        CompressedBitmap bitmap = new CompressedBitmap();
+        for (int i = 0; i < CompressedBitmap.ARRAY_MAX * 2; ++i)
+            bitmap.add(i * 2);
+
+        assertThat(bitmap.cardinality(), equalTo(CompressedBitmap.ARRAY_MAX * 2));
+        assertThat(bitmap.contains(8190), is(true));
+        assertThat(bitmap.contains(8191), is(false));
+        // Once converted a chunk is a fixed 8KB, which is smaller than the 16KB it would take as an array.
+        assertThat(bitmap.serialise().length, lessThan(CompressedBitmap.ARRAY_MAX * 4));
+    }
+
+    @Test
+    public void iteratesInOrder() {
+        Random random = new Random(1);
+        TreeSet<Integer> expected = new TreeSet<>();
+        CompressedBitmap bitmap = new CompressedBitmap();
+        for (int i = 0; i < 20000; ++i) {
+            int value = random.nextInt(300000);
+            expected.add(value);
+            bitmap.add(value);
+        }
+
+        List<Integer> values = new ArrayList<>();
+        bitmap.forEach(values::add);
+        assertThat(values, equalTo(new ArrayList<>(expected)));
+    }
+
+    @Test
+    public void intersects() {
+        CompressedBitmap evens = new CompressedBitmap();
+        CompressedBitmap threes = new CompressedBitmap();
+        for (int i = 0; i < 100000; ++i) {
+            if (i % 2 == 0)
+                evens.add(i);
+            if (i % 3 == 0)
+                threes.add(i);
+        }
+
+        CompressedBitmap sixes = evens.and(threes);
+        assertThat(sixes.cardinality(), equalTo(16667));
+        sixes.forEach(value -> assertThat(value % 6, equalTo(0)));
+
+        assertThat(CompressedBitmap.of(1, 2).and(CompressedBitmap.of(70000)).isEmpty(), is(true));
+    }
+
+    @Test
+    public void roundTrips() {
+        CompressedBitmap bitmap = CompressedBitmap.of(1, 3, 65536, 1000000);
+        for (int i = 0; i < 10000; ++i)
+            bitmap.add(200000 + i);
+
+        CompressedBitmap read = CompressedBitmap.deserialise(bitmap.serialise());
+        assertThat(read, equalTo(bitmap));
+        assertThat(read.cardinality(), equalTo(10004));
+        assertThat(read.contains(65536), is(true));
+
+        assertThat(CompressedBitmap.deserialise(new CompressedBitmap().serialise()).isEmpty(), is(true));
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        CompressedBitmap bitmap = CompressedBitmap.of(1);
+        CompressedBitmap copy = bitmap.copy();
+        copy.add(2);
+
+        assertThat(bitmap.contains(2), is(false));
+        assertThat(copy.contains(1), is(true));
+    }
+
+    @Test
+    public void rejectsInvalidBytes() {
+        byte[] bytes = CompressedBitmap.of(1, 2, 3).serialise();
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+
+        expect(() -> CompressedBitmap.deserialise(truncated)).toThrow(IllegalArgumentException.class);
+        expect(() -> CompressedBitmap.deserialise(new byte[]{0, 0, 0, 1, 0, 0, 9})).toThrow(IllegalArgumentException.class);
+    }
+
+}
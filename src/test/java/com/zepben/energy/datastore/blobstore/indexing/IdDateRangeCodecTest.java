@@ -14,9 +14,11 @@ import org.junit.jupiter.api.Test;
 import java.nio.ByteBuffer;
 import java.time.LocalDate;
 import java.time.ZoneId;
+import java.util.BitSet;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
 
 public class IdDateRangeCodecTest {
 
@@ -57,4 +59,58 @@ public class IdDateRangeCodecTest {
         assertThat(range, equalTo(expectedRange));
     }
 
+    @Test
+    public void roundTripsDays() {
+        LocalDate from = LocalDate.now(ZoneId.systemDefault());
+        LocalDate to = from.plusDays(721);
+        BitSet days = new BitSet();
+        days.set(0, 100);
+        days.set(150);
+        days.set(400, 722);
+        IdDateRange range = new IdDateRange("id", from, to, days);
+
+        byte[] bytes = codec.serialise(range);
+        IdDateRange read = codec.deserialise("id", bytes);
+
+        assertThat(read, equalTo(range));
+        assertThat(read.hasDate(from.plusDays(99)), is(true));
+        assertThat(read.hasDate(from.plusDays(100)), is(false));
+        assertThat(read.hasDate(from.plusDays(150)), is(true));
+        assertThat(read.hasDate(to), is(true));
+    }
+
+    @Test
+    public void rangeWithoutDaysIsTwelveBytes() {
+        LocalDate from = LocalDate.now(ZoneId.systemDefault());
+        IdDateRange range = new IdDateRange("id", from, from.plusDays(1));
+
+        assertThat(codec.serialise(range), equalTo(codec.serialise(from, from.plusDays(1))));
+        assertThat(codec.deserialise("id", codec.serialise(range)).hasDays(), is(false));
+    }
+
+    @Test
+    public void rangeWithoutGapsIsWrittenWithoutItsDays() {
+        LocalDate from = LocalDate.now(ZoneId.systemDefault());
+        BitSet days = new BitSet();
+        days.set(0, 6);
+
+        // Older versions can only read the 12 bytes of the range.
+        assertThat(codec.serialise(new IdDateRange("id", from, from.plusDays(5), days)).length, is(12));
+        assertThat(codec.serialise(IdDateRange.ofDate("id", from)).length, is(12));
+    }
+
+    @Test
+    public void truncatedDaysAreUnknown() {
+        LocalDate from = LocalDate.now(ZoneId.systemDefault());
+        BitSet days = new BitSet();
+        days.set(0);
+        days.set(5);
+        byte[] bytes = codec.serialise(new IdDateRange("id", from, from.plusDays(5), days));
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+
+        IdDateRange range = codec.deserialise("id", truncated);
+        assertThat(range, equalTo(new IdDateRange("id", from, from.plusDays(5))));
+    }
+
 }
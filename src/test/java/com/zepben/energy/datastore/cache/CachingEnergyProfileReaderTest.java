@@ -0,0 +1,214 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.cache;
+
+import com.zepben.energy.datastore.AggregateSpec;
+import com.zepben.energy.datastore.EnergyProfilePage;
+import com.zepben.energy.datastore.EnergyProfileReader;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.IntervalColumn;
+import com.zepben.energy.datastore.ItemHandler;
+import com.zepben.energy.datastore.PartialProfileReader;
+import com.zepben.energy.datastore.ProfileRanking;
+import com.zepben.energy.datastore.QueryStats;
+import com.zepben.energy.datastore.TopKHeap;
+import com.zepben.energy.model.EnergyProfile;
+import com.zepben.energy.model.EnergyProfileStat;
+import com.zepben.energy.model.IdDateRange;
+import com.zepben.energy.model.Readings;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class CachingEnergyProfileReaderTest {
+
+    private final LocalDate date = LocalDate.now(ZoneId.systemDefault());
+    private final EnergyProfile cacheable = EnergyProfile.ofCacheable("cacheable", date, null, null);
+    private final EnergyProfile notCacheable = EnergyProfile.of("notCacheable", date, null, null);
+
+    private final EnergyProfileReader backingReader = mock(EnergyProfileReader.class);
+    private final ErrorHandler onError = mock(ErrorHandler.class);
+    @SuppressWarnings("unchecked")
+    private final ItemHandler<EnergyProfile> onRead = mock(ItemHandler.class);
+    private final CachingEnergyProfileReader reader = new CachingEnergyProfileReader(backingReader, new EnergyProfileCache(1_000_000));
+
+    @Test
+    public void getReadsThrough() {
+        doReturn(cacheable).when(backingReader).get("cacheable", date, onError);
+        doReturn(notCacheable).when(backingReader).get("notCacheable", date, onError);
+
+        assertThat(reader.get("cacheable", date, onError), is(cacheable));
+        assertThat(reader.get("cacheable", date, onError), is(cacheable));
+        verify(backingReader, times(1)).get("cacheable", date, onError);
+
+        assertThat(reader.get("notCacheable", date, onError), is(notCacheable));
+        assertThat(reader.get("notCacheable", date, onError), is(notCacheable));
+        verify(backingReader, times(2)).get("notCacheable", date, onError);
+    }
+
+    @Test
+    public void forEachOnlyReadsMissingIds() {
+        reader.cache().put(cacheable);
+
+        doAnswer(inv -> {
+            ItemHandler<EnergyProfile> handler = inv.getArgument(2);
+            handler.handle(notCacheable.id(), date, notCacheable);
+            return null;
+        }).when(backingReader).forEach(any(), eq(date), any(), any());
+
+        reader.forEach(Arrays.asList("cacheable", "notCacheable"), date, onRead, onError);
+
+        verify(backingReader).forEach(eq(Collections.singletonList("notCacheable")), eq(date), any(), eq(onError));
+        verify(onRead).handle("cacheable", date, cacheable);
+        verify(onRead).handle("notCacheable", date, notCacheable);
+    }
+
+    @Test
+    public void doesNotCacheProfilesInvalidatedWhileReading() {
+        doAnswer(inv -> {
+            reader.cache().invalidate("cacheable", date);
+            return cacheable;
+        }).when(backingReader).get("cacheable", date, onError);
+
+        assertThat(reader.get("cacheable", date, onError), is(cacheable));
+        assertThat(reader.cache().size(), is(0));
+    }
+
+    @Test
+    public void getSeriesServesCachedDates() {
+        EnergyProfile nextDay = EnergyProfile.ofCacheable("cacheable", date.plusDays(1), null, null);
+        reader.cache().put(cacheable);
+        doReturn(new IdDateRange("cacheable", date, date.plusDays(1))).when(backingReader).getDateRange("cacheable");
+        doReturn(Collections.singletonList(nextDay)).when(backingReader).getSeries("cacheable", date.plusDays(1), date.plusDays(1), onError);
+
+        assertThat(reader.getSeries("cacheable", date.minusDays(1), date.plusDays(2), onError), contains(cacheable, nextDay));
+        assertThat(reader.getSeries("cacheable", date, date.plusDays(1), onError), contains(cacheable, nextDay));
+        verify(backingReader, times(1)).getSeries(any(), any(), any(), any());
+    }
+
+    @Test
+    public void forEachSeriesServesCachedProfiles() {
+        EnergyProfile nextDay = EnergyProfile.of("notCacheable", date.plusDays(1), null, null);
+        reader.cache().put(cacheable);
+        doAnswer(inv -> {
+            Consumer<IdDateRange> handler = inv.getArgument(1);
+            handler.accept(new IdDateRange("cacheable", date, date));
+            handler.accept(new IdDateRange("notCacheable", date.plusDays(1), date.plusDays(1)));
+            return null;
+        }).when(backingReader).forEachGetDateRange(any(), any());
+        doAnswer(inv -> {
+            ItemHandler<EnergyProfile> handler = inv.getArgument(2);
+            handler.handle(nextDay.id(), nextDay.date(), nextDay);
+            return null;
+        }).when(backingReader).forEach(eq(Collections.singletonList("notCacheable")), eq(date.plusDays(1)), any(), any());
+
+        reader.forEachSeries(Arrays.asList("cacheable", "notCacheable"), date.minusDays(1), date.plusDays(2), onRead, onError);
+
+        InOrder inOrder = inOrder(onRead);
+        inOrder.verify(onRead).handle("cacheable", date, cacheable);
+        inOrder.verify(onRead).handle("notCacheable", date.plusDays(1), nextDay);
+        verify(backingReader, never()).forEach(any(), eq(date), any(), any());
+        verify(backingReader, never()).forEachSeries(any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void forAllPassesThrough() {
+        reader.forAll(date, onRead, onError);
+        verify(backingReader).forAll(date, onRead, onError);
+        assertThat(reader.cache().size(), is(0));
+    }
+
+    @Test
+    public void forAllPagePassesThrough() {
+        EnergyProfilePage page = new EnergyProfilePage(Collections.emptyList(), "token2");
+        doReturn(page).when(backingReader).forAllPage(date, "token1", 10, onError);
+
+        assertThat(reader.forAllPage(date, "token1", 10, onError), is(page));
+        assertThat(reader.cache().size(), is(0));
+    }
+
+    @Test
+    public void forAllAtIntervalPassesThrough() {
+        IntervalColumn column = new IntervalColumn(date, 36);
+        doReturn(column).when(backingReader).forAllAtInterval(date, 36, onError);
+
+        assertThat(reader.forAllAtInterval(date, 36, onError), is(column));
+        assertThat(reader.cache().size(), is(0));
+    }
+
+    @Test
+    public void intervalRangeReadersPassThrough() {
+        @SuppressWarnings("unchecked")
+        PartialProfileReader<Readings> rangeReader = mock(PartialProfileReader.class);
+        doReturn(rangeReader).when(backingReader).kwInReader(32, 42);
+        doReturn(rangeReader).when(backingReader).kwOutReader(32, 42);
+
+        assertThat(reader.kwInReader(32, 42), is(rangeReader));
+        assertThat(reader.kwOutReader(32, 42), is(rangeReader));
+    }
+
+    @Test
+    public void topKPassesThrough() {
+        ProfileRanking ranking = new TopKHeap(10).toRanking();
+        ToDoubleFunction<EnergyProfileStat> value = EnergyProfileStat::kwIn;
+        doReturn(ranking).when(backingReader).topK(date, date.plusDays(30), 10, value, onError);
+
+        assertThat(reader.topK(date, date.plusDays(30), 10, value, onError), is(ranking));
+        assertThat(reader.cache().size(), is(0));
+    }
+
+    @Test
+    public void aggregatePassesThrough() {
+        Map<String, String> groupMapping = Collections.singletonMap("id1", "g1");
+        AggregateSpec spec = AggregateSpec.of(AggregateSpec.Value.KW_NET, AggregateSpec.Operation.MAX);
+        @SuppressWarnings("unchecked")
+        ItemHandler<Readings> onAggregate = mock(ItemHandler.class);
+
+        reader.aggregate(groupMapping, date, date.plusDays(30), spec, onAggregate, onError);
+
+        verify(backingReader).aggregate(groupMapping, date, date.plusDays(30), spec, onAggregate, onError);
+        assertThat(reader.cache().size(), is(0));
+    }
+
+    @Test
+    public void recordsCacheHitsIntoStats() {
+        EnergyProfile read = EnergyProfile.ofCacheable("read", date, null, null);
+        reader.cache().put(cacheable);
+        doAnswer(inv -> {
+            ItemHandler<EnergyProfile> handler = inv.getArgument(3);
+            handler.handle("read", date, read);
+            return null;
+        }).when(backingReader).forEach(any(), eq(date), any(QueryStats.class), any(), any());
+
+        QueryStats stats = new QueryStats();
+        reader.forEach(Arrays.asList("cacheable", "read"), date, stats, onRead, onError);
+
+        verify(onRead).handle("cacheable", date, cacheable);
+        verify(onRead).handle("read", date, read);
+        verify(backingReader).forEach(eq(Collections.singletonList("read")), eq(date), eq(stats), any(), eq(onError));
+        assertThat(stats.cacheHits(), is(1L));
+        assertThat(stats.cacheMisses(), is(1L));
+        assertThat(reader.cache().get("read", date), is(read));
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.cache;
+
+import com.zepben.energy.datastore.EnergyProfileWriter;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.model.EnergyProfile;
+import com.zepben.energy.model.Readings;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.*;
+
+public class CachingEnergyProfileWriterTest {
+
+    private final LocalDate date = LocalDate.now(ZoneId.systemDefault());
+    private final EnergyProfile profile = EnergyProfile.ofCacheable("id", date, null, null);
+
+    private final EnergyProfileWriter backingWriter = mock(EnergyProfileWriter.class);
+    private final ErrorHandler onError = mock(ErrorHandler.class);
+    private final EnergyProfileCache cache = new EnergyProfileCache(1_000_000);
+    private final CachingEnergyProfileWriter writer = new CachingEnergyProfileWriter(backingWriter, cache);
+
+    @Test
+    public void writeInvalidates() {
+        cache.put(profile);
+        writer.write(profile, true, onError);
+
+        assertThat(cache.get("id", date), nullValue());
+        verify(backingWriter).write(profile, true, onError);
+    }
+
+    @Test
+    public void partialWritesInvalidate() {
+        cache.put(profile);
+        writer.writeKwIn("id", date, Readings.EMPTY_READINGS, onError);
+        assertThat(cache.get("id", date), nullValue());
+
+        cache.put(profile);
+        writer.writeKwOut("id", date, Readings.EMPTY_READINGS, onError);
+        assertThat(cache.get("id", date), nullValue());
+
+        cache.put(profile);
+        writer.writeCacheable("id", date, false, onError);
+        assertThat(cache.get("id", date), nullValue());
+    }
+
+    @Test
+    public void rollbackInvalidatesUncommittedProfiles() {
+        writer.write(profile, onError);
+
+        // Simulate the uncommitted profile being read back into the cache.
+        cache.put(profile);
+        writer.rollback(onError);
+
+        assertThat(cache.get("id", date), nullValue());
+        verify(backingWriter).rollback(onError);
+    }
+
+    @Test
+    public void commitInvalidatesProfilesReadBeforeTheCommit() {
+        writer.write(profile, onError);
+
+        // Simulate the stored profile being read back into the cache before the new one was committed.
+        cache.put(profile);
+        writer.commit(onError);
+
+        assertThat(cache.get("id", date), nullValue());
+    }
+
+    @Test
+    public void commitForgetsUncommittedProfiles() {
+        writer.write(profile, onError);
+        writer.commit(onError);
+
+        cache.put(profile);
+        writer.rollback(onError);
+
+        assertThat(cache.get("id", date), notNullValue());
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.cache;
+
+import com.zepben.energy.model.Channel;
+import com.zepben.energy.model.EnergyProfile;
+import com.zepben.energy.model.Readings;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+import static com.zepben.testutils.exception.ExpectException.expect;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class EnergyProfileCacheTest {
+
+    private final LocalDate date = LocalDate.now(ZoneId.systemDefault());
+
+    private EnergyProfile profile(String id, boolean cacheable) {
+        Readings readings = Readings.of(Channel.of(new double[48]));
+        return EnergyProfile.of(id, date, readings, readings, cacheable);
+    }
+
+    @Test
+    public void admitsOnlyCacheableProfiles() {
+        EnergyProfileCache cache = new EnergyProfileCache(1_000_000);
+
+        assertThat(cache.put(profile("cacheable", true)), is(true));
+        assertThat(cache.put(profile("notCacheable", false)), is(false));
+
+        assertThat(cache.get("cacheable", date), equalTo(profile("cacheable", true)));
+        assertThat(cache.get("notCacheable", date), nullValue());
+        assertThat(cache.hits(), equalTo(1L));
+        assertThat(cache.misses(), equalTo(1L));
+    }
+
+    @Test
+    public void evictsByEstimatedSize() {
+        long profileSize = EnergyProfileCache.estimateSize(profile("id0", true));
+        EnergyProfileCache cache = new EnergyProfileCache(profileSize * 3);
+
+        for (int i = 0; i < 5; ++i)
+            cache.put(profile("id" + i, true));
+
+        assertThat(cache.size(), equalTo(3));
+        assertThat(cache.sizeBytes(), lessThanOrEqualTo(cache.maxBytes()));
+        assertThat(cache.get("id0", date), nullValue());
+        assertThat(cache.get("id4", date), notNullValue());
+    }
+
+    @Test
+    public void protectsProfilesThatAreReadAgain() {
+        long profileSize = EnergyProfileCache.estimateSize(profile("id0", true));
+        EnergyProfileCache cache = new EnergyProfileCache(profileSize * 3);
+
+        cache.put(profile("hot", true));
+        cache.get("hot", date);
+
+        // A scan of profiles that are only read once should not push out the profile that was read again.
+        for (int i = 0; i < 10; ++i)
+            cache.put(profile("scan" + i, true));
+
+        assertThat(cache.get("hot", date), notNullValue());
+    }
+
+    @Test
+    public void invalidates() {
+        EnergyProfileCache cache = new EnergyProfileCache(1_000_000);
+        cache.put(profile("id1", true));
+        cache.put(profile("id2", true));
+
+        cache.invalidate("id1", date);
+        assertThat(cache.get("id1", date), nullValue());
+        assertThat(cache.get("id2", date), notNullValue());
+
+        cache.invalidateAll();
+        assertThat(cache.size(), equalTo(0));
+        assertThat(cache.sizeBytes(), equalTo(0L));
+    }
+
+    @Test
+    public void rejectsPutsInvalidatedSinceTheGeneration() {
+        EnergyProfileCache cache = new EnergyProfileCache(1_000_000);
+        EnergyProfileCache.Generation generation = cache.generation();
+
+        cache.invalidate("id1", date);
+        assertThat(cache.put(profile("id1", true), generation), is(false));
+        assertThat(cache.get("id1", date), nullValue());
+
+        assertThat(cache.put(profile("id1", true), cache.generation()), is(true));
+
+        generation = cache.generation();
+        cache.invalidateAll();
+        assertThat(cache.put(profile("id2", true), generation), is(false));
+    }
+
+    @Test
+    public void requiresPositiveSize() {
+        expect(() -> new EnergyProfileCache(0)).toThrow(IllegalArgumentException.class);
+    }
+
+}
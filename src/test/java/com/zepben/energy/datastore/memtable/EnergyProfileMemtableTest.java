@@ -0,0 +1,266 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.memtable;
+
+import com.zepben.energy.datastore.EnergyProfileReader;
+import com.zepben.energy.datastore.EnergyProfileWriter;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.ItemHandler;
+import com.zepben.energy.model.Channel;
+import com.zepben.energy.model.EnergyProfile;
+import com.zepben.energy.model.MissingReadings;
+import com.zepben.energy.model.Readings;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.zepben.testutils.exception.ExpectException.expect;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.Matchers.contains;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.*;
+
+public class EnergyProfileMemtableTest {
+
+    private final LocalDate date = LocalDate.of(2020, 1, 1);
+    private final EnergyProfileReader reader = mock(EnergyProfileReader.class);
+    private final EnergyProfileWriter writer = mock(EnergyProfileWriter.class);
+    private final ErrorHandler onError = mock(ErrorHandler.class);
+    private final Map<String, EnergyProfile> stored = new HashMap<>();
+
+    private final EnergyProfileMemtable memtable = new EnergyProfileMemtable(reader, writer, 4, 2);
+
+    @BeforeEach
+    public void before() {
+        doAnswer(inv -> {
+            Collection<String> ids = inv.getArgument(0);
+            ItemHandler<EnergyProfile> onRead = inv.getArgument(2);
+            ids.forEach(id -> {
+                if (stored.containsKey(id))
+                    onRead.handle(id, date, stored.get(id));
+            });
+            return null;
+        }).when(reader).forEach(any(), eq(date), any(ItemHandler.class), any(ErrorHandler.class));
+        doReturn(true).when(writer).write(any(), anyBoolean(), any());
+        doReturn(true).when(writer).commit(any());
+        doReturn(true).when(writer).rollback(any());
+    }
+
+    @Test
+    public void overlaysAppendsOnTheStoredProfile() {
+        EnergyProfile storedProfile = EnergyProfile.ofCacheable("id", date, readings(1, 2, 3, 4), readings(5, 6, 7, 8));
+
+        assertThat(memtable.append("id", date, 2, readings(9), null, onError), is(true));
+        assertThat(memtable.append("id", date, 0, readings(10, 11), null, onError), is(true));
+
+        EnergyProfile profile = memtable.overlay("id", date, storedProfile);
+        assertThat(profile, notNullValue());
+        assertThat(profile.kwIn(), equalTo(readings(10, 11, 9, 4)));
+        assertThat(profile.kwOut(), equalTo(readings(5, 6, 7, 8)));
+        assertThat(profile.cacheable(), is(true));
+    }
+
+    @Test
+    public void laterAppendsReplaceEarlierOnes() {
+        memtable.append("id", date, 1, readings(1, 2), readings(3, 4), onError);
+        memtable.append("id", date, 2, readings(5), null, onError);
+
+        EnergyProfile profile = memtable.overlay("id", date, null);
+        assertThat(profile, notNullValue());
+        assertThat(profile.kwIn(), equalTo(readings(0, 1, 5, 0)));
+        assertThat(profile.kwOut(), equalTo(readings(0, 3, 4, 0)));
+    }
+
+    @Test
+    public void profilesOnlyInTheMemtableAreMissingTheSideNotAppended() {
+        memtable.append("id", date, 0, readings(1, 2), null, onError);
+
+        EnergyProfile profile = memtable.overlay("id", date, null);
+        assertThat(profile, notNullValue());
+        assertThat(profile.kwIn(), equalTo(readings(1, 2, 0, 0)));
+        assertThat(profile.kwOut(), instanceOf(MissingReadings.class));
+        assertThat(profile.cacheable(), is(false));
+    }
+
+    @Test
+    public void passesThroughProfilesWithoutAppends() {
+        EnergyProfile storedProfile = EnergyProfile.of("id", date, readings(1, 2, 3, 4), null);
+
+        assertThat(memtable.overlay("id", date, storedProfile), sameInstance(storedProfile));
+        assertThat(memtable.overlay("id", date, null), nullValue());
+    }
+
+    @Test
+    public void ignoresStoredReadingsOfADifferentShape() {
+        memtable.append("id", date, 0, readings(1), null, onError);
+
+        EnergyProfile profile = memtable.overlay("id", date, EnergyProfile.of("id", date, readings(5, 6), readings(7, 8)));
+        assertThat(profile, notNullValue());
+        assertThat(profile.kwIn(), equalTo(readings(1, 0, 0, 0)));
+        assertThat(profile.kwOut(), instanceOf(MissingReadings.class));
+    }
+
+    @Test
+    public void rejectsAppendsThatDoNotFit() {
+        assertThat(memtable.append("id", date, 3, readings(1, 2), null, onError), is(false));
+        assertThat(memtable.append("id", date, -1, null, readings(1), onError), is(false));
+        verify(onError, times(2)).handle(eq("id"), eq(date), any(), isNull());
+
+        memtable.append("id", date, 0, readings(1), null, onError);
+        assertThat(memtable.append("id", date, 1, Readings.of(Channel.of(1), Channel.of(2)), null, onError), is(false));
+        verify(onError, times(3)).handle(eq("id"), eq(date), any(), isNull());
+
+        assertThat(memtable.size(), equalTo(1));
+    }
+
+    @Test
+    public void tracksTheAppendedProfiles() {
+        memtable.append("id1", date, 0, readings(1), null, onError);
+        memtable.append("id2", date, 0, readings(1), null, onError);
+        memtable.append("id1", date.plusDays(1), 0, readings(1), null, onError);
+
+        assertThat(memtable.size(), equalTo(3));
+        assertThat(memtable.contains("id1", date), is(true));
+        assertThat(memtable.contains("id2", date.plusDays(1)), is(false));
+        assertThat(memtable.ids(date), containsInAnyOrder("id1", "id2"));
+        assertThat(memtable.ids(), containsInAnyOrder("id1", "id2"));
+        assertThat(memtable.dates("id1"), contains(date, date.plusDays(1)));
+    }
+
+    @Test
+    public void flushWritesEachProfileOnceInBatches() {
+        stored.put("id1", EnergyProfile.of("id1", date, readings(1, 2, 3, 4), null));
+        stored.put("id3", EnergyProfile.of("id3", date, readings(1, 2, 3, 4), readings(1, 2, 3, 4)));
+        memtable.append("id1", date, 3, readings(9), null, onError);
+        memtable.append("id1", date, 2, readings(8), null, onError);
+        memtable.append("id2", date, 0, readings(1, 2, 3, 4), null, onError);
+        memtable.append("id3", date, 0, readings(5), null, onError);
+
+        assertThat(memtable.flush(onError), is(true));
+
+        // Only the complete profile is written with stats.
+        ArgumentCaptor<EnergyProfile> partial = ArgumentCaptor.forClass(EnergyProfile.class);
+        verify(writer, times(2)).write(partial.capture(), eq(false), any());
+        verify(writer).write(argThat(profile -> profile.id().equals("id2")), eq(true), any());
+
+        EnergyProfile written = partial.getAllValues().get(0);
+        assertThat(written.id(), equalTo("id1"));
+        assertThat(written.kwIn(), equalTo(readings(1, 2, 8, 9)));
+        assertThat(partial.getAllValues().get(1).id(), equalTo("id3"));
+        assertThat(partial.getAllValues().get(1).kwOut(), equalTo(readings(1, 2, 3, 4)));
+        verify(writer, times(2)).commit(any());
+        assertThat(memtable.size(), equalTo(0));
+    }
+
+    @Test
+    public void keepsPartialProfilesWithNothingStoredForTheMissingIntervals() {
+        memtable.append("id1", date, 0, readings(1, 2), null, onError);
+
+        // The intervals that haven't been appended would otherwise be written as real zeros.
+        assertThat(memtable.flush(onError), is(true));
+        verify(writer, never()).write(any(), anyBoolean(), any());
+        verify(writer, never()).commit(any());
+        assertThat(memtable.contains("id1", date), is(true));
+
+        memtable.append("id1", date, 2, readings(3, 4), null, onError);
+        assertThat(memtable.flush(onError), is(true));
+
+        ArgumentCaptor<EnergyProfile> written = ArgumentCaptor.forClass(EnergyProfile.class);
+        verify(writer).write(written.capture(), eq(true), any());
+        assertThat(written.getValue().kwIn(), equalTo(readings(1, 2, 3, 4)));
+        assertThat(written.getValue().kwOut(), instanceOf(MissingReadings.class));
+        assertThat(memtable.size(), equalTo(0));
+    }
+
+    @Test
+    public void keepsAppendsThatDoNotFitTheStoredProfile() {
+        stored.put("id1", EnergyProfile.of("id1", date, readings(1, 2), null));
+        stored.put("id2", EnergyProfile.of("id2", date, readings(1, 2, 3, 4), readings(1, 2)));
+        stored.put("id3", EnergyProfile.of("id3", date, Readings.of(Channel.of(1, 2, 3, 4), Channel.of(1, 2, 3, 4)), null));
+        memtable.append("id1", date, 0, readings(5, 6, 7, 8), null, onError);
+        memtable.append("id2", date, 0, readings(5, 6, 7, 8), null, onError);
+        memtable.append("id3", date, 0, readings(5), null, onError);
+
+        // Writing them would replace the stored readings with the appends, so they are reported rather than flushed.
+        assertThat(memtable.flush(onError), is(false));
+        verify(onError).handle(eq("id1"), eq(date), any(), isNull());
+        verify(onError).handle(eq("id2"), eq(date), any(), isNull());
+        verify(onError).handle(eq("id3"), eq(date), any(), isNull());
+        verify(writer, never()).write(any(), anyBoolean(), any());
+        assertThat(memtable.size(), equalTo(3));
+    }
+
+    @Test
+    public void flushCompleteLeavesPartialProfiles() {
+        memtable.append("id1", date, 0, readings(1, 2, 3, 4), readings(1, 2, 3, 4), onError);
+        memtable.append("id2", date, 0, readings(1, 2, 3, 4), readings(1, 2, 3), onError);
+
+        assertThat(memtable.flushComplete(onError), is(true));
+
+        verify(writer).write(argThat(profile -> profile.id().equals("id1")), eq(true), any());
+        verify(writer, times(1)).write(any(), anyBoolean(), any());
+        assertThat(memtable.ids(date), contains("id2"));
+    }
+
+    @Test
+    public void keepsTheAppendsIfTheFlushFails() {
+        doReturn(false).when(writer).commit(any());
+        memtable.append("id1", date, 0, readings(1, 2, 3, 4), null, onError);
+
+        assertThat(memtable.flush(onError), is(false));
+        verify(writer).rollback(onError);
+        assertThat(memtable.contains("id1", date), is(true));
+    }
+
+    @Test
+    public void keepsProfilesThatFailToWrite() {
+        doReturn(false).when(writer).write(argThat(profile -> profile.id().equals("id1")), anyBoolean(), any());
+        memtable.append("id1", date, 0, readings(1, 2, 3, 4), null, onError);
+        memtable.append("id2", date, 0, readings(1, 2, 3, 4), null, onError);
+
+        assertThat(memtable.flush(onError), is(false));
+        assertThat(memtable.ids(date), contains("id1"));
+    }
+
+    @Test
+    public void keepsProfilesAppendedToWhileFlushing() {
+        stored.put("id1", EnergyProfile.of("id1", date, readings(5, 6, 7, 8), null));
+        memtable.append("id1", date, 0, readings(1), null, onError);
+        doAnswer(inv -> {
+            memtable.append("id1", date, 1, readings(2), null, onError);
+            return true;
+        }).when(writer).write(any(), anyBoolean(), any());
+
+        assertThat(memtable.flush(onError), is(true));
+
+        EnergyProfile profile = memtable.overlay("id1", date, null);
+        assertThat(profile, notNullValue());
+        assertThat(profile.kwIn(), equalTo(readings(1, 2, 0, 0)));
+    }
+
+    @Test
+    public void validatesTheLimits() {
+        expect(() -> new EnergyProfileMemtable(reader, writer, 0)).toThrow(IllegalArgumentException.class);
+        expect(() -> new EnergyProfileMemtable(reader, writer, 48, 0)).toThrow(IllegalArgumentException.class);
+    }
+
+    private Readings readings(double... values) {
+        return Readings.of(Channel.of(values));
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.datastore.memtable;
+
+import com.zepben.energy.datastore.EnergyProfileReader;
+import com.zepben.energy.datastore.EnergyProfileWriter;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.ItemHandler;
+import com.zepben.energy.datastore.PartialProfileReader;
+import com.zepben.energy.model.Channel;
+import com.zepben.energy.model.EnergyProfile;
+import com.zepben.energy.model.IdDateRange;
+import com.zepben.energy.model.Readings;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.function.Consumer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.Matchers.contains;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class MemtableEnergyProfileReaderTest {
+
+    private final LocalDate date = LocalDate.of(2020, 1, 1);
+    private final EnergyProfileReader reader = mock(EnergyProfileReader.class);
+    private final ErrorHandler onError = mock(ErrorHandler.class);
+    private final EnergyProfileMemtable memtable = new EnergyProfileMemtable(reader, mock(EnergyProfileWriter.class), 4);
+    private final MemtableEnergyProfileReader memtableReader = new MemtableEnergyProfileReader(reader, memtable);
+
+    private final EnergyProfile stored = EnergyProfile.of("id1", date, readings(1, 2, 3, 4), null);
+
+    @BeforeEach
+    public void before() {
+        doReturn(stored).when(reader).get(eq("id1"), eq(date), any(ErrorHandler.class));
+        doAnswer(inv -> {
+            Collection<String> ids = inv.getArgument(0);
+            if (ids.contains("id1"))
+                inv.<ItemHandler<EnergyProfile>>getArgument(2).handle("id1", date, stored);
+            return null;
+        }).when(reader).forEach(any(), eq(date), any(ItemHandler.class), any(ErrorHandler.class));
+        doAnswer(inv -> {
+            inv.<ItemHandler<EnergyProfile>>getArgument(1).handle("id1", date, stored);
+            return null;
+        }).when(reader).forAll(eq(date), any(ItemHandler.class), any(ErrorHandler.class));
+
+        memtable.append("id1", date, 3, readings(9), null, onError);
+        memtable.append("id2", date, 0, readings(5), null, onError);
+    }
+
+    @Test
+    public void getOverlaysTheAppends() {
+        EnergyProfile profile = memtableReader.get("id1", date, onError);
+        assertThat(profile, notNullValue());
+        assertThat(profile.kwIn(), equalTo(readings(1, 2, 3, 9)));
+
+        profile = memtableReader.get("id2", date, onError);
+        assertThat(profile, notNullValue());
+        assertThat(profile.kwIn(), equalTo(readings(5, 0, 0, 0)));
+
+        assertThat(memtableReader.get("id3", date, onError), nullValue());
+    }
+
+    @Test
+    public void forEachIncludesProfilesOnlyInTheMemtable() {
+        Map<String, EnergyProfile> read = new LinkedHashMap<>();
+        memtableReader.forEach(Arrays.asList("id1", "id2", "id3"), date, (id, dt, profile) -> read.put(id, profile), onError);
+
+        assertThat(read.keySet(), contains("id1", "id2"));
+        assertThat(read.get("id1").kwIn(), equalTo(readings(1, 2, 3, 9)));
+        assertThat(read.get("id2").kwIn(), equalTo(readings(5, 0, 0, 0)));
+    }
+
+    @Test
+    public void forEachOnlyReadsTheRequestedIds() {
+        List<String> read = new ArrayList<>();
+        memtableReader.forEach(Collections.singletonList("id1"), date, (id, dt, profile) -> read.add(id), onError);
+
+        assertThat(read, contains("id1"));
+    }
+
+    @Test
+    public void forAllIncludesProfilesOnlyInTheMemtable() {
+        Map<String, EnergyProfile> read = new LinkedHashMap<>();
+        memtableReader.forAll(date, (id, dt, profile) -> read.put(id, profile), onError);
+
+        assertThat(read.keySet(), contains("id1", "id2"));
+        assertThat(read.get("id1").kwIn(), equalTo(readings(1, 2, 3, 9)));
+    }
+
+    @Test
+    public void datesIncludeTheAppends() {
+        memtable.append("id1", date.plusDays(2), 0, readings(1), null, onError);
+        doReturn(IdDateRange.ofDate("id1", date)).when(reader).getDateRange("id1");
+        doAnswer(inv -> {
+            inv.<Consumer<IdDateRange>>getArgument(1).accept(IdDateRange.ofDate("id1", date));
+            return null;
+        }).when(reader).forEachGetDateRange(any(), any());
+
+        IdDateRange expected = IdDateRange.ofDate("id1", date).withDate(date.plusDays(2));
+        assertThat(memtableReader.getDateRange("id1"), equalTo(expected));
+        assertThat(memtableReader.getDateRange("id2"), equalTo(IdDateRange.ofDate("id2", date)));
+        assertThat(memtableReader.getDateRange("id3"), nullValue());
+
+        List<IdDateRange> ranges = new ArrayList<>();
+        memtableReader.forEachGetDateRange(Arrays.asList("id1", "id2", "id3"), ranges::add);
+        assertThat(ranges, contains(expected, IdDateRange.ofDate("id2", date)));
+
+        assertThat(memtableReader.exists("id2", date), is(true));
+        assertThat(memtableReader.exists("id2", date.plusDays(1)), is(false));
+    }
+
+    @Test
+    public void getSeriesMergesTheAppendedDates() {
+        EnergyProfile nextDay = EnergyProfile.of("id1", date.plusDays(1), readings(4, 3, 2, 1), null);
+        doReturn(Arrays.asList(stored, nextDay)).when(reader).getSeries("id1", date, date.plusDays(2), onError);
+        memtable.append("id1", date.plusDays(2), 0, readings(7), null, onError);
+
+        List<EnergyProfile> series = memtableReader.getSeries("id1", date, date.plusDays(2), onError);
+
+        assertThat(series, hasSize(3));
+        assertThat(series.get(0).kwIn(), equalTo(readings(1, 2, 3, 9)));
+        assertThat(series.get(1), sameInstance(nextDay));
+        assertThat(series.get(2).kwIn(), equalTo(readings(7, 0, 0, 0)));
+    }
+
+    @Test
+    public void seriesWithoutAppendsArePassedThrough() {
+        List<EnergyProfile> series = Collections.emptyList();
+        doReturn(series).when(reader).getSeries("id3", date, date, onError);
+        ItemHandler<EnergyProfile> onRead = (id, dt, profile) -> {
+        };
+
+        assertThat(memtableReader.getSeries("id3", date, date, onError), sameInstance(series));
+
+        memtableReader.forEachSeries(Collections.singletonList("id3"), date, date, onRead, onError);
+        verify(reader).forEachSeries(Collections.singletonList("id3"), date, date, onRead, onError);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void partialReadersArePassedThrough() {
+        PartialProfileReader<Readings> kwInReader = mock(PartialProfileReader.class);
+        doReturn(kwInReader).when(reader).kwInReader();
+
+        assertThat(memtableReader.kwInReader(), sameInstance(kwInReader));
+    }
+
+    private static Readings readings(double... values) {
+        return Readings.of(Channel.of(values));
+    }
+
+}
@@ -72,4 +72,12 @@ public class ChannelTest {
         assertThat(toString, containsString("values=" + Arrays.toString(channel.stream().toArray())));
     }
 
+    @Test
+    public void estimatedSize() {
+        assertThat(Channel.of(1., 2., 3.).estimatedSize(), equalTo(24L));
+        assertThat(Channel.ofFloats(1., 2., 3.).estimatedSize(), equalTo(12L));
+        assertThat(ZeroedChannelsCache.of(48).estimatedSize(), equalTo(0L));
+        assertThat(Readings.of(Channel.of(1., 2.), Channel.ofFloats(1., 2.)).estimatedSize(), equalTo(24L));
+    }
+
 }
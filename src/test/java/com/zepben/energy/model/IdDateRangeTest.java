@@ -13,6 +13,7 @@ import org.junit.jupiter.api.Test;
 
 import java.time.LocalDate;
 import java.time.ZoneId;
+import java.util.BitSet;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
@@ -76,4 +77,109 @@ public class IdDateRangeTest {
         assertThat(range1.hashCode(), not(equalTo(range2.hashCode())));
     }
 
+    @Test
+    public void hasDateWithoutDaysIsInRange() {
+        assertThat(range.hasDays(), is(false));
+        assertThat(range.days(), nullValue());
+        assertThat(range.hasDate(from.plusDays(3)), is(true));
+        assertThat(range.hasDate(to.plusDays(1)), is(false));
+    }
+
+    @Test
+    public void hasDateWithDays() {
+        BitSet days = new BitSet();
+        days.set(0);
+        days.set(7);
+        IdDateRange gappy = new IdDateRange(id, from, to, days);
+
+        assertThat(gappy.hasDays(), is(true));
+        assertThat(gappy.hasDate(from), is(true));
+        assertThat(gappy.hasDate(from.plusDays(3)), is(false));
+        assertThat(gappy.hasDate(to), is(true));
+    }
+
+    @Test
+    public void withDateExtendsDays() {
+        IdDateRange extended = IdDateRange.ofDate(id, from)
+            .withDate(from.plusDays(2))
+            .withDate(from.minusDays(2));
+
+        assertThat(extended.from(), is(from.minusDays(2)));
+        assertThat(extended.to(), is(from.plusDays(2)));
+        assertThat(extended.hasDate(from.minusDays(2)), is(true));
+        assertThat(extended.hasDate(from.minusDays(1)), is(false));
+        assertThat(extended.hasDate(from), is(true));
+        assertThat(extended.hasDate(from.plusDays(1)), is(false));
+        assertThat(extended.hasDate(from.plusDays(2)), is(true));
+    }
+
+    @Test
+    public void withDateWithoutDaysLeavesAGapToTheDate() {
+        IdDateRange extended = range.withDate(to.plusDays(3));
+
+        assertThat(extended.from(), is(from));
+        assertThat(extended.to(), is(to.plusDays(3)));
+        assertThat(extended.hasDate(to), is(true));
+        assertThat(extended.hasDate(to.plusDays(1)), is(false));
+        assertThat(extended.hasDate(to.plusDays(2)), is(false));
+        assertThat(extended.hasDate(to.plusDays(3)), is(true));
+        assertThat(range.withDate(from.plusDays(1)), sameInstance(range));
+
+        // Extending to the next day leaves no gap.
+        assertThat(range.withDate(to.plusDays(1)), equalTo(new IdDateRange(id, from, to.plusDays(1))));
+    }
+
+    @Test
+    public void daysWithoutGapsAreDropped() {
+        BitSet days = new BitSet();
+        days.set(0, 8);
+
+        assertThat(new IdDateRange(id, from, to, days).hasDays(), is(false));
+        assertThat(new IdDateRange(id, from, to, days), equalTo(new IdDateRange(id, from, to)));
+        assertThat(IdDateRange.ofDate(id, from).hasDays(), is(false));
+        assertThat(IdDateRange.ofDate(id, from).withDate(from.plusDays(1)).hasDays(), is(false));
+    }
+
+    @Test
+    public void withRangeKeepsKnownDays() {
+        BitSet days = new BitSet();
+        days.set(0);
+        days.set(2);
+        days.set(7);
+        IdDateRange gappy = new IdDateRange(id, from, to, days);
+
+        IdDateRange clipped = gappy.withRange(from.plusDays(1), to.minusDays(1));
+        assertThat(clipped.from(), is(from.plusDays(1)));
+        assertThat(clipped.to(), is(to.minusDays(1)));
+        assertThat(clipped.hasDate(from.plusDays(1)), is(false));
+        assertThat(clipped.hasDate(from.plusDays(2)), is(true));
+        assertThat(clipped.hasDate(from.plusDays(3)), is(false));
+
+        // Nothing is known about the days added to the range, so they may have a profile.
+        IdDateRange extended = gappy.withRange(from.minusDays(2), to.plusDays(1));
+        assertThat(extended.hasDate(from.minusDays(2)), is(true));
+        assertThat(extended.hasDate(from.minusDays(1)), is(true));
+        assertThat(extended.hasDate(from), is(true));
+        assertThat(extended.hasDate(from.plusDays(1)), is(false));
+        assertThat(extended.hasDate(from.plusDays(2)), is(true));
+        assertThat(extended.hasDate(to), is(true));
+        assertThat(extended.hasDate(to.plusDays(1)), is(true));
+
+        assertThat(range.withRange(from.plusDays(1), to), equalTo(new IdDateRange(id, from.plusDays(1), to)));
+    }
+
+    @Test
+    public void daysAreCopied() {
+        BitSet days = new BitSet();
+        days.set(0);
+        IdDateRange withDays = new IdDateRange(id, from, to, days);
+
+        days.set(1);
+        BitSet read = withDays.days();
+        read.set(2);
+
+        assertThat(withDays.hasDate(from.plusDays(1)), is(false));
+        assertThat(withDays.hasDate(from.plusDays(2)), is(false));
+    }
+
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.energy.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+import static com.zepben.testutils.exception.ExpectException.expect;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class MaximumsAccumulatorTest {
+
+    private final String id = "id";
+    private final LocalDate date = LocalDate.now(ZoneId.systemDefault());
+    private final EnergyProfile profile = EnergyProfile.of(id, date, Readings.of(Channel.of(1, 3, 2)), Readings.of(Channel.of(5, 4, 0)));
+
+    @Test
+    public void calculatesTheSameValuesAsOfMax() {
+        MaximumsAccumulator maximums = new MaximumsAccumulator();
+        EnergyProfileStat expected = EnergyProfileStat.ofMax(profile);
+
+        assertThat(maximums.of(profile), sameInstance(maximums));
+        assertThat(maximums.kwIn(), is(expected.kwIn()));
+        assertThat(maximums.kwOut(), is(expected.kwOut()));
+        assertThat(maximums.kwNet(), is(expected.kwNet()));
+    }
+
+    @Test
+    public void replacesTheValuesOfEachProfile() {
+        MaximumsAccumulator maximums = new MaximumsAccumulator();
+        EnergyProfileStat first = maximums.of(profile).toStat();
+
+        maximums.of(EnergyProfile.of(id, date, Readings.of(Channel.of(0, 0)), Readings.of(Channel.of(1, 2))));
+        assertThat(maximums.kwIn(), is(0.0));
+        assertThat(maximums.kwOut(), is(2.0));
+        assertThat(maximums.kwNet(), is(-1.0));
+
+        assertThat(first.kwIn(), is(3.0));
+        assertThat(first.kwOut(), is(5.0));
+        assertThat(first.kwNet(), is(2.0));
+    }
+
+    @Test
+    public void zeroLengthProfile() {
+        expect(() -> new MaximumsAccumulator().of(EnergyProfile.of(id, date, null, null)))
+            .toThrow(IllegalArgumentException.class);
+    }
+
+}
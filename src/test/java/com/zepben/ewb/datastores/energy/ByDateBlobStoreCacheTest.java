@@ -10,6 +10,7 @@ package com.zepben.ewb.datastores.energy;
 
 import com.zepben.blobstore.BlobStore;
 import com.zepben.blobstore.BlobStoreException;
+import com.zepben.energy.datastore.QueryStats;
 import org.junit.jupiter.api.Test;
 
 import java.time.LocalDate;
@@ -86,4 +87,20 @@ public class ByDateBlobStoreCacheTest {
         cache.close(mock(ByDateBlobStoreCache.ErrorHandler.class));
     }
 
+    @Test
+    public void recordsStoresOpenedIntoTheCurrentStats() throws Exception {
+        ByDateBlobStoreProvider provider = mock(ByDateBlobStoreProvider.class);
+        when(provider.get(any(), any(), anyBoolean())).thenReturn(mock(BlobStore.class, RETURNS_MOCKS));
+        ByDateBlobStoreCache cache = new ByDateBlobStoreCache(provider);
+
+        QueryStats stats = new QueryStats();
+        try (QueryStats.Scope ignored = stats.enter()) {
+            cache.getReader(date, timeZone);
+            cache.getReader(date, timeZone);
+            cache.getReader(date.plusDays(1), timeZone);
+        }
+
+        assertThat(stats.storesOpened(), is(2L));
+    }
+
 }
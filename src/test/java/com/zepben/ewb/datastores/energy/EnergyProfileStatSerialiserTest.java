@@ -14,6 +14,7 @@ import org.junit.jupiter.api.Test;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.stream.IntStream;
 
 import static com.zepben.testutils.exception.ExpectException.expect;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -52,6 +53,15 @@ public class EnergyProfileStatSerialiserTest {
         assertThat(dsxStat.kwNet(), equalTo(stat.kwNet()));
     }
 
+    @Test
+    public void serialisesValuesTheSameAsAStat() {
+        byte[] expected = Arrays.copyOf(sx.sx(new EnergyProfileStat(3.3, 2.2, 1.1)), sx.sxLength());
+        byte[] bytes = sx.sx(3.3, 2.2, 1.1);
+
+        assertThat(sx.sxOffset(), is(0));
+        assertThat(Arrays.copyOf(bytes, sx.sxLength()), equalTo(expected));
+    }
+
     @Test
     public void doesNotSupportNaN() {
         {
@@ -82,6 +92,27 @@ public class EnergyProfileStatSerialiserTest {
         assertThat(dsx.dsx(new byte[16], 15, 4), equalTo(null));
     }
 
+    @Test
+    public void deserialiseTooLongBufferReturnsNull() {
+        assertThat(dsx.dsx(new byte[28]), equalTo(null));
+    }
+
+    @Test
+    public void deserialiseIsThreadSafe() {
+        byte[][] bytes = new byte[100][];
+        for (int i = 0; i < bytes.length; ++i)
+            bytes[i] = Arrays.copyOf(sx.sx(new EnergyProfileStat(i, i * 2, -i)), sx.sxLength());
+
+        IntStream.range(0, 100_000).parallel().forEach(i -> {
+            int value = i % bytes.length;
+            EnergyProfileStat stat = dsx.dsx(bytes[value]);
+            assertThat(stat, notNullValue());
+            assertThat(stat.kwIn(), equalTo((double) value));
+            assertThat(stat.kwOut(), equalTo((double) value * 2));
+            assertThat(stat.kwNet(), equalTo((double) -value));
+        });
+    }
+
 //    @Test
 //    public void deserialiseBufferUnderflowReturnsNull() {
 //        byte[] bytes = new byte[] {0, 0, 0, 4, 1};
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.ewb.datastores.energy;
+
+import com.zepben.blobstore.BlobStoreException;
+import com.zepben.blobstore.sqlite.SqliteBlobStore;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.blobstore.indexing.BlobIdPresenceIndex;
+import com.zepben.energy.datastore.blobstore.indexing.BlobStatCoverageIndex;
+import com.zepben.energy.model.Channel;
+import com.zepben.energy.model.EnergyProfile;
+import com.zepben.energy.model.IdDateRange;
+import com.zepben.energy.model.Readings;
+import com.zepben.ewb.database.paths.DatabaseType;
+import com.zepben.ewb.database.paths.EwbDataFilePaths;
+import com.zepben.ewb.database.paths.LocalEwbDataFilePaths;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.zepben.testutils.exception.ExpectException.expect;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class EwbEnergyProfileBulkLoaderTest {
+
+    private final Progress progress = mock(Progress.class);
+    private final Progress.Factory progressFactory = mock(Progress.Factory.class);
+    private final ErrorHandler onError = mock(ErrorHandler.class);
+
+    private final LocalDate date = LocalDate.of(2020, 1, 1);
+    private final ZoneId timeZone = ZoneId.systemDefault();
+    private final Readings readings = Readings.of(Channel.of(new double[]{1, 2, 3}));
+    private EwbDataFilePaths paths;
+    private Path stagingDirectory;
+    private EwbEnergyProfileBulkLoader loader;
+
+    @BeforeEach
+    public void before(@TempDir Path tempDir) {
+        doReturn(progress).when(progressFactory).create(any(), anyInt());
+
+        paths = new LocalEwbDataFilePaths(tempDir.resolve("ewb").toString());
+        stagingDirectory = tempDir.resolve("staging");
+        loader = EwbEnergyProfileBulkLoader.create(paths, stagingDirectory, timeZone, progressFactory);
+    }
+
+    @AfterEach
+    public void after() throws Exception {
+        loader.close();
+    }
+
+    @Test
+    public void stagesDatesUntilTheyAreSwappedIn() throws Exception {
+        assertThat(loader.load(date, Arrays.asList(profile("id2", date), profile("id1", date)), onError), is(true));
+        assertThat(loader.load(date.plusDays(2), Collections.singletonList(profile("id1", date.plusDays(2))), onError), is(true));
+
+        assertThat(loader.stagedDates(), contains(date, date.plusDays(2)));
+        assertThat(Files.exists(paths.resolve(DatabaseType.ENERGY_READING, date)), is(false));
+
+        loader.swapIn();
+
+        assertThat(loader.stagedDates(), empty());
+        assertThat(Files.exists(paths.resolve(DatabaseType.ENERGY_READING, date)), is(true));
+        assertThat(Files.exists(paths.resolve(DatabaseType.ENERGY_READING, date.plusDays(2))), is(true));
+        verify(onError, never()).handle(any(), any(), any(), any());
+
+        try (SqliteEwbEnergyProfileStore store = new SqliteEwbEnergyProfileStore(paths, timeZone, EwbChannelFactory.DOUBLE_VALUES)) {
+            EnergyProfile profile = store.reader().get("id2", date, onError);
+            assertNotNull(profile);
+            assertThat(profile.kwIn().get(2), equalTo(3.0));
+
+            IdDateRange expectedRange = IdDateRange.ofDate("id1", date).withDate(date.plusDays(2));
+            assertThat(store.reader().getDateRange("id1"), equalTo(expectedRange));
+            assertThat(store.reader().getDateRange("id2"), equalTo(IdDateRange.ofDate("id2", date)));
+        }
+    }
+
+    @Test
+    public void indexesThePresenceAndStatCoverageOfTheLoadedDates() throws Exception {
+        loader.load(date, Collections.singletonList(profile("id1", date)), true, onError);
+        loader.load(date, Collections.singletonList(profile("id2", date)), false, onError);
+        loader.swapIn();
+
+        try (SqliteBlobStore indexStore = SqliteEwbEnergyProfileStore.createIndexStore(paths)) {
+            BlobIdPresenceIndex presenceIndex = new BlobIdPresenceIndex(indexStore);
+            assertThat(presenceIndex.filter(Arrays.asList("id1", "id2", "id3"), date), contains("id1", "id2"));
+
+            BlobStatCoverageIndex statCoverageIndex = new BlobStatCoverageIndex(indexStore);
+            assertThat(statCoverageIndex.getMissing(date), contains("id2"));
+        }
+    }
+
+    @Test
+    public void indexesThroughTheIndexesOfAnOpenStore() throws Exception {
+        try (SqliteEwbEnergyProfileStore store = new SqliteEwbEnergyProfileStore(paths, timeZone, EwbChannelFactory.DOUBLE_VALUES);
+             EwbEnergyProfileBulkLoader storeLoader = EwbEnergyProfileBulkLoader.create(store, stagingDirectory, progressFactory)) {
+            assertThat(store.reader().getDateRange("id1"), nullValue());
+
+            storeLoader.load(date, Collections.singletonList(profile("id1", date)), onError);
+            storeLoader.swapIn();
+
+            assertThat(store.reader().getDateRange("id1"), equalTo(IdDateRange.ofDate("id1", date)));
+            assertThat(store.reader().exists("id1", date), is(true));
+            assertNotNull(store.reader().get("id1", date, onError));
+        }
+    }
+
+    @Test
+    public void refusesToSwapInWhileAStoreHasTheIndexOpen() throws Exception {
+        loader.load(date, Collections.singletonList(profile("id1", date)), onError);
+
+        try (SqliteEwbEnergyProfileStore ignored = new SqliteEwbEnergyProfileStore(paths, timeZone, EwbChannelFactory.DOUBLE_VALUES)) {
+            expect(loader::swapIn).toThrow(BlobStoreException.class);
+        }
+
+        assertThat(loader.stagedDates(), contains(date));
+        assertThat(Files.exists(paths.resolve(DatabaseType.ENERGY_READING, date)), is(false));
+
+        loader.swapIn();
+        assertThat(Files.exists(paths.resolve(DatabaseType.ENERGY_READING, date)), is(true));
+    }
+
+    @Test
+    public void createsStagedStoresWithLargePages() throws Exception {
+        loader.load(date, Collections.singletonList(profile("id1", date)), onError);
+        loader.swapIn();
+
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + paths.resolve(DatabaseType.ENERGY_READING, date));
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("PRAGMA page_size")) {
+            assertTrue(rs.next());
+            assertThat(rs.getInt(1), equalTo(EwbEnergyProfileBulkLoader.DEFAULT_PAGE_SIZE));
+        }
+    }
+
+    @Test
+    public void doesNotLoadDatesThatAlreadyHaveAStore() throws Exception {
+        try (SqliteEwbEnergyProfileStore store = new SqliteEwbEnergyProfileStore(paths, timeZone, EwbChannelFactory.DOUBLE_VALUES)) {
+            store.writer().write(profile("id1", date), onError);
+            store.writer().commit(onError);
+        }
+
+        assertThat(loader.load(date, Collections.singletonList(profile("id2", date)), onError), is(false));
+        verify(onError).handle(eq(""), eq(date), any(), isNull());
+        assertThat(loader.stagedDates(), empty());
+    }
+
+    @Test
+    public void reportsProfilesForOtherDates() {
+        assertThat(loader.load(date, Arrays.asList(profile("id1", date), profile("id2", date.plusDays(1))), onError), is(false));
+
+        verify(onError).handle(eq("id2"), eq(date.plusDays(1)), any(), isNull());
+        assertThat(loader.stagedDates(), contains(date));
+    }
+
+    @Test
+    public void closeDeletesStoresThatWereNotSwappedIn() throws Exception {
+        loader.load(date, Collections.singletonList(profile("id1", date)), onError);
+        loader.close();
+
+        assertThat(loader.stagedDates(), empty());
+        assertThat(Files.exists(stagingDirectory.resolve(date.toString())), is(false));
+        assertThat(Files.exists(paths.resolve(DatabaseType.ENERGY_READING, date)), is(false));
+    }
+
+    private EnergyProfile profile(String id, LocalDate date) {
+        return EnergyProfile.of(id, date, readings, null);
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2020 Zeppelin Bend Pty Ltd
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package com.zepben.ewb.datastores.energy;
+
+import com.zepben.blobstore.BlobReader;
+import com.zepben.blobstore.BlobStore;
+import com.zepben.blobstore.BlobStoreException;
+import com.zepben.blobstore.BlobWriter;
+import com.zepben.blobstore.sqlite.SqliteBlobStore;
+import com.zepben.energy.datastore.ErrorHandler;
+import com.zepben.energy.datastore.blobstore.indexing.BlobStatCoverageIndex;
+import com.zepben.energy.model.Channel;
+import com.zepben.energy.model.EnergyProfile;
+import com.zepben.energy.model.EnergyProfileStat;
+import com.zepben.energy.model.Readings;
+import com.zepben.ewb.database.paths.DatabaseType;
+import com.zepben.ewb.database.paths.EwbDataFilePaths;
+import com.zepben.ewb.database.paths.LocalEwbDataFilePaths;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.annotation.Nullable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.function.Supplier;
+
+import static com.zepben.energy.datastore.blobstore.EnergyProfileAttribute.MAXIMUMS;
+import static com.zepben.testutils.exception.ExpectException.expect;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class EwbEnergyProfileStatBackfillerTest {
+
+    private final Progress progress = mock(Progress.class);
+    private final Progress.Factory progressFactory = mock(Progress.Factory.class);
+
+    private final LocalDate date = LocalDate.now(ZoneId.systemDefault());
+    private final ZoneId timeZone = ZoneId.systemDefault();
+    private EwbDataFilePaths paths;
+
+    @BeforeEach
+    public void before(@TempDir Path tempDir) {
+        doReturn(progress).when(progressFactory).create(any(), anyInt());
+
+        paths = new LocalEwbDataFilePaths(tempDir.toString());
+    }
+
+    @Test
+    public void backfillsProfilesWrittenWithoutStats() throws Exception {
+        writeProfiles(false);
+
+        backfiller(2).backfill();
+
+        assertMaximums("id1", date, 3, 5, 1);
+        assertMaximums("id2", date, 4, 0, 4);
+        assertMaximums("id1", date.plusDays(1), 3, 5, 1);
+        assertNoMissingStats();
+    }
+
+    @Test
+    public void backfillsDatesWithUnknownCoverage() throws Exception {
+        writeProfiles(false);
+        Files.delete(paths.resolve(DatabaseType.ENERGY_READINGS_INDEX));
+
+        backfiller(1).backfill();
+
+        assertMaximums("id1", date, 3, 5, 1);
+        assertMaximums("id2", date, 4, 0, 4);
+        assertNoMissingStats();
+    }
+
+    @Test
+    public void skipsDatesWithFullCoverage() throws Exception {
+        writeProfiles(true);
+        ByDateBlobStoreProvider storeProvider = spy(new SqliteByDateBlobStoreProvider(paths));
+
+        backfiller(storeProvider, 1).backfill();
+
+        verify(storeProvider, never()).get(any(), any(), anyBoolean());
+    }
+
+    @Test
+    public void refusesToRunWhileAStoreHasTheIndexOpen() throws Exception {
+        writeProfiles(false);
+        ByDateBlobStoreProvider storeProvider = spy(new SqliteByDateBlobStoreProvider(paths));
+
+        try (SqliteEwbEnergyProfileStore ignored = new SqliteEwbEnergyProfileStore(paths, timeZone, EwbChannelFactory.DOUBLE_VALUES)) {
+            expect(() -> backfiller(storeProvider, 1).backfill()).toThrow(BlobStoreException.class);
+        }
+        verify(storeProvider, never()).get(any(), any(), anyBoolean());
+
+        backfiller(storeProvider, 1).backfill();
+        assertMaximums("id1", date, 3, 5, 1);
+    }
+
+    @Test
+    public void canBeRunAgain() throws Exception {
+        writeProfiles(false);
+
+        backfiller(2).backfill();
+        backfiller(2).backfill();
+
+        assertMaximums("id1", date, 3, 5, 1);
+        assertNoMissingStats();
+    }
+
+    @Test
+    public void usesProgress() throws Exception {
+        writeProfiles(false);
+
+        backfiller(2).backfill();
+
+        verify(progressFactory).create("Backfilling stats", 2);
+        verify(progress, times(2)).step();
+    }
+
+    @Test
+    public void throttlesTheWrites() throws Exception {
+        writeProfiles(false);
+        EwbEnergyProfileStatBackfiller backfiller = EwbEnergyProfileStatBackfiller.create(
+            paths,
+            timeZone,
+            EwbChannelFactory.DOUBLE_VALUES,
+            2,
+            1,
+            10,
+            progressFactory);
+
+        // Three profiles at ten a second can't be written in less than the time of the first two.
+        long start = System.nanoTime();
+        backfiller.backfill();
+        assertThat(System.nanoTime() - start, greaterThanOrEqualTo(150_000_000L));
+
+        assertNoMissingStats();
+    }
+
+    @Test
+    public void rollsBackTheCoverageOfDatesThatFailToCommit() throws Exception {
+        writeProfiles(false);
+        SqliteBlobStore indexStore = SqliteEwbEnergyProfileStore.createIndexStore(paths);
+        BlobWriter indexWriter = spy(indexStore.getWriter());
+        BlobStore failingIndexStore = spy(indexStore);
+        doReturn(indexWriter).when(failingIndexStore).getWriter();
+        doThrow(new BlobStoreException("commit failed", null)).doCallRealMethod().when(indexWriter).commit();
+
+        expect(() -> backfiller(() -> failingIndexStore, 1).backfill()).toThrow(BlobStoreException.class);
+
+        // Only the date that committed has its coverage saved, the other is left for the next run.
+        try (SqliteBlobStore store = SqliteEwbEnergyProfileStore.createIndexStore(paths)) {
+            BlobStatCoverageIndex coverage = new BlobStatCoverageIndex(store);
+            assertThat(coverage.getMissing(date) == null ^ coverage.getMissing(date.plusDays(1)) == null, is(true));
+        }
+
+        backfiller(1).backfill();
+        assertNoMissingStats();
+    }
+
+    @Test
+    public void validatesTheLimits() {
+        expect(() -> EwbEnergyProfileStatBackfiller.create(paths, timeZone, EwbChannelFactory.DOUBLE_VALUES, 0, 1, 0, progressFactory))
+            .toThrow(IllegalArgumentException.class);
+        expect(() -> EwbEnergyProfileStatBackfiller.create(paths, timeZone, EwbChannelFactory.DOUBLE_VALUES, 1, 0, 0, progressFactory))
+            .toThrow(IllegalArgumentException.class);
+        expect(() -> EwbEnergyProfileStatBackfiller.create(paths, timeZone, EwbChannelFactory.DOUBLE_VALUES, 1, 1, -1, progressFactory))
+            .toThrow(IllegalArgumentException.class);
+    }
+
+    private void writeProfiles(boolean writeStats) {
+        ErrorHandler onError = (id, dt, msg, t) -> {
+            throw new RuntimeException(msg, t);
+        };
+
+        try (SqliteEwbEnergyProfileStore store = new SqliteEwbEnergyProfileStore(paths, timeZone, EwbChannelFactory.DOUBLE_VALUES)) {
+            store.writer().write(EnergyProfile.of("id1", date, readings(3, 1), readings(2, 5)), writeStats, onError);
+            store.writer().write(EnergyProfile.of("id2", date, readings(4, 2), null), writeStats, onError);
+            store.writer().write(EnergyProfile.of("id1", date.plusDays(1), readings(3, 1), readings(2, 5)), writeStats, onError);
+            store.writer().commit(onError);
+        }
+    }
+
+    private EwbEnergyProfileStatBackfiller backfiller(int numThreads) {
+        return backfiller(new SqliteByDateBlobStoreProvider(paths), numThreads);
+    }
+
+    private EwbEnergyProfileStatBackfiller backfiller(ByDateBlobStoreProvider storeProvider, int numThreads) {
+        return backfiller(storeProvider, () -> SqliteEwbEnergyProfileStore.createIndexStore(paths), numThreads);
+    }
+
+    private EwbEnergyProfileStatBackfiller backfiller(Supplier<BlobStore> indexStoreSupplier, int numThreads) {
+        return backfiller(new SqliteByDateBlobStoreProvider(paths), indexStoreSupplier, numThreads);
+    }
+
+    private EwbEnergyProfileStatBackfiller backfiller(ByDateBlobStoreProvider storeProvider, Supplier<BlobStore> indexStoreSupplier, int numThreads) {
+        return new EwbEnergyProfileStatBackfiller(
+            paths,
+            timeZone,
+            storeProvider,
+            indexStoreSupplier,
+            () -> SqliteEwbEnergyProfileStore.createDeserialisers(EwbChannelFactory.DOUBLE_VALUES),
+            EnergyProfileStatSerialiser::new,
+            numThreads,
+            1,
+            0,
+            progressFactory);
+    }
+
+    private void assertMaximums(String id, LocalDate date, double kwIn, double kwOut, double kwNet) throws Exception {
+        try (BlobStore store = new SqliteByDateBlobStoreProvider(paths).get(date, timeZone, false)) {
+            assertThat(store, notNullValue());
+
+            BlobReader reader = store.getReader();
+            @Nullable byte[] bytes = reader.get(id, MAXIMUMS.storeString());
+            assertThat(bytes, notNullValue());
+
+            EnergyProfileStat stat = new EnergyProfileStatDeserialiser().dsx(bytes);
+            assertThat(stat, notNullValue());
+            assertThat(stat.kwIn(), equalTo(kwIn));
+            assertThat(stat.kwOut(), equalTo(kwOut));
+            assertThat(stat.kwNet(), equalTo(kwNet));
+        }
+    }
+
+    private void assertNoMissingStats() throws Exception {
+        try (SqliteBlobStore indexStore = SqliteEwbEnergyProfileStore.createIndexStore(paths)) {
+            BlobStatCoverageIndex coverage = new BlobStatCoverageIndex(indexStore);
+            assertThat(coverage.getMissing(date), empty());
+            assertThat(coverage.getMissing(date.plusDays(1)), empty());
+        }
+    }
+
+    private static Readings readings(double... values) {
+        return Readings.of(Channel.of(values));
+    }
+
+}
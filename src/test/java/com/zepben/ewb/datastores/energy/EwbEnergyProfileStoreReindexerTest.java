@@ -12,6 +12,7 @@ import com.zepben.blobstore.BlobStoreException;
 import com.zepben.blobstore.sqlite.SqliteBlobStore;
 import com.zepben.energy.datastore.ErrorHandler;
 import com.zepben.energy.datastore.blobstore.indexing.BlobDateRangeIndex;
+import com.zepben.energy.datastore.blobstore.indexing.BlobIdPresenceIndex;
 import com.zepben.energy.model.EnergyProfile;
 import com.zepben.energy.model.IdDateRange;
 import com.zepben.ewb.database.paths.DatabaseType;
@@ -26,10 +27,12 @@ import java.nio.file.Path;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 
 import static com.zepben.testutils.exception.ExpectException.expect;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.core.Is.is;
 import static org.mockito.ArgumentMatchers.any;
@@ -81,15 +84,30 @@ public class EwbEnergyProfileStoreReindexerTest {
             BlobDateRangeIndex index = new BlobDateRangeIndex(blobIndex);
 
             IdDateRange range = index.get("allDays");
-            IdDateRange expectedRange = new IdDateRange("allDays", date.minusDays(1), date.plusDays(1));
+            BitSet days = new BitSet();
+            days.set(0, 3);
+            IdDateRange expectedRange = new IdDateRange("allDays", date.minusDays(1), date.plusDays(1), days);
             assertThat(range, equalTo(expectedRange));
 
             range = index.get("singleDay");
-            expectedRange = new IdDateRange("singleDay", date, date);
+            expectedRange = IdDateRange.ofDate("singleDay", date);
             assertThat(range, equalTo(expectedRange));
         }
     }
 
+    @Test
+    public void reindexesIdPresence() throws Exception {
+        reindexer.reindex();
+
+        try (SqliteBlobStore blobIndex = SqliteEwbEnergyProfileStore.createIndexStore(paths)) {
+            BlobIdPresenceIndex index = new BlobIdPresenceIndex(blobIndex);
+
+            assertThat(index.filter(Arrays.asList("allDays", "singleDay"), date.minusDays(1)), contains("allDays"));
+            assertThat(index.filter(Arrays.asList("allDays", "singleDay"), date), contains("allDays", "singleDay"));
+            assertThat(index.contains("singleDay", date.plusDays(1)), is(false));
+        }
+    }
+
     @Test
     public void reindexesMissingIndexFileDoesNotCauseFailure() throws Exception {
         Files.delete(paths.resolve(DatabaseType.ENERGY_READINGS_INDEX));
@@ -119,15 +137,18 @@ public class EwbEnergyProfileStoreReindexerTest {
     public void usesProgress() throws Exception {
         Progress build = mock(Progress.class);
         Progress save = mock(Progress.class);
-        doReturn(build, save).when(progressFactory).create(any(), anyInt());
+        Progress presence = mock(Progress.class);
+        doReturn(build, save, presence).when(progressFactory).create(any(), anyInt());
 
         reindexer.reindex();
 
         verify(progressFactory).create("Building index", 3);
         verify(progressFactory).create("Saving index", 2);
+        verify(progressFactory).create("Saving id presence", 3);
 
         verify(build, times(3)).step();
         verify(save, times(2)).step();
+        verify(presence, times(3)).step();
     }
 
 }
@@ -154,4 +154,133 @@ public class ReadingsSerialiserTest {
         assertThat(dsxReadings, equalTo(readings));
     }
 
+    @Test
+    public void deserialiseInterval() {
+        Channel[] channels = {Channel.of(-1.1, 0, 2.2), Channel.of(0, 0, 0), Channel.of(0.5, 33., 44.4)};
+        Readings readings = Readings.of(channels);
+        ReadingsSerialiser sx = new ReadingsSerialiser();
+        byte[] bytes = Arrays.copyOf(sx.sx(readings), sx.sxLength());
+
+        ReadingsDeserialiser dsx = new ReadingsDeserialiser(EwbChannelFactory.DOUBLE_VALUES);
+        for (int i = 0; i < readings.length(); ++i)
+            assertThat(dsx.dsxInterval(bytes, i), equalTo(readings.get(i)));
+
+        assertThat(dsx.dsxInterval(bytes, -1), equalTo(Double.NaN));
+        assertThat(dsx.dsxInterval(bytes, 3), equalTo(Double.NaN));
+    }
+
+    @Test
+    public void deserialiseIntervalUsesChannelPrecision() {
+        Readings readings = Readings.of(Channel.of(0.1, 1234.567));
+        ReadingsSerialiser sx = new ReadingsSerialiser();
+        byte[] bytes = Arrays.copyOf(sx.sx(readings), sx.sxLength());
+
+        ReadingsDeserialiser dsx = new ReadingsDeserialiser(EwbChannelFactory.FLOAT_VALUES);
+        Readings dsxReadings = dsx.dsx(bytes);
+        assertNotNull(dsxReadings);
+        assertThat(dsx.dsxInterval(bytes, 1), equalTo(dsxReadings.get(1)));
+        assertThat(dsx.dsxInterval(bytes, 1), equalTo((double) 1234.567f));
+    }
+
+    @Test
+    public void deserialiseIntervalOfZeroedReadings() {
+        ReadingsSerialiser sx = new ReadingsSerialiser();
+        byte[] bytes = Arrays.copyOf(sx.sx(ZeroedReadingsCache.of(2, 48)), sx.sxLength());
+
+        ReadingsDeserialiser dsx = new ReadingsDeserialiser(EwbChannelFactory.DOUBLE_VALUES);
+        assertThat(dsx.dsxInterval(bytes, 47), equalTo(0.0));
+    }
+
+    @Test
+    public void deserialiseIntervalBufferUnderflowReturnsNaN() {
+        ReadingsDeserialiser dsx = new ReadingsDeserialiser(EwbChannelFactory.DOUBLE_VALUES);
+        assertThat(dsx.dsxInterval(new byte[]{0}, 0), equalTo(Double.NaN));
+        assertThat(dsx.dsxInterval(new byte[]{1, 0, 0, 0, 4, 1}, 2), equalTo(Double.NaN));
+    }
+
+    @Test
+    public void serialiseBlocks() {
+        Channel[] channels = {Channel.of(-1.1, 0, 2.2), Channel.of(0, 0, 0)};
+        Readings readings = Readings.of(channels);
+        ReadingsSerialiser sx = new ReadingsSerialiser(2);
+        byte[] bytes = Arrays.copyOf(sx.sx(readings), sx.sxLength());
+
+        ByteBuffer values = ByteBuffer.allocate(32);
+        BytesUtil.INSTANCE.encode7BitLong(values, -1100L);
+        BytesUtil.INSTANCE.encode7BitLong(values, 0L);
+        int firstBlockEnd = values.position();
+        BytesUtil.INSTANCE.encode7BitLong(values, 2200L);
+        values.flip();
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put(ReadingsSerialiser.BLOCKED_FORMAT);
+        buffer.put((byte) 2);
+        buffer.put((byte) channels.length);
+        buffer.putInt(channels[0].length());
+        buffer.put((byte) 1);
+        buffer.putChar((char) firstBlockEnd);
+        buffer.putChar((char) values.limit());
+        buffer.put(values);
+        buffer.put((byte) -2);
+        buffer.flip();
+
+        assertThat(bytes, equalTo(Arrays.copyOf(buffer.array(), buffer.limit())));
+
+        ReadingsDeserialiser dsx = new ReadingsDeserialiser(EwbChannelFactory.DOUBLE_VALUES);
+        assertThat(dsx.dsx(bytes), hasEqualChannels(readings));
+    }
+
+    @Test
+    public void deserialiseBlocks() {
+        double[] values = new double[288];
+        for (int i = 0; i < values.length; ++i)
+            values[i] = i * 1.5 - 100;
+
+        Readings readings = Readings.of(Channel.of(values), Channel.of(new double[288]), Channel.of(values));
+        ReadingsSerialiser sx = new ReadingsSerialiser(16);
+        byte[] bytes = Arrays.copyOf(sx.sx(readings), sx.sxLength());
+        assertThat(bytes[0], is(ReadingsSerialiser.BLOCKED_FORMAT));
+
+        ReadingsDeserialiser dsx = new ReadingsDeserialiser(EwbChannelFactory.DOUBLE_VALUES);
+        assertThat(dsx.dsx(bytes), hasEqualChannels(readings));
+        for (int i = 0; i < readings.length(); ++i)
+            assertThat(dsx.dsxInterval(bytes, i), equalTo(readings.get(i)));
+    }
+
+    @Test
+    public void deserialiseRange() {
+        double[] values = new double[288];
+        for (int i = 0; i < values.length; ++i)
+            values[i] = i;
+
+        Readings readings = Readings.of(Channel.of(values), Channel.of(new double[288]));
+        Readings expected = Readings.of(Channel.of(Arrays.copyOfRange(values, 192, 252)), Channel.of(new double[60]));
+
+        ReadingsDeserialiser dsx = new ReadingsDeserialiser(EwbChannelFactory.DOUBLE_VALUES);
+        for (int blockSize : new int[]{0, 1, 8, 16, 127}) {
+            ReadingsSerialiser sx = new ReadingsSerialiser(blockSize);
+            byte[] bytes = Arrays.copyOf(sx.sx(readings), sx.sxLength());
+
+            assertThat(dsx.dsxRange(bytes, 192, 252), hasEqualChannels(expected));
+            assertThat(dsx.dsxRange(bytes, 280, 300), hasEqualChannels(Readings.of(Channel.of(Arrays.copyOfRange(values, 280, 288)), Channel.of(new double[8]))));
+            assertThat(dsx.dsxRange(bytes, 288, 300), sameInstance(ZeroedReadingsCache.of(2, 0)));
+            assertThat(dsx.dsxRange(bytes, 3, 2), equalTo(null));
+        }
+    }
+
+    @Test
+    public void deserialiseRangeOfZeroedReadings() {
+        ReadingsSerialiser sx = new ReadingsSerialiser(16);
+        byte[] bytes = Arrays.copyOf(sx.sx(ZeroedReadingsCache.of(1, 48)), sx.sxLength());
+
+        ReadingsDeserialiser dsx = new ReadingsDeserialiser(EwbChannelFactory.DOUBLE_VALUES);
+        assertThat(dsx.dsxRange(bytes, 32, 42), sameInstance(ZeroedReadingsCache.of(1, 10)));
+    }
+
+    @Test
+    public void blockSizeMustFitInAByte() {
+        expect(() -> new ReadingsSerialiser(-1)).toThrow(IllegalArgumentException.class);
+        expect(() -> new ReadingsSerialiser(128)).toThrow(IllegalArgumentException.class);
+    }
+
 }
@@ -18,11 +18,14 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
 
 import static com.zepben.ewb.datastores.energy.SqliteByDateBlobStoreProvider.METADATA_DATE_ID;
 import static com.zepben.ewb.datastores.energy.SqliteByDateBlobStoreProvider.METADATA_TIME_ZONE_ID;
@@ -89,6 +92,47 @@ public class SqliteByDateBlobStoreProviderTest {
         assertThat(getTz, equalTo(timeZone));
     }
 
+    @Test
+    public void notifiesWhenStoreIsCreated(@TempDir Path tempDir) throws Exception {
+        List<LocalDate> created = new ArrayList<>();
+        provider = new SqliteByDateBlobStoreProvider(new LocalEwbDataFilePaths(tempDir.toString()), created::add);
+
+        blobStore = provider.get(date, timeZone, true);
+        assertNotNull(blobStore);
+        blobStore.close();
+
+        blobStore = provider.get(date, timeZone, true);
+        assertThat(created, contains(date));
+    }
+
+    @Test
+    public void usesTheGivenStorePaths(@TempDir Path tempDir) throws Exception {
+        Path path = tempDir.resolve("staged").resolve("store.sqlite");
+        List<Path> prepared = new ArrayList<>();
+        provider = new SqliteByDateBlobStoreProvider(new SqliteByDateBlobStoreProvider.StorePaths() {
+            @Override
+            public Path resolve(LocalDate date) {
+                return path;
+            }
+
+            @Override
+            public void prepare(LocalDate date, Path path) throws IOException {
+                Files.createDirectories(path.getParent());
+                prepared.add(path);
+            }
+        }, date -> {
+        });
+
+        blobStore = provider.get(date, timeZone, false);
+        assertThat(blobStore, is(nullValue()));
+        assertThat(prepared, empty());
+
+        blobStore = provider.get(date, timeZone, true);
+        assertNotNull(blobStore);
+        assertThat(prepared, contains(path));
+        assertThat(Files.exists(path), is(true));
+    }
+
     @Test
     public void validatesExistingFileMetadata() throws Exception {
         blobStore = provider.get(date, timeZone, true);